@@ -1,6 +1,10 @@
 package com.webobjects.monitor.application;
 
 import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import com.webobjects.appserver.WOApplication;
 import com.webobjects.appserver.WOResponse;
@@ -10,6 +14,7 @@ import com.webobjects.appserver.xml._JavaMonitorDecoder;
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSData;
 import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSForwardException;
 import com.webobjects.foundation.NSLog;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
@@ -22,6 +27,7 @@ import com.webobjects.monitor._private.MObject;
 import com.webobjects.monitor._private.MSiteConfig;
 import com.webobjects.monitor._private.String_Extensions;
 
+import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXStringUtilities;
 
 public class WOTaskdHandler {
@@ -32,6 +38,35 @@ public class WOTaskdHandler {
 
     private static _NSCollectionReaderWriterLock _lock = new _NSCollectionReaderWriterLock();
 
+    /**
+     * How long the answers to status queries are shared between pages in milliseconds, 0
+     * queries the wotaskds for every page.
+     */
+    private static final long _statusCacheTimeout = ERXProperties.longForKeyWithDefault("JavaMonitor.statusCacheTimeout", 2000);
+
+    private static final ConcurrentHashMap<String, StatusQuery> _statusQueries = new ConcurrentHashMap<String, StatusQuery>();
+
+    /**
+     * A status query that is running or has recently finished. Pages that ask for the same
+     * status in the meantime wait for it instead of polling the wotaskds themselves.
+     */
+    private static class StatusQuery extends FutureTask<WOResponse[]> {
+        private volatile long _finishedAt;
+
+        public StatusQuery(Callable<WOResponse[]> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void done() {
+            _finishedAt = System.currentTimeMillis();
+        }
+
+        public boolean isExpired() {
+            return isDone() && (isCancelled() || _finishedAt + _statusCacheTimeout <= System.currentTimeMillis());
+        }
+    }
+
     private static MSiteConfig _siteConfig;
 
     public static MSiteConfig siteConfig() {
@@ -154,6 +189,10 @@ public class WOTaskdHandler {
     }
 
     public WOResponse[] sendRequest(NSDictionary monitorRequest, NSArray wotaskdArray, boolean willChange) {
+        if (monitorRequest.objectForKey("queryWotaskd") == null) {
+            // updates and commands change what the next status query returns
+            _statusQueries.clear();
+        }
         String encodedRootObjectForKey = (new _JavaMonitorCoder()).encodeRootObjectForKey(monitorRequest,
                 "monitorRequest");
         NSData content = new NSData(encodedRootObjectForKey.getBytes());
@@ -350,8 +389,42 @@ public class WOTaskdHandler {
         return monitorRequest;
     }
 
-    protected WOResponse[] sendQueryToWotaskds(String queryString, NSArray wotaskdArray) {
-        return sendRequest(createQuery(queryString), wotaskdArray, false);
+    protected WOResponse[] sendQueryToWotaskds(final String queryString, final NSArray wotaskdArray) {
+        if (_statusCacheTimeout <= 0) {
+            return sendRequest(createQuery(queryString), wotaskdArray, false);
+        }
+        StringBuilder key = new StringBuilder(queryString);
+        for (Enumeration e = wotaskdArray.objectEnumerator(); e.hasMoreElements();) {
+            key.append('|').append(((MHost) e.nextElement()).name());
+        }
+        String queryKey = key.toString();
+        StatusQuery query;
+        while (true) {
+            query = _statusQueries.get(queryKey);
+            if (query != null && !query.isExpired()) {
+                break;
+            }
+            StatusQuery newQuery = new StatusQuery(new Callable<WOResponse[]>() {
+                public WOResponse[] call() {
+                    return sendRequest(createQuery(queryString), wotaskdArray, false);
+                }
+            });
+            boolean added = (query == null) ? _statusQueries.putIfAbsent(queryKey, newQuery) == null : _statusQueries.replace(queryKey, query, newQuery);
+            if (added) {
+                query = newQuery;
+                query.run();
+                break;
+            }
+        }
+        try {
+            return query.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NSForwardException(e);
+        } catch (ExecutionException e) {
+            _statusQueries.remove(queryKey, query);
+            throw NSForwardException._runtimeExceptionForThrowable(e.getCause());
+        }
     }
 
     /* ******* */
@@ -1,10 +1,15 @@
 package er.attachment;
 
-import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 import java.util.NoSuchElementException;
+import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,12 +25,15 @@ import com.webobjects.eocontrol.EOEditingContext;
 import com.webobjects.eocontrol.EOGlobalID;
 import com.webobjects.eocontrol.EOKeyGlobalID;
 import com.webobjects.foundation.NSLog;
+import com.webobjects.foundation.NSTimestamp;
 
 import er.attachment.model.ERAttachment;
 import er.attachment.processors.ERAttachmentProcessor;
 import er.extensions.components.ERXDynamicURL;
 import er.extensions.eof.ERXEC;
 import er.extensions.eof.ERXEOGlobalIDUtilities;
+import er.extensions.foundation.ERXExpiringCache;
+import er.extensions.foundation.ERXProperties;
 
 /**
  * ERAttachmentRequestHandler is the request handler that is used for loading 
@@ -33,12 +41,39 @@ import er.extensions.eof.ERXEOGlobalIDUtilities;
  * request handler in your application constructor.  By default, all proxied 
  * attachments are visible.
  * 
+ * Responses carry an ETag and a Last-Modified header, so browsers can revalidate
+ * with If-None-Match or If-Modified-Since and get a 304 instead of the whole
+ * attachment. A single byte range (Range, optionally with If-Range) is answered
+ * with 206, which lets video players seek. File attachments are passed to the
+ * adaptor as a FileInputStream that is positioned at the start of the range,
+ * so adaptors that can (like WONettyAdaptor) send them with
+ * FileChannel.transferTo.
+ * 
+ * The id, ETag and Last-Modified of an attachment are cached by URL, so a
+ * revalidation without a delegate doesn't touch the database at all.
+ * 
+ * @property er.attachment.ERAttachmentRequestHandler.metadataCacheTimeout seconds that attachment metadata is cached, 0 to not cache it (defaults to 60)
+ * @property er.attachment.ERAttachmentRequestHandler.metadataCacheSize the maximum number of attachments in the metadata cache (defaults to 10000)
+ * 
  * @author mschrag
  */
 public class ERAttachmentRequestHandler extends WORequestHandler {
   public static final String REQUEST_HANDLER_KEY = "attachments";
   public static final Logger log = Logger.getLogger(ERAttachmentRequestHandler.class);
 
+  private static final Pattern ID_PATTERN = Pattern.compile("^id/(\\d+)/");
+  private static final int BUFFER_SIZE = 16384;
+  private static final long[] UNSATISFIABLE_RANGE = new long[0];
+
+  private static final ThreadLocal<SimpleDateFormat> HTTP_DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+    @Override
+    protected SimpleDateFormat initialValue() {
+      SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return format;
+    }
+  };
+
   /**
    * The delegate definition for this request handler.
    */
@@ -55,7 +90,54 @@ public class ERAttachmentRequestHandler extends WORequestHandler {
     public boolean attachmentVisible(ERAttachment attachment, WORequest request, WOContext context);
   }
 
+  /**
+   * The metadata of an attachment that is needed to answer a conditional request.
+   */
+  protected static class AttachmentInfo {
+    private final EOGlobalID _globalID;
+    private final String _eTag;
+    private final long _lastModified;
+
+    public AttachmentInfo(ERAttachment attachment) {
+      _globalID = attachment.editingContext().globalIDForObject(attachment);
+      NSTimestamp creationDate = attachment.creationDate();
+      // attachments are never modified after they are created, so the creation date is the last modification
+      _lastModified = creationDate != null ? creationDate.getTime() / 1000L * 1000L : 0L;
+      Integer size = attachment.size();
+      _eTag = "\"" + Long.toHexString(_lastModified) + "-" + Long.toHexString(size != null ? size.longValue() : 0L) + "-" + Integer.toHexString(attachment.webPath().hashCode()) + "\"";
+    }
+
+    public EOGlobalID globalID() {
+      return _globalID;
+    }
+
+    public String eTag() {
+      return _eTag;
+    }
+
+    /**
+     * Returns the last modification in milliseconds, truncated to seconds, or 0 if unknown.
+     */
+    public long lastModified() {
+      return _lastModified;
+    }
+  }
+
   private ERAttachmentRequestHandler.Delegate _delegate;
+  private final ERXExpiringCache<String, AttachmentInfo> _attachmentInfoCache;
+
+  public ERAttachmentRequestHandler() {
+    int cacheTimeout = ERXProperties.intForKeyWithDefault("er.attachment.ERAttachmentRequestHandler.metadataCacheTimeout", 60);
+    if (cacheTimeout > 0) {
+      _attachmentInfoCache = new ERXExpiringCache<String, AttachmentInfo>(cacheTimeout);
+      _attachmentInfoCache.setName("ERAttachmentRequestHandler");
+      _attachmentInfoCache.setMaxSize(ERXProperties.intForKeyWithDefault("er.attachment.ERAttachmentRequestHandler.metadataCacheSize", 10000));
+      _attachmentInfoCache.startBackgroundExpiration();
+    }
+    else {
+      _attachmentInfoCache = null;
+    }
+  }
 
   /**
    * Sets the delegate for this request handler.
@@ -66,10 +148,18 @@ public class ERAttachmentRequestHandler extends WORequestHandler {
     _delegate = delegate;
   }
 
+  /**
+   * Removes all cached attachment metadata, e.g. after attachments were deleted
+   * or replaced.
+   */
+  public void clearMetadataCache() {
+    if (_attachmentInfoCache != null) {
+      _attachmentInfoCache.removeAllObjects();
+    }
+  }
+
   @Override
   public WOResponse handleRequest(WORequest request) {
-    int bufferSize = 16384;
-
     WOApplication application = WOApplication.application();
     application.awake();
     try {
@@ -88,7 +178,7 @@ public class ERAttachmentRequestHandler extends WORequestHandler {
       try {
         ERXDynamicURL url = new ERXDynamicURL(request._uriDecomposed());
         String requestHandlerPath = url.requestHandlerPath();
-        Matcher idMatcher = Pattern.compile("^id/(\\d+)/").matcher(requestHandlerPath);
+        Matcher idMatcher = ERAttachmentRequestHandler.ID_PATTERN.matcher(requestHandlerPath);
         String idStr;
         String webPath;
         if (idMatcher.find()) {
@@ -103,6 +193,13 @@ public class ERAttachmentRequestHandler extends WORequestHandler {
         }
 
         try {
+          AttachmentInfo attachmentInfo = _attachmentInfoCache != null ? _attachmentInfoCache.objectForKey(requestHandlerPath) : null;
+          // without a delegate, a cached attachment can be revalidated without an editing context
+          if (attachmentInfo != null && _delegate == null && isNotModified(request, attachmentInfo)) {
+            setNotModified(response, attachmentInfo);
+            return response;
+          }
+
           InputStream attachmentInputStream;
           String mimeType;
           String fileName;
@@ -114,21 +211,41 @@ public class ERAttachmentRequestHandler extends WORequestHandler {
           editingContext.lock();
 
           try {
-            ERAttachment attachment;
-            if (idStr != null) {
-              EOGlobalID gid = EOKeyGlobalID.globalIDWithEntityName(ERAttachment.ENTITY_NAME, new Object[] { Integer.parseInt(idStr) });
-              attachment = (ERAttachment) ERXEOGlobalIDUtilities.fetchObjectWithGlobalID(editingContext, gid);
-              String actualWebPath = attachment.webPath();
-              if (!actualWebPath.equals(webPath)) {
-                throw new SecurityException("You are not allowed to view the requested attachment."); 
+            ERAttachment attachment = null;
+            if (attachmentInfo != null) {
+              attachment = (ERAttachment) ERXEOGlobalIDUtilities.fetchObjectWithGlobalID(editingContext, attachmentInfo.globalID());
+              if (attachment == null || !webPath.equals(attachment.webPath())) {
+                _attachmentInfoCache.removeObjectForKey(requestHandlerPath);
+                attachment = null;
               }
             }
-            else {
-              attachment = ERAttachment.fetchRequiredAttachmentWithWebPath(editingContext, webPath);
+            if (attachment == null) {
+              if (idStr != null) {
+                EOGlobalID gid = EOKeyGlobalID.globalIDWithEntityName(ERAttachment.ENTITY_NAME, new Object[] { Integer.parseInt(idStr) });
+                attachment = (ERAttachment) ERXEOGlobalIDUtilities.fetchObjectWithGlobalID(editingContext, gid);
+                if (attachment == null) {
+                  throw new NoSuchElementException("There is no attachment with the id " + idStr + ".");
+                }
+                String actualWebPath = attachment.webPath();
+                if (!actualWebPath.equals(webPath)) {
+                  throw new SecurityException("You are not allowed to view the requested attachment."); 
+                }
+              }
+              else {
+                attachment = ERAttachment.fetchRequiredAttachmentWithWebPath(editingContext, webPath);
+              }
+              attachmentInfo = new AttachmentInfo(attachment);
+              if (_attachmentInfoCache != null) {
+                _attachmentInfoCache.setObjectForKey(attachmentInfo, requestHandlerPath);
+              }
             }
             if (_delegate != null && !_delegate.attachmentVisible(attachment, request, context)) {
               throw new SecurityException("You are not allowed to view the requested attachment.");
             }
+            if (isNotModified(request, attachmentInfo)) {
+              setNotModified(response, attachmentInfo);
+              return response;
+            }
             mimeType = attachment.mimeType();
             length = attachment.size().longValue();
             fileName = attachment.originalFileName();
@@ -136,21 +253,46 @@ public class ERAttachmentRequestHandler extends WORequestHandler {
             if (!proxyAsAttachment) { 
               proxyAsAttachment = attachmentProcessor.proxyAsAttachment(attachment);
             }
-            InputStream rawAttachmentInputStream = attachmentProcessor.attachmentInputStream(attachment);
-            attachmentInputStream = new BufferedInputStream(rawAttachmentInputStream, bufferSize);
+            attachmentInputStream = attachmentProcessor.attachmentInputStream(attachment);
           }
           finally {
             editingContext.unlock();
           }
-          response.setHeader(mimeType, "Content-Type");
-          response.setHeader(String.valueOf(length), "Content-Length");
 
+          long[] range = requestedRange(request, attachmentInfo, length);
+          if (range == ERAttachmentRequestHandler.UNSATISFIABLE_RANGE) {
+            attachmentInputStream.close();
+            response.setHeader("bytes */" + length, "Content-Range");
+            response.setStatus(416);
+            return response;
+          }
+
+          response.setHeader(mimeType, "Content-Type");
+          response.setHeader("bytes", "Accept-Ranges");
+          setValidators(response, attachmentInfo);
           if (proxyAsAttachment) {
             response.setHeader("attachment; filename=\"" + fileName+"\"", "Content-Disposition");
           }
 
-          response.setStatus(200);
-          response.setContentStream(attachmentInputStream, bufferSize, (int) length);
+          long contentLength = length;
+          if (range != null) {
+            contentLength = range[1] - range[0] + 1;
+            try {
+              skipFully(attachmentInputStream, range[0]);
+            }
+            catch (IOException e) {
+              attachmentInputStream.close();
+              throw e;
+            }
+            response.setHeader("bytes " + range[0] + "-" + range[1] + "/" + length, "Content-Range");
+            response.setStatus(206);
+          }
+          else {
+            response.setStatus(200);
+          }
+          response.setHeader(String.valueOf(contentLength), "Content-Length");
+          // a FileInputStream is passed on as it is, so the adaptor can transfer the file without copying it
+          response.setContentStream(attachmentInputStream, ERAttachmentRequestHandler.BUFFER_SIZE, (int) contentLength);
         }
         catch (SecurityException e) {
           NSLog.out.appendln(e);
@@ -185,4 +327,130 @@ public class ERAttachmentRequestHandler extends WORequestHandler {
       application.sleep();
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Returns whether the client's copy of the attachment is still valid, according to
+   * If-None-Match or, if there is none, If-Modified-Since.
+   * 
+   * @param request the current request
+   * @param attachmentInfo the metadata of the requested attachment
+   * @return true if a 304 can be sent
+   */
+  protected boolean isNotModified(WORequest request, AttachmentInfo attachmentInfo) {
+    String ifNoneMatch = request.headerForKey("if-none-match");
+    if (ifNoneMatch != null) {
+      for (String eTag : ifNoneMatch.split(",")) {
+        eTag = eTag.trim();
+        if (eTag.startsWith("W/")) {
+          eTag = eTag.substring(2);
+        }
+        if ("*".equals(eTag) || attachmentInfo.eTag().equals(eTag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long ifModifiedSince = ERAttachmentRequestHandler.parseHttpDate(request.headerForKey("if-modified-since"));
+    return ifModifiedSince != -1L && attachmentInfo.lastModified() != 0L && attachmentInfo.lastModified() <= ifModifiedSince;
+  }
+
+  /**
+   * Returns the byte range that was requested with a Range header as {first, last}
+   * (inclusive), null if the whole attachment should be sent, or UNSATISFIABLE_RANGE.
+   * Only a single range is supported; requests for several ranges get the whole
+   * attachment, as do requests whose If-Range doesn't match the attachment.
+   * 
+   * @param request the current request
+   * @param attachmentInfo the metadata of the requested attachment
+   * @param length the length of the attachment
+   * @return the range to send
+   */
+  protected long[] requestedRange(WORequest request, AttachmentInfo attachmentInfo, long length) {
+    String rangeHeader = request.headerForKey("range");
+    if (rangeHeader == null || !rangeHeader.startsWith("bytes=")) {
+      return null;
+    }
+    String ifRange = request.headerForKey("if-range");
+    if (ifRange != null && !ifRange.equals(attachmentInfo.eTag()) && ERAttachmentRequestHandler.parseHttpDate(ifRange) != attachmentInfo.lastModified()) {
+      return null;
+    }
+    String rangeSpec = rangeHeader.substring("bytes=".length()).trim();
+    int dashIndex = rangeSpec.indexOf('-');
+    if (dashIndex == -1 || rangeSpec.indexOf(',') != -1) {
+      return null;
+    }
+    try {
+      String firstStr = rangeSpec.substring(0, dashIndex).trim();
+      String lastStr = rangeSpec.substring(dashIndex + 1).trim();
+      long first;
+      long last;
+      if (firstStr.length() == 0) {
+        // the final n bytes
+        long suffixLength = Long.parseLong(lastStr);
+        if (suffixLength <= 0 || length == 0) {
+          return ERAttachmentRequestHandler.UNSATISFIABLE_RANGE;
+        }
+        first = Math.max(0L, length - suffixLength);
+        last = length - 1;
+      }
+      else {
+        first = Long.parseLong(firstStr);
+        last = lastStr.length() == 0 ? Long.MAX_VALUE : Long.parseLong(lastStr);
+        if (last < first) {
+          return null;
+        }
+        if (first >= length) {
+          return ERAttachmentRequestHandler.UNSATISFIABLE_RANGE;
+        }
+        last = Math.min(last, length - 1);
+      }
+      return new long[] { first, last };
+    }
+    catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private void setValidators(WOResponse response, AttachmentInfo attachmentInfo) {
+    response.setHeader(attachmentInfo.eTag(), "ETag");
+    if (attachmentInfo.lastModified() != 0L) {
+      response.setHeader(HTTP_DATE_FORMAT.get().format(new Date(attachmentInfo.lastModified())), "Last-Modified");
+    }
+  }
+
+  private void setNotModified(WOResponse response, AttachmentInfo attachmentInfo) {
+    setValidators(response, attachmentInfo);
+    response.setStatus(304);
+  }
+
+  private static long parseHttpDate(String date) {
+    long time = -1L;
+    if (date != null) {
+      try {
+        time = HTTP_DATE_FORMAT.get().parse(date.trim()).getTime();
+      }
+      catch (ParseException e) {
+        // not a date (or not an RFC 1123 date, which we treat the same)
+      }
+    }
+    return time;
+  }
+
+  private static void skipFully(InputStream inputStream, long count) throws IOException {
+    if (inputStream instanceof FileInputStream) {
+      ((FileInputStream) inputStream).getChannel().position(count);
+      return;
+    }
+    long remaining = count;
+    while (remaining > 0) {
+      long skipped = inputStream.skip(remaining);
+      if (skipped <= 0) {
+        if (inputStream.read() == -1) {
+          throw new IOException("The attachment ended before the requested range.");
+        }
+        skipped = 1;
+      }
+      remaining -= skipped;
+    }
+  }
+}
@@ -5,6 +5,7 @@ import com.webobjects.eocontrol.EOEnterpriseObject;
 import com.webobjects.eocontrol.EOGlobalID;
 import com.webobjects.eocontrol.EOKeyGlobalID;
 import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.foundation.NSTimestamp;
 
 import er.extensions.eof.ERXEOControlUtilities;
 import er.extensions.eof.ERXGenericRecord;
@@ -44,7 +45,18 @@ public class ERCAuditTrail extends _ERCAuditTrail {
         }
 
         public ERCAuditTrail auditTrailForGlobalID(EOEditingContext ec, EOGlobalID gid) {
-            throw new IllegalArgumentException("Can't handle non ERXGenericRecord");
+            if (!(gid instanceof EOKeyGlobalID)) {
+                throw new IllegalArgumentException("Can't handle non EOKeyGlobalID");
+            }
+            ERXKeyGlobalID keyGID = ERXKeyGlobalID.globalIDForGID((EOKeyGlobalID) gid);
+            return (ERCAuditTrail) ERXEOControlUtilities.objectWithQualifier(ec, ENTITY_NAME, ERXQ.equals(Key.GID, keyGID));
+        }
+
+        public ERCAuditTrail createAuditTrailForGlobalID(EOEditingContext ec, EOKeyGlobalID gid) {
+            ERCAuditTrail trail = createAndInsertObject(ec);
+
+            trail.setGid(ERXKeyGlobalID.globalIDForGID(gid));
+            return trail;
         }
 
         public ERCAuditTrail createAuditTrailForObject(EOEditingContext ec, EOEnterpriseObject eo) {
@@ -98,4 +110,25 @@ public class ERCAuditTrail extends _ERCAuditTrail {
             setIsDeleted(true);
         }
     }
+
+    /**
+     * Creates an entry for a change captured in write-behind mode. The values are
+     * already serialized and the creation date and user are taken from the change.
+     */
+    public void createEntry(ERCAuditTrailChange change) {
+        ERCAuditTrailEntry entry = ERCAuditTrailEntry.clazz.createAndInsertObject(editingContext());
+        entry.setTrail(this);
+        addToEntries(entry);
+        entry.setKeyPath(change.keyPath());
+        entry.setType(change.type());
+        entry.setOldValues(change.oldValues());
+        entry.setNewValues(change.newValues());
+        entry.setCreated(new NSTimestamp(change.created()));
+        if (change.userGlobalID() != null) {
+            entry.setUserGlobalID(ERXKeyGlobalID.fromString(change.userGlobalID()));
+        }
+        if(change.type() == ERCAuditTrailType.DELETED) {
+            setIsDeleted(true);
+        }
+    }
 }
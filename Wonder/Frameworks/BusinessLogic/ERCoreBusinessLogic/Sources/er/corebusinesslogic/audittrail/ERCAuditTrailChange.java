@@ -0,0 +1,148 @@
+package er.corebusinesslogic.audittrail;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.webobjects.eocontrol.EOKeyGlobalID;
+import com.webobjects.foundation.NSPropertyListSerialization;
+
+import er.extensions.eof.ERXKeyGlobalID;
+
+/**
+ * A single audited change as captured by the {@link ERCAuditTrailHandler} in
+ * write-behind mode. It only holds the global ID of the changed object and the
+ * already serialized values, so it can be handed to another thread and spooled to
+ * disk without touching the editing context.
+ */
+public class ERCAuditTrailChange {
+
+    private long _sequence;
+
+    private final long _created;
+
+    private final String _globalID;
+
+    private final ERCAuditTrailType _type;
+
+    private final String _keyPath;
+
+    private final String _oldValues;
+
+    private final String _newValues;
+
+    private final String _userGlobalID;
+
+    public ERCAuditTrailChange(EOKeyGlobalID gid, ERCAuditTrailType type, String keyPath, Object oldValue, Object newValue, String userGlobalID) {
+        this(0, System.currentTimeMillis(), ERXKeyGlobalID.globalIDForGID(gid).asString(), type, keyPath, NSPropertyListSerialization.stringFromPropertyList(oldValue),
+                NSPropertyListSerialization.stringFromPropertyList(newValue), userGlobalID);
+    }
+
+    protected ERCAuditTrailChange(long sequence, long created, String globalID, ERCAuditTrailType type, String keyPath, String oldValues, String newValues, String userGlobalID) {
+        _sequence = sequence;
+        _created = created;
+        _globalID = globalID;
+        _type = type;
+        _keyPath = keyPath;
+        _oldValues = oldValues;
+        _newValues = newValues;
+        _userGlobalID = userGlobalID;
+    }
+
+    /**
+     * The position of the change in the spool, assigned when it is handed to the
+     * writer.
+     */
+    public long sequence() {
+        return _sequence;
+    }
+
+    protected void setSequence(long sequence) {
+        _sequence = sequence;
+    }
+
+    /**
+     * The time the change was captured in milliseconds.
+     */
+    public long created() {
+        return _created;
+    }
+
+    /**
+     * The global ID of the changed object, as returned by {@link ERXKeyGlobalID#asString()}.
+     */
+    public String globalID() {
+        return _globalID;
+    }
+
+    public ERCAuditTrailType type() {
+        return _type;
+    }
+
+    public String keyPath() {
+        return _keyPath;
+    }
+
+    public String oldValues() {
+        return _oldValues;
+    }
+
+    public String newValues() {
+        return _newValues;
+    }
+
+    /**
+     * The global ID of the actor that made the change, or null.
+     */
+    public String userGlobalID() {
+        return _userGlobalID;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(_sequence);
+        out.writeLong(_created);
+        writeString(out, _globalID);
+        writeString(out, (String) _type.value());
+        writeString(out, _keyPath);
+        writeString(out, _oldValues);
+        writeString(out, _newValues);
+        writeString(out, _userGlobalID);
+    }
+
+    public static ERCAuditTrailChange readFrom(DataInput in) throws IOException {
+        long sequence = in.readLong();
+        long created = in.readLong();
+        String globalID = readString(in);
+        ERCAuditTrailType type = ERCAuditTrailType.trailType(readString(in));
+        String keyPath = readString(in);
+        String oldValues = readString(in);
+        String newValues = readString(in);
+        String userGlobalID = readString(in);
+        return new ERCAuditTrailChange(sequence, created, globalID, type, keyPath, oldValues, newValues, userGlobalID);
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    @Override
+    public String toString() {
+        return "{ sequence = " + _sequence + "; gid = " + _globalID + "; type = " + _type + "; keyPath = " + _keyPath + "; }";
+    }
+}
@@ -1,7 +1,13 @@
 package er.corebusinesslogic.audittrail;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+import com.webobjects.appserver.WOApplication;
 import com.webobjects.eoaccess.EOEntity;
 import com.webobjects.eoaccess.EOModel;
 import com.webobjects.eoaccess.EOModelGroup;
@@ -11,6 +17,7 @@ import com.webobjects.eocontrol.EOEnterpriseObject;
 import com.webobjects.eocontrol.EOObjectStoreCoordinator;
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSForwardException;
 import com.webobjects.foundation.NSKeyValueCoding;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
@@ -19,6 +26,7 @@ import com.webobjects.foundation.NSNotificationCenter;
 import com.webobjects.foundation.NSSelector;
 import com.webobjects.foundation._NSUtilities;
 
+import er.corebusinesslogic.ERCoreBusinessLogic;
 import er.extensions.eof.ERXConstant;
 import er.extensions.eof.ERXEC;
 import er.extensions.eof.ERXEOAccessUtilities;
@@ -31,8 +39,22 @@ import er.extensions.foundation.ERXSelectorUtilities;
 import er.extensions.foundation.ERXValueUtilities;
 
 /**
+ * Creates audit trail entries for the objects of entities that have an
+ * <code>ERXAuditKeys</code> entry in their user info.
+ * <p>
+ * By default the entries are inserted into the editing context that is saved. In
+ * write-behind mode only the global ID and the audited keys of each change are
+ * captured and handed to an {@link ERCAuditTrailWriter} once the save succeeded,
+ * which inserts them in batches in the background.
  *
  * @property er.corebusinesslogic.ERCAuditTrailClassName
+ * @property er.corebusinesslogic.ERCAuditTrailHandler.writeBehind if true, entries are written in the background, defaults to false
+ * @property er.corebusinesslogic.ERCAuditTrailHandler.spoolFile the file that changes are spooled to in write-behind mode, defaults to a file named after the application in the temp directory
+ * @property er.corebusinesslogic.ERCAuditTrailHandler.syncSpool if true, the spool is synced to the disk for every save, defaults to false
+ * @property er.corebusinesslogic.ERCAuditTrailHandler.queueSize the number of changes kept in memory for the writer, defaults to 10000
+ * @property er.corebusinesslogic.ERCAuditTrailHandler.batchSize the maximum number of changes written in one transaction, defaults to 200
+ * @property er.corebusinesslogic.ERCAuditTrailHandler.retryDelay how long to wait before writing a failed batch again in milliseconds, defaults to 5000
+ * @property er.corebusinesslogic.ERCAuditTrailHandler.maxAttempts how often a batch is written before it is split and failing changes are moved to the dead letter file, 0 to retry forever, defaults to 10
  */
 public class ERCAuditTrailHandler {
     static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(ERCAuditTrail.class);
@@ -45,6 +67,13 @@ public class ERCAuditTrailHandler {
 
     }
 
+    /**
+     * Returns the handler that was created by {@link #initialize()}.
+     */
+    public static ERCAuditTrailHandler handler() {
+        return _handler;
+    }
+
     public static void initialize() {
         String className = ERXProperties.stringForKeyWithDefault("er.corebusinesslogic.ERCAuditTrailClassName", ERCAuditTrailHandler.class.getName());
         Class c = ERXPatcher.classForName(className);
@@ -69,6 +98,53 @@ public class ERCAuditTrailHandler {
 
     protected NSMutableDictionary<String, Configuration> configuration = new NSMutableDictionary<String, Configuration>();
 
+    /**
+     * The changes of a save in write-behind mode until the save succeeded.
+     */
+    protected static class PendingChanges {
+        public final String userGlobalID;
+
+        public final NSMutableArray<ERCAuditTrailChange> changes = new NSMutableArray<ERCAuditTrailChange>();
+
+        public PendingChanges(String userGlobalID) {
+            this.userGlobalID = userGlobalID;
+        }
+    }
+
+    protected ERCAuditTrailWriter writer;
+
+    protected Map<EOEditingContext, PendingChanges> pendingChanges = Collections.synchronizedMap(new WeakHashMap<EOEditingContext, PendingChanges>());
+
+    /**
+     * Returns the writer in write-behind mode, null otherwise.
+     */
+    public ERCAuditTrailWriter writer() {
+        return writer;
+    }
+
+    protected ERCAuditTrailWriter createWriter() {
+        String prefix = "er.corebusinesslogic.ERCAuditTrailHandler.";
+        String spoolFileName = ERXProperties.stringForKey(prefix + "spoolFile");
+        File spoolFile;
+        if (spoolFileName != null) {
+            spoolFile = new File(spoolFileName);
+        } else {
+            WOApplication application = WOApplication.application();
+            String name = application != null ? application.name() + "-" + application.port() : "Application";
+            spoolFile = new File(System.getProperty("java.io.tmpdir"), "ERCAuditTrail-" + name + ".spool");
+        }
+        int queueSize = ERXProperties.intForKeyWithDefault(prefix + "queueSize", 10000);
+        int batchSize = ERXProperties.intForKeyWithDefault(prefix + "batchSize", 200);
+        long retryDelay = ERXProperties.longForKeyWithDefault(prefix + "retryDelay", 5000);
+        int maxAttempts = ERXProperties.intForKeyWithDefault(prefix + "maxAttempts", 10);
+        boolean syncSpool = ERXProperties.booleanForKeyWithDefault(prefix + "syncSpool", false);
+        try {
+            return new ERCAuditTrailWriter(spoolFile, queueSize, batchSize, retryDelay, maxAttempts, syncSpool);
+        } catch (IOException e) {
+            throw new NSForwardException(e, "Failed to open the audit trail spool " + spoolFile);
+        }
+    }
+
     public void modelGroupDidLoad(NSNotification n) {
         configuration.removeAllObjects();
         EOModelGroup group = (EOModelGroup) n.object();
@@ -85,6 +161,12 @@ public class ERCAuditTrailHandler {
         NSNotificationCenter.defaultCenter().removeObserver(_handler, ERXModelGroup.ModelGroupAddedNotification, null);
         NSSelector sel = ERXSelectorUtilities.notificationSelector("handleSave");
         NSNotificationCenter.defaultCenter().addObserver(_handler, sel, ERXEC.EditingContextWillSaveChangesNotification, null);
+        if (ERXProperties.booleanForKeyWithDefault("er.corebusinesslogic.ERCAuditTrailHandler.writeBehind", false)) {
+            writer = createWriter();
+            NSNotificationCenter.defaultCenter().addObserver(_handler, ERXSelectorUtilities.notificationSelector("handleDidSave"), EOEditingContext.EditingContextDidSaveChangesNotification, null);
+            NSNotificationCenter.defaultCenter().addObserver(_handler, ERXSelectorUtilities.notificationSelector("handleFailedSave"), ERXEC.EditingContextFailedToSaveChanges, null);
+            writer.start();
+        }
     }
 
     protected Configuration configureEntity(EOEntity entity) {
@@ -137,8 +219,14 @@ public class ERCAuditTrailHandler {
     public void handleSave(NSNotification n) {
         if (configuration.count() == 0)
             return;
+        if (Thread.currentThread() instanceof ERCAuditTrailWriter) {
+            return;
+        }
         EOEditingContext ec = (EOEditingContext) n.object();
         if (ec.parentObjectStore() instanceof EOObjectStoreCoordinator) {
+            if (writer != null) {
+                pendingChanges.put(ec, new PendingChanges(userGlobalID(ec)));
+            }
             ec.processRecentChanges();
             NSArray<EOEnterpriseObject> insertedObjects = (NSArray) ec.insertedObjects().immutableClone();
             for (EOEnterpriseObject eo : insertedObjects) {
@@ -158,6 +246,28 @@ public class ERCAuditTrailHandler {
         }
     }
 
+    /**
+     * Hands the changes of a successful save to the writer in write-behind mode.
+     */
+    public void handleDidSave(NSNotification n) {
+        PendingChanges pending = pendingChanges.remove(n.object());
+        if (pending != null && pending.changes.count() > 0) {
+            writer.enqueue(pending.changes);
+        }
+    }
+
+    public void handleFailedSave(NSNotification n) {
+        pendingChanges.remove(n.object());
+    }
+
+    protected String userGlobalID(EOEditingContext ec) {
+        EOEnterpriseObject user = ERCoreBusinessLogic.actor(ec);
+        if (user instanceof ERXGenericRecord) {
+            return ERXKeyGlobalID.globalIDForGID(((ERXGenericRecord) user).permanentGlobalID()).asString();
+        }
+        return null;
+    }
+
     protected void handleUpdate(EOEditingContext ec, EOEnterpriseObject eo) {
         NSArray keys = configuration.objectForKey(eo.entityName()).keys;
         NSDictionary committedSnapshotForObject = ec.committedSnapshotForObject(eo);
@@ -171,21 +281,37 @@ public class ERCAuditTrailHandler {
     }
 
     private void handleSave(EOEditingContext ec, String typeKey, EOEnterpriseObject eo) {
+        // in write-behind mode, only the audited keys are captured
+        NSArray keys = writer != null ? configuration.objectForKey(eo.entityName()).keys : null;
         if (typeKey.equals(EOEditingContext.UpdatedKey)) {
             handleUpdate(ec, eo);
         } else if (typeKey.equals(EOEditingContext.InsertedKey)) {
-            handleInsert(ec, eo, serializeObject(eo));
+            handleInsert(ec, eo, serializeObject(eo, keys));
         } else if (typeKey.equals(EOEditingContext.DeletedKey)) {
-            handleDelete(ec, eo, serializeObject(eo));
+            handleDelete(ec, eo, serializeObject(eo, keys));
         }
     }
 
     protected NSDictionary serializeObject(EOEnterpriseObject eo) {
+        return serializeObject(eo, null);
+    }
+
+    /**
+     * Returns the snapshot of the object with objects replaced by their global IDs.
+     *
+     * @param eo the object
+     * @param keys the keys to include, or null for all
+     */
+    protected NSDictionary serializeObject(EOEnterpriseObject eo, NSArray keys) {
+        NSDictionary snapshot = eo.snapshot();
         NSMutableDictionary<String, Object> result = new NSMutableDictionary<String, Object>();
-        result.addEntriesFromDictionary(eo.snapshot());
-        for (Enumeration e = eo.snapshot().keyEnumerator(); e.hasMoreElements();) {
+        for (Enumeration e = snapshot.keyEnumerator(); e.hasMoreElements();) {
             String key = (String) e.nextElement();
-            Object value = result.objectForKey(key);
+            if (keys != null && !keys.containsObject(key)) {
+                continue;
+            }
+            Object value = snapshot.objectForKey(key);
+            result.setObjectForKey(value, key);
             if (value instanceof ERXConstant.Constant) {
                 ERXConstant.Constant constant = (ERXConstant.Constant) value;
                 result.setObjectForKey(constant.value(), key);
@@ -197,7 +323,7 @@ public class ERCAuditTrailHandler {
             } else if (value instanceof NSArray) {
                 NSArray oldValue = (NSArray) value;
                 NSMutableArray newValue = new NSMutableArray(oldValue.count());
-                for (Enumeration e1 = newValue.objectEnumerator(); e1.hasMoreElements();) {
+                for (Enumeration e1 = oldValue.objectEnumerator(); e1.hasMoreElements();) {
                     ERXGenericRecord rec = (ERXGenericRecord) e1.nextElement();
                     newValue.addObject(ERXKeyGlobalID.globalIDForGID(rec.permanentGlobalID()).asString());
                 }
@@ -267,11 +393,17 @@ public class ERCAuditTrailHandler {
 
     protected void handleChange(EOEditingContext ec, EOEnterpriseObject eo, ERCAuditTrailType type, String keyPath, Object oldValue, Object newValue) {
         ERXGenericRecord rec = (ERXGenericRecord) eo;
-        ERCAuditTrail trail = ERCAuditTrail.clazz.auditTrailForObject(ec, eo);
-        if (trail == null) {
-            trail = ERCAuditTrail.clazz.createAuditTrailForObject(ec, eo);
+        PendingChanges pending = writer != null ? pendingChanges.get(ec) : null;
+        ERCAuditTrail trail = null;
+        if (pending == null) {
+            trail = ERCAuditTrail.clazz.auditTrailForObject(ec, eo);
+            if (trail == null) {
+                trail = ERCAuditTrail.clazz.createAuditTrailForObject(ec, eo);
+            }
+        }
+        if (log.isInfoEnabled()) {
+            log.info((trail != null ? trail : "Queued") + " " + type + ": " + rec.permanentGlobalID() + " " + keyPath + " from " + oldValue + " to " + newValue);
         }
-        log.info(trail + " " + type + ": " + rec.permanentGlobalID() + " " + keyPath + " from " + oldValue + " to " + newValue);
         if (oldValue instanceof ERXGenericRecord) {
             ERXGenericRecord rec1 = (ERXGenericRecord) oldValue;
             oldValue = ERXKeyGlobalID.globalIDForGID(rec1.permanentGlobalID()).asString();
@@ -280,6 +412,10 @@ public class ERCAuditTrailHandler {
             ERXGenericRecord rec1 = (ERXGenericRecord) newValue;
             newValue = ERXKeyGlobalID.globalIDForGID(rec1.permanentGlobalID()).asString();
         }
-        trail.createEntry(type, keyPath, oldValue, newValue);
+        if (pending != null) {
+            pending.changes.addObject(new ERCAuditTrailChange(rec.permanentGlobalID(), type, keyPath, oldValue, newValue, pending.userGlobalID));
+        } else {
+            trail.createEntry(type, keyPath, oldValue, newValue);
+        }
     }
 }
@@ -0,0 +1,474 @@
+package er.corebusinesslogic.audittrail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.webobjects.eocontrol.EOEditingContext;
+
+import er.extensions.eof.ERXEC;
+import er.extensions.eof.ERXKeyGlobalID;
+
+/**
+ * Writes the changes captured by the {@link ERCAuditTrailHandler} in write-behind
+ * mode. Changes are appended to a spool file and put on a bounded queue; this thread
+ * takes them off the queue and inserts them in batches, one transaction per batch.
+ * <p>
+ * The spool file is what makes this safe: the last written change is recorded in a
+ * checkpoint file next to it, and changes that were spooled but not written when the
+ * application stopped are written when the next writer starts. When the queue is full,
+ * changes are only spooled and the writer reads them back from the spool once it
+ * caught up, so saves never wait for the writer. A change that was written right
+ * before a crash may be written a second time after the restart.
+ * <p>
+ * A batch that still fails after the maximum number of attempts is split in halves
+ * that are written separately, and a single change that keeps failing is appended to
+ * a dead letter file next to the spool, so it doesn't hold up the changes after it.
+ * The dead letter file has the format of the spool.
+ */
+public class ERCAuditTrailWriter extends Thread {
+    static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(ERCAuditTrailWriter.class);
+
+    private final ArrayBlockingQueue<ERCAuditTrailChange> _queue;
+
+    private final int _batchSize;
+
+    private final long _retryDelay;
+
+    private final int _maxAttempts;
+
+    private final boolean _syncSpool;
+
+    private final File _spoolFile;
+
+    private final File _checkpointFile;
+
+    private final File _deadLetterFile;
+
+    private final Object _spoolLock = new Object();
+
+    private final FileOutputStream _spool;
+
+    /** The last sequence handed out, guarded by _spoolLock. */
+    private long _sequence;
+
+    /** True while there are spooled changes that are not in the queue, guarded by _spoolLock. */
+    private boolean _overflow;
+
+    /** Where to continue reading the spool while overflowing, guarded by _spoolLock. */
+    private long _replayOffset;
+
+    private volatile long _writtenSequence;
+
+    private volatile long _overflowSince;
+
+    private volatile long _batchCreated;
+
+    private volatile long _writtenCount;
+
+    private volatile long _batchCount;
+
+    private volatile long _failedBatchCount;
+
+    private volatile long _deadLetterCount;
+
+    /**
+     * @param spoolFile the file to spool changes to, the checkpoint is kept next to it
+     * @param queueSize the number of changes to keep in memory
+     * @param batchSize the maximum number of changes to write in one transaction
+     * @param retryDelay how long to wait before writing a failed batch again in milliseconds
+     * @param maxAttempts how often to write a batch before it is split, 0 to retry it until it is written
+     * @param syncSpool if true, the spool is synced to the disk for every save
+     * @throws IOException if the spool can't be opened
+     */
+    public ERCAuditTrailWriter(File spoolFile, int queueSize, int batchSize, long retryDelay, int maxAttempts, boolean syncSpool) throws IOException {
+        super("ERCAuditTrailWriter");
+        setDaemon(true);
+        _queue = new ArrayBlockingQueue<ERCAuditTrailChange>(queueSize);
+        _batchSize = batchSize;
+        _retryDelay = retryDelay;
+        _maxAttempts = maxAttempts;
+        _syncSpool = syncSpool;
+        _spoolFile = spoolFile;
+        _checkpointFile = new File(spoolFile.getPath() + ".checkpoint");
+        _deadLetterFile = new File(spoolFile.getPath() + ".dead");
+        File directory = spoolFile.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create the directory for " + spoolFile);
+        }
+        _writtenSequence = readCheckpoint();
+        _sequence = Math.max(_writtenSequence, recoverSpool());
+        _spool = new FileOutputStream(spoolFile, true);
+        if (_sequence > _writtenSequence) {
+            log.info("Writing " + (_sequence - _writtenSequence) + " audit trail changes left in " + spoolFile);
+            _overflow = true;
+            _overflowSince = System.currentTimeMillis();
+        } else {
+            _spool.getChannel().truncate(0);
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (!_checkpointFile.exists() || _checkpointFile.length() < 8) {
+            return 0;
+        }
+        RandomAccessFile file = new RandomAccessFile(_checkpointFile, "r");
+        try {
+            return file.readLong();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeCheckpoint(long sequence) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(_checkpointFile, "rw");
+        try {
+            file.writeLong(sequence);
+            if (_syncSpool) {
+                file.getFD().sync();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the last sequence in the spool and cuts off a change that was only
+     * partly written.
+     */
+    private long recoverSpool() throws IOException {
+        if (!_spoolFile.exists()) {
+            return 0;
+        }
+        long sequence = 0;
+        long offset = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_spoolFile)));
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 8) {
+                    break;
+                }
+                long recordSequence = in.readLong();
+                if (in.skipBytes(length - 8) < length - 8) {
+                    break;
+                }
+                sequence = recordSequence;
+                offset += 4 + length;
+            }
+        } catch (EOFException e) {
+            // partly written change
+        } finally {
+            in.close();
+        }
+        if (offset < _spoolFile.length()) {
+            log.warn("Dropping a partly written audit trail change at the end of " + _spoolFile);
+            RandomAccessFile file = new RandomAccessFile(_spoolFile, "rw");
+            try {
+                file.setLength(offset);
+            } finally {
+                file.close();
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Reads up to <code>limit</code> changes after the written sequence from the spool,
+     * starting at the given offset.
+     *
+     * @return the offset after the last change read, or -1 if the end of the spool was reached
+     */
+    private long readSpool(long offset, int limit, List<ERCAuditTrailChange> changes) throws IOException {
+        FileInputStream file = new FileInputStream(_spoolFile);
+        file.getChannel().position(offset);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(file));
+        try {
+            while (limit > 0) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return -1;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                offset += 4 + length;
+                ERCAuditTrailChange change = ERCAuditTrailChange.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+                if (change.sequence() > _writtenSequence) {
+                    changes.add(change);
+                    limit--;
+                }
+            }
+            return offset;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Spools the changes of one save and queues them for writing. Doesn't wait for
+     * the writer.
+     *
+     * @param changes the changes
+     */
+    public void enqueue(List<ERCAuditTrailChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        synchronized (_spoolLock) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * changes.size());
+                DataOutputStream out = new DataOutputStream(bytes);
+                ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+                DataOutputStream recordOut = new DataOutputStream(record);
+                for (ERCAuditTrailChange change : changes) {
+                    change.setSequence(++_sequence);
+                    record.reset();
+                    change.writeTo(recordOut);
+                    out.writeInt(record.size());
+                    record.writeTo(out);
+                }
+                bytes.writeTo(_spool);
+                _spool.flush();
+                if (_syncSpool) {
+                    _spool.getFD().sync();
+                }
+            } catch (IOException e) {
+                log.error("Failed to spool " + changes.size() + " audit trail changes to " + _spoolFile, e);
+            }
+            if (!_overflow && _queue.remainingCapacity() >= changes.size()) {
+                _queue.addAll(changes);
+            } else if (!_overflow) {
+                log.warn("Audit trail queue is full, changes are written from " + _spoolFile + " until the writer caught up");
+                _overflow = true;
+                _overflowSince = changes.get(0).created();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        List<ERCAuditTrailChange> batch = new ArrayList<ERCAuditTrailChange>(_batchSize);
+        try {
+            while (true) {
+                if (nextBatch(batch)) {
+                    writeBatchUntilDone(batch);
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.info("Stopped with " + pendingCount() + " audit trail changes left in " + _spoolFile);
+        }
+    }
+
+    private boolean nextBatch(List<ERCAuditTrailChange> batch) throws InterruptedException {
+        _queue.drainTo(batch, _batchSize);
+        if (batch.isEmpty()) {
+            synchronized (_spoolLock) {
+                if (_overflow) {
+                    // queued changes come before the ones that are only spooled
+                    _queue.drainTo(batch, _batchSize);
+                    if (batch.isEmpty()) {
+                        try {
+                            _replayOffset = readSpool(_replayOffset, _batchSize, batch);
+                        } catch (IOException e) {
+                            log.error("Failed to read audit trail changes from " + _spoolFile, e);
+                            return false;
+                        }
+                        if (_replayOffset < 0) {
+                            _overflow = false;
+                            _overflowSince = 0;
+                            _replayOffset = 0;
+                        }
+                    }
+                    return !batch.isEmpty();
+                }
+            }
+            ERCAuditTrailChange change = _queue.poll(1, TimeUnit.SECONDS);
+            if (change != null) {
+                batch.add(change);
+                _queue.drainTo(batch, _batchSize - 1);
+            }
+        }
+        return !batch.isEmpty();
+    }
+
+    private void writeBatchUntilDone(List<ERCAuditTrailChange> batch) throws InterruptedException {
+        _batchCreated = batch.get(0).created();
+        writeBatchOrSplit(batch);
+        _batchCreated = 0;
+        _writtenSequence = batch.get(batch.size() - 1).sequence();
+        try {
+            writeCheckpoint(_writtenSequence);
+            synchronized (_spoolLock) {
+                if (!_overflow && _queue.isEmpty() && _writtenSequence == _sequence) {
+                    _spool.getChannel().truncate(0);
+                    _replayOffset = 0;
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to update " + _checkpointFile, e);
+        }
+    }
+
+    /**
+     * Writes the batch, retrying it up to the maximum number of attempts. A batch that
+     * keeps failing is split in halves, a single change is moved to the dead letter file.
+     */
+    private void writeBatchOrSplit(List<ERCAuditTrailChange> batch) throws InterruptedException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                writeBatch(batch);
+                _writtenCount += batch.size();
+                _batchCount++;
+                return;
+            } catch (RuntimeException e) {
+                _failedBatchCount++;
+                if (_maxAttempts > 0 && attempt >= _maxAttempts) {
+                    if (batch.size() > 1) {
+                        log.error("Failed to write " + batch.size() + " audit trail changes " + attempt + " times, writing them in two batches", e);
+                        int half = batch.size() / 2;
+                        writeBatchOrSplit(new ArrayList<ERCAuditTrailChange>(batch.subList(0, half)));
+                        writeBatchOrSplit(new ArrayList<ERCAuditTrailChange>(batch.subList(half, batch.size())));
+                    } else {
+                        log.error("Failed to write audit trail change " + batch.get(0).sequence() + " " + attempt + " times, moving it to " + _deadLetterFile, e);
+                        writeDeadLetter(batch.get(0));
+                    }
+                    return;
+                }
+                log.error("Failed to write " + batch.size() + " audit trail changes, retrying in " + _retryDelay + "ms", e);
+                Thread.sleep(_retryDelay);
+            }
+        }
+    }
+
+    private void writeDeadLetter(ERCAuditTrailChange change) {
+        _deadLetterCount++;
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+            change.writeTo(new DataOutputStream(record));
+            FileOutputStream file = new FileOutputStream(_deadLetterFile, true);
+            try {
+                DataOutputStream out = new DataOutputStream(file);
+                out.writeInt(record.size());
+                record.writeTo(out);
+                out.flush();
+                if (_syncSpool) {
+                    file.getFD().sync();
+                }
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            log.error("Failed to write audit trail change " + change.sequence() + " to " + _deadLetterFile + ", dropping it", e);
+        }
+    }
+
+    /**
+     * Inserts the changes in a new editing context and saves it.
+     *
+     * @param changes the changes to write
+     */
+    protected void writeBatch(List<ERCAuditTrailChange> changes) {
+        EOEditingContext ec = ERXEC.newEditingContext();
+        ec.lock();
+        try {
+            Map<String, ERCAuditTrail> trails = new HashMap<String, ERCAuditTrail>();
+            for (ERCAuditTrailChange change : changes) {
+                ERCAuditTrail trail = trails.get(change.globalID());
+                if (trail == null) {
+                    ERXKeyGlobalID gid = ERXKeyGlobalID.fromString(change.globalID());
+                    trail = ERCAuditTrail.clazz.auditTrailForGlobalID(ec, gid);
+                    if (trail == null) {
+                        trail = ERCAuditTrail.clazz.createAuditTrailForGlobalID(ec, gid);
+                    }
+                    trails.put(change.globalID(), trail);
+                }
+                trail.createEntry(change);
+            }
+            ec.saveChanges();
+        } finally {
+            ec.unlock();
+            ec.dispose();
+        }
+    }
+
+    /**
+     * Returns the number of changes waiting in memory.
+     */
+    public int queueDepth() {
+        return _queue.size();
+    }
+
+    /**
+     * Returns the number of changes that were captured but are not written yet,
+     * including the ones that are only in the spool.
+     */
+    public long pendingCount() {
+        synchronized (_spoolLock) {
+            return _sequence - _writtenSequence;
+        }
+    }
+
+    /**
+     * Returns how long the oldest change that is not written yet has been waiting in
+     * milliseconds, 0 if all changes are written.
+     */
+    public long lagMillis() {
+        long oldest = _batchCreated;
+        if (oldest == 0) {
+            ERCAuditTrailChange change = _queue.peek();
+            oldest = change != null ? change.created() : _overflowSince;
+        }
+        return oldest == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /**
+     * Returns the number of changes written since the writer started.
+     */
+    public long writtenCount() {
+        return _writtenCount;
+    }
+
+    /**
+     * Returns the number of batches written since the writer started.
+     */
+    public long batchCount() {
+        return _batchCount;
+    }
+
+    /**
+     * Returns the number of times writing a batch failed.
+     */
+    public long failedBatchCount() {
+        return _failedBatchCount;
+    }
+
+    /**
+     * Returns the number of changes that were moved to the dead letter file.
+     */
+    public long deadLetterCount() {
+        return _deadLetterCount;
+    }
+
+    @Override
+    public String toString() {
+        return "<" + getClass().getSimpleName() + " queueDepth=" + queueDepth() + " pending=" + pendingCount() + " lag=" + lagMillis() + "ms written=" + _writtenCount + " batches="
+                + _batchCount + " failed=" + _failedBatchCount + " dead=" + _deadLetterCount + ">";
+    }
+}
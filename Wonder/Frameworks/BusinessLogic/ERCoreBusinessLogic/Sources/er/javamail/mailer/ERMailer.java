@@ -7,7 +7,19 @@
 package er.javamail.mailer;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.mail.MessagingException;
 
@@ -15,9 +27,15 @@ import org.apache.log4j.Logger;
 
 import com.webobjects.eoaccess.EOGeneralAdaptorException;
 import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.eocontrol.EOSortOrdering;
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSKeyValueCoding;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSTimestamp;
 
 import er.corebusinesslogic.ERCMailMessage;
@@ -25,7 +43,11 @@ import er.corebusinesslogic.ERCMailState;
 import er.corebusinesslogic.ERCMessageAttachment;
 import er.corebusinesslogic.ERCoreBusinessLogic;
 import er.extensions.eof.ERXEC;
+import er.extensions.eof.ERXEOAccessUtilities;
+import er.extensions.eof.ERXEOControlUtilities;
 import er.extensions.eof.ERXFetchSpecificationBatchIterator;
+import er.extensions.eof.ERXQ;
+import er.extensions.eof.qualifiers.ERXInQualifier;
 import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXUtilities;
 import er.javamail.ERMailDelivery;
@@ -37,6 +59,23 @@ import er.javamail.ERMailFileAttachment;
  * Mailer bridge class. Used to pull mail out of the
  * ERMailMessage entity and send it via the ERJavaMail
  * framework for sending mail.
+ * <p>
+ * By default messages are claimed in batches: one UPDATE moves a batch of messages
+ * that are ready to be sent to the processing state and marks them with a token in
+ * the exception reason, so several mailers can run against the same database without
+ * sending a message twice. The claimed messages are delivered by a pool of threads and
+ * the results are recorded with one UPDATE per outcome. A message that fails is put
+ * into the wait state and tried again later, its last modified date holds the time of
+ * the next attempt; after the last attempt it goes to the exception state. Messages
+ * that stay claimed longer than the claim timeout (because the mailer died) are put
+ * back into the wait state.
+ *
+ * @property er.javamail.mailer.ERMailer.UseClaims if false, messages are sent one by one with two saves per message, defaults to true
+ * @property er.javamail.mailer.ERMailer.ClaimBatchSize the number of messages claimed at once, defaults to 100
+ * @property er.javamail.mailer.ERMailer.SenderThreads the number of threads that deliver claimed messages, defaults to 4
+ * @property er.javamail.mailer.ERMailer.MaxAttempts how often a message is tried before it goes to the exception state, defaults to 5
+ * @property er.javamail.mailer.ERMailer.RetryDelay the delay before the first retry in milliseconds, doubled for every further attempt, defaults to 300000
+ * @property er.javamail.mailer.ERMailer.ClaimTimeout the time in milliseconds after which a claim is considered abandoned, 0 to never release claims, defaults to 3600000
  */
 public class ERMailer {
 
@@ -58,6 +97,16 @@ public class ERMailer {
 
     private static final boolean _warnOnGeneralAdaptorExceptionLockingMessage =
         ERXProperties.booleanForKeyWithDefault("er.javamail.mailer.ERMailer.WarnOnGeneralAdaptorExceptionLockingMessage", true);
+
+    /** the primary key attribute of the mail message entity */
+    private static final String ID_KEY = "id";
+
+    /** the longest exception reason the model allows */
+    private static final int MAX_EXCEPTION_REASON_LENGTH = 1000;
+
+    private static final Pattern ATTEMPT_PATTERN = Pattern.compile("^Attempt (\\d+):");
+
+    private static ExecutorService _senderExecutor;
     
     //	===========================================================================
     //	Class Method(s)
@@ -97,6 +146,45 @@ public class ERMailer {
     protected static boolean shouldDeleteSentMail() {
         return ERXProperties.booleanForKeyWithDefault("er.javamail.mailer.ERMailer.ShouldDeleteSentMail", true);
     }
+
+    protected static boolean useClaims() {
+        return ERXProperties.booleanForKeyWithDefault("er.javamail.mailer.ERMailer.UseClaims", true);
+    }
+
+    protected static int claimBatchSize() {
+        return ERXProperties.intForKeyWithDefault("er.javamail.mailer.ERMailer.ClaimBatchSize", 100);
+    }
+
+    protected static int maxAttempts() {
+        return ERXProperties.intForKeyWithDefault("er.javamail.mailer.ERMailer.MaxAttempts", 5);
+    }
+
+    protected static long retryDelay() {
+        return ERXProperties.longForKeyWithDefault("er.javamail.mailer.ERMailer.RetryDelay", 300000L);
+    }
+
+    protected static long claimTimeout() {
+        return ERXProperties.longForKeyWithDefault("er.javamail.mailer.ERMailer.ClaimTimeout", 3600000L);
+    }
+
+    /**
+     * Returns the pool of threads that deliver claimed messages.
+     */
+    protected static synchronized ExecutorService senderExecutor() {
+        if (_senderExecutor == null) {
+            int threads = Math.max(1, ERXProperties.intForKeyWithDefault("er.javamail.mailer.ERMailer.SenderThreads", 4));
+            _senderExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger _threadNumber = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ERMailer-" + _threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _senderExecutor;
+    }
     
     /**
      * Gets the shared mailer instance.
@@ -130,6 +218,25 @@ public class ERMailer {
     public void processOutgoingMail() {
         if (log.isDebugEnabled())
             log.debug("Starting outgoing mail processing.");
+        if (useClaims()) {
+            releaseAbandonedClaims();
+            int claimBatchSize = claimBatchSize();
+            while (true) {
+                EOEditingContext ec = ERXEC.newEditingContext();
+                ec.lock();
+                try {
+                    if (sendClaimedMailMessages(ec, claimBatchSize) == 0) {
+                        break;
+                    }
+                } finally {
+                    ec.unlock();
+                    ec.dispose();
+                }
+            }
+            if (log.isDebugEnabled())
+                log.debug("Done outgoing mail processing.");
+            return;
+        }
         ERXFetchSpecificationBatchIterator iterator = ERCMailMessage.mailMessageClazz().batchIteratorForUnsentMessages();
 
         EOEditingContext ec = ERXEC.newEditingContext();
@@ -229,6 +336,251 @@ public class ERMailer {
         }
     }
     
+    /**
+     * Returns the qualifier for messages that are ready to be sent or due for another
+     * attempt, with the state as raw value so it can be used for raw rows.
+     */
+    protected EOQualifier sendableMessagesQualifier(NSTimestamp now) {
+        return ERXQ.or(ERXQ.equals(ERCMailMessage.Key.STATE, ERCMailState.READY_TO_BE_SENT_STATE.value()),
+                ERXQ.and(ERXQ.equals(ERCMailMessage.Key.STATE, ERCMailState.WAIT_STATE.value()), ERXQ.lessThanOrEqualTo(ERCMailMessage.Key.LAST_MODIFIED, now)));
+    }
+
+    /**
+     * Claims up to <code>limit</code> messages that are ready to be sent with one UPDATE,
+     * delivers them in parallel and records the results with one UPDATE per outcome.
+     * Messages that another mailer claimed first are skipped.
+     *
+     * @param ec editing context to fetch the claimed messages into
+     * @param limit the maximum number of messages to claim
+     * @return the number of messages that were ready to be sent, 0 if there are none left
+     */
+    public int sendClaimedMailMessages(EOEditingContext ec, int limit) {
+        NSTimestamp now = new NSTimestamp();
+        EOQualifier sendable = sendableMessagesQualifier(now);
+        EOFetchSpecification candidatesSpec = new EOFetchSpecification(ERCMailMessage.ENTITY_NAME, sendable, new NSArray<EOSortOrdering>(EOSortOrdering.sortOrderingWithKey(ERCMailMessage.Key.CREATED, EOSortOrdering.CompareAscending)));
+        candidatesSpec.setFetchLimit(limit);
+        candidatesSpec.setFetchesRawRows(true);
+        candidatesSpec.setRawRowKeyPaths(new NSArray<String>(new String[] { ID_KEY, ERCMailMessage.Key.EXCEPTION_REASON }));
+        candidatesSpec.setIsDeep(false);
+        NSArray<NSDictionary<String, Object>> candidates = ec.objectsWithFetchSpecification(candidatesSpec);
+        if (candidates.count() == 0) {
+            return 0;
+        }
+
+        NSMutableArray<Object> ids = new NSMutableArray<Object>(candidates.count());
+        NSMutableDictionary<Object, Integer> previousAttempts = new NSMutableDictionary<Object, Integer>();
+        for (NSDictionary<String, Object> candidate : candidates) {
+            Object id = candidate.objectForKey(ID_KEY);
+            ids.addObject(id);
+            Object reason = candidate.objectForKey(ERCMailMessage.Key.EXCEPTION_REASON);
+            Matcher matcher = reason instanceof String ? ATTEMPT_PATTERN.matcher((String) reason) : null;
+            previousAttempts.setObjectForKey(Integer.valueOf(matcher != null && matcher.find() ? Integer.parseInt(matcher.group(1)) : 0), id);
+        }
+
+        String token = "Claimed by mailer " + UUID.randomUUID();
+        NSMutableDictionary<String, Object> claim = new NSMutableDictionary<String, Object>();
+        claim.setObjectForKey(ERCMailState.PROCESSING_STATE.value(), ERCMailMessage.Key.STATE);
+        claim.setObjectForKey(token, ERCMailMessage.Key.EXCEPTION_REASON);
+        claim.setObjectForKey(now, ERCMailMessage.Key.LAST_MODIFIED);
+        int claimed = ERXEOAccessUtilities.updateRowsDescribedByQualifier(ec, ERCMailMessage.ENTITY_NAME, ERXQ.and(new ERXInQualifier(ID_KEY, ids), sendable), claim);
+        if (claimed < candidates.count() && _warnOnGeneralAdaptorExceptionLockingMessage) {
+            log.warn("Claimed " + claimed + " of " + candidates.count() + " mail messages, others were claimed by another mailer.");
+        }
+        if (claimed == 0) {
+            return candidates.count();
+        }
+
+        EOFetchSpecification claimedSpec = new EOFetchSpecification(ERCMailMessage.ENTITY_NAME, ERXQ.and(new ERXInQualifier(ID_KEY, ids), ERXQ.equals(ERCMailMessage.Key.EXCEPTION_REASON, token)), candidatesSpec.sortOrderings());
+        claimedSpec.setRefreshesRefetchedObjects(true);
+        claimedSpec.setPrefetchingRelationshipKeyPaths(new NSArray<String>(ERCMailMessage.Key.ATTACHMENTS));
+        claimedSpec.setIsDeep(false);
+        NSArray<ERCMailMessage> mailMessages = ec.objectsWithFetchSpecification(claimedSpec);
+        log.info("Sending " + mailMessages.count() + " mail message(s).");
+
+        NSMutableArray<ERCMailMessage> sentMessages = new NSMutableArray<ERCMailMessage>();
+        NSMutableDictionary<ERCMailMessage, Throwable> failedMessages = new NSMutableDictionary<ERCMailMessage, Throwable>();
+        deliverMailMessages(mailMessages, sentMessages, failedMessages);
+        recordSentMailMessages(ec, sentMessages);
+        recordFailedMailMessages(ec, failedMessages, previousAttempts);
+        return candidates.count();
+    }
+
+    /**
+     * Creates the deliveries in the current thread and sends them on the sender threads.
+     */
+    protected void deliverMailMessages(NSArray<ERCMailMessage> mailMessages, NSMutableArray<ERCMailMessage> sentMessages, NSMutableDictionary<ERCMailMessage, Throwable> failedMessages) {
+        List<ERCMailMessage> sending = new ArrayList<ERCMailMessage>(mailMessages.count());
+        List<Future<Throwable>> results = new ArrayList<Future<Throwable>>(mailMessages.count());
+        for (ERCMailMessage mailMessage : mailMessages) {
+            if (log.isDebugEnabled())
+                log.debug("Sending mail message: " + mailMessage);
+            try {
+                final ERMailDelivery delivery = createMailDeliveryForMailMessage(mailMessage);
+                if (delivery == null) {
+                    throw new IllegalStateException("Unable to create mail delivery for mail message: " + mailMessage);
+                }
+                results.add(senderExecutor().submit(new Callable<Throwable>() {
+                    public Throwable call() {
+                        try {
+                            delivery.sendMail(true);
+                            return null;
+                        } catch (Throwable e) {
+                            return e;
+                        }
+                    }
+                }));
+                sending.add(mailMessage);
+            } catch (Throwable e) {
+                failedMessages.setObjectForKey(e, mailMessage);
+            }
+        }
+        for (int i = 0; i < results.size(); i++) {
+            ERCMailMessage mailMessage = sending.get(i);
+            Throwable failure;
+            try {
+                failure = results.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            }
+            if (failure == null) {
+                sentMessages.addObject(mailMessage);
+            } else {
+                failedMessages.setObjectForKey(failure, mailMessage);
+            }
+        }
+    }
+
+    /**
+     * Marks the sent messages as sent with one UPDATE, archives the ones that should be
+     * archived and deletes the sent messages without attachments if sent mail should be
+     * deleted.
+     */
+    protected void recordSentMailMessages(EOEditingContext ec, NSArray<ERCMailMessage> sentMessages) {
+        if (sentMessages.count() == 0) {
+            return;
+        }
+        NSTimestamp now = new NSTimestamp();
+        NSMutableArray<Object> ids = new NSMutableArray<Object>(sentMessages.count());
+        NSMutableArray<Object> deletableIds = new NSMutableArray<Object>();
+        boolean deleteSentMail = shouldDeleteSentMail();
+        for (ERCMailMessage mailMessage : sentMessages) {
+            Object id = mailMessage.rawPrimaryKey();
+            ids.addObject(id);
+            if (deleteSentMail) {
+                if (mailMessage.shouldArchiveSentMailAsBoolean()) {
+                    NSMutableDictionary<String, Object> values = mailMessage.snapshot().mutableClone();
+                    values.setObjectForKey(ERCMailState.SENT_STATE, ERCMailMessage.Key.STATE);
+                    values.setObjectForKey(now, ERCMailMessage.Key.DATE_SENT);
+                    values.removeObjectForKey(ERCMailMessage.Key.EXCEPTION_REASON);
+                    ERXEOControlUtilities.createAndInsertObject(ec, "ERCMailMessageArchive", values);
+                }
+                // FIXME: Nasty stack overflow bug
+                if (!mailMessage.hasAttachments()) {
+                    deletableIds.addObject(id);
+                }
+            }
+        }
+        NSMutableDictionary<String, Object> sent = new NSMutableDictionary<String, Object>();
+        sent.setObjectForKey(ERCMailState.SENT_STATE.value(), ERCMailMessage.Key.STATE);
+        sent.setObjectForKey(now, ERCMailMessage.Key.DATE_SENT);
+        sent.setObjectForKey(now, ERCMailMessage.Key.LAST_MODIFIED);
+        sent.setObjectForKey(NSKeyValueCoding.NullValue, ERCMailMessage.Key.EXCEPTION_REASON);
+        ERXEOAccessUtilities.updateRowsDescribedByQualifier(ec, ERCMailMessage.ENTITY_NAME, new ERXInQualifier(ID_KEY, ids), sent);
+        if (ec.hasChanges()) {
+            ec.saveChanges();
+        }
+        if (deletableIds.count() > 0) {
+            ERXEOAccessUtilities.deleteRowsDescribedByQualifier(ec, ERCMailMessage.ENTITY_NAME, new ERXInQualifier(ID_KEY, deletableIds));
+        }
+    }
+
+    /**
+     * Puts the failed messages into the wait state with a later retry date, or into the
+     * exception state after the last attempt. Messages with the same new state, date and
+     * reason are updated together.
+     */
+    protected void recordFailedMailMessages(EOEditingContext ec, NSDictionary<ERCMailMessage, Throwable> failedMessages, NSDictionary<Object, Integer> previousAttempts) {
+        if (failedMessages.count() == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int maxAttempts = maxAttempts();
+        NSMutableDictionary<NSDictionary<String, Object>, NSMutableArray<Object>> idsByValues = new NSMutableDictionary<NSDictionary<String, Object>, NSMutableArray<Object>>();
+        for (ERCMailMessage mailMessage : failedMessages.allKeys()) {
+            Throwable e = failedMessages.objectForKey(mailMessage);
+            if (e instanceof NSForwardException)
+                e = ((NSForwardException)e).originalException();
+            Object id = mailMessage.rawPrimaryKey();
+            Integer previous = previousAttempts.objectForKey(id);
+            int attempt = (previous != null ? previous.intValue() : 0) + 1;
+            String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+
+            NSMutableDictionary<String, Object> values = new NSMutableDictionary<String, Object>();
+            if (attempt >= maxAttempts) {
+                log.warn("Caught exception when sending mail: " + ERXUtilities.stackTrace(e));
+                log.warn("Message trying to send: " + mailMessage + " pk: " + id);
+                values.setObjectForKey(ERCMailState.EXCEPTION_STATE.value(), ERCMailMessage.Key.STATE);
+                values.setObjectForKey(new NSTimestamp(now), ERCMailMessage.Key.LAST_MODIFIED);
+
+                // Report the mailing error
+                ERCoreBusinessLogic.sharedInstance().reportException(e, new NSDictionary(mailMessage.snapshot(),
+                                                                                "Mail Message Snapshot"));
+            } else {
+                long nextAttempt = now + (retryDelay() << Math.min(attempt - 1, 20));
+                log.warn("Caught exception when sending mail message " + id + ", attempt " + attempt + " of " + maxAttempts + ", trying again at " + new NSTimestamp(nextAttempt) + ": " + reason);
+                values.setObjectForKey(ERCMailState.WAIT_STATE.value(), ERCMailMessage.Key.STATE);
+                // the last modified date of a waiting message is the time of the next attempt
+                values.setObjectForKey(new NSTimestamp(nextAttempt), ERCMailMessage.Key.LAST_MODIFIED);
+                reason = "Attempt " + attempt + ": " + reason;
+            }
+            if (reason.length() > MAX_EXCEPTION_REASON_LENGTH) {
+                reason = reason.substring(0, MAX_EXCEPTION_REASON_LENGTH);
+            }
+            values.setObjectForKey(reason, ERCMailMessage.Key.EXCEPTION_REASON);
+            NSMutableArray<Object> ids = idsByValues.objectForKey(values);
+            if (ids == null) {
+                ids = new NSMutableArray<Object>();
+                idsByValues.setObjectForKey(ids, values);
+            }
+            ids.addObject(id);
+        }
+        for (NSDictionary<String, Object> values : idsByValues.allKeys()) {
+            ERXEOAccessUtilities.updateRowsDescribedByQualifier(ec, ERCMailMessage.ENTITY_NAME, new ERXInQualifier(ID_KEY, idsByValues.objectForKey(values)), values);
+        }
+    }
+
+    /**
+     * Puts messages that were claimed longer than the claim timeout ago back into the
+     * wait state, so they are tried again.
+     */
+    protected void releaseAbandonedClaims() {
+        long claimTimeout = claimTimeout();
+        if (claimTimeout <= 0) {
+            return;
+        }
+        NSTimestamp now = new NSTimestamp();
+        EOEditingContext ec = ERXEC.newEditingContext();
+        ec.lock();
+        try {
+            NSMutableDictionary<String, Object> values = new NSMutableDictionary<String, Object>();
+            values.setObjectForKey(ERCMailState.WAIT_STATE.value(), ERCMailMessage.Key.STATE);
+            values.setObjectForKey(now, ERCMailMessage.Key.LAST_MODIFIED);
+            values.setObjectForKey("Attempt 1: The mailer that claimed the message did not finish", ERCMailMessage.Key.EXCEPTION_REASON);
+            EOQualifier abandoned = ERXQ.and(ERXQ.equals(ERCMailMessage.Key.STATE, ERCMailState.PROCESSING_STATE.value()),
+                    ERXQ.lessThan(ERCMailMessage.Key.LAST_MODIFIED, new NSTimestamp(now.getTime() - claimTimeout)));
+            int released = ERXEOAccessUtilities.updateRowsDescribedByQualifier(ec, ERCMailMessage.ENTITY_NAME, abandoned, values);
+            if (released > 0) {
+                log.warn("Released " + released + " mail message(s) that were claimed more than " + claimTimeout + "ms ago.");
+            }
+        } finally {
+            ec.unlock();
+            ec.dispose();
+        }
+    }
+
     /**
      * Creates a ERMailDelivery for a given
      * MailMessage.
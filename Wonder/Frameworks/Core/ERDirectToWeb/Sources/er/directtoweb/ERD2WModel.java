@@ -17,10 +17,9 @@ import java.io.Serializable;
 import java.net.URL;
 import java.util.Enumeration;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -97,9 +96,71 @@ public class ERD2WModel extends D2WModel {
     /** null refernced used to represent null in the caching system */
     private final static Object NULL_VALUE="<NULL>";
 
-    private Hashtable _cache=new Hashtable(10000);
-    private Hashtable _systemCache=new Hashtable(10000);
-    private Hashtable _significantKeysPerKey=new Hashtable(500);
+    private ERD2WRuleCache _cache=newRuleCache();
+    private ERD2WRuleCache _systemCache=newRuleCache();
+    private Map _significantKeysPerKey=new ConcurrentHashMap(500);
+
+    /**
+     * Per-thread scratch arrays for the significant key values, one per nesting
+     * level, so a cache hit doesn't allocate anything.
+     */
+    private static final ThreadLocal<KeyBuffers> _keyBuffers = new ThreadLocal<KeyBuffers>() {
+        protected KeyBuffers initialValue() {
+            return new KeyBuffers();
+        }
+    };
+
+    private static class KeyBuffers {
+        private Object[][] _buffers = new Object[4][];
+        private int _depth;
+
+        Object[] acquire(int size) {
+            if (_depth == _buffers.length) {
+                Object[][] buffers = new Object[_depth * 2][];
+                System.arraycopy(_buffers, 0, buffers, 0, _depth);
+                _buffers = buffers;
+            }
+            Object[] buffer = _buffers[_depth];
+            if (buffer == null || buffer.length < size) {
+                buffer = new Object[Math.max(size, 8)];
+                _buffers[_depth] = buffer;
+            }
+            _depth++;
+            return buffer;
+        }
+
+        void release(Object[] buffer, int size) {
+            for (int i = 0; i < size; i++) {
+                buffer[i] = null;
+            }
+            _depth--;
+        }
+    }
+
+    /**
+     * Creates a rule cache sized by <code>er.directtoweb.ERD2WModel.ruleCacheSize</code>
+     * (default 100000 entries, 0 for practically unbounded) and
+     * <code>er.directtoweb.ERD2WModel.ruleCacheStripes</code> (default 32).
+     */
+    protected static ERD2WRuleCache newRuleCache() {
+        int size = ERXProperties.intForKeyWithDefault("er.directtoweb.ERD2WModel.ruleCacheSize", 100000);
+        int stripes = ERXProperties.intForKeyWithDefault("er.directtoweb.ERD2WModel.ruleCacheStripes", 32);
+        return new ERD2WRuleCache(size, stripes);
+    }
+
+    /**
+     * Returns the cache for fired rules, mainly for its statistics.
+     */
+    public ERD2WRuleCache ruleCache() {
+        return _cache;
+    }
+
+    /**
+     * Returns the cache for fired system rules.
+     */
+    public ERD2WRuleCache systemRuleCache() {
+        return _systemCache;
+    }
 
     private static D2WModel _defaultModel;
 
@@ -197,6 +258,7 @@ public class ERD2WModel extends D2WModel {
     }
 
     public void applicationDidFinishLaunching(NSNotification n) {
+        restoreCacheIfConfigured();
     	if(!WOApplication.application().isCachingEnabled()) {
     		NSNotificationCenter.defaultCenter().addObserver(this,
     				ERXSelectorUtilities.notificationSelector("applicationWillDispatchRequest"),
@@ -269,7 +331,7 @@ public class ERD2WModel extends D2WModel {
         return true;
     }
 
-    private Object fireRuleForKeyPathInContext(Map cache, String keyPath, D2WContext context) {
+    private Object fireRuleForKeyPathInContext(ERD2WRuleCache cache, String keyPath, D2WContext context) {
         final boolean useCache = _shouldUseCacheForFiringRuleForKeyPathInContext(keyPath, context);
 
         if ( ! useCache && ruleTraceEnabledLog.isDebugEnabled() )
@@ -277,16 +339,28 @@ public class ERD2WModel extends D2WModel {
 
         String[] significantKeys=(String[])_significantKeysPerKey.get(keyPath);
         if (significantKeys==null) return null;
-        short s=(short)significantKeys.length;
-        Object[] lhsKeys=new Object[(short)(s+1)];
-        for (short i=0; i<s; i++) {
-            //lhsKeys[i]=context.valueForKeyPathNoInference(significantKeys[i]);
-            lhsKeys[i]=ERD2WUtilities.contextValueForKeyNoInferenceNoException(context, significantKeys[i]);
+        int s=significantKeys.length;
+        KeyBuffers keyBuffers=_keyBuffers.get();
+        Object[] buffer=keyBuffers.acquire(s+1);
+        Object[] lhsKeys;
+        Object result;
+        try {
+            for (int i=0; i<s; i++) {
+                //buffer[i]=context.valueForKeyPathNoInference(significantKeys[i]);
+                buffer[i]=ERD2WUtilities.contextValueForKeyNoInferenceNoException(context, significantKeys[i]);
+            }
+            buffer[s]=keyPath;
+            result=useCache ? cache.get(buffer, s+1) : null;
+            lhsKeys=null;
+            if (result==null || ruleTraceEnabledLog.isDebugEnabled()) {
+                lhsKeys=new Object[s+1];
+                System.arraycopy(buffer, 0, lhsKeys, 0, s+1);
+            }
+        } finally {
+            keyBuffers.release(buffer, s+1);
         }
-        lhsKeys[s]=keyPath;
-        ERXMultiKey k=new ERXMultiKey(lhsKeys);
+        ERXMultiKey k=lhsKeys != null && ruleTraceEnabledLog.isDebugEnabled() ? new ERXMultiKey(lhsKeys) : null;
 
-        Object result=useCache ? cache.get(k) : null;
         if (result==null) {
             boolean resetTraceRuleFiring = false;
             Logger ruleFireLog=null;
@@ -310,11 +384,11 @@ public class ERD2WModel extends D2WModel {
                     result = super.fireRuleForKeyPathInContext(keyPath, context);
                 }
             } catch (StackOverflowError ex) {
-                log.error("Problem with this key: " + keyPath + " depends: " + new NSArray(significantKeys) + " values: " + k + " context: " + context + " values: " + context._localValues() + " map: " + cache);
+                log.error("Problem with this key: " + keyPath + " depends: " + new NSArray(significantKeys) + " values: " + new ERXMultiKey(lhsKeys) + " context: " + context + " values: " + context._localValues() + " cache: " + cache);
                 throw NSForwardException._runtimeExceptionForThrowable(ex);
             }
             if ( useCache )
-                cache.put(k,result==null ? NULL_VALUE : result);
+                cache.put(lhsKeys,result==null ? NULL_VALUE : result);
             if (ruleTraceEnabledLog.isDebugEnabled()) {
                 if (ruleFireLog.isDebugEnabled())
                 	ruleFireLog.debug("FIRE: " +keyPath + " for propertyKey: " + context.propertyKey() + " depends on: "  + new NSArray(significantKeys) + " = " + k
@@ -356,13 +430,30 @@ public class ERD2WModel extends D2WModel {
         fileName = fileName == null ? "dmp.cache": fileName;
         synchronized(this) {
             try {
-                _cache = cacheFromBytes(ERXFileUtilities.bytesFromFile(new File(fileName)));
+                ERD2WRuleCache cache = cacheFromBytes(ERXFileUtilities.bytesFromFile(new File(fileName)));
+                if (cache != null) {
+                    _cache = cache;
+                }
             } catch(IOException ex) {
                 log.error(ex);
             }
         }
     }
 
+    /**
+     * Pre-warms the rule cache from a file written by {@link #dumpCache(String)}
+     * if <code>er.directtoweb.ERD2WModel.ruleCacheFile</code> is set and the file
+     * exists. Called once the application has finished launching, when the
+     * models the cache entries refer to are available.
+     */
+    public void restoreCacheIfConfigured() {
+        String fileName = ERXProperties.stringForKey("er.directtoweb.ERD2WModel.ruleCacheFile");
+        if (fileName != null && new File(fileName).exists()) {
+            restoreCache(fileName);
+            log.info("Restored rule cache from " + fileName + ": " + _cache);
+        }
+    }
+
     public NSArray canidateRuleSetForRHSInContext(String rhs, D2WContext context) {
         NSMutableSet canidateSet = new NSMutableSet();
         for (Enumeration e = rules().objectEnumerator(); e.hasMoreElements();) {
@@ -1014,32 +1105,42 @@ public class ERD2WModel extends D2WModel {
         return true;
     }
 
-    protected ERXMultiKey readEntry(Hashtable cache, ObjectInputStream in) throws IOException, ClassNotFoundException {
+    protected ERXMultiKey readEntry(ERD2WRuleCache cache, ObjectInputStream in) throws IOException, ClassNotFoundException {
         Object keys[]=(Object[])in.readObject();
         Object value = decodeObject(in.readObject());
         for (short i=0; i<keys.length; i++) {
             Object o=decodeObject(keys[i]);
             keys[i]=o;
         }
-        ERXMultiKey key = new ERXMultiKey(keys);
-        cache.put(key,value);
-        return key;
+        cache.put(keys, value == null || NULL_VALUE.equals(value) ? NULL_VALUE : value);
+        return new ERXMultiKey(keys);
     }
 
-    protected byte[] cacheToBytes(Hashtable cache) {
+    protected byte[] cacheToBytes(ERD2WRuleCache cache) {
         try {
             ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream(ostream);
-            for(Enumeration keys = cache.keys(); keys.hasMoreElements();) {
-                ERXMultiKey key = (ERXMultiKey)keys.nextElement();
-                Object o = cache.get(key);
-                if(writeEntry(key,o,out)) {
-                    if(log.isDebugEnabled()) {
-                        log.debug("Wrote: " + key + " -- " + o);
+            final ObjectOutputStream out = new ObjectOutputStream(ostream);
+            final IOException[] failure = new IOException[1];
+            cache.visit(new ERD2WRuleCache.Visitor() {
+                public void visit(ERXMultiKey key, Object o) {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    try {
+                        if(writeEntry(key,o,out)) {
+                            if(log.isDebugEnabled()) {
+                                log.debug("Wrote: " + key + " -- " + o);
+                            }
+                        } else {
+                            log.info("Can't write: " + key + " -- " + o);
+                        }
+                    } catch(IOException ex) {
+                        failure[0] = ex;
                     }
-                } else {
-                    log.info("Can't write: " + key + " -- " + o);
                 }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
             }
             out.flush();
             ostream.close();
@@ -1050,16 +1151,16 @@ public class ERD2WModel extends D2WModel {
         return null;
     }
 
-    protected Hashtable cacheFromBytes(byte[] bytes) {
+    protected ERD2WRuleCache cacheFromBytes(byte[] bytes) {
         try {
             ByteArrayInputStream istream = new ByteArrayInputStream(bytes);
 			ObjectInputStream in = new ERXMappingObjectStream(istream);
-            Hashtable newCache = new Hashtable(10000);
+            ERD2WRuleCache newCache = newRuleCache();
             try {
                 //FIXME ak how do I do without the EOFException?
                 for(;;) {
                     ERXMultiKey key = readEntry(newCache,in);
-                    Object o = newCache.get(key);
+                    Object o = newCache.get(key.keys(), key.keys().length);
                     if(log.isDebugEnabled()) {
                         log.debug("Read: " + key + " -- " + o);
                     }
@@ -1075,18 +1176,15 @@ public class ERD2WModel extends D2WModel {
     }
 
     public void _diagnoseCache() {
-        final Map cache = _cache;
-        final Set keySet = cache.keySet();
-        final Iterator keySetIterator = keySet.iterator();
-
-        System.out.println("Cache size is: " + cache.size());
+        final ERD2WRuleCache cache = _cache;
 
-        while ( keySetIterator.hasNext() ) {
-            final Object theKey = keySetIterator.next();
-            final Object theValue = cache.get(theKey);
+        System.out.println("Cache size is: " + cache.size() + ", " + cache);
 
-            System.out.println("\t" + theKey + " -> " + theValue);
-        }
+        cache.visit(new ERD2WRuleCache.Visitor() {
+            public void visit(ERXMultiKey theKey, Object theValue) {
+                System.out.println("\t" + theKey + " -> " + theValue);
+            }
+        });
     }
 
 }
@@ -0,0 +1,390 @@
+package er.directtoweb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import er.extensions.foundation.ERXMultiKey;
+
+/**
+ * Concurrent, bounded cache for fired rule values used by {@link ERD2WModel}.
+ * <p>
+ * The cache is split into stripes, each guarded by its own lock for writes.
+ * Reads don't lock at all: entries are immutable and published through a
+ * volatile table, the same way <code>ConcurrentHashMap</code> segments work.
+ * Keys are the values of the significant keys of a key path plus the key path
+ * itself, hashed the same way as {@link ERXMultiKey}, but looked up straight
+ * from an <code>Object[]</code> so a cache hit doesn't allocate a key object.
+ * <p>
+ * Each stripe holds at most <code>maxSize / stripeCount</code> entries. When a
+ * stripe is full, an entry is evicted with the CLOCK (second chance)
+ * algorithm, so entries that were hit recently survive.
+ */
+public class ERD2WRuleCache {
+
+	private final Stripe[] _stripes;
+	private final int _stripeMask;
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maxSize
+	 *            the maximum number of entries, or 0 for a very large cache
+	 * @param stripeCount
+	 *            the number of independently locked stripes, rounded up to a
+	 *            power of two
+	 */
+	public ERD2WRuleCache(int maxSize, int stripeCount) {
+		int stripes = 1;
+		while (stripes < stripeCount) {
+			stripes <<= 1;
+		}
+		if (maxSize <= 0) {
+			maxSize = Integer.MAX_VALUE / 2;
+		}
+		int stripeCapacity = Math.max(16, maxSize / stripes);
+		_stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			_stripes[i] = new Stripe(stripeCapacity);
+		}
+		_stripeMask = stripes - 1;
+	}
+
+	/**
+	 * Computes the hash for the first <code>count</code> keys, compatible with
+	 * {@link ERXMultiKey#hashCode()}.
+	 */
+	public static int hash(Object[] keys, int count) {
+		int result = 0;
+		for (int i = 0; i < count; i++) {
+			Object key = keys[i];
+			if (key != null) {
+				result ^= key.hashCode();
+				result = (result << 1) | (result >>> 31);
+			}
+		}
+		return result;
+	}
+
+	private Stripe stripeFor(int hash) {
+		int h = hash;
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return _stripes[h & _stripeMask];
+	}
+
+	/**
+	 * Returns the cached value for the first <code>count</code> entries of
+	 * <code>keys</code> or null. The array is not retained.
+	 */
+	public Object get(Object[] keys, int count) {
+		int hash = hash(keys, count);
+		return stripeFor(hash).get(hash, keys, count);
+	}
+
+	/**
+	 * Caches the value for the given keys. The array is retained by the
+	 * cache, so it must not be modified afterwards.
+	 */
+	public void put(Object[] keys, Object value) {
+		int hash = hash(keys, keys.length);
+		stripeFor(hash).put(hash, keys, value);
+	}
+
+	/**
+	 * Convenience for {@link #get(Object[], int)} with a multi key.
+	 */
+	public Object get(ERXMultiKey key) {
+		Object[] keys = key.keys();
+		return get(keys, keys.length);
+	}
+
+	/**
+	 * Convenience for {@link #put(Object[], Object)} with a multi key.
+	 */
+	public void put(ERXMultiKey key, Object value) {
+		Object[] keys = key.keys();
+		Object[] copy = new Object[keys.length];
+		System.arraycopy(keys, 0, copy, 0, keys.length);
+		put(copy, value);
+	}
+
+	/**
+	 * Removes all entries. The statistics are kept.
+	 */
+	public void clear() {
+		for (int i = 0; i < _stripes.length; i++) {
+			_stripes[i].clear();
+		}
+	}
+
+	/**
+	 * Returns the number of entries.
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < _stripes.length; i++) {
+			size += _stripes[i]._count.get();
+		}
+		return size;
+	}
+
+	public long hits() {
+		long result = 0;
+		for (int i = 0; i < _stripes.length; i++) {
+			result += _stripes[i]._hits.get();
+		}
+		return result;
+	}
+
+	public long misses() {
+		long result = 0;
+		for (int i = 0; i < _stripes.length; i++) {
+			result += _stripes[i]._misses.get();
+		}
+		return result;
+	}
+
+	public long evictions() {
+		long result = 0;
+		for (int i = 0; i < _stripes.length; i++) {
+			result += _stripes[i]._evictions.get();
+		}
+		return result;
+	}
+
+	/**
+	 * Callback for {@link ERD2WRuleCache#visit(Visitor)}.
+	 */
+	public static interface Visitor {
+		public void visit(ERXMultiKey key, Object value);
+	}
+
+	/**
+	 * Calls the visitor for a snapshot of all entries.
+	 */
+	public void visit(Visitor visitor) {
+		for (int i = 0; i < _stripes.length; i++) {
+			Entry[] table = _stripes[i]._table;
+			for (int j = 0; j < table.length; j++) {
+				for (Entry e = table[j]; e != null; e = e.next) {
+					visitor.visit(new ERXMultiKey(e.slot.keys), e.value);
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "<" + getClass().getSimpleName() + " size=" + size() + " hits=" + hits() + " misses=" + misses() + " evictions=" + evictions() + ">";
+	}
+
+	/**
+	 * Eviction bookkeeping for one cached key. Shared between the copies of an
+	 * entry that are made when a chain is rebuilt.
+	 */
+	private static final class Slot {
+		final int hash;
+		final Object[] keys;
+		volatile boolean referenced;
+
+		Slot(int hash, Object[] keys) {
+			this.hash = hash;
+			this.keys = keys;
+		}
+	}
+
+	private static final class Entry {
+		final Slot slot;
+		final Object value;
+		final Entry next;
+
+		Entry(Slot slot, Object value, Entry next) {
+			this.slot = slot;
+			this.value = value;
+			this.next = next;
+		}
+
+		boolean matches(int hash, Object[] k, int count) {
+			Object[] keys = slot.keys;
+			if (slot.hash != hash || keys.length != count) {
+				return false;
+			}
+			for (int i = count - 1; i >= 0; i--) {
+				Object a = keys[i];
+				Object b = k[i];
+				if (a != b && (a == null || b == null || !a.equals(b))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class Stripe extends ReentrantLock {
+		private final int _capacity;
+		private volatile Entry[] _table;
+		private Slot[] _clock;
+		private int _clockSize;
+		private int[] _free;
+		private int _freeCount;
+		private int _hand;
+		final AtomicInteger _count = new AtomicInteger();
+		final AtomicLong _hits = new AtomicLong();
+		final AtomicLong _misses = new AtomicLong();
+		final AtomicLong _evictions = new AtomicLong();
+
+		Stripe(int capacity) {
+			_capacity = capacity;
+			reset();
+		}
+
+		private void reset() {
+			_table = new Entry[16];
+			_clock = new Slot[16];
+			_free = new int[16];
+			_clockSize = 0;
+			_freeCount = 0;
+			_hand = 0;
+			_count.set(0);
+		}
+
+		Object get(int hash, Object[] keys, int count) {
+			Entry[] table = _table;
+			for (Entry e = table[hash & (table.length - 1)]; e != null; e = e.next) {
+				if (e.matches(hash, keys, count)) {
+					Slot slot = e.slot;
+					if (!slot.referenced) {
+						slot.referenced = true;
+					}
+					_hits.incrementAndGet();
+					return e.value;
+				}
+			}
+			_misses.incrementAndGet();
+			return null;
+		}
+
+		void put(int hash, Object[] keys, Object value) {
+			lock();
+			try {
+				Entry existing = unlink(hash, keys);
+				Slot slot;
+				if (existing != null) {
+					slot = existing.slot;
+				}
+				else {
+					if (_count.get() >= _capacity) {
+						evict();
+					}
+					if (_count.get() >= _table.length * 3 / 4) {
+						rehash();
+					}
+					slot = new Slot(hash, keys);
+					addToClock(slot);
+					_count.incrementAndGet();
+				}
+				Entry[] table = _table;
+				int index = hash & (table.length - 1);
+				table[index] = new Entry(slot, value, table[index]);
+				// volatile write publishes the new chain head to readers
+				_table = table;
+			}
+			finally {
+				unlock();
+			}
+		}
+
+		/**
+		 * Removes the matching entry from its chain without touching the clock.
+		 * Entries are immutable, so the part of the chain in front of it is
+		 * copied.
+		 */
+		private Entry unlink(int hash, Object[] keys) {
+			Entry[] table = _table;
+			int index = hash & (table.length - 1);
+			Entry first = table[index];
+			Entry found = null;
+			for (Entry e = first; e != null; e = e.next) {
+				if (e.matches(hash, keys, keys.length)) {
+					found = e;
+					break;
+				}
+			}
+			if (found != null) {
+				Entry head = found.next;
+				for (Entry e = first; e != found; e = e.next) {
+					head = new Entry(e.slot, e.value, head);
+				}
+				table[index] = head;
+			}
+			return found;
+		}
+
+		private void addToClock(Slot slot) {
+			int index;
+			if (_freeCount > 0) {
+				index = _free[--_freeCount];
+			}
+			else {
+				if (_clockSize == _clock.length) {
+					Slot[] clock = new Slot[_clock.length * 2];
+					System.arraycopy(_clock, 0, clock, 0, _clock.length);
+					_clock = clock;
+					int[] free = new int[clock.length];
+					System.arraycopy(_free, 0, free, 0, _freeCount);
+					_free = free;
+				}
+				index = _clockSize++;
+			}
+			_clock[index] = slot;
+		}
+
+		private void evict() {
+			for (;;) {
+				if (_hand >= _clockSize) {
+					_hand = 0;
+				}
+				Slot candidate = _clock[_hand];
+				if (candidate != null) {
+					if (candidate.referenced) {
+						candidate.referenced = false;
+					}
+					else {
+						unlink(candidate.hash, candidate.keys);
+						_clock[_hand] = null;
+						_free[_freeCount++] = _hand;
+						_count.decrementAndGet();
+						_evictions.incrementAndGet();
+						_hand++;
+						return;
+					}
+				}
+				_hand++;
+			}
+		}
+
+		private void rehash() {
+			Entry[] oldTable = _table;
+			Entry[] newTable = new Entry[oldTable.length * 2];
+			int mask = newTable.length - 1;
+			for (int i = 0; i < oldTable.length; i++) {
+				for (Entry e = oldTable[i]; e != null; e = e.next) {
+					int index = e.slot.hash & mask;
+					newTable[index] = new Entry(e.slot, e.value, newTable[index]);
+				}
+			}
+			_table = newTable;
+		}
+
+		void clear() {
+			lock();
+			try {
+				reset();
+			}
+			finally {
+				unlock();
+			}
+		}
+	}
+}
@@ -8,9 +8,12 @@ package er.extensions.appserver;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
@@ -97,6 +100,7 @@ import er.extensions.formatters.ERXFormatterFactory;
 import er.extensions.foundation.ERXArrayUtilities;
 import er.extensions.foundation.ERXCompressionUtilities;
 import er.extensions.foundation.ERXConfigurationManager;
+import er.extensions.foundation.ERXGZIPCompressingInputStream;
 import er.extensions.foundation.ERXPatcher;
 import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXRuntimeUtilities;
@@ -924,6 +928,8 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 		ERXConfigurationManager.defaultManager().setCommandLineArguments(argv);
 		ERXFrameworkPrincipal.setUpFrameworkPrincipalClass(ERXExtensions.class);
 		ERXStats.initStatisticsIfNecessary();
+		// the main thread isn't a request, it must not stay sampled for the registry
+		ERXStats.endStatistics();
 	}
 
 	/**
@@ -1904,6 +1910,7 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 		// don't end up on
 		// someone else's thread by accident
 		ERXThreadStorage.reset();
+		ERXStats.endStatistics();
 		// We *always* want to unlock left over ECs.
 		ERXEC.unlockAllContextsForCurrentThread();
 		// we don't want this hanging around
@@ -1983,42 +1990,25 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 			ERXStats.logStatisticsForOperation(statsLog, "key");
 			ERXApplication._endRequest();
 		}
+		if (response instanceof ERXResponse) {
+			// in case the request handler didn't finalize the response
+			((ERXResponse) response)._flushHeadContributions();
+		}
 		if (requestHandlingLog.isDebugEnabled()) {
 			requestHandlingLog.debug("Returning, encoding: " + response.contentEncoding() + " response: " + response);
 		}
 
 		if (responseCompressionEnabled()) {
 			String contentType = response.headerForKey("content-type");
-			if (!"gzip".equals(response.headerForKey("content-encoding")) && (contentType != null) && (contentType.startsWith("text/") || responseCompressionTypes().containsObject(contentType))) {
+			// partial content must not be compressed, the range refers to the uncompressed content
+			if (!"gzip".equals(response.headerForKey("content-encoding")) && response.headerForKey("content-range") == null && (contentType != null) && (contentType.startsWith("text/") || responseCompressionTypes().containsObject(contentType))) {
 				String acceptEncoding = request.headerForKey("accept-encoding");
 				if ((acceptEncoding != null) && (acceptEncoding.toLowerCase().indexOf("gzip") != -1)) {
-					long start = System.currentTimeMillis();
-					long inputBytesLength;
-					InputStream contentInputStream = response.contentInputStream();
-					byte[] compressedData;
-					if (contentInputStream != null) {
-						inputBytesLength = response.contentInputStreamLength();
-						NSData compressedNSData = ERXCompressionUtilities.gzipInputStreamAsNSData(contentInputStream, (int)inputBytesLength);
-						compressedData = compressedNSData._bytesNoCopy();
-						response.setContentStream(null, 0, 0);
+					if (responseCompressionStreamingEnabled()) {
+						_compressResponseStreaming(response);
 					}
 					else {
-						NSData input = response.content();
-						inputBytesLength = input.length();
-						compressedData = (inputBytesLength > 0) ? ERXCompressionUtilities.gzipByteArray(input._bytesNoCopy()) : null;
-					}
-					if ( inputBytesLength > 0 ) {
-						if (compressedData == null) {
-							// something went wrong
-						}
-						else {
-							response.setContent(new NSData(compressedData, new NSRange(0, compressedData.length), true));
-							response.setHeader(String.valueOf(compressedData.length), "content-length");
-							response.setHeader("gzip", "content-encoding");
-							if (log.isDebugEnabled()) {
-								log.debug("before: " + inputBytesLength + ", after " + compressedData.length + ", time: " + (System.currentTimeMillis() - start));
-							}
-						}
+						_compressResponse(response);
 					}
 				}
 			}
@@ -2026,6 +2016,164 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 		return response;
 	}
 
+	/**
+	 * Gzips the response content in memory and replaces it with the
+	 * compressed data.
+	 * 
+	 * @param response the response to compress
+	 */
+	protected void _compressResponse(WOResponse response) {
+		long start = System.currentTimeMillis();
+		long inputBytesLength;
+		InputStream contentInputStream = response.contentInputStream();
+		byte[] compressedData;
+		if (contentInputStream != null) {
+			inputBytesLength = response.contentInputStreamLength();
+			NSData compressedNSData = ERXCompressionUtilities.gzipInputStreamAsNSData(contentInputStream, (int)inputBytesLength);
+			compressedData = compressedNSData._bytesNoCopy();
+			response.setContentStream(null, 0, 0);
+		}
+		else {
+			NSData input = response.content();
+			inputBytesLength = input.length();
+			compressedData = (inputBytesLength > 0) ? ERXCompressionUtilities.gzipByteArray(input._bytesNoCopy()) : null;
+		}
+		if ( inputBytesLength > 0 ) {
+			if (compressedData == null) {
+				// something went wrong
+			}
+			else {
+				response.setContent(new NSData(compressedData, new NSRange(0, compressedData.length), true));
+				response.setHeader(String.valueOf(compressedData.length), "content-length");
+				response.setHeader("gzip", "content-encoding");
+				long time = System.currentTimeMillis() - start;
+				ERXCompressionUtilities.Statistics.addCompressed(inputBytesLength, compressedData.length, time);
+				if (log.isDebugEnabled()) {
+					log.debug("before: " + inputBytesLength + ", after " + compressedData.length + ", time: " + time);
+				}
+			}
+		}
+	}
+
+	/** compressed stream content up to this size is kept in memory, larger content is spooled to a file */
+	private static final int COMPRESSION_SPOOL_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * Gzips the response without holding the whole compressed content in
+	 * memory. Responses with a content stream are read through an
+	 * {@link er.extensions.foundation.ERXGZIPCompressingInputStream}. As
+	 * WOResponse sends the stream length as the content-length, the compressed
+	 * content is kept in memory up to 1 MB and spooled to a temporary file
+	 * beyond that, and then sent with its real length. Responses with
+	 * in-memory content are compressed with a pooled deflater and the result
+	 * is used without another copy. Responses smaller than
+	 * {@link #responseCompressionMinimumSize()} are left alone.
+	 * 
+	 * @param response the response to compress
+	 */
+	protected void _compressResponseStreaming(WOResponse response) {
+		InputStream contentInputStream = response.contentInputStream();
+		if (contentInputStream != null) {
+			long inputBytesLength = response.contentInputStreamLength();
+			if (inputBytesLength > 0 && inputBytesLength < responseCompressionMinimumSize()) {
+				ERXCompressionUtilities.Statistics.addSkipped();
+				return;
+			}
+			int bufferSize = response.contentInputStreamBufferSize();
+			if (bufferSize <= 0) {
+				bufferSize = 16 * 1024;
+			}
+			long start = System.currentTimeMillis();
+			ERXGZIPCompressingInputStream compressingStream = new ERXGZIPCompressingInputStream(contentInputStream);
+			File spoolFile = null;
+			OutputStream spoolStream = null;
+			try {
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream(bufferSize);
+				byte[] buffer = new byte[bufferSize];
+				int count;
+				while ((count = compressingStream.read(buffer)) != -1) {
+					if (spoolStream == null && compressed.size() + count > COMPRESSION_SPOOL_THRESHOLD) {
+						spoolFile = File.createTempFile("ERXCompressedResponse", ".gz");
+						spoolStream = new FileOutputStream(spoolFile);
+						compressed.writeTo(spoolStream);
+						compressed = null;
+					}
+					if (spoolStream != null) {
+						spoolStream.write(buffer, 0, count);
+					}
+					else {
+						compressed.write(buffer, 0, count);
+					}
+				}
+				long outputBytesLength = compressingStream.bytesWritten();
+				if (spoolStream != null) {
+					spoolStream.close();
+					InputStream spooledInputStream = new FileInputStream(spoolFile);
+					// the open stream can still be read on unix, elsewhere the file is deleted on exit
+					if (!spoolFile.delete()) {
+						spoolFile.deleteOnExit();
+					}
+					response.setContentStream(spooledInputStream, bufferSize, (int) outputBytesLength);
+				}
+				else {
+					response.setContentStream(null, 0, 0);
+					byte[] compressedData = compressed.toByteArray();
+					response.setContent(new NSData(compressedData, new NSRange(0, compressedData.length), true));
+				}
+				response.setHeader(String.valueOf(outputBytesLength), "content-length");
+				response.setHeader("gzip", "content-encoding");
+				long time = System.currentTimeMillis() - start;
+				ERXCompressionUtilities.Statistics.addCompressed(compressingStream.bytesRead(), outputBytesLength, time);
+				if (log.isDebugEnabled()) {
+					log.debug("before: " + compressingStream.bytesRead() + ", after " + outputBytesLength + ", time: " + time);
+				}
+			}
+			catch (IOException e) {
+				if (spoolFile != null) {
+					try {
+						spoolStream.close();
+					}
+					catch (IOException closeException) {
+						// the compression failure is reported
+					}
+					spoolFile.delete();
+				}
+				throw NSForwardException._runtimeExceptionForThrowable(e);
+			}
+			finally {
+				try {
+					compressingStream.close();
+				}
+				catch (IOException e) {
+					log.warn("Could not close the response content stream.", e);
+				}
+			}
+		}
+		else {
+			NSData input = response.content();
+			int inputBytesLength = input.length();
+			if (inputBytesLength == 0) {
+				return;
+			}
+			if (inputBytesLength < responseCompressionMinimumSize()) {
+				ERXCompressionUtilities.Statistics.addSkipped();
+				return;
+			}
+			long start = System.currentTimeMillis();
+			NSData compressedData = ERXCompressionUtilities.gzipByteArrayAsNSDataWithPooledDeflater(input._bytesNoCopy(), 0, inputBytesLength);
+			if (compressedData != null) {
+				response.setContent(compressedData);
+				response.setHeader(String.valueOf(compressedData.length()), "content-length");
+				response.setHeader("gzip", "content-encoding");
+				long time = System.currentTimeMillis() - start;
+				ERXCompressionUtilities.Statistics.addCompressed(inputBytesLength, compressedData.length(), time);
+				if (log.isDebugEnabled()) {
+					log.debug("before: " + inputBytesLength + ", after " + compressedData.length() + ", time: " + time);
+				}
+			}
+		}
+	}
+
 	/**
 	 * When a context is created we push it into thread local storage. This
 	 * handles the case for direct actions.
@@ -2307,6 +2455,38 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 		return _responseCompressionEnabled.booleanValue();
 	}
 	
+	protected Boolean _responseCompressionStreamingEnabled;
+
+	/**
+	 * checks the value of
+	 * <code>er.extensions.ERXApplication.responseCompressionStreamingEnabled</code>
+	 * and if true compresses content streams while they are read and spools
+	 * large results to a temporary file instead of building the compressed
+	 * response in memory (see {@link #_compressResponseStreaming(WOResponse)}).
+	 * The default is false.
+	 */
+	public boolean responseCompressionStreamingEnabled() {
+		if (_responseCompressionStreamingEnabled == null) {
+			_responseCompressionStreamingEnabled = ERXProperties.booleanForKeyWithDefault("er.extensions.ERXApplication.responseCompressionStreamingEnabled", false) ? Boolean.TRUE : Boolean.FALSE;
+		}
+		return _responseCompressionStreamingEnabled.booleanValue();
+	}
+
+	protected Integer _responseCompressionMinimumSize;
+
+	/**
+	 * checks the value of
+	 * <code>er.extensions.ERXApplication.responseCompressionMinimumSize</code>
+	 * for the size in bytes below which responses are sent uncompressed when
+	 * streaming compression is enabled. The default is 1024.
+	 */
+	public int responseCompressionMinimumSize() {
+		if (_responseCompressionMinimumSize == null) {
+			_responseCompressionMinimumSize = Integer.valueOf(ERXProperties.intForKeyWithDefault("er.extensions.ERXApplication.responseCompressionMinimumSize", 1024));
+		}
+		return _responseCompressionMinimumSize.intValue();
+	}
+
 	protected NSSet<String> _responseCompressionTypes;
 	
 	/**
@@ -28,6 +28,7 @@ import er.extensions.components.ERXStringHolder;
 import er.extensions.eof.ERXEC;
 import er.extensions.eof.ERXObjectStoreCoordinator;
 import er.extensions.formatters.ERXUnitAwareDecimalFormat;
+import er.extensions.foundation.ERXCompressionUtilities;
 import er.extensions.foundation.ERXConfigurationManager;
 import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXStringUtilities;
@@ -36,6 +37,7 @@ import er.extensions.localization.ERXLocalizer;
 import er.extensions.logging.ERXLog4JConfiguration;
 import er.extensions.logging.ERXLogger;
 import er.extensions.statistics.ERXStats;
+import er.extensions.statistics.ERXStatsRegistry;
 
 /**
  * Basic collector for direct action additions. All of the actions are password protected, 
@@ -147,6 +149,33 @@ public class ERXDirectAction extends WODirectAction {
         return result;
     }
     
+    /**
+     * Returns the application-wide statistics collected by {@link ERXStatsRegistry}
+     * as JSON, protected by the "WOStatisticsPassword" like the stats action.
+     */
+    public WOActionResults statsJSONAction() {
+        WOResponse response = new WOResponse();
+        if (canPerformActionWithPasswordKey("WOStatisticsPassword")) {
+            response.setHeader("application/json", "Content-Type");
+            response.setContent(ERXStatsRegistry.snapshotAsJSON());
+        }
+        return response;
+    }
+
+    /**
+     * Returns the counters of the response compression (see
+     * {@link ERXCompressionUtilities.Statistics}), protected by the
+     * "WOStatisticsPassword" like the stats action.
+     */
+    public WOActionResults compressionStatsAction() {
+        WOResponse response = new WOResponse();
+        if (canPerformActionWithPasswordKey("WOStatisticsPassword")) {
+            response.setHeader("text/plain", "Content-Type");
+            response.setContent(ERXCompressionUtilities.Statistics.description());
+        }
+        return response;
+    }
+
     /**
      * Direct access to WOEventDisplay by giving over the password in the "pw" parameter.
      */
@@ -36,6 +36,8 @@ public  class ERXRequest extends WORequest {
 
     public static final String UNKNOWN_HOST = "UNKNOWN";
 
+    private static final ERXProperties.Handle<Boolean> _secureDisabled = ERXProperties.booleanHandle("er.extensions.ERXRequest.secureDisabled", false);
+
     public static final String X_FORWARDED_PROTO_FOR_SSL = ERXProperties.stringForKeyWithDefault("er.extensions.appserver.ERXRequest.xForwardedProtoForSsl", "https");
 
     protected static Boolean isBrowserFormValueEncodingOverrideEnabled;
@@ -79,7 +81,7 @@ public  class ERXRequest extends WORequest {
      * @return true if er.extensions.ERXRequest.secureDisabled is true
      */
     public static boolean _isSecureDisabled() {
-        return ERXProperties.booleanForKeyWithDefault("er.extensions.ERXRequest.secureDisabled", false);
+        return ERXRequest._secureDisabled.value().booleanValue();
     }
     
     /**
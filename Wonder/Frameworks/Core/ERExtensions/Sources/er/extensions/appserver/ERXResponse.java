@@ -13,6 +13,7 @@ import com.webobjects.foundation.NSMutableData;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSRange;
 
+import er.extensions.foundation.ERXStringUtilities;
 import er.extensions.foundation.ERXThreadStorage;
 
 /**
@@ -38,6 +39,10 @@ public class ERXResponse extends WOResponse {
 	private LinkedHashMap<String, Integer> marks;
 	private Stack<Object> _contentStack;
 	private WOContext _context;
+	private StringBuilder _headContributions;
+	private String _headContributionsTag;
+	private int _headContributionsPlaceholder = -1;
+	private int _headContributionsSearchOffset;
 
 	public ERXResponse() {
 	}
@@ -123,10 +128,177 @@ public class ERXResponse extends WOResponse {
 	}
 
 	/**
-	 * Overridden to insert the partials in the respective area.
+	 * Call this to mark the place where the content that is added with
+	 * ERXResponseRewriter.insertInResponseBeforeHead should get rendered,
+	 * instead of in front of the close head tag.
+	 */
+	public void markHeadContributions() {
+		CharSequence chars = _charContent();
+		if (chars != null) {
+			_headContributionsPlaceholder = chars.length();
+		}
+	}
+
+	/**
+	 * Returns the content if it is held as characters only, null otherwise.
+	 */
+	private CharSequence _charContent() {
+		Object content = _content;
+		if (content instanceof CharSequence && ((CharSequence) content).length() == _contentLength()) {
+			return (CharSequence) content;
+		}
+		return null;
+	}
+
+	private static int _indexOfTag(CharSequence chars, String tag, int fromIndex, boolean ignoreCase) {
+		int tagLength = tag.length();
+		int max = chars.length() - tagLength;
+		for (int i = fromIndex; i <= max; i++) {
+			int j = 0;
+			while (j < tagLength) {
+				char c = chars.charAt(i + j);
+				char tagChar = tag.charAt(j);
+				if (c != tagChar && !(ignoreCase && Character.toLowerCase(c) == Character.toLowerCase(tagChar))) {
+					break;
+				}
+				j++;
+			}
+			if (j == tagLength) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Collects content that belongs in front of the given close head tag. The
+	 * content is inserted in one go when the response is finalized (or its
+	 * content is read), so the response isn't copied for every addition. The
+	 * content is only collected if the tag has already been rendered or the
+	 * head contributions are marked.
+	 * 
+	 * @param content
+	 *            the content to insert
+	 * @param tag
+	 *            the close head tag
+	 * @return true if the content was collected, false if it has to be
+	 *         inserted by the caller
+	 */
+	public boolean _addHeadContribution(String content, String tag) {
+		if (_contentStack != null && !_contentStack.isEmpty()) {
+			return false;
+		}
+		if (_headContributions == null) {
+			if (_headContributionsPlaceholder < 0) {
+				CharSequence chars = _charContent();
+				if (chars == null) {
+					return false;
+				}
+				if (_headContributionsSearchOffset > chars.length()) {
+					_headContributionsSearchOffset = 0;
+				}
+				if (_indexOfTag(chars, tag, _headContributionsSearchOffset, true) < 0) {
+					// the tag can only show up in content that is appended later
+					_headContributionsSearchOffset = Math.max(0, chars.length() - tag.length() + 1);
+					return false;
+				}
+			}
+			_headContributions = new StringBuilder(content.length() * 8);
+			_headContributionsTag = tag;
+		}
+		else if (!tag.equals(_headContributionsTag)) {
+			return false;
+		}
+		_headContributions.append(content);
+		return true;
+	}
+
+	/**
+	 * Inserts the content collected by _addHeadContribution at the head
+	 * contributions mark or in front of the close head tag.
+	 */
+	public void _flushHeadContributions() {
+		if (_headContributions == null || (_contentStack != null && !_contentStack.isEmpty())) {
+			return;
+		}
+		String contributions = _headContributions.toString();
+		String tag = _headContributionsTag;
+		_headContributions = null;
+		_headContributionsTag = null;
+
+		int index = -1;
+		CharSequence chars = _charContent();
+		if (chars != null) {
+			if (_headContributionsPlaceholder >= 0 && _headContributionsPlaceholder <= chars.length()) {
+				index = _headContributionsPlaceholder;
+			}
+			else {
+				index = _indexOfTag(chars, tag, 0, false);
+				if (index < 0) {
+					index = _indexOfTag(chars, tag, 0, true);
+				}
+			}
+		}
+		Object content = _content;
+		if (index >= 0 && content instanceof StringBuilder) {
+			((StringBuilder) content).insert(index, contributions);
+		}
+		else if (index >= 0 && content instanceof StringBuffer) {
+			((StringBuffer) content).insert(index, contributions);
+		}
+		else {
+			// the content was replaced in the meantime
+			String contentString = super.contentString();
+			index = contentString.indexOf(tag);
+			if (index < 0) {
+				index = contentString.toLowerCase().indexOf(tag.toLowerCase());
+			}
+			if (index >= 0) {
+				setContent(ERXStringUtilities.insertString(contentString, contributions, index));
+			}
+			else {
+				appendContentString(contributions);
+			}
+			_headContributionsPlaceholder = -1;
+			return;
+		}
+		if (_headContributionsPlaceholder >= 0) {
+			_headContributionsPlaceholder += contributions.length();
+		}
+		if (marks != null) {
+			for (Map.Entry<String, Integer> entry : marks.entrySet()) {
+				if (entry.getValue().intValue() >= index) {
+					entry.setValue(Integer.valueOf(entry.getValue().intValue() + contributions.length()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Overridden to insert pending head contributions first.
+	 */
+	@Override
+	public String contentString() {
+		_flushHeadContributions();
+		return super.contentString();
+	}
+
+	/**
+	 * Overridden to insert pending head contributions first.
+	 */
+	@Override
+	public NSData content() {
+		_flushHeadContributions();
+		return super.content();
+	}
+
+	/**
+	 * Overridden to insert the head contributions and the partials in the
+	 * respective area.
 	 */
 	@Override
 	public void _finalizeInContext(WOContext originalContext) {
+		_flushHeadContributions();
 		super._finalizeInContext(originalContext);
 		if (marks != null && marks.size() > 0) {
 			Context context = currentContext();
@@ -34,6 +34,7 @@ import er.extensions.foundation.ERXStringUtilities;
  * @property er.ajax.secureResources if true, load all resources with https (default false) 
  * @property er.ajax.AJComponent.htmlCloseHead the tag to insert in front of (defaults to &lt;/head&gt;)
  * @property er.extensions.ERXResponseRewriter.javascriptTypeAttribute if true, type="text/javascript" will be added to injected script tags (defaults true)
+ * @property er.extensions.ERXResponseRewriter.deferHeadContributions if true, content inserted before the close head tag of an ERXResponse is collected and inserted once when the response is finalized, instead of copying the response for every insert (defaults true)
  */
 public class ERXResponseRewriter {
 	public static final Logger log = Logger.getLogger(ERXResponseRewriter.class);
@@ -50,6 +51,16 @@ public class ERXResponseRewriter {
 
 	private static final String CONTEXT_OBSERVER_KEY = "ERXResponseRewriter.contextObserver";
 
+	private static final ERXProperties.Handle<Boolean> _javascriptTypeAttribute = ERXProperties.booleanHandle("er.extensions.ERXResponseRewriter.javascriptTypeAttribute", false);
+
+	private static final ERXProperties.Handle<Boolean> _loadOnDemand = ERXProperties.booleanHandle("er.extensions.loadOnDemand", true);
+
+	private static final ERXProperties.Handle<Boolean> _loadOnDemandDuringReplace = ERXProperties.booleanHandle("er.extensions.loadOnDemandDuringReplace", false);
+
+	private static final ERXProperties.Handle<Boolean> _deferHeadContributions = ERXProperties.booleanHandle("er.extensions.ERXResponseRewriter.deferHeadContributions", true);
+
+	private static final ERXProperties.Handle<String> _htmlCloseHead = ERXProperties.stringHandle("er.ajax.AJComponent.htmlCloseHead", "</head>");
+
 	private static Map<WOComponent, NSMutableDictionary<String, Object>> _ajaxPageUserInfos;
 
 	private static Map<WOComponent, NSMutableDictionary<String, Object>> _pageUserInfos;
@@ -260,13 +271,16 @@ public class ERXResponseRewriter {
 	 * property er.ajax.AJComponent.htmlCloseHead.
 	 */
 	public static String _htmlCloseHeadTag() {
-		String closeHeadTag = ERXProperties.stringForKeyWithDefault("er.ajax.AJComponent.htmlCloseHead", "</head>");
+		String closeHeadTag = ERXResponseRewriter._htmlCloseHead.value();
 		return closeHeadTag;
 	}
 
 	/**
 	 * Utility to add the given content into the response before the close of
-	 * the head tag.
+	 * the head tag. If the response is an ERXResponse and the head tag has
+	 * already been rendered (or the place for head contributions is marked
+	 * with {@link #markHeadContributions(WOResponse)}), the content is
+	 * collected and inserted once when the response is finalized.
 	 * 
 	 * @param response
 	 *            the WOResponse
@@ -282,6 +296,21 @@ public class ERXResponseRewriter {
 		return ERXResponseRewriter.insertInResponseBeforeTag(response, context, content, ERXResponseRewriter._htmlCloseHeadTag(), tagMissingBehavior);
 	}
 
+	/**
+	 * Marks the current position of the response as the place where content
+	 * added with insertInResponseBeforeHead is rendered. This lets components
+	 * inside the head add resources without a search for the close head tag.
+	 * Does nothing if the response is not an ERXResponse.
+	 * 
+	 * @param response
+	 *            the WOResponse
+	 */
+	public static void markHeadContributions(WOResponse response) {
+		if (response instanceof ERXResponse) {
+			((ERXResponse) response).markHeadContributions();
+		}
+	}
+
 	/**
 	 * Replaces all occurrences of the given pattern in the response with the replacement string.
 	 * 
@@ -331,6 +360,11 @@ public class ERXResponseRewriter {
 	 * @return whether or not the content was inserted
 	 */
 	public static boolean insertInResponseBeforeTag(WOResponse response, WOContext context, String content, String tag, TagMissingBehavior tagMissingBehavior) {
+		if (tag != null && response instanceof ERXResponse && ERXResponseRewriter._deferHeadContributions.value().booleanValue() && tag.equals(ERXResponseRewriter._htmlCloseHeadTag())) {
+			if (((ERXResponse) response)._addHeadContribution(content, tag)) {
+				return true;
+			}
+		}
 		boolean inserted = false;
 		String responseContent = response.contentString();
 		int tagIndex;
@@ -397,7 +431,7 @@ public class ERXResponseRewriter {
 	 *            the name of the javascript file to add
 	 */
 	public static void addScriptResourceInHead(WOResponse response, WOContext context, String framework, String fileName) {
-		boolean appendTypeAttribute = ERXProperties.booleanForKeyWithDefault("er.extensions.ERXResponseRewriter.javascriptTypeAttribute", false);
+		boolean appendTypeAttribute = ERXResponseRewriter._javascriptTypeAttribute.value().booleanValue();
 		String scriptStartTag;
 		if (appendTypeAttribute) {
 			scriptStartTag = "<script type=\"text/javascript\" src=\"";
@@ -408,8 +442,8 @@ public class ERXResponseRewriter {
 		String scriptEndTag = "\"></script>";
 		String fallbackStartTag;
 		String fallbackEndTag;
-		if (ERXAjaxApplication.isAjaxRequest(context.request()) && ERXProperties.booleanForKeyWithDefault("er.extensions.loadOnDemand", true)) {
-			if (!ERXAjaxApplication.isAjaxReplacement(context.request()) || ERXProperties.booleanForKeyWithDefault("er.extensions.loadOnDemandDuringReplace", false)) {
+		if (ERXAjaxApplication.isAjaxRequest(context.request()) && ERXResponseRewriter._loadOnDemand.value().booleanValue()) {
+			if (!ERXAjaxApplication.isAjaxReplacement(context.request()) || ERXResponseRewriter._loadOnDemandDuringReplace.value().booleanValue()) {
 				if (appendTypeAttribute) {
 					fallbackStartTag = "<script type=\"text/javascript\">AOD.loadScript('";
 				}
@@ -47,6 +47,8 @@ public class ERXWOContext extends ERXAjaxContext implements ERXMutableUserInfoHo
 	public static final String CONTEXT_KEY = "wocontext";
 	public static final String CONTEXT_DICTIONARY_KEY = "ERXWOContext.dict";
 
+	private static final ERXProperties.Handle<Boolean> _forceRemoveApplicationNumber = ERXProperties.booleanHandle("er.extensions.ERXWOContext.forceRemoveApplicationNumber", false);
+
 	public static class Observer {
 		public void applicationDidHandleRequest(NSNotification n) {
 			ERXWOContext.setCurrentContext(null);
@@ -211,7 +213,7 @@ public class ERXWOContext extends ERXAjaxContext implements ERXMutableUserInfoHo
 	 * one instance of your app deployed). 
 	 */
 	protected void _preprocessURL() {
-		if (ERXProperties.booleanForKey("er.extensions.ERXWOContext.forceRemoveApplicationNumber")) {
+		if (ERXWOContext._forceRemoveApplicationNumber.value().booleanValue()) {
 			_url().setApplicationNumber(null);
 		}
 	}
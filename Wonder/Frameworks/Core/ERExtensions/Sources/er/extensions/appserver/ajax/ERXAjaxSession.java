@@ -6,6 +6,7 @@
  * included with this distribution in the LICENSE.NPL file.  */
 package er.extensions.appserver.ajax;
 
+import java.io.Serializable;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -61,17 +62,19 @@ public class ERXAjaxSession extends WOSession {
 
   private static boolean overridePrivateCache = ERXProperties.booleanForKey("er.extensions.overridePrivateCache");
   
-  private Logger logger = Logger.getLogger(ERXAjaxSession.class.getName());
+  private static final Logger logger = Logger.getLogger(ERXAjaxSession.class.getName());
   
   
   /*
    * ERTransactionRecord is a reimplementation of WOTransactionRecord for
-   * use with Ajax background request page caching.
+   * use with Ajax background request page caching. The context isn't
+   * serialized, so it is null after the session was restored from a
+   * serializing session store.
    * 
    * @author mschrag
    */
-  static class TransactionRecord {
-    private WOContext _context;
+  static class TransactionRecord implements Serializable {
+    private transient WOContext _context;
     private WOComponent _page;
     private String _key;
     private boolean _oldPage;
@@ -130,7 +133,7 @@ public class ERXAjaxSession extends WOSession {
     }
 
     public String toString() {
-      return "[TransactionRecord: page = " + _page.name() + "; context = " + _context.contextID() + "; key = " + _key + "; oldPage? " + _oldPage + "]";
+      return "[TransactionRecord: page = " + _page.name() + "; context = " + (_context != null ? _context.contextID() : null) + "; key = " + _key + "; oldPage? " + _oldPage + "]";
     }
   }
   
@@ -0,0 +1,27 @@
+package er.extensions.components;
+
+import com.webobjects.appserver.WOContext;
+import com.webobjects.appserver.WODynamicElement;
+import com.webobjects.appserver.WOElement;
+import com.webobjects.appserver.WOResponse;
+import com.webobjects.foundation.NSDictionary;
+
+import er.extensions.appserver.ERXResponseRewriter;
+
+/**
+ * Marks the place in the head where the scripts and stylesheets that
+ * components add with ERXResponseRewriter get rendered. Without it, they are
+ * inserted in front of the close head tag. Put it into the head of your page
+ * wrapper: &lt;wo:ERXHeadContributionsMarker/&gt;
+ */
+public class ERXHeadContributionsMarker extends WODynamicElement {
+
+	public ERXHeadContributionsMarker(String name, NSDictionary associations, WOElement template) {
+		super(name, associations, template);
+	}
+
+	@Override
+	public void appendToResponse(WOResponse response, WOContext context) {
+		ERXResponseRewriter.markHeadContributions(response);
+	}
+}
@@ -57,7 +57,8 @@ import er.extensions.statistics.ERXStats.Group;
  * for enterprise objects to generate their own primary keys, correctly throws an
  * exception when a toOne relationship object is not found in the database and adds
  * debugging abilities to tracking down when faults are fired. It also supports a cache for
- * array fault that is checked before they are fetched from the database.
+ * array fault that is checked before they are fetched from the database, and a
+ * {@link ERXSnapshotCache} that is shared by several instances.
  */
 public class ERXDatabaseContextDelegate {
 	
@@ -95,6 +96,7 @@ public class ERXDatabaseContextDelegate {
     
     private ERXArrayFaultCache _arrayFaultCache = null;
     private ERXFetchResultCache _fetchResultCache = null;
+    private ERXSnapshotCache _snapshotCache = null;
     
     /** Returns the singleton of the database context delegate */
     public static ERXDatabaseContextDelegate defaultDelegate() {
@@ -123,6 +125,14 @@ public class ERXDatabaseContextDelegate {
     public void setFetchResultCache(ERXFetchResultCache value) {
     	_fetchResultCache = value;
     }
+
+    public ERXSnapshotCache snapshotCache() {
+        return _snapshotCache;
+    }
+
+    public void setSnapshotCache(ERXSnapshotCache value) {
+        _snapshotCache = value;
+    }
     
     /**
 	 * Returns an array of already fetched objects or null if they were not already fetched.
@@ -140,8 +150,9 @@ public class ERXDatabaseContextDelegate {
 	}
 
 	/**
-	 * Sets the cache entry for the fetched objects and refreshes the timestamps
-	 * for fetched objects if batch faulting is enabled.
+	 * Sets the cache entry for the fetched objects, writes their snapshots to the
+	 * snapshot cache and refreshes the timestamps for fetched objects if batch
+	 * faulting is enabled.
 	 * 
 	 * @param dbc
 	 * @param eos
@@ -153,6 +164,10 @@ public class ERXDatabaseContextDelegate {
 		if (fetchResultCache != null) {
 			fetchResultCache.setObjectsForFetchSpecification(dbc, ec, eos, fs);
 		}
+		ERXSnapshotCache snapshotCache = snapshotCache();
+		if (snapshotCache != null && !fs.fetchesRawRows()) {
+			snapshotCache.objectsWereFetched(dbc, eos, ec);
+		}
 		if(autoBatchFetchSize() > 0 && eos.count() > 0) {
 			//log.info("Freshen: " + fs.entityName() +  " " + eos.count());
 			freshenFetchTimestamps(eos, ec.fetchTimestamp());
@@ -374,12 +389,17 @@ public class ERXDatabaseContextDelegate {
     }
 
     /**
-     * Batch fetches to one relationships if enabled.
+     * Initializes the fault from the snapshot cache if it is set and holds the
+     * snapshot, otherwise batch fetches to one relationships if enabled.
      * @param dbc
      * @param obj
      * @return true if the fault should get fetched
      */
 	public boolean databaseContextShouldFetchObjectFault(EODatabaseContext dbc, Object obj) {
+		ERXSnapshotCache snapshotCache = snapshotCache();
+		if (snapshotCache != null && obj instanceof EOEnterpriseObject && snapshotCache.initializeFault(dbc, (EOEnterpriseObject)obj)) {
+			return false;
+		}
 		if(autoBatchFetchSize() > 0 && obj instanceof AutoBatchFaultingEnterpriseObject) {
 			return batchFetchToOneFault(dbc, (AutoBatchFaultingEnterpriseObject)obj);
 		}
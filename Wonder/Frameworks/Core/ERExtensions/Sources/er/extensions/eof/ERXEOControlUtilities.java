@@ -53,11 +53,13 @@ import com.webobjects.foundation.NSMutableData;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSMutableSet;
 import com.webobjects.foundation.NSPropertyListSerialization;
+import com.webobjects.foundation.NSRange;
 import com.webobjects.foundation.NSSelector;
 import com.webobjects.foundation.NSSet;
 import com.webobjects.foundation.NSTimestamp;
 import com.webobjects.foundation.NSTimestampFormatter;
 
+import er.extensions.eof.qualifiers.ERXInQualifier;
 import er.extensions.foundation.ERXArrayUtilities;
 import er.extensions.foundation.ERXDictionaryUtilities;
 import er.extensions.foundation.ERXKeyValueCodingUtilities;
@@ -1746,6 +1748,23 @@ public class ERXEOControlUtilities {
         return result != null ? result : NSArray.EmptyArray;
     }
 
+    /**
+     * Same as {@link #objectsForGlobalIDs(EOEditingContext, NSArray)}, but if resolveFaults is true, the faults
+     * are resolved up front with {@link #resolveFaultsForGlobalIDs(EOEditingContext, NSArray)} instead of one
+     * SELECT per object when they are touched.
+     * @param ec the editing context
+     * @param globalIDs the global IDs
+     * @param resolveFaults whether to fetch the faults in batches
+     * @return the objects in the order of the global IDs
+     */
+    public static NSArray objectsForGlobalIDs(EOEditingContext ec, NSArray globalIDs, boolean resolveFaults) {
+        NSArray objects = objectsForGlobalIDs(ec, globalIDs);
+        if (resolveFaults) {
+            resolveFaultsForGlobalIDs(ec, globalIDs);
+        }
+        return objects;
+    }
+
     /** returns a NSArray containing EOEnterpriseObjects (actually faults...) for the provided EOGlobalIDs.
      * @param ec the EOEditingContext in which the EOEnterpriseObjects should be faulted
      * @param gids the EOGlobalIDs
@@ -1762,6 +1781,112 @@ public class ERXEOControlUtilities {
         return a;
     }  
 
+    /**
+     * Same as {@link #faultsForGlobalIDs(EOEditingContext, NSArray)}, but if resolveFaults is true, the faults
+     * are resolved up front with {@link #resolveFaultsForGlobalIDs(EOEditingContext, NSArray)} instead of one
+     * SELECT per object when they are touched.
+     * @param ec the EOEditingContext in which the EOEnterpriseObjects should be faulted
+     * @param gids the EOGlobalIDs
+     * @param resolveFaults whether to fetch the faults in batches
+     * @return the EOEnterpriseObjects in the order of the EOGlobalIDs
+     */
+    public static NSArray faultsForGlobalIDs(EOEditingContext ec, NSArray gids, boolean resolveFaults) {
+        NSArray faults = faultsForGlobalIDs(ec, gids);
+        if (resolveFaults) {
+            resolveFaultsForGlobalIDs(ec, gids);
+        }
+        return faults;
+    }
+
+    /**
+     * Fetches the objects for the given global IDs that are neither registered in the editing context nor in the
+     * snapshot cache of their database context. The global IDs are grouped by entity and fetched with IN qualifiers
+     * on the primary key (OR qualifiers for compound keys), at most
+     * <code>er.extensions.ERXEOControlUtilities.faultResolutionBatchSize</code> (defaults to 250) per fetch.
+     * Faults that the editing context already has for these global IDs are filled in by the fetch, so arrays of
+     * faults keep their order. Objects that are in the snapshot cache stay faults, as firing them doesn't need
+     * the database. Temporary global IDs are ignored.
+     * @param ec the editing context
+     * @param globalIDs the global IDs to resolve
+     */
+    public static void resolveFaultsForGlobalIDs(EOEditingContext ec, NSArray globalIDs) {
+        if (globalIDs == null || globalIDs.count() == 0) {
+            return;
+        }
+        int batchSize = ERXProperties.intForKeyWithDefault("er.extensions.ERXEOControlUtilities.faultResolutionBatchSize", 250);
+        ec.lock();
+        try {
+            NSMutableDictionary<String, NSMutableArray<EOKeyGlobalID>> unresolvedGIDsByEntityName = new NSMutableDictionary<String, NSMutableArray<EOKeyGlobalID>>();
+            NSMutableSet<EOGlobalID> seenGIDs = new NSMutableSet<EOGlobalID>(globalIDs.count());
+            for (Enumeration e = globalIDs.objectEnumerator(); e.hasMoreElements();) {
+                EOGlobalID gid = (EOGlobalID) e.nextElement();
+                if (!(gid instanceof EOKeyGlobalID) || gid.isTemporary() || seenGIDs.containsObject(gid)) {
+                    continue;
+                }
+                seenGIDs.addObject(gid);
+                EOEnterpriseObject eo = ec.objectForGlobalID(gid);
+                if (eo == null || EOFaultHandler.isFault(eo)) {
+                    EOKeyGlobalID keyGID = (EOKeyGlobalID) gid;
+                    NSMutableArray<EOKeyGlobalID> unresolvedGIDs = unresolvedGIDsByEntityName.objectForKey(keyGID.entityName());
+                    if (unresolvedGIDs == null) {
+                        unresolvedGIDs = new NSMutableArray<EOKeyGlobalID>();
+                        unresolvedGIDsByEntityName.setObjectForKey(unresolvedGIDs, keyGID.entityName());
+                    }
+                    unresolvedGIDs.addObject(keyGID);
+                }
+            }
+
+            EOObjectStoreCoordinator osc = (EOObjectStoreCoordinator) ec.rootObjectStore();
+            for (Enumeration e = unresolvedGIDsByEntityName.keyEnumerator(); e.hasMoreElements();) {
+                String entityName = (String) e.nextElement();
+                NSMutableArray<EOKeyGlobalID> unresolvedGIDs = unresolvedGIDsByEntityName.objectForKey(entityName);
+                NSMutableArray<EOKeyGlobalID> gidsToFetch = new NSMutableArray<EOKeyGlobalID>(unresolvedGIDs.count());
+                EODatabaseContext databaseContext = ERXEOAccessUtilities.databaseContextForEntityNamed(osc, entityName);
+                databaseContext.lock();
+                try {
+                    for (EOKeyGlobalID gid : unresolvedGIDs) {
+                        if (databaseContext.snapshotForGlobalID(gid, ec.fetchTimestamp()) == null) {
+                            gidsToFetch.addObject(gid);
+                        }
+                    }
+                }
+                finally {
+                    databaseContext.unlock();
+                }
+
+                EOEntity entity = ERXEOAccessUtilities.entityNamed(ec, entityName);
+                int count = gidsToFetch.count();
+                for (int start = 0; start < count; start += batchSize) {
+                    NSArray<EOKeyGlobalID> batch = gidsToFetch.subarrayWithRange(new NSRange(start, Math.min(batchSize, count - start)));
+                    EOFetchSpecification fetchSpec = new EOFetchSpecification(entityName, qualifierForGlobalIDs(entity, batch), null);
+                    ec.objectsWithFetchSpecification(fetchSpec);
+                }
+            }
+        }
+        finally {
+            ec.unlock();
+        }
+    }
+
+    /**
+     * Returns a qualifier that matches the objects of the given global IDs of one entity.
+     */
+    private static EOQualifier qualifierForGlobalIDs(EOEntity entity, NSArray<EOKeyGlobalID> globalIDs) {
+        NSArray<EOAttribute> primaryKeyAttributes = entity.primaryKeyAttributes();
+        if (primaryKeyAttributes.count() == 1) {
+            NSMutableArray<Object> primaryKeys = new NSMutableArray<Object>(globalIDs.count());
+            for (EOKeyGlobalID gid : globalIDs) {
+                primaryKeys.addObject(gid.keyValues()[0]);
+            }
+            return new ERXInQualifier(primaryKeyAttributes.objectAtIndex(0).name(), primaryKeys);
+        }
+        NSMutableArray<EOQualifier> qualifiers = new NSMutableArray<EOQualifier>(globalIDs.count());
+        for (EOKeyGlobalID gid : globalIDs) {
+            qualifiers.addObject(entity.qualifierForPrimaryKey(entity.primaryKeyForGlobalID(gid)));
+        }
+        return new EOOrQualifier(qualifiers);
+    }
+
     public static NSArray faultsForRawRowsFromEntity(EOEditingContext ec, NSArray primKeys, String entityName) {
         int c = primKeys.count();
         NSMutableArray a = new NSMutableArray(c);
@@ -0,0 +1,465 @@
+package er.extensions.eof;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eoaccess.EOAdaptorChannel;
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EODatabaseChannel;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOGeneralAdaptorException;
+import com.webobjects.eoaccess.EOModel;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.eocontrol.EOObjectStoreCoordinator;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+
+import er.extensions.foundation.ERXProperties;
+import er.extensions.jdbc.ERXJDBCAdaptor;
+
+/**
+ * Streams the result of a single select in chunks of a fixed size, either as
+ * raw rows of an {@link EOSQLExpression} or as enterprise objects of a fetch
+ * specification. Unlike {@link ERXFetchSpecificationBatchIterator}, which
+ * fetches all primary keys first and then one select per batch, the cursor
+ * keeps one select open and reads the rows as they are needed, so there is
+ * only ever one chunk in memory. The database context is only locked while a
+ * chunk is read; in between, the channel is busy and other fetches use
+ * another one.
+ * <p>
+ * Enterprise objects are fetched into a new editing context for every chunk.
+ * The editing context of the previous chunk is disposed when the next chunk is
+ * read, so the objects of a chunk must not be used after the next call to
+ * {@link #hasNext()}, {@link #next()} or {@link #close()}. Raw rows are plain
+ * dictionaries and stay valid.
+ * <p>
+ * The cursor shares the adaptor context of the database context, so don't
+ * save changes in the same object store coordinator while it is open;
+ * committing the transaction would close the result set with many drivers. Use
+ * a separate coordinator for the cursor if the chunks are written back.
+ * <p>
+ * Typical usage:
+ *
+ * <pre><code>
+ * ERXFetchCursor&lt;EOEnterpriseObject&gt; cursor = ERXFetchCursor.objectCursor(fetchSpec, osc, 500);
+ * cursor.processChunks(new ERXFetchCursor.Delegate&lt;EOEnterpriseObject&gt;() {
+ *     public void processChunk(NSArray&lt;EOEnterpriseObject&gt; chunk, EOEditingContext ec) {
+ *         ...
+ *     }
+ * });
+ * </code></pre>
+ *
+ * If the adaptor channel is an {@link ERXJDBCAdaptor.Channel}, the chunk size
+ * is set as the JDBC fetch size on the statement before it is executed, so the
+ * driver reads the rows from the database in round trips of one chunk. MySQL
+ * only does this with <code>useCursorFetch=true</code> in the URL.
+ *
+ * @param <T> the type of the rows, {@link EOEnterpriseObject} or
+ *            {@link NSDictionary}
+ *
+ * @property er.extensions.ERXFetchCursor.chunkSize the default number of rows
+ *           per chunk (defaults to 500)
+ */
+public class ERXFetchCursor<T> implements Iterator<NSArray<T>> {
+	public static final Logger log = Logger.getLogger(ERXFetchCursor.class);
+
+	public static final String CHUNK_SIZE_KEY = "er.extensions.ERXFetchCursor.chunkSize";
+
+	/**
+	 * Callback for {@link ERXFetchCursor#processChunks(Delegate)}.
+	 */
+	public static interface Delegate<T> {
+		/**
+		 * Processes one chunk.
+		 *
+		 * @param chunk
+		 *            the rows of the chunk
+		 * @param ec
+		 *            the editing context of the chunk, null for raw rows
+		 */
+		public void processChunk(NSArray<T> chunk, EOEditingContext ec);
+	}
+
+	private final EOObjectStoreCoordinator _osc;
+	private final EOModel _model;
+	private final int _chunkSize;
+	private final EOFetchSpecification _fetchSpecification;
+	private final EOSQLExpression _expression;
+	private final NSArray<EOAttribute> _attributes;
+
+	private EODatabaseContext _databaseContext;
+	private EODatabaseChannel _databaseChannel;
+	private EOAdaptorChannel _adaptorChannel;
+	private EOEditingContext _editingContext;
+	private NSArray<T> _nextChunk;
+	private boolean _started;
+	private boolean _finished;
+	private boolean _disposesEditingContexts = true;
+
+	/**
+	 * Returns the default chunk size.
+	 */
+	public static int defaultChunkSize() {
+		return ERXProperties.intForKeyWithDefault(ERXFetchCursor.CHUNK_SIZE_KEY, 500);
+	}
+
+	/**
+	 * Creates a cursor over the objects of the given fetch specification.
+	 * Prefetching key paths are batch fetched for each chunk.
+	 *
+	 * @param fetchSpecification
+	 *            the fetch specification, must not fetch raw rows
+	 * @param osc
+	 *            the object store coordinator to fetch in
+	 * @param chunkSize
+	 *            the number of objects per chunk
+	 * @return the cursor
+	 */
+	public static ERXFetchCursor<EOEnterpriseObject> objectCursor(EOFetchSpecification fetchSpecification, EOObjectStoreCoordinator osc, int chunkSize) {
+		if (fetchSpecification.fetchesRawRows()) {
+			throw new IllegalArgumentException("The fetch specification fetches raw rows, use rawRowCursor instead: " + fetchSpecification);
+		}
+		EOEditingContext ec = ERXEC.newEditingContext(osc);
+		ec.lock();
+		try {
+			EOEntity entity = ERXEOAccessUtilities.entityNamed(ec, fetchSpecification.entityName());
+			return new ERXFetchCursor<EOEnterpriseObject>(osc, entity.model(), chunkSize, fetchSpecification, null, null);
+		}
+		finally {
+			ec.unlock();
+			ec.dispose();
+		}
+	}
+
+	/**
+	 * Creates a cursor over the objects of the given fetch specification in
+	 * the default object store coordinator with the default chunk size.
+	 *
+	 * @param fetchSpecification
+	 *            the fetch specification, must not fetch raw rows
+	 * @return the cursor
+	 */
+	public static ERXFetchCursor<EOEnterpriseObject> objectCursor(EOFetchSpecification fetchSpecification) {
+		return ERXFetchCursor.objectCursor(fetchSpecification, EOObjectStoreCoordinator.defaultCoordinator(), ERXFetchCursor.defaultChunkSize());
+	}
+
+	/**
+	 * Creates a cursor over the raw rows of the given expression, the
+	 * streaming counterpart of
+	 * {@link ERXEOAccessUtilities#rawRowsForSQLExpression(EOEditingContext, EOModel, EOSQLExpression, NSArray)}.
+	 *
+	 * @param osc
+	 *            the object store coordinator to fetch in
+	 * @param model
+	 *            the model in question
+	 * @param expression
+	 *            the EOSQLExpression to fetch with
+	 * @param attributes
+	 *            the attributes to fetch, or null to use the description of
+	 *            the result
+	 * @param chunkSize
+	 *            the number of rows per chunk
+	 * @return the cursor
+	 */
+	public static ERXFetchCursor<NSDictionary<String, Object>> rawRowCursor(EOObjectStoreCoordinator osc, EOModel model, EOSQLExpression expression, NSArray<EOAttribute> attributes, int chunkSize) {
+		return new ERXFetchCursor<NSDictionary<String, Object>>(osc, model, chunkSize, null, expression, attributes);
+	}
+
+	/**
+	 * Creates a cursor over the raw rows of the given fetch specification.
+	 *
+	 * @param ec
+	 *            the editing context whose object store coordinator is used
+	 * @param fetchSpecification
+	 *            the fetch specification
+	 * @param chunkSize
+	 *            the number of rows per chunk
+	 * @return the cursor
+	 */
+	public static ERXFetchCursor<NSDictionary<String, Object>> rawRowCursor(EOEditingContext ec, EOFetchSpecification fetchSpecification, int chunkSize) {
+		EOEntity entity = ERXEOAccessUtilities.entityNamed(ec, fetchSpecification.entityName());
+		EOSQLExpression expression = ERXEOAccessUtilities.sqlExpressionForFetchSpecification(ec, fetchSpecification, 0, -1);
+		return ERXFetchCursor.rawRowCursor((EOObjectStoreCoordinator) ec.rootObjectStore(), entity.model(), expression, null, chunkSize);
+	}
+
+	protected ERXFetchCursor(EOObjectStoreCoordinator osc, EOModel model, int chunkSize, EOFetchSpecification fetchSpecification, EOSQLExpression expression, NSArray<EOAttribute> attributes) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("The chunk size must be greater than 0: " + chunkSize);
+		}
+		_osc = osc;
+		_model = model;
+		_chunkSize = chunkSize;
+		_fetchSpecification = fetchSpecification;
+		_expression = expression;
+		_attributes = attributes;
+	}
+
+	/**
+	 * Returns the number of rows per chunk.
+	 */
+	public int chunkSize() {
+		return _chunkSize;
+	}
+
+	/**
+	 * Returns whether this cursor fetches enterprise objects.
+	 */
+	public boolean fetchesObjects() {
+		return _fetchSpecification != null;
+	}
+
+	/**
+	 * Returns whether the editing context of a chunk is disposed when the next
+	 * chunk is read (defaults to true).
+	 */
+	public boolean disposesEditingContexts() {
+		return _disposesEditingContexts;
+	}
+
+	/**
+	 * Sets whether the editing context of a chunk is disposed when the next
+	 * chunk is read. Turn this off to keep using objects of earlier chunks; the
+	 * editing contexts are then released to the garbage collector only.
+	 */
+	public void setDisposesEditingContexts(boolean disposesEditingContexts) {
+		_disposesEditingContexts = disposesEditingContexts;
+	}
+
+	/**
+	 * Returns the editing context of the current chunk, or null for raw rows.
+	 */
+	public EOEditingContext editingContext() {
+		return _editingContext;
+	}
+
+	public boolean hasNext() {
+		if (_nextChunk == null && !_finished) {
+			_nextChunk = fetchChunk();
+		}
+		return _nextChunk != null;
+	}
+
+	public NSArray<T> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException("There are no more rows.");
+		}
+		NSArray<T> chunk = _nextChunk;
+		_nextChunk = null;
+		return chunk;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("remove is not supported.");
+	}
+
+	/**
+	 * Calls the delegate for every chunk and closes the cursor, also when the
+	 * delegate throws.
+	 *
+	 * @param delegate
+	 *            the delegate
+	 * @return the number of rows processed
+	 */
+	public int processChunks(Delegate<T> delegate) {
+		int count = 0;
+		try {
+			while (hasNext()) {
+				NSArray<T> chunk = next();
+				count += chunk.count();
+				delegate.processChunk(chunk, _editingContext);
+			}
+		}
+		finally {
+			close();
+		}
+		return count;
+	}
+
+	/**
+	 * Cancels the fetch if it is still in progress and disposes the editing
+	 * context of the last chunk. Closing a cursor twice does nothing.
+	 */
+	public void close() {
+		_finished = true;
+		_nextChunk = null;
+		if (_databaseContext != null) {
+			_databaseContext.lock();
+			try {
+				cancelFetch();
+			}
+			finally {
+				_databaseContext.unlock();
+			}
+		}
+		disposeEditingContext();
+	}
+
+	protected NSArray<T> fetchChunk() {
+		disposeEditingContext();
+		if (fetchesObjects()) {
+			_editingContext = ERXEC.newEditingContext(_osc);
+		}
+		if (_databaseContext == null) {
+			_databaseContext = EODatabaseContext.registeredDatabaseContextForModel(_model, _osc);
+		}
+		NSMutableArray<T> chunk = new NSMutableArray<T>(_chunkSize);
+		if (_editingContext != null) {
+			_editingContext.lock();
+		}
+		try {
+			_osc.lock();
+			try {
+				_databaseContext.lock();
+				try {
+					if (!_started) {
+						_started = true;
+						startFetch();
+					}
+					fetchRows(chunk);
+				}
+				catch (RuntimeException e) {
+					_finished = true;
+					cancelFetch();
+					throw e;
+				}
+				finally {
+					_databaseContext.unlock();
+				}
+			}
+			finally {
+				_osc.unlock();
+			}
+			if (chunk.count() > 0 && fetchesObjects()) {
+				NSArray prefetchingKeyPaths = _fetchSpecification.prefetchingRelationshipKeyPaths();
+				if (prefetchingKeyPaths != null && prefetchingKeyPaths.count() > 0) {
+					ERXBatchFetchUtilities.batchFetch(chunk, prefetchingKeyPaths);
+				}
+			}
+		}
+		finally {
+			if (_editingContext != null) {
+				_editingContext.unlock();
+			}
+		}
+		if (chunk.count() < _chunkSize) {
+			_finished = true;
+		}
+		if (chunk.count() == 0) {
+			disposeEditingContext();
+			return null;
+		}
+		return chunk;
+	}
+
+	/**
+	 * Starts the select. Must be called with the database context locked.
+	 */
+	protected void startFetch() {
+		if (fetchesObjects()) {
+			_databaseChannel = _databaseContext.availableChannel();
+			_adaptorChannel = _databaseChannel.adaptorChannel();
+			applyFetchSize(_chunkSize);
+			try {
+				_databaseChannel.selectObjectsWithFetchSpecification(_fetchSpecification, _editingContext);
+			}
+			finally {
+				applyFetchSize(0);
+			}
+		}
+		else {
+			_adaptorChannel = _databaseContext.availableChannel().adaptorChannel();
+			if (!_adaptorChannel.isOpen()) {
+				_adaptorChannel.openChannel();
+			}
+			applyFetchSize(_chunkSize);
+			// see ERXEOAccessUtilities._rawRowsForSQLExpression
+			boolean contextHadOpenTransaction = _adaptorChannel.adaptorContext().hasOpenTransaction();
+			try {
+				_adaptorChannel.evaluateExpression(_expression);
+			}
+			catch (EOGeneralAdaptorException e) {
+				if (_adaptorChannel.adaptorContext().hasOpenTransaction() && !contextHadOpenTransaction) {
+					_adaptorChannel.adaptorContext().rollbackTransaction();
+				}
+				throw e;
+			}
+			finally {
+				applyFetchSize(0);
+			}
+			if (_attributes == null) {
+				_adaptorChannel.setAttributesToFetch(_adaptorChannel.describeResults());
+			}
+			else {
+				_adaptorChannel.setAttributesToFetch(_attributes);
+			}
+		}
+	}
+
+	/**
+	 * Reads up to one chunk of rows. Must be called with the database context
+	 * locked.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void fetchRows(NSMutableArray<T> chunk) {
+		if (fetchesObjects()) {
+			_databaseChannel.setCurrentEditingContext(_editingContext);
+			Object object;
+			while (chunk.count() < _chunkSize && (object = _databaseChannel.fetchObject()) != null) {
+				chunk.addObject((T) object);
+			}
+		}
+		else {
+			NSDictionary row;
+			while (chunk.count() < _chunkSize && (row = _adaptorChannel.fetchRow()) != null) {
+				chunk.addObject((T) row);
+			}
+		}
+	}
+
+	private void applyFetchSize(int fetchSize) {
+		if (_adaptorChannel instanceof ERXJDBCAdaptor.Channel) {
+			((ERXJDBCAdaptor.Channel) _adaptorChannel).setFetchSize(fetchSize);
+		}
+	}
+
+	private void cancelFetch() {
+		try {
+			if (_databaseChannel != null) {
+				if (_databaseChannel.isFetchInProgress()) {
+					_databaseChannel.cancelFetch();
+				}
+			}
+			else if (_adaptorChannel != null && _adaptorChannel.isFetchInProgress()) {
+				_adaptorChannel.cancelFetch();
+			}
+		}
+		catch (RuntimeException e) {
+			log.warn("Could not cancel fetch: " + e, e);
+		}
+		finally {
+			_databaseChannel = null;
+			_adaptorChannel = null;
+		}
+	}
+
+	private void disposeEditingContext() {
+		if (_editingContext != null) {
+			if (_disposesEditingContexts) {
+				_editingContext.dispose();
+			}
+			_editingContext = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "<" + getClass().getSimpleName() + " " + (fetchesObjects() ? _fetchSpecification.entityName() : _expression.statement()) + " chunkSize=" + _chunkSize + " finished=" + _finished + ">";
+	}
+}
@@ -41,7 +41,9 @@ import er.extensions.jdbc.ERXSQLHelper;
  * Be aware that the batch size is primarily intended to govern the number of
  * objects requested from the database at once, and may differ from the number
  * of objects returned by <b>nextBatch()</b>, for instance if the batch size is
- * changed after fetching, or if <b>filtersBatches()</b> is set to true.
+ * changed after fetching, or if <b>filtersBatches()</b> is set to true.<br>
+ * If you only need to go through the objects once, {@link ERXFetchCursor}
+ * streams them from a single select instead of fetching all primary keys first.
  */
 public class ERXFetchSpecificationBatchIterator implements Iterator, Enumeration {
 
@@ -4,8 +4,7 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -21,6 +20,7 @@ import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSForwardException;
 
+import er.extensions.concurrency.ERXExecutorService;
 import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXSystem;
 import er.extensions.foundation.ERXValueUtilities;
@@ -66,7 +66,7 @@ public class ERXLongPrimaryKeyFactory {
 	private  Boolean         encodeEntityInPkValue;
 	private  Boolean         encodeHostInPkValue;
 	private  Integer 		hostCode;
-	private  Hashtable      pkCache      = new Hashtable();
+	private  ConcurrentHashMap<String, ERXPrimaryKeyBlockAllocator<Long>> pkCache = new ConcurrentHashMap<String, ERXPrimaryKeyBlockAllocator<Long>>();
 	
 	private  Integer increaseBy;
 	
@@ -165,18 +165,18 @@ public class ERXLongPrimaryKeyFactory {
 		return encodeHostInPkValue.booleanValue();
 	}
 
-	public synchronized static Object primaryKeyValue(String entityName) {
+	public static Object primaryKeyValue(String entityName) {
 		return factory().primaryKeyDictionary(entityName).objectEnumerator().nextElement();
 	}
 
-	public synchronized static NSDictionary primaryKeyDictionary(EOEnterpriseObject eo) {
+	public static NSDictionary primaryKeyDictionary(EOEnterpriseObject eo) {
 		String entityName = eo.entityName();
 		return factory().primaryKeyDictionary(entityName);
 	}
 
 	private static ERXLongPrimaryKeyFactory _factory;
 
-	private static ERXLongPrimaryKeyFactory factory() {
+	private static synchronized ERXLongPrimaryKeyFactory factory() {
 		if(_factory == null) {
 			_factory = new ERXLongPrimaryKeyFactory();
 			if(_factory.encodeEntityInPkValue()) {
@@ -252,19 +252,26 @@ public class ERXLongPrimaryKeyFactory {
 
 				for(int tries = 0; tries < count; tries++) {
 					try {
-						ResultSet resultSet = con.createStatement().executeQuery("select pk_value from pk_table " + where);
-						con.commit();
-
-						boolean hasNext = resultSet.next();
+						// the update locks the row until the commit, so instances can't read the same value
+						int updated = con.createStatement().executeUpdate("update pk_table set pk_value = pk_value + " + increasePkBy + " " + where);
 						long pk = 1;
-						if (hasNext) {
-							pk = resultSet.getLong("pk_value");
-							// now execute the update
-							con.createStatement().executeUpdate("update pk_table set pk_value = " + (pk+increasePkBy) + " " + where);
+						if (updated > 0) {
+							ResultSet resultSet = con.createStatement().executeQuery("select pk_value from pk_table " + where);
+							if (!resultSet.next()) {
+								throw new SQLException("pk_table row for " + entityName + " disappeared");
+							}
+							pk = resultSet.getLong("pk_value") - increasePkBy;
 						} else {
 							pk = maxIdFromTable(entityName);
 							// first time, we need to set i up
-							con.createStatement().executeUpdate("insert into pk_table (eoentity_name, pk_value) values ('" + entityName + "', " + (pk+increasePkBy) + ")");
+							try {
+								con.createStatement().executeUpdate("insert into pk_table (eoentity_name, pk_value) values ('" + entityName + "', " + (pk+increasePkBy) + ")");
+							} catch (SQLException e) {
+								// another instance inserted the row first, use the update next time
+								log.info("Could not insert pk_table row for " + entityName + ", retrying: " + e);
+								con.rollback();
+								continue;
+							}
 						}
 						con.commit();
 						return new Long(pk);
@@ -346,7 +353,9 @@ public class ERXLongPrimaryKeyFactory {
 
 	/**
 	 * Returns a new integer based PkValue for the specified entity. If the
-	 * cache is empty it is refilled again.
+	 * cache is empty it is refilled again. The next block of values is fetched
+	 * in the background once the current one is down to a quarter of
+	 * <code>increaseBy</code>.
 	 * 
 	 * @param ename,
 	 *            the entity name for which this method should return a new
@@ -354,54 +363,48 @@ public class ERXLongPrimaryKeyFactory {
 	 * 
 	 * @return a new Integer based primary key for the specified entity.
 	 */
-	private Long cachedPkValue(String ename) {
-		Stack s = cacheStack(ename);
-		if (s.empty()) {
-			synchronized (s) {
-				if (s.empty()) {
-					fillPkCache(s, ename);
-				}
+	private Long cachedPkValue(final String ename) {
+		return allocator(ename).nextKey(new ERXPrimaryKeyBlockAllocator.BlockSource<Long>() {
+			public ERXPrimaryKeyBlockAllocator.Block<Long> fetchBlock(int minimumCount) {
+				return fetchPkBlock(ename);
 			}
-		}
-		Long pkValue = (Long) s.pop();
-		return pkValue;
+		});
 	}
 
 	/**
-	 * looks in the cache hashtable if there is already an Stack for the
-	 * specified entity name. If there is no Stack a new Stack object will be
-	 * created.
+	 * looks in the cache if there is already an allocator for the specified
+	 * entity name. If there is none, a new one will be created.
 	 * 
 	 * @param ename,
 	 *            the name of the entity for which this method should return the
-	 *            Stack
-	 * @return the Stack with primary key values for the specified entity.
+	 *            allocator
+	 * @return the allocator for primary key values for the specified entity.
 	 */
-	private Stack cacheStack(String ename) {
-		Stack s = (Stack) pkCache.get(ename);
-		if (s == null) {
-			s = new Stack();
-			pkCache.put(ename, s);
+	private ERXPrimaryKeyBlockAllocator<Long> allocator(String ename) {
+		ERXPrimaryKeyBlockAllocator<Long> allocator = pkCache.get(ename);
+		if (allocator == null) {
+			allocator = new ERXPrimaryKeyBlockAllocator<Long>(increaseBy() / 4, ERXExecutorService.executorService());
+			ERXPrimaryKeyBlockAllocator<Long> existingAllocator = pkCache.putIfAbsent(ename, allocator);
+			if (existingAllocator != null) {
+				allocator = existingAllocator;
+			}
 		}
-		return s;
+		return allocator;
 	}
 
 	/**
-	 * creates x primary key values for the specified entity and updates the
-	 * database, where x is the number specified in increaseBy
+	 * reserves x primary key values for the specified entity in the database,
+	 * where x is the number specified in increaseBy
 	 * 
-	 * @param s,
-	 *            the stack into which the pk values should be inserted
 	 * @param ename,
 	 *            the entity name for which the pk values should be generated
+	 * @return the block of reserved values
 	 */
-	private void fillPkCache(Stack s, String ename) {
+	private ERXPrimaryKeyBlockAllocator.Block<Long> fetchPkBlock(String ename) {
 		Long pkValueStart = getNextPkValueForEntityIncreaseBy(ename, 10, increaseBy());
 		long value = pkValueStart.longValue();
 		log.debug("filling pkCache for " + ename + ", starting at " + value);
-		for (int i = increaseBy(); i > 0;  i--) {
-			s.push(new Long(i + value));
-		}
+		return new ERXPrimaryKeyBlockAllocator.RangeBlock(value + 1, value + Math.max(increaseBy(), 1));
 	}
 
 	/**
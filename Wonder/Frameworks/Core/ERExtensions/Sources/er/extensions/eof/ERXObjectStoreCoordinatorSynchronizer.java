@@ -72,12 +72,14 @@ public class ERXObjectStoreCoordinatorSynchronizer {
 	private ERXRemoteSynchronizer _remoteSynchronizer;
 	private SynchronizerSettings _defaultSettings;
 	private NSMutableDictionary<EOObjectStoreCoordinator, SynchronizerSettings> _settings;
+	private NSMutableArray<IChangeListener> _changeListeners;
 
 	private ERXObjectStoreCoordinatorSynchronizer() {
 		_coordinators = new NSMutableArray();
 		_queue = new ProcessChangesQueue();
 		_defaultSettings = new SynchronizerSettings(true, true, true, true);
 		_settings = new NSMutableDictionary<EOObjectStoreCoordinator, SynchronizerSettings>();
+		_changeListeners = new NSMutableArray<IChangeListener>();
 
 		_queueThread = new Thread(_queue);
 		_queueThread.setName("ERXOSCProcessChanges");
@@ -87,6 +89,7 @@ public class ERXObjectStoreCoordinatorSynchronizer {
 		NSNotificationCenter.defaultCenter().addObserver(this, new NSSelector("objectStoreWasRemoved", ERXConstant.NotificationClassArray), EOObjectStoreCoordinator.CooperatingObjectStoreWasRemovedNotification, null);
 		NSNotificationCenter.defaultCenter().addObserver(this, new NSSelector("startRemoteSynchronizer", ERXConstant.NotificationClassArray), WOApplication.ApplicationDidFinishLaunchingNotification, null);
 		NSNotificationCenter.defaultCenter().addObserver(this, new NSSelector("stopRemoteSynchronizer", ERXConstant.NotificationClassArray), ERXApplication.ApplicationWillTerminateNotification, null);
+		NSNotificationCenter.defaultCenter().addObserver(this, new NSSelector("notifyChangeListeners", ERXConstant.NotificationClassArray), EOObjectStore.ObjectsChangedInStoreNotification, null);
 	}
 
 	public void setDefaultSettings(SynchronizerSettings defaultSettings) {
@@ -110,6 +113,26 @@ public class ERXObjectStoreCoordinatorSynchronizer {
 		return settings;
 	}
 
+	/**
+	 * Registers a listener that gets the local changes of every coordinator in the thread
+	 * that saved them, also when there is only one coordinator and no remote
+	 * synchronizer. Coordinators aren't registered for synchronization by adding a
+	 * listener.
+	 * 
+	 * @param listener the listener
+	 */
+	public void addChangeListener(IChangeListener listener) {
+		synchronized (_changeListeners) {
+			_changeListeners.addObject(listener);
+		}
+	}
+
+	public void removeChangeListener(IChangeListener listener) {
+		synchronized (_changeListeners) {
+			_changeListeners.removeObject(listener);
+		}
+	}
+
 	public void initializeRemoteSynchronizer() {
 		boolean remoteSynchronizerEnabled = ERXRemoteSynchronizer.remoteSynchronizerEnabled();
 		if (remoteSynchronizerEnabled) {
@@ -185,6 +208,32 @@ public class ERXObjectStoreCoordinatorSynchronizer {
 		}
 	}
 
+	public void notifyChangeListeners(NSNotification n) {
+		if (!(n.object() instanceof EOObjectStoreCoordinator)) {
+			return;
+		}
+		NSArray<IChangeListener> changeListeners;
+		synchronized (_changeListeners) {
+			if (_changeListeners.count() == 0) {
+				return;
+			}
+			changeListeners = _changeListeners.immutableClone();
+		}
+		NSDictionary userInfo = n.userInfo();
+		if (userInfo == null || userInfo.valueForKey(ERXObjectStoreCoordinatorSynchronizer.SYNCHRONIZER_KEY) == null) {
+			// don't take the queued cache changes, publishChange sends them
+			LocalChange changes = new LocalChange((EOObjectStoreCoordinator) n.object(), userInfo, ERXObjectStoreCoordinatorSynchronizer.isProcessingRemoteNotifications(), false);
+			for (IChangeListener listener : changeListeners) {
+				try {
+					listener.addChange(changes);
+				}
+				catch (RuntimeException e) {
+					log.error("Failed to pass changes to " + listener + ".", e);
+				}
+			}
+		}
+	}
+
 	public void snapshotCacheChanged(NSNotification n) {
 		boolean processingMulticastNotifications = ERXObjectStoreCoordinatorSynchronizer.isProcessingRemoteNotifications();
 		if (_remoteSynchronizer != null && !processingMulticastNotifications) {
@@ -523,28 +572,47 @@ public class ERXObjectStoreCoordinatorSynchronizer {
 			}
 		}
 
+		/**
+		 * Applies the changes grouped by entity, so a batch of changes looks up
+		 * and locks each database context once instead of once per change. The
+		 * changes of one entity are applied in the order they were received.
+		 */
 		protected void processRemoteChange(RemoteChange remoteChange) {
+			NSMutableDictionary cacheChangesByEntityName = new NSMutableDictionary();
+			Enumeration cacheChangeEnum = remoteChange.remoteCacheChanges().objectEnumerator();
+			while (cacheChangeEnum.hasMoreElements()) {
+				ERXDatabase.CacheChange cacheChange = (ERXDatabase.CacheChange) cacheChangeEnum.nextElement();
+				String entityName = ((EOKeyGlobalID) cacheChange.gid()).entityName();
+				NSMutableArray cacheChanges = (NSMutableArray) cacheChangesByEntityName.objectForKey(entityName);
+				if (cacheChanges == null) {
+					cacheChanges = new NSMutableArray();
+					cacheChangesByEntityName.setObjectForKey(cacheChanges, entityName);
+				}
+				cacheChanges.addObject(cacheChange);
+			}
 			for (Enumeration oscs = _synchronizer.coordinators(); oscs.hasMoreElements();) {
 				EOObjectStoreCoordinator osc = (EOObjectStoreCoordinator) oscs.nextElement();
-				Enumeration cacheChangeEnum = remoteChange.remoteCacheChanges().objectEnumerator();
-				while (cacheChangeEnum.hasMoreElements()) {
-					ERXDatabase.CacheChange cacheChange = (ERXDatabase.CacheChange) cacheChangeEnum.nextElement();
-					EOKeyGlobalID gid = (EOKeyGlobalID) cacheChange.gid();
-					EODatabaseContext dbc = ERXEOAccessUtilities.databaseContextForEntityNamed(osc, gid.entityName());
+				for (Enumeration entityNames = cacheChangesByEntityName.keyEnumerator(); entityNames.hasMoreElements();) {
+					String entityName = (String) entityNames.nextElement();
+					EODatabaseContext dbc = ERXEOAccessUtilities.databaseContextForEntityNamed(osc, entityName);
 					EODatabase database = dbc.database();
 					dbc.lock();
 					try {
-						if (cacheChange instanceof ERXDatabase.SnapshotInserted) {
-							_insertCacheChangeProcessor.processCacheChange(dbc, database, cacheChange);
-						}
-						else if (cacheChange instanceof ERXDatabase.SnapshotUpdated) {
-							_updateCacheChangeProcessor.processCacheChange(dbc, database, cacheChange);
-						}
-						else if (cacheChange instanceof ERXDatabase.SnapshotDeleted) {
-							_deleteCacheChangeProcessor.processCacheChange(dbc, database, cacheChange);
-						}
-						else if (cacheChange instanceof ERXDatabase.ToManySnapshotUpdated) {
-							_toManyUpdateCacheChangeProcessor.processCacheChange(dbc, database, cacheChange);
+						Enumeration entityCacheChangeEnum = ((NSArray) cacheChangesByEntityName.objectForKey(entityName)).objectEnumerator();
+						while (entityCacheChangeEnum.hasMoreElements()) {
+							ERXDatabase.CacheChange cacheChange = (ERXDatabase.CacheChange) entityCacheChangeEnum.nextElement();
+							if (cacheChange instanceof ERXDatabase.SnapshotInserted) {
+								_insertCacheChangeProcessor.processCacheChange(dbc, database, cacheChange);
+							}
+							else if (cacheChange instanceof ERXDatabase.SnapshotUpdated) {
+								_updateCacheChangeProcessor.processCacheChange(dbc, database, cacheChange);
+							}
+							else if (cacheChange instanceof ERXDatabase.SnapshotDeleted) {
+								_deleteCacheChangeProcessor.processCacheChange(dbc, database, cacheChange);
+							}
+							else if (cacheChange instanceof ERXDatabase.ToManySnapshotUpdated) {
+								_toManyUpdateCacheChangeProcessor.processCacheChange(dbc, database, cacheChange);
+							}
 						}
 					}
 					finally {
@@ -678,6 +746,17 @@ public class ERXObjectStoreCoordinatorSynchronizer {
 		private boolean _causedByRemoteUpdate;
 
 		public LocalChange(EOObjectStoreCoordinator osc, NSDictionary userInfo, boolean causedByRemoteUpdate) {
+			this(osc, userInfo, causedByRemoteUpdate, true);
+		}
+
+		/**
+		 * @param osc the coordinator that posted the change
+		 * @param userInfo the user info of the notification
+		 * @param causedByRemoteUpdate true if the change was received from another instance
+		 * @param dequeueCacheChanges if false, the queued cache changes of the databases are
+		 *        left for the change that is sent to the other coordinators and instances
+		 */
+		public LocalChange(EOObjectStoreCoordinator osc, NSDictionary userInfo, boolean causedByRemoteUpdate, boolean dequeueCacheChanges) {
 			_coordinator = osc;
 			_deletedGIDs = (NSArray) userInfo.objectForKey(EOObjectStore.DeletedKey);
 			_updatedGIDs = (NSArray) userInfo.objectForKey(EOObjectStore.UpdatedKey);
@@ -689,7 +768,7 @@ public class ERXObjectStoreCoordinatorSynchronizer {
 			_invalidated = snapshotsGroupedByEntity(_invalidatedGIDs, _coordinator);
 			_causedByRemoteUpdate = causedByRemoteUpdate;
 			_localCacheChanges = new NSMutableArray();
-			if (!causedByRemoteUpdate) {
+			if (!causedByRemoteUpdate && dequeueCacheChanges) {
 				Enumeration cosEnum = osc.cooperatingObjectStores().objectEnumerator();
 				while (cosEnum.hasMoreElements()) {
 					EOCooperatingObjectStore cos = (EOCooperatingObjectStore) cosEnum.nextElement();
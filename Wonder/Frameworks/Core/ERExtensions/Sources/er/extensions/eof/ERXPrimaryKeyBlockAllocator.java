@@ -0,0 +1,284 @@
+package er.extensions.eof;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hands out primary keys for one entity from blocks that are fetched from the
+ * database ahead of time (hi/lo style). Taking keys from the current block is
+ * lock-free; only the thread that finds the block exhausted takes this
+ * allocator's lock to install the next one, so different entities never wait
+ * on each other. Blocks are only fetched while holding the lock, so a refill
+ * and a prefetch for the same entity never run at the same time; a refill
+ * waits for a prefetch in flight and then uses its block.
+ * <p>
+ * When the current block drops to the low watermark, the next block is fetched
+ * before it is needed: on the given executor if there is one, otherwise by the
+ * thread that crossed the watermark, after it has taken its keys. Either way,
+ * the other threads keep taking keys from the current block in the meantime.
+ * <p>
+ * Used by {@link ERXLongPrimaryKeyFactory} and by
+ * {@link er.extensions.jdbc.ERXJDBCAdaptor.Channel#primaryKeysForNewRowsWithEntity(int, com.webobjects.eoaccess.EOEntity)}.
+ *
+ * @param <T> the type of the keys
+ */
+public class ERXPrimaryKeyBlockAllocator<T> {
+	private static final Logger log = Logger.getLogger(ERXPrimaryKeyBlockAllocator.class);
+
+	/**
+	 * Fetches new blocks of keys.
+	 */
+	public static interface BlockSource<T> {
+		/**
+		 * Returns a new block with at least the given number of keys.
+		 *
+		 * @param minimumCount
+		 *            the number of keys that are needed right now, 0 for a
+		 *            prefetch
+		 * @return a new block, must not be null or empty
+		 */
+		public ERXPrimaryKeyBlockAllocator.Block<T> fetchBlock(int minimumCount);
+	}
+
+	/**
+	 * A block of keys that can be taken from concurrently.
+	 */
+	public static abstract class Block<T> {
+		/**
+		 * Takes up to count keys from this block and adds them to the list.
+		 *
+		 * @return the number of keys taken
+		 */
+		public abstract int take(int count, List<T> keys);
+
+		/**
+		 * Returns the number of keys that are left.
+		 */
+		public abstract int remaining();
+	}
+
+	/**
+	 * A block of consecutive long values.
+	 */
+	public static class RangeBlock extends Block<Long> {
+		private final AtomicLong _next;
+		private final long _last;
+
+		/**
+		 * @param first
+		 *            the first value of the block
+		 * @param last
+		 *            the last value of the block (inclusive)
+		 */
+		public RangeBlock(long first, long last) {
+			_next = new AtomicLong(first);
+			_last = last;
+		}
+
+		@Override
+		public int take(int count, List<Long> keys) {
+			if (_next.get() > _last) {
+				return 0;
+			}
+			long first = _next.getAndAdd(count);
+			long last = Math.min(first + count - 1, _last);
+			for (long value = first; value <= last; value++) {
+				keys.add(Long.valueOf(value));
+			}
+			return last < first ? 0 : (int) (last - first + 1);
+		}
+
+		@Override
+		public int remaining() {
+			long remaining = _last - _next.get() + 1;
+			return remaining < 0 ? 0 : (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * A block of arbitrary keys, e.g. the primary key dictionaries returned by
+	 * a plugin.
+	 */
+	public static class ArrayBlock<T> extends Block<T> {
+		private final List<T> _keys;
+		private final AtomicInteger _next = new AtomicInteger();
+
+		public ArrayBlock(List<T> keys) {
+			_keys = keys;
+		}
+
+		@Override
+		public int take(int count, List<T> keys) {
+			int size = _keys.size();
+			if (_next.get() >= size) {
+				return 0;
+			}
+			int first = _next.getAndAdd(count);
+			int last = Math.min(first + count, size);
+			for (int i = first; i < last; i++) {
+				keys.add(_keys.get(i));
+			}
+			return last < first ? 0 : last - first;
+		}
+
+		@Override
+		public int remaining() {
+			int remaining = _keys.size() - _next.get();
+			return remaining < 0 ? 0 : remaining;
+		}
+	}
+
+	private final int _watermark;
+	private final Executor _prefetchExecutor;
+	private volatile Block<T> _current;
+	private final AtomicReference<Block<T>> _prefetched = new AtomicReference<Block<T>>();
+	private final AtomicBoolean _prefetching = new AtomicBoolean();
+	private final ReentrantLock _refillLock = new ReentrantLock();
+
+	/**
+	 * Creates a new allocator.
+	 *
+	 * @param watermark
+	 *            the number of keys left in the current block at which the
+	 *            next block is fetched, 0 to only fetch when it is exhausted
+	 * @param prefetchExecutor
+	 *            the executor that prefetches blocks, or null to prefetch in
+	 *            the thread that crosses the watermark
+	 */
+	public ERXPrimaryKeyBlockAllocator(int watermark, Executor prefetchExecutor) {
+		_watermark = watermark;
+		_prefetchExecutor = prefetchExecutor;
+	}
+
+	/**
+	 * Returns one new key.
+	 *
+	 * @param source
+	 *            fetches a new block if needed
+	 * @return a new key
+	 */
+	public T nextKey(BlockSource<T> source) {
+		return nextKeys(1, source).get(0);
+	}
+
+	/**
+	 * Returns the given number of new keys.
+	 *
+	 * @param count
+	 *            the number of keys
+	 * @param source
+	 *            fetches new blocks if needed
+	 * @return the new keys
+	 */
+	public List<T> nextKeys(int count, BlockSource<T> source) {
+		List<T> keys = new ArrayList<T>(count);
+		while (keys.size() < count) {
+			Block<T> block = _current;
+			if (block != null) {
+				block.take(count - keys.size(), keys);
+				if (keys.size() == count) {
+					if (_watermark > 0 && block.remaining() <= _watermark) {
+						prefetch(source);
+					}
+					break;
+				}
+			}
+			refill(block, count - keys.size(), source);
+		}
+		return keys;
+	}
+
+	/**
+	 * Installs the next block unless another thread already replaced the
+	 * exhausted one.
+	 */
+	private void refill(Block<T> exhausted, int minimumCount, BlockSource<T> source) {
+		_refillLock.lock();
+		try {
+			if (_current == exhausted) {
+				Block<T> next = _prefetched.getAndSet(null);
+				if (next == null || next.remaining() == 0) {
+					next = source.fetchBlock(minimumCount);
+					if (next == null || next.remaining() == 0) {
+						throw new IllegalStateException(source + " returned " + (next == null ? "no block" : "an empty block") + " when " + minimumCount + " keys were needed.");
+					}
+				}
+				_current = next;
+			}
+		}
+		finally {
+			_refillLock.unlock();
+		}
+	}
+
+	private void prefetch(final BlockSource<T> source) {
+		if (_prefetched.get() == null && _prefetching.compareAndSet(false, true)) {
+			Runnable task = new Runnable() {
+				public void run() {
+					_refillLock.lock();
+					try {
+						if (_prefetched.get() == null) {
+							Block<T> next = source.fetchBlock(0);
+							if (next == null || next.remaining() == 0) {
+								// the refill fetches again and reports the problem
+								log.warn(source + " returned " + (next == null ? "no block" : "an empty block") + " for a prefetch.");
+							}
+							else {
+								_prefetched.set(next);
+							}
+						}
+					}
+					catch (RuntimeException e) {
+						// the next refill will fetch synchronously and report the problem
+						log.warn("Could not prefetch primary keys: " + e, e);
+					}
+					finally {
+						_refillLock.unlock();
+						_prefetching.set(false);
+					}
+				}
+			};
+			if (_prefetchExecutor != null) {
+				try {
+					_prefetchExecutor.execute(task);
+				}
+				catch (RuntimeException e) {
+					_prefetching.set(false);
+					log.warn("Could not schedule primary key prefetch: " + e);
+				}
+			}
+			else {
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * Drops the current and the prefetched block. The keys in them are lost.
+	 */
+	public void reset() {
+		_refillLock.lock();
+		try {
+			_current = null;
+			_prefetched.set(null);
+		}
+		finally {
+			_refillLock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		Block<T> current = _current;
+		Block<T> prefetched = _prefetched.get();
+		return "<" + getClass().getSimpleName() + " remaining=" + (current != null ? current.remaining() : 0) + " prefetched=" + (prefetched != null ? prefetched.remaining() : 0) + ">";
+	}
+}
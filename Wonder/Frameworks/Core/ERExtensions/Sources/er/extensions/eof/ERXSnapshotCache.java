@@ -0,0 +1,368 @@
+package er.extensions.eof;
+
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eoaccess.EOAccessFaultHandler;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOFaultHandler;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOKeyGlobalID;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.extensions.eof.ERXObjectStoreCoordinatorSynchronizer.Change;
+import er.extensions.eof.ERXObjectStoreCoordinatorSynchronizer.LocalChange;
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Second level snapshot cache that is shared by several instances. When a fault for an
+ * object fires and its snapshot isn't in the <code>EODatabase</code>, the
+ * {@link ERXDatabaseContextDelegate} asks this cache for the snapshot before the
+ * row is fetched, and the snapshots of fetched objects are added to the cache unless
+ * it already has one or the entity was changed since the row was fetched.
+ * Snapshots of objects that are saved are replaced, and those of deleted or invalidated
+ * objects removed, as the changes are published by the
+ * {@link ERXObjectStoreCoordinatorSynchronizer}.
+ * <p>
+ * Only entities that are listed are cached, the global IDs (and so the names) are those
+ * of the root entities. Subclasses provide the storage, for example memcached in
+ * ERCaching; install the cache with {@link #install()}.
+ *
+ * @property er.extensions.ERXSnapshotCache.entities comma-separated list of the entities to cache
+ * @property er.extensions.ERXSnapshotCache.ttl the time in seconds a snapshot is kept, defaults to 300
+ * @property er.extensions.ERXSnapshotCache.ttl.&lt;EntityName&gt; the time in seconds a snapshot of the entity is kept
+ * @property er.extensions.ERXSnapshotCache.keyPrefix prefix for the cache keys, defaults to ERXSnapshotCache.
+ */
+public abstract class ERXSnapshotCache implements ERXObjectStoreCoordinatorSynchronizer.IChangeListener {
+
+	private static final Logger log = Logger.getLogger(ERXSnapshotCache.class);
+
+	private final NSMutableDictionary<String, Long> _ttls = new NSMutableDictionary<String, Long>();
+
+	private final NSMutableDictionary<String, Long> _changeTimestamps = new NSMutableDictionary<String, Long>();
+
+	private final String _keyPrefix;
+
+	private final AtomicLong _hits = new AtomicLong();
+
+	private final AtomicLong _misses = new AtomicLong();
+
+	public ERXSnapshotCache() {
+		long ttl = ERXProperties.longForKeyWithDefault("er.extensions.ERXSnapshotCache.ttl", 300);
+		for (String entityName : ERXProperties.componentsSeparatedByStringWithDefault("er.extensions.ERXSnapshotCache.entities", ",", NSArray.EmptyArray)) {
+			entityName = entityName.trim();
+			if (entityName.length() > 0) {
+				setTimeToLiveForEntityNamed(ERXProperties.longForKeyWithDefault("er.extensions.ERXSnapshotCache.ttl." + entityName, ttl), entityName);
+			}
+		}
+		_keyPrefix = ERXProperties.stringForKeyWithDefault("er.extensions.ERXSnapshotCache.keyPrefix", "ERXSnapshotCache.");
+	}
+
+	/**
+	 * Sets this cache on the default {@link ERXDatabaseContextDelegate} and registers it
+	 * for the changes of all object store coordinators.
+	 */
+	public void install() {
+		ERXDatabaseContextDelegate.defaultDelegate().setSnapshotCache(this);
+		ERXObjectStoreCoordinatorSynchronizer.synchronizer().addChangeListener(this);
+	}
+
+	/**
+	 * Caches the snapshots of the entity, or stops caching them.
+	 *
+	 * @param ttl the time in seconds a snapshot is kept, 0 to not cache the entity
+	 * @param entityName the name of the root entity
+	 */
+	public void setTimeToLiveForEntityNamed(long ttl, String entityName) {
+		synchronized (_ttls) {
+			if (ttl > 0) {
+				_ttls.setObjectForKey(Long.valueOf(ttl), entityName);
+			}
+			else {
+				_ttls.removeObjectForKey(entityName);
+			}
+		}
+	}
+
+	/**
+	 * @param entityName the name of the root entity
+	 * @return the time in seconds a snapshot of the entity is kept, 0 if it isn't cached
+	 */
+	public long timeToLiveForEntityNamed(String entityName) {
+		Long ttl;
+		synchronized (_ttls) {
+			ttl = _ttls.objectForKey(entityName);
+		}
+		return ttl != null ? ttl.longValue() : 0;
+	}
+
+	protected String keyForGlobalID(EOKeyGlobalID gid) {
+		return _keyPrefix + ERXKeyGlobalID.globalIDForGID(gid).asString();
+	}
+
+	/**
+	 * Returns the cached snapshot for the global ID.
+	 *
+	 * @param gid the global ID
+	 * @return the snapshot or null if it isn't cached
+	 */
+	public NSDictionary snapshotForGlobalID(EOKeyGlobalID gid) {
+		if (timeToLiveForEntityNamed(gid.entityName()) <= 0) {
+			return null;
+		}
+		NSDictionary snapshot = null;
+		try {
+			snapshot = (NSDictionary) objectForKey(keyForGlobalID(gid));
+		}
+		catch (RuntimeException e) {
+			log.warn("Unable to read the snapshot for " + gid + ": " + e);
+		}
+		if (snapshot != null) {
+			_hits.incrementAndGet();
+		}
+		else {
+			_misses.incrementAndGet();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Caches the snapshot for the global ID if its entity is cached.
+	 *
+	 * @param snapshot the snapshot
+	 * @param gid the global ID
+	 */
+	public void setSnapshotForGlobalID(NSDictionary snapshot, EOKeyGlobalID gid) {
+		long ttl = timeToLiveForEntityNamed(gid.entityName());
+		if (ttl > 0) {
+			try {
+				setObjectForKey(snapshot, keyForGlobalID(gid), ttl);
+			}
+			catch (RuntimeException e) {
+				log.warn("Unable to write the snapshot for " + gid + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Caches the snapshot for the global ID if its entity is cached and the cache doesn't
+	 * have a snapshot for it yet, so a snapshot that was replaced by a save isn't
+	 * overwritten.
+	 *
+	 * @param snapshot the snapshot
+	 * @param gid the global ID
+	 */
+	public void addSnapshotForGlobalID(NSDictionary snapshot, EOKeyGlobalID gid) {
+		long ttl = timeToLiveForEntityNamed(gid.entityName());
+		if (ttl > 0) {
+			try {
+				addObjectForKey(snapshot, keyForGlobalID(gid), ttl);
+			}
+			catch (RuntimeException e) {
+				log.warn("Unable to add the snapshot for " + gid + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Removes the snapshot for the global ID from the cache.
+	 *
+	 * @param gid the global ID
+	 */
+	public void removeSnapshotForGlobalID(EOKeyGlobalID gid) {
+		if (timeToLiveForEntityNamed(gid.entityName()) > 0) {
+			try {
+				removeObjectForKey(keyForGlobalID(gid));
+			}
+			catch (RuntimeException e) {
+				log.warn("Unable to remove the snapshot for " + gid + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Initializes a fault from the cached snapshot if the database context doesn't have
+	 * a snapshot for it.
+	 *
+	 * @param dbc the database context that is about to fetch the fault
+	 * @param eo the fault
+	 * @return true if the fault was initialized and doesn't need to be fetched
+	 */
+	public boolean initializeFault(EODatabaseContext dbc, EOEnterpriseObject eo) {
+		EOFaultHandler handler = EOFaultHandler.handlerForFault(eo);
+		if (!(handler instanceof EOAccessFaultHandler)) {
+			return false;
+		}
+		EOGlobalID gid = ((EOAccessFaultHandler) handler).globalID();
+		EOEditingContext ec = ((EOAccessFaultHandler) handler).editingContext();
+		if (!(gid instanceof EOKeyGlobalID) || dbc.database().snapshotForGlobalID(gid) != null) {
+			return false;
+		}
+		NSDictionary snapshot = snapshotForGlobalID((EOKeyGlobalID) gid);
+		if (snapshot == null) {
+			return false;
+		}
+		dbc.database().recordSnapshotForGlobalID(snapshot, gid);
+		EOFaultHandler.clearFault(eo);
+		dbc.initializeObject(eo, gid, ec);
+		return true;
+	}
+
+	/**
+	 * Adds the snapshots of fetched objects to the cache. Snapshots that were recorded
+	 * before the last change to their entity are skipped, as the row may have been read
+	 * before a snapshot was removed from the cache.
+	 *
+	 * @param dbc the database context that fetched the objects
+	 * @param eos the fetched objects
+	 * @param ec the editing context the objects were fetched into
+	 */
+	public void objectsWereFetched(EODatabaseContext dbc, NSArray eos, EOEditingContext ec) {
+		for (Enumeration e = eos.objectEnumerator(); e.hasMoreElements();) {
+			Object object = e.nextElement();
+			if (object instanceof EOEnterpriseObject && !EOFaultHandler.isFault(object)) {
+				EOGlobalID gid = ec.globalIDForObject((EOEnterpriseObject) object);
+				if (gid instanceof EOKeyGlobalID && timeToLiveForEntityNamed(((EOKeyGlobalID) gid).entityName()) > 0) {
+					NSDictionary snapshot = dbc.database().snapshotForGlobalID(gid);
+					if (snapshot != null && dbc.database().timestampForGlobalID(gid) > changeTimestampForEntityNamed(((EOKeyGlobalID) gid).entityName())) {
+						addSnapshotForGlobalID(snapshot, (EOKeyGlobalID) gid);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the snapshots of updated objects and removes those of deleted and
+	 * invalidated objects. Changes that were received from other instances are only
+	 * recorded, they were applied to the cache by the instance that made them.
+	 */
+	public void addChange(Change change) {
+		if (!(change instanceof LocalChange)) {
+			return;
+		}
+		LocalChange localChange = (LocalChange) change;
+		long timestamp = System.currentTimeMillis();
+		recordChangeTimestamp(localChange.updatedGIDs(), timestamp);
+		recordChangeTimestamp(localChange.deletedGIDs(), timestamp);
+		recordChangeTimestamp(localChange.invalidatedGIDs(), timestamp);
+		if (localChange.causedByRemoteUpdate()) {
+			return;
+		}
+		NSArray updatedGIDs = localChange.updatedGIDs();
+		if (updatedGIDs != null) {
+			for (Enumeration e = updatedGIDs.objectEnumerator(); e.hasMoreElements();) {
+				Object gid = e.nextElement();
+				if (gid instanceof EOKeyGlobalID) {
+					String entityName = ((EOKeyGlobalID) gid).entityName();
+					if (timeToLiveForEntityNamed(entityName) > 0) {
+						EODatabaseContext dbc = ERXEOAccessUtilities.databaseContextForEntityNamed(localChange.coordinator(), entityName);
+						NSDictionary snapshot = dbc.snapshotForGlobalID((EOGlobalID) gid);
+						if (snapshot != null) {
+							setSnapshotForGlobalID(snapshot, (EOKeyGlobalID) gid);
+						}
+						else {
+							removeSnapshotForGlobalID((EOKeyGlobalID) gid);
+						}
+					}
+				}
+			}
+		}
+		removeSnapshotsForGlobalIDs(localChange.deletedGIDs());
+		removeSnapshotsForGlobalIDs(localChange.invalidatedGIDs());
+	}
+
+	private void recordChangeTimestamp(NSArray gids, long timestamp) {
+		if (gids != null) {
+			for (Enumeration e = gids.objectEnumerator(); e.hasMoreElements();) {
+				Object gid = e.nextElement();
+				if (gid instanceof EOKeyGlobalID) {
+					String entityName = ((EOKeyGlobalID) gid).entityName();
+					if (timeToLiveForEntityNamed(entityName) > 0) {
+						synchronized (_changeTimestamps) {
+							_changeTimestamps.setObjectForKey(Long.valueOf(timestamp), entityName);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param entityName the name of the root entity
+	 * @return the time in milliseconds objects of the entity were last changed, 0 if they weren't
+	 */
+	protected long changeTimestampForEntityNamed(String entityName) {
+		Long timestamp;
+		synchronized (_changeTimestamps) {
+			timestamp = _changeTimestamps.objectForKey(entityName);
+		}
+		return timestamp != null ? timestamp.longValue() : 0;
+	}
+
+	private void removeSnapshotsForGlobalIDs(NSArray gids) {
+		if (gids != null) {
+			for (Enumeration e = gids.objectEnumerator(); e.hasMoreElements();) {
+				Object gid = e.nextElement();
+				if (gid instanceof EOKeyGlobalID) {
+					removeSnapshotForGlobalID((EOKeyGlobalID) gid);
+				}
+			}
+		}
+	}
+
+	/** @return how often a snapshot was found in the cache */
+	public long hits() {
+		return _hits.get();
+	}
+
+	/** @return how often a snapshot of a cached entity wasn't found in the cache */
+	public long misses() {
+		return _misses.get();
+	}
+
+	/**
+	 * Returns the object stored for the key.
+	 *
+	 * @param key the key
+	 * @return the object or null
+	 */
+	protected abstract Object objectForKey(String key);
+
+	/**
+	 * Stores the object for the key.
+	 *
+	 * @param object the object
+	 * @param key the key
+	 * @param ttl the time in seconds to keep the object
+	 */
+	protected abstract void setObjectForKey(Object object, String key, long ttl);
+
+	/**
+	 * Stores the object for the key unless an object is stored for it. The default
+	 * implementation isn't atomic, subclasses should override it with the add operation
+	 * of their store.
+	 *
+	 * @param object the object
+	 * @param key the key
+	 * @param ttl the time in seconds to keep the object
+	 */
+	protected void addObjectForKey(Object object, String key, long ttl) {
+		if (objectForKey(key) == null) {
+			setObjectForKey(object, key, ttl);
+		}
+	}
+
+	/**
+	 * Removes the object for the key.
+	 *
+	 * @param key the key
+	 */
+	protected abstract void removeObjectForKey(String key);
+}
@@ -7,6 +7,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -24,6 +28,186 @@ public class ERXCompressionUtilities {
 
 	public static final Logger log = Logger.getLogger(ERXCompressionUtilities.class);
 
+	private static final int POOL_SIZE = ERXProperties.intForKeyWithDefault("er.extensions.ERXCompressionUtilities.poolSize", 32);
+	private static final int BUFFER_SIZE = ERXProperties.intForKeyWithDefault("er.extensions.ERXCompressionUtilities.bufferSize", 16 * 1024);
+
+	private static final ConcurrentLinkedQueue<Deflater> _deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private static final AtomicInteger _pooledDeflaters = new AtomicInteger();
+	private static final ConcurrentLinkedQueue<byte[]> _buffers = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger _pooledBuffers = new AtomicInteger();
+
+	/**
+	 * Returns a raw (nowrap) {@link Deflater} from the pool, creating a new one
+	 * if the pool is empty. Pass it to {@link #checkInDeflater(Deflater)} when
+	 * you are done.
+	 * 
+	 * @return a reset deflater
+	 */
+	public static Deflater checkOutDeflater() {
+		Deflater deflater = _deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+		else {
+			_pooledDeflaters.decrementAndGet();
+		}
+		return deflater;
+	}
+
+	/**
+	 * Resets the given deflater and returns it to the pool. If the pool is
+	 * already full (<code>er.extensions.ERXCompressionUtilities.poolSize</code>,
+	 * default 32), the deflater's native memory is released instead.
+	 * 
+	 * @param deflater the deflater to return
+	 */
+	public static void checkInDeflater(Deflater deflater) {
+		if (_pooledDeflaters.incrementAndGet() <= POOL_SIZE) {
+			deflater.reset();
+			_deflaters.offer(deflater);
+		}
+		else {
+			_pooledDeflaters.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Returns a byte buffer of
+	 * <code>er.extensions.ERXCompressionUtilities.bufferSize</code> bytes
+	 * (default 16k) from the pool.
+	 * 
+	 * @return a buffer
+	 */
+	public static byte[] checkOutBuffer() {
+		byte[] buffer = _buffers.poll();
+		if (buffer == null) {
+			buffer = new byte[BUFFER_SIZE];
+		}
+		else {
+			_pooledBuffers.decrementAndGet();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #checkOutBuffer()} to the pool.
+	 * 
+	 * @param buffer the buffer to return
+	 */
+	public static void checkInBuffer(byte[] buffer) {
+		if (buffer.length == BUFFER_SIZE && _pooledBuffers.incrementAndGet() <= POOL_SIZE) {
+			_buffers.offer(buffer);
+		}
+		else if (buffer.length == BUFFER_SIZE) {
+			_pooledBuffers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns a stream that gzips the given input stream while it is being
+	 * read, using a pooled deflater and buffer.
+	 * 
+	 * @param input the stream to compress
+	 * @return the compressing stream
+	 */
+	public static ERXGZIPCompressingInputStream gzipInputStream(InputStream input) {
+		return new ERXGZIPCompressingInputStream(input);
+	}
+
+	/**
+	 * Returns an NSData containing the gzipped version of the given bytes,
+	 * using a pooled deflater and without copying the result.
+	 * 
+	 * @param input the bytes to compress
+	 * @param offset the offset in input
+	 * @param length the number of bytes to compress
+	 * @return gzipped NSData
+	 */
+	public static NSData gzipByteArrayAsNSDataWithPooledDeflater(byte[] input, int offset, int length) {
+		try {
+			ERXRefByteArrayOutputStream bos = new ERXRefByteArrayOutputStream(Math.max(64, length / 2));
+			ERXGZIPCompressingInputStream in = new ERXGZIPCompressingInputStream(new ByteArrayInputStream(input, offset, length));
+			try {
+				ERXFileUtilities.writeInputStreamToOutputStream(in, false, bos, false);
+			}
+			finally {
+				in.close();
+			}
+			return bos.toNSData();
+		}
+		catch (IOException e) {
+			log.error("Failed to gzip byte array.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Counters for response compression, see
+	 * <code>ERXApplication.dispatchRequestImmediately</code>.
+	 */
+	public static class Statistics {
+		private static final AtomicLong _compressedCount = new AtomicLong();
+		private static final AtomicLong _skippedCount = new AtomicLong();
+		private static final AtomicLong _bytesIn = new AtomicLong();
+		private static final AtomicLong _bytesOut = new AtomicLong();
+		private static final AtomicLong _time = new AtomicLong();
+
+		/**
+		 * Records a compressed response.
+		 * 
+		 * @param bytesIn uncompressed size
+		 * @param bytesOut compressed size
+		 * @param time time spent compressing in ms
+		 */
+		public static void addCompressed(long bytesIn, long bytesOut, long time) {
+			_compressedCount.incrementAndGet();
+			_bytesIn.addAndGet(bytesIn);
+			_bytesOut.addAndGet(bytesOut);
+			_time.addAndGet(time);
+		}
+
+		/**
+		 * Records a response that was not compressed because it was too small.
+		 */
+		public static void addSkipped() {
+			_skippedCount.incrementAndGet();
+		}
+
+		public static long compressedCount() {
+			return _compressedCount.get();
+		}
+
+		public static long skippedCount() {
+			return _skippedCount.get();
+		}
+
+		public static long bytesIn() {
+			return _bytesIn.get();
+		}
+
+		public static long bytesOut() {
+			return _bytesOut.get();
+		}
+
+		public static long time() {
+			return _time.get();
+		}
+
+		/**
+		 * Returns compressed size / uncompressed size over all recorded
+		 * responses, or 1 if nothing was compressed yet.
+		 */
+		public static double compressionRatio() {
+			long in = _bytesIn.get();
+			return in == 0 ? 1.0 : (double) _bytesOut.get() / in;
+		}
+
+		public static String description() {
+			return "compressed=" + compressedCount() + ", skipped=" + skippedCount() + ", bytesIn=" + bytesIn() + ", bytesOut=" + bytesOut() + ", ratio=" + compressionRatio() + ", time=" + time() + "ms";
+		}
+	}
+
 	/**
 	 * Returns an NSData containing the gzipped version of the given input stream.
 	 * 
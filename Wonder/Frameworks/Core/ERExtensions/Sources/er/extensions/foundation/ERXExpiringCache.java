@@ -1,15 +1,27 @@
 package er.extensions.foundation;
 
 import java.lang.ref.WeakReference;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
 
+import er.extensions.statistics.ERXStats;
+
 /**
  * Cache that expires its entries based on time or version changes. Version can
  * be any object that represents the current state of a cached value. When
@@ -23,20 +35,37 @@ import com.webobjects.foundation.NSMutableDictionary;
  * startBackgroundExpiration(), or manually call removeStaleEntries(), unexpired
  * entries will remain in the cache for the lifetime of the cache.
  * 
+ * Lookups don't lock: entries are kept in a ConcurrentHashMap. Time-expiring
+ * entries are also filed in a timer wheel by the second they expire in, so
+ * removeStaleEntries() only looks at the entries that expired since the last
+ * cleanup instead of scanning the whole cache. A cache can optionally be
+ * bounded with setMaxSize(), in which case the least recently (or least
+ * frequently) used entries are evicted once it grows too large. Hits, misses,
+ * evictions and expirations are counted; if the cache has a name, hits and
+ * misses are also recorded in ERXStats under the "Cache" group for threads
+ * that track statistics.
+ * 
  * @author ak
  * @author mschrag
  */
 public class ERXExpiringCache<K, V> {
 	public static class Entry<V> {
+		private static final AtomicIntegerFieldUpdater<Entry> REMOVED = AtomicIntegerFieldUpdater.newUpdater(Entry.class, "_removed");
+
 		private long _expiration;
 		private Object _versionKey;
 		private V _object;
-		private boolean _stale;
+		private volatile boolean _stale;
+		private volatile long _lastAccessTime;
+		private volatile int _accessCount;
+		private volatile int _removed;
+		private Object _key;
 
 		public Entry(V o, long expiration, Object version) {
 			_expiration = expiration;
 			_versionKey = version;
 			_object = o;
+			_lastAccessTime = System.currentTimeMillis();
 		}
 
 		protected boolean isStale(long currentTime, Object currentVersionKey) {
@@ -57,16 +86,42 @@ public class ERXExpiringCache<K, V> {
 			return _stale;
 		}
 
+		/**
+		 * Records a hit for LRU/LFU eviction. The access count is not updated
+		 * atomically, it only needs to be roughly right.
+		 */
+		protected void touch(long currentTime) {
+			_lastAccessTime = currentTime;
+			_accessCount++;
+		}
+
 		public V object() {
 			return _object;
 		}
 
+		/**
+		 * Marks the entry as removed. Returns false if it already was.
+		 */
+		protected boolean markRemoved() {
+			return REMOVED.compareAndSet(this, 0, 1);
+		}
+
 		@Override
 		public String toString() {
 			return super.toString() + " { " + "expiration = " + (_expiration == ERXExpiringCache.NO_TIMEOUT ? "NO_TIMEOUT" : new java.util.Date(_expiration)) + ", version = " + (_versionKey == ERXExpiringCache.NO_VERSION ? "NO_VERSION" : _versionKey) + ", object = " + _object + " }";
 		}
 	}
 
+	/**
+	 * The order in which entries are evicted from a cache that has a max size.
+	 */
+	public static enum EvictionPolicy {
+		/** Evict the entries that haven't been read for the longest time. */
+		LRU,
+		/** Evict the entries that have been read the fewest times. */
+		LFU
+	}
+
 	/**
 	 * Designates that no timeout was specified.
 	 */
@@ -77,15 +132,44 @@ public class ERXExpiringCache<K, V> {
 	 */
 	public static final Object NO_VERSION = new Object();
 
+	/**
+	 * The width of a timer wheel bucket in milliseconds.
+	 */
+	private static final long WHEEL_TICK = 1000L;
+
+	/**
+	 * The maximum number of timer wheel buckets. Entries that expire further
+	 * out than this many ticks are looked at (and put back) once per turn.
+	 */
+	private static final int MAX_WHEEL_SIZE = 512;
+
+	/**
+	 * ak: add 10 seconds as a safety margin when reaping, we need this because
+	 * the entry could be requested when we just checked and noticed it is ok
+	 */
+	private static final long REAPER_SAFETY_MARGIN = 10L * 1000;
+
 	/**
 	 * The reaper for ERXExpiringCaches.
 	 */
 	private static ERXExpiringCache.GrimReaper _reaper;
 
-	private NSMutableDictionary<K, ERXExpiringCache.Entry<V>> _backingDictionary;
+	private final ConcurrentHashMap<K, ERXExpiringCache.Entry<V>> _backingMap;
+	private final AtomicReferenceArray<ConcurrentLinkedQueue<ERXExpiringCache.Entry<V>>> _wheel;
+	private final int _wheelMask;
 	private long _expiryTime;
 	private long _cleanupPause;
-	private long _lastCleanupTime;
+	private volatile long _lastCleanupTime;
+	private volatile long _lastReapedTick;
+	private final ReentrantLock _cleanupLock;
+	private final ReentrantLock _evictionLock;
+	private volatile int _maxSize;
+	private volatile EvictionPolicy _evictionPolicy;
+	private volatile String _name;
+	private final AtomicLong _hits;
+	private final AtomicLong _misses;
+	private final AtomicLong _evictions;
+	private final AtomicLong _expirations;
 
 	/**
 	 * Constructs an ERXExpiringCache with a 60 second expiration.
@@ -120,16 +204,97 @@ public class ERXExpiringCache<K, V> {
 			_cleanupPause = 60 * 1000L;
 		}
 		_lastCleanupTime = 0L;
-		_backingDictionary = new NSMutableDictionary<K, Entry<V>>();
+		_backingMap = new ConcurrentHashMap<K, Entry<V>>();
+
+		// size the wheel so that the default expiration fits into one turn,
+		// the buckets themselves are created when they are first needed
+		long ticks = (_expiryTime == ERXExpiringCache.NO_TIMEOUT ? 60 * 1000L : _expiryTime + ERXExpiringCache.REAPER_SAFETY_MARGIN) / ERXExpiringCache.WHEEL_TICK + 1;
+		int wheelSize = 16;
+		while (wheelSize < ticks && wheelSize < ERXExpiringCache.MAX_WHEEL_SIZE) {
+			wheelSize <<= 1;
+		}
+		_wheel = new AtomicReferenceArray<ConcurrentLinkedQueue<Entry<V>>>(wheelSize);
+		_wheelMask = wheelSize - 1;
+		_lastReapedTick = System.currentTimeMillis() / ERXExpiringCache.WHEEL_TICK - 1;
+
+		_cleanupLock = new ReentrantLock();
+		_evictionLock = new ReentrantLock();
+		_evictionPolicy = EvictionPolicy.LRU;
+		_hits = new AtomicLong();
+		_misses = new AtomicLong();
+		_evictions = new AtomicLong();
+		_expirations = new AtomicLong();
+	}
+
+	/**
+	 * Sets the name of this cache. Named caches record their hits and misses
+	 * in ERXStats (group "Cache") for threads that are tracking statistics.
+	 * 
+	 * @param name
+	 *            the name of the cache or null
+	 */
+	public void setName(String name) {
+		_name = name;
+	}
+
+	/**
+	 * Returns the name of this cache.
+	 */
+	public String name() {
+		return _name;
+	}
+
+	/**
+	 * Limits the number of entries in this cache, evicting least recently
+	 * used entries when it grows larger.
+	 * 
+	 * @param maxSize
+	 *            the maximum number of entries or 0 for no limit
+	 */
+	public void setMaxSize(int maxSize) {
+		setMaxSize(maxSize, EvictionPolicy.LRU);
+	}
+
+	/**
+	 * Limits the number of entries in this cache. Once the limit is exceeded,
+	 * about a tenth of the entries are evicted in one go, so the cost of
+	 * picking them is spread over the following inserts.
+	 * 
+	 * @param maxSize
+	 *            the maximum number of entries or 0 for no limit
+	 * @param evictionPolicy
+	 *            which entries to evict first
+	 */
+	public void setMaxSize(int maxSize, EvictionPolicy evictionPolicy) {
+		_evictionPolicy = evictionPolicy;
+		_maxSize = maxSize;
+		if (maxSize > 0 && _backingMap.size() > maxSize) {
+			evictEntries();
+		}
+	}
+
+	/**
+	 * Returns the maximum number of entries or 0 if this cache is not
+	 * limited.
+	 */
+	public int maxSize() {
+		return _maxSize;
+	}
+
+	/**
+	 * Returns the number of entries in this cache, including stale entries
+	 * that haven't been removed yet.
+	 */
+	public int count() {
+		return _backingMap.size();
 	}
 
 	/**
 	 * Removes all the objects in this cache.
 	 */
-	public synchronized void removeAllObjects() {
-		for (Iterator<K> iterator = _backingDictionary.allKeys().iterator(); iterator.hasNext();) {
-			K key = iterator.next();
-			removeEntryForKey(entryForKey(key), key);
+	public void removeAllObjects() {
+		for (Map.Entry<K, Entry<V>> mapEntry : _backingMap.entrySet()) {
+			removeEntry(mapEntry.getValue(), mapEntry.getKey());
 		}
 	}
 
@@ -146,7 +311,7 @@ public class ERXExpiringCache<K, V> {
 	 * @param key
 	 *            the lookup key
 	 */
-	public synchronized void setObjectForKey(V object, K key) {
+	public void setObjectForKey(V object, K key) {
 		setObjectForKeyWithVersion(object, key, ERXExpiringCache.NO_VERSION);
 	}
 
@@ -160,13 +325,17 @@ public class ERXExpiringCache<K, V> {
 	 * @param currentVersionKey
 	 *            the version of the object right now
 	 */
-	public synchronized void setObjectForKeyWithVersion(V object, K key, Object currentVersionKey, long expirationTime) {
+	public void setObjectForKeyWithVersion(V object, K key, Object currentVersionKey, long expirationTime) {
 		removeStaleEntries();
 		if (expirationTime != ERXExpiringCache.NO_TIMEOUT) {
 			expirationTime = System.currentTimeMillis() + expirationTime;
 		}
 		Entry<V> entry = new Entry<V>(object, expirationTime, currentVersionKey);
 		setEntryForKey(entry, key);
+		int maxSize = _maxSize;
+		if (maxSize > 0 && _backingMap.size() > maxSize) {
+			evictEntries();
+		}
 	}
 
 	/**
@@ -179,7 +348,7 @@ public class ERXExpiringCache<K, V> {
 	 * @param currentVersionKey
 	 *            the version of the object right now
 	 */
-	public synchronized void setObjectForKeyWithVersion(V object, K key, Object currentVersionKey) {
+	public void setObjectForKeyWithVersion(V object, K key, Object currentVersionKey) {
 		setObjectForKeyWithVersion(object, key, currentVersionKey, _expiryTime);
 	}
 
@@ -190,7 +359,7 @@ public class ERXExpiringCache<K, V> {
 	 *            the key to lookup with
 	 * @return the value in the cache or null
 	 */
-	public synchronized V objectForKey(K key) {
+	public V objectForKey(K key) {
 		return objectForKeyWithVersion(key, ERXExpiringCache.NO_VERSION);
 	}
 
@@ -205,17 +374,24 @@ public class ERXExpiringCache<K, V> {
 	 *            the current version of this key
 	 * @return the value in the cache or null
 	 */
-	public synchronized V objectForKeyWithVersion(K key, Object currentVersionKey) {
+	public V objectForKeyWithVersion(K key, Object currentVersionKey) {
 		Entry<V> entry = entryForKey(key);
 		V value = null;
+		boolean hit = false;
 		if (entry != null) {
-			if (entry.isStale(System.currentTimeMillis(), currentVersionKey)) {
-				removeEntryForKey(entry, key);
+			long now = System.currentTimeMillis();
+			if (entry.isStale(now, currentVersionKey)) {
+				removeEntry(entry, key);
 			}
 			else {
 				value = entry.object();
+				hit = true;
+				if (_maxSize > 0) {
+					entry.touch(now);
+				}
 			}
 		}
+		recordLookup(hit);
 		return value;
 	}
 
@@ -227,7 +403,7 @@ public class ERXExpiringCache<K, V> {
 	 *            the key to lookup
 	 * @return true if the value is stale
 	 */
-	public synchronized boolean isStale(K key) {
+	public boolean isStale(K key) {
 		return isStaleWithVersion(key, ERXExpiringCache.NO_VERSION);
 	}
 
@@ -241,7 +417,7 @@ public class ERXExpiringCache<K, V> {
 	 *            the current version of this key
 	 * @return true if the value is stale
 	 */
-	public synchronized boolean isStaleWithVersion(K key, Object currentVersionKey) {
+	public boolean isStaleWithVersion(K key, Object currentVersionKey) {
 		Entry<V> entry = entryForKey(key);
 		boolean isStale = true;
 		if (entry != null) {
@@ -257,53 +433,224 @@ public class ERXExpiringCache<K, V> {
 	 *            the key to remove
 	 * @return the removed object
 	 */
-	public synchronized V removeObjectForKey(K key) {
+	public V removeObjectForKey(K key) {
 		removeStaleEntries();
 		Entry<V> entry = entryForKey(key);
 		V value = null;
-		if (entry != null) {
-			removeEntryForKey(entry, key);
+		if (entry != null && removeEntry(entry, key)) {
 			value = entry.object();
 		}
 		return value;
 	}
 
 	/**
-	 * Removes all stale entries.
+	 * Removes the entries that expired since the last cleanup. Only the timer
+	 * wheel buckets for the seconds that passed since then are looked at, and
+	 * only one thread reaps at a time; if another thread is already reaping,
+	 * this returns immediately.
 	 */
-	public synchronized void removeStaleEntries() {
-		if (_backingDictionary.count() > 0) {
-			long now = System.currentTimeMillis();
-			if ((_lastCleanupTime + _cleanupPause) < now) {
-				_lastCleanupTime = System.currentTimeMillis();
-				for (Enumeration<K> keyEnum = _backingDictionary.keyEnumerator(); keyEnum.hasMoreElements();) {
-					K key = keyEnum.nextElement();
-					Entry<V> entry = entryForKey(key);
-					// ak: add 10 seconds as a safety margin
-					// we need this because the entry could be requested
-					// when we just checked and noticed it is ok
-					if (entry.isStale(now + 10L * 1000, ERXExpiringCache.NO_VERSION)) {
-						removeEntryForKey(entry, key);
+	public void removeStaleEntries() {
+		long now = System.currentTimeMillis();
+		if ((_lastCleanupTime + _cleanupPause) < now && _cleanupLock.tryLock()) {
+			try {
+				if ((_lastCleanupTime + _cleanupPause) < now) {
+					_lastCleanupTime = now;
+					long staleTime = now + ERXExpiringCache.REAPER_SAFETY_MARGIN;
+					// only buckets that lie completely before staleTime, so
+					// everything in them from the current turn is stale
+					long lastTick = staleTime / ERXExpiringCache.WHEEL_TICK - 1;
+					long firstTick = Math.max(_lastReapedTick + 1, lastTick - _wheelMask);
+					for (long tick = firstTick; tick <= lastTick; tick++) {
+						reapBucket((int) (tick & _wheelMask), staleTime);
+					}
+					if (lastTick > _lastReapedTick) {
+						_lastReapedTick = lastTick;
 					}
 				}
 			}
+			finally {
+				_cleanupLock.unlock();
+			}
 		}
 	}
-	
-	protected synchronized void removeEntryForKey(Entry<V> entry, K key) {
-		_backingDictionary.removeObjectForKey(key);
+
+	@SuppressWarnings("unchecked")
+	private void reapBucket(int bucketIndex, long staleTime) {
+		ConcurrentLinkedQueue<Entry<V>> bucket = _wheel.get(bucketIndex);
+		if (bucket != null) {
+			List<Entry<V>> later = null;
+			Entry<V> entry;
+			while ((entry = bucket.poll()) != null) {
+				K key = (K) entry._key;
+				if (_backingMap.get(key) != entry) {
+					// replaced or removed since it was filed
+					continue;
+				}
+				if (entry.isStale(staleTime, ERXExpiringCache.NO_VERSION)) {
+					if (removeEntry(entry, key)) {
+						_expirations.incrementAndGet();
+					}
+				}
+				else {
+					// expires in a later turn of the wheel
+					if (later == null) {
+						later = new ArrayList<Entry<V>>();
+					}
+					later.add(entry);
+				}
+			}
+			if (later != null) {
+				bucket.addAll(later);
+			}
+		}
+	}
+
+	private void schedule(Entry<V> entry) {
+		if (entry._expiration != ERXExpiringCache.NO_TIMEOUT) {
+			long tick = Math.max(entry._expiration / ERXExpiringCache.WHEEL_TICK, _lastReapedTick + 1);
+			int bucketIndex = (int) (tick & _wheelMask);
+			ConcurrentLinkedQueue<Entry<V>> bucket = _wheel.get(bucketIndex);
+			if (bucket == null) {
+				_wheel.compareAndSet(bucketIndex, null, new ConcurrentLinkedQueue<Entry<V>>());
+				bucket = _wheel.get(bucketIndex);
+			}
+			bucket.offer(entry);
+		}
 	}
-	
-	protected synchronized void setEntryForKey(Entry<V> entry, K key) {
-		_backingDictionary.setObjectForKey(entry, key);
+
+	/**
+	 * Evicts entries according to the eviction policy until the cache is a
+	 * tenth below its max size. Only one thread evicts at a time.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void evictEntries() {
+		if (_evictionLock.tryLock()) {
+			try {
+				int maxSize = _maxSize;
+				int size = _backingMap.size();
+				if (maxSize > 0 && size > maxSize) {
+					// copy the access information so it doesn't change while sorting
+					List<EvictionCandidate<K, V>> candidates = new ArrayList<EvictionCandidate<K, V>>(size);
+					for (Map.Entry<K, Entry<V>> mapEntry : _backingMap.entrySet()) {
+						candidates.add(new EvictionCandidate<K, V>(mapEntry.getKey(), mapEntry.getValue()));
+					}
+					EvictionCandidate<K, V>[] sortedCandidates = candidates.toArray(new EvictionCandidate[candidates.size()]);
+					Arrays.sort(sortedCandidates, _evictionPolicy == EvictionPolicy.LFU ? EvictionCandidate.LFU : EvictionCandidate.LRU);
+					int evictCount = sortedCandidates.length - (maxSize - maxSize / 10);
+					for (int i = 0; i < evictCount && i < sortedCandidates.length; i++) {
+						EvictionCandidate<K, V> candidate = sortedCandidates[i];
+						if (removeEntry(candidate._entry, candidate._key)) {
+							_evictions.incrementAndGet();
+						}
+					}
+				}
+			}
+			finally {
+				_evictionLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Calls removeEntryForKey(..) if the entry is still the current one for
+	 * the key. Returns whether this call removed it; the entry is marked
+	 * first, so the hook is called once even if several threads race to
+	 * remove the same entry.
+	 */
+	private boolean removeEntry(Entry<V> entry, K key) {
+		boolean removed = _backingMap.get(key) == entry && entry.markRemoved();
+		if (removed) {
+			removeEntryForKey(entry, key);
+		}
+		return removed;
+	}
+
+	private void recordLookup(boolean hit) {
+		if (hit) {
+			_hits.incrementAndGet();
+		}
+		else {
+			_misses.incrementAndGet();
+		}
+		String name = _name;
+		if (name != null && ERXStats.isTrackingStatistics()) {
+			ERXStats.addDurationForKey(0L, ERXStats.Group.Cache, name + (hit ? ": hit" : ": miss"));
+		}
+	}
+
+	/**
+	 * Removes the entry from the cache, whether it is removed explicitly,
+	 * found to be stale, expired or evicted. Subclasses can override this to
+	 * clean up after the cached object; the entry is still in the cache until
+	 * they call super.
+	 */
+	protected void removeEntryForKey(Entry<V> entry, K key) {
+		_backingMap.remove(key, entry);
+	}
+
+	protected void setEntryForKey(Entry<V> entry, K key) {
+		if (key == null) {
+			throw new IllegalArgumentException("Attempt to insert null key into an ERXExpiringCache.");
+		}
+		entry._key = key;
+		_backingMap.put(key, entry);
+		schedule(entry);
 	}
 
-	protected synchronized Entry<V> entryForKey(K key) {
-		return _backingDictionary.objectForKey( key);
+	protected Entry<V> entryForKey(K key) {
+		return key == null ? null : _backingMap.get(key);
 	}
+
+	/**
+	 * Returns the number of lookups that found a fresh entry.
+	 */
+	public long hitCount() {
+		return _hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that found no entry or a stale one.
+	 */
+	public long missCount() {
+		return _misses.get();
+	}
+
+	/**
+	 * Returns the number of entries that were evicted because the cache was
+	 * over its max size.
+	 */
+	public long evictionCount() {
+		return _evictions.get();
+	}
+
+	/**
+	 * Returns the number of entries that were removed by removeStaleEntries().
+	 */
+	public long expirationCount() {
+		return _expirations.get();
+	}
+
+	/**
+	 * Returns the size and the hit, miss, eviction and expiration counts of
+	 * this cache.
+	 */
+	public NSDictionary<String, Object> statistics() {
+		NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<String, Object>();
+		if (_name != null) {
+			statistics.setObjectForKey(_name, "name");
+		}
+		statistics.setObjectForKey(Integer.valueOf(count()), "count");
+		statistics.setObjectForKey(Integer.valueOf(_maxSize), "maxSize");
+		statistics.setObjectForKey(Long.valueOf(hitCount()), "hits");
+		statistics.setObjectForKey(Long.valueOf(missCount()), "misses");
+		statistics.setObjectForKey(Long.valueOf(evictionCount()), "evictions");
+		statistics.setObjectForKey(Long.valueOf(expirationCount()), "expirations");
+		return statistics;
+	}
+
 	@Override
 	public String toString() {
-		return super.toString() + " " + _backingDictionary;
+		return super.toString() + " " + _backingMap;
 	}
 
 	/**
@@ -321,10 +668,9 @@ public class ERXExpiringCache<K, V> {
 	/**
 	 * Stops the background reaper for this cache.
 	 */
-	public synchronized void stopBackgroundExpiration() {
+	public void stopBackgroundExpiration() {
 		ERXExpiringCache.reaper().stop(this);
 	}
-
 	/**
 	 * Returns the repear for all ERXExpringCaches.
 	 * 
@@ -424,12 +770,44 @@ public class ERXExpiringCache<K, V> {
 		}
 	}
 
+	/**
+	 * Snapshot of an entry's access information for evictEntries().
+	 */
+	private static class EvictionCandidate<K, V> {
+		public static final Comparator<EvictionCandidate<?, ?>> LRU = new Comparator<EvictionCandidate<?, ?>>() {
+			public int compare(EvictionCandidate<?, ?> c1, EvictionCandidate<?, ?> c2) {
+				return c1._lastAccessTime < c2._lastAccessTime ? -1 : (c1._lastAccessTime == c2._lastAccessTime ? 0 : 1);
+			}
+		};
+
+		public static final Comparator<EvictionCandidate<?, ?>> LFU = new Comparator<EvictionCandidate<?, ?>>() {
+			public int compare(EvictionCandidate<?, ?> c1, EvictionCandidate<?, ?> c2) {
+				if (c1._accessCount != c2._accessCount) {
+					return c1._accessCount < c2._accessCount ? -1 : 1;
+				}
+				return LRU.compare(c1, c2);
+			}
+		};
+
+		private final K _key;
+		private final Entry<V> _entry;
+		private final long _lastAccessTime;
+		private final int _accessCount;
+
+		public EvictionCandidate(K key, Entry<V> entry) {
+			_key = key;
+			_entry = entry;
+			_lastAccessTime = entry._lastAccessTime;
+			_accessCount = entry._accessCount;
+		}
+	}
+
 	/**
 	 * Returns all keys.
 	 */
-	public synchronized NSArray<K> allKeys() {
-		NSMutableArray<K> result = new NSMutableArray<K>(_backingDictionary.count());
-		for (K key : _backingDictionary.allKeys()) {
+	public NSArray<K> allKeys() {
+		NSMutableArray<K> result = new NSMutableArray<K>(_backingMap.size());
+		for (K key : _backingMap.keySet()) {
 			result.addObject(key);
 		}
 		return result;
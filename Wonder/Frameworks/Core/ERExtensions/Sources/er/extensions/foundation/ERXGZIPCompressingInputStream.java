@@ -0,0 +1,157 @@
+package er.extensions.foundation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * InputStream that gzips the wrapped stream while it is being read. Instead of
+ * compressing the whole content into memory up front, only one buffer of
+ * uncompressed data is held at any time. Whether compressed bytes reach the client
+ * before the source has been fully read depends on the reader: ERXApplication
+ * spools them, as WOResponse needs the content length before it sends anything.
+ * <p>
+ * The {@link Deflater} and the read buffer are borrowed from the pools in
+ * {@link ERXCompressionUtilities} and handed back once the compressed stream
+ * is exhausted or closed, whichever comes first.
+ */
+public class ERXGZIPCompressingInputStream extends InputStream {
+
+	private static final byte[] HEADER = new byte[] { (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	private InputStream _in;
+	private Deflater _deflater;
+	private byte[] _buffer;
+	private final CRC32 _crc = new CRC32();
+	private final byte[] _trailer = new byte[8];
+	private final byte[] _single = new byte[1];
+	private int _headerIndex;
+	private int _trailerIndex = -1;
+	private boolean _eof;
+	private long _bytesRead;
+	private long _bytesWritten;
+
+	/**
+	 * Creates a new compressing stream around the given stream.
+	 *
+	 * @param in
+	 *            the uncompressed input stream
+	 */
+	public ERXGZIPCompressingInputStream(InputStream in) {
+		_in = in;
+		_deflater = ERXCompressionUtilities.checkOutDeflater();
+		_buffer = ERXCompressionUtilities.checkOutBuffer();
+	}
+
+	/**
+	 * Returns the number of uncompressed bytes consumed from the wrapped
+	 * stream so far.
+	 */
+	public long bytesRead() {
+		return _bytesRead;
+	}
+
+	/**
+	 * Returns the number of compressed bytes (including gzip header and
+	 * trailer) produced so far.
+	 */
+	public long bytesWritten() {
+		return _bytesWritten;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int count;
+		while ((count = read(_single, 0, 1)) == 0) {
+			// deflater wanted more input
+		}
+		return count < 0 ? -1 : _single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (_headerIndex < HEADER.length) {
+			int count = Math.min(len, HEADER.length - _headerIndex);
+			System.arraycopy(HEADER, _headerIndex, b, off, count);
+			_headerIndex += count;
+			_bytesWritten += count;
+			return count;
+		}
+		if (_trailerIndex < 0) {
+			if (_deflater == null) {
+				throw new IOException("Stream closed");
+			}
+			while (!_deflater.finished()) {
+				int count = _deflater.deflate(b, off, len);
+				if (count > 0) {
+					_bytesWritten += count;
+					return count;
+				}
+				if (_deflater.needsInput()) {
+					if (_eof) {
+						_deflater.finish();
+					}
+					else {
+						int read = _in.read(_buffer, 0, _buffer.length);
+						if (read < 0) {
+							_eof = true;
+							_deflater.finish();
+						}
+						else if (read > 0) {
+							_crc.update(_buffer, 0, read);
+							_deflater.setInput(_buffer, 0, read);
+							_bytesRead += read;
+						}
+					}
+				}
+			}
+			writeInt((int) _crc.getValue(), _trailer, 0);
+			writeInt((int) _bytesRead, _trailer, 4);
+			_trailerIndex = 0;
+			release();
+		}
+		if (_trailerIndex < _trailer.length) {
+			int count = Math.min(len, _trailer.length - _trailerIndex);
+			System.arraycopy(_trailer, _trailerIndex, b, off, count);
+			_trailerIndex += count;
+			_bytesWritten += count;
+			return count;
+		}
+		return -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (_in != null) {
+				_in.close();
+			}
+		}
+		finally {
+			_in = null;
+			release();
+		}
+	}
+
+	private void release() {
+		if (_deflater != null) {
+			ERXCompressionUtilities.checkInDeflater(_deflater);
+			_deflater = null;
+		}
+		if (_buffer != null) {
+			ERXCompressionUtilities.checkInBuffer(_buffer);
+			_buffer = null;
+		}
+	}
+
+	private static void writeInt(int value, byte[] b, int offset) {
+		b[offset] = (byte) (value & 0xff);
+		b[offset + 1] = (byte) ((value >> 8) & 0xff);
+		b[offset + 2] = (byte) ((value >> 16) & 0xff);
+		b[offset + 3] = (byte) ((value >> 24) & 0xff);
+	}
+}
@@ -13,14 +13,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
-import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Stack;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -70,7 +70,6 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
     private static String UndefinedMarker = "-undefined-";
     /** logging support */
     public final static Logger log = Logger.getLogger(ERXProperties.class);
-    private static final Map AppSpecificPropertyNames = new HashMap(128);
 
     /** WebObjects version number as string */
     private static String _webObjectsVersion;
@@ -78,8 +77,179 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
     /** WebObjects version number as double */ 
     private static double _webObjectsVersionDouble;
 
-    /** Internal cache of type converted values to avoid reconverting attributes that are asked for frequently */
-    private static Map _cache = Collections.synchronizedMap(new HashMap());
+    /** Internal cache of resolved names, values and type converted values to avoid reconverting attributes that are asked for frequently */
+    private static final ConcurrentHashMap<String, CachedProperty> _cache = new ConcurrentHashMap<String, CachedProperty>();
+
+    /** Incremented whenever the properties change, which invalidates the cached values and handles of older generations */
+    private static final AtomicInteger _generation = new AtomicInteger();
+
+    /**
+     * The cached state of one key: the property name that is used for it (the
+     * application specific one if that is defined), its value and the last type
+     * converted value. Entries are never updated for a new generation, they are
+     * replaced.
+     */
+    private static class CachedProperty {
+        final int generation;
+        final String propertyName;
+        final String value;
+        volatile Object convertedValue;
+
+        CachedProperty(int generation, String propertyName, String value) {
+            this.generation = generation;
+            this.propertyName = propertyName;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A handle on a property for hot call sites: it keeps the converted value and
+     * only looks up the property again after the properties changed (see
+     * {@link ERXProperties#systemPropertiesChanged()}), so reading it is a
+     * volatile read and a comparison. Changes made with
+     * <code>System.setProperty</code> directly are not noticed, just like with
+     * the <code>xxxForKey</code> methods.
+     * 
+     * <pre><code>
+     * private static final ERXProperties.Handle&lt;Boolean&gt; enabled = ERXProperties.booleanHandle("my.feature.enabled", false);
+     * ...
+     * if (enabled.value().booleanValue()) {
+     * </code></pre>
+     * 
+     * @param <T> the type of the value
+     */
+    public static abstract class Handle<T> {
+        private final String _key;
+        private volatile HandleValue<T> _value;
+
+        protected Handle(String key) {
+            _key = key;
+        }
+
+        /**
+         * Returns the key of the property.
+         */
+        public String key() {
+            return _key;
+        }
+
+        /**
+         * Returns the value of the property, or the default value if it is not
+         * defined.
+         */
+        public T value() {
+            int generation = _generation.get();
+            HandleValue<T> value = _value;
+            if (value == null || value.generation != generation) {
+                value = new HandleValue<T>(generation, lookupValue(_key));
+                _value = value;
+            }
+            return value.value;
+        }
+
+        /**
+         * Looks up the current value of the property.
+         * 
+         * @param key the key of the property
+         * @return the value or the default value
+         */
+        protected abstract T lookupValue(String key);
+
+        @Override
+        public String toString() {
+            return "<" + getClass().getSimpleName() + " " + _key + "=" + value() + ">";
+        }
+    }
+
+    private static class HandleValue<T> {
+        final int generation;
+        final T value;
+
+        HandleValue(int generation, T value) {
+            this.generation = generation;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Returns a handle on a boolean property.
+     * 
+     * @param key the key of the property
+     * @param defaultValue the value to use if the property is not defined
+     * @return the handle
+     */
+    public static Handle<Boolean> booleanHandle(String key, final boolean defaultValue) {
+        return new Handle<Boolean>(key) {
+            @Override
+            protected Boolean lookupValue(String k) {
+                return Boolean.valueOf(ERXProperties.booleanForKeyWithDefault(k, defaultValue));
+            }
+        };
+    }
+
+    /**
+     * Returns a handle on an int property.
+     * 
+     * @param key the key of the property
+     * @param defaultValue the value to use if the property is not defined
+     * @return the handle
+     */
+    public static Handle<Integer> intHandle(String key, final int defaultValue) {
+        return new Handle<Integer>(key) {
+            @Override
+            protected Integer lookupValue(String k) {
+                return Integer.valueOf(ERXProperties.intForKeyWithDefault(k, defaultValue));
+            }
+        };
+    }
+
+    /**
+     * Returns a handle on a long property.
+     * 
+     * @param key the key of the property
+     * @param defaultValue the value to use if the property is not defined
+     * @return the handle
+     */
+    public static Handle<Long> longHandle(String key, final long defaultValue) {
+        return new Handle<Long>(key) {
+            @Override
+            protected Long lookupValue(String k) {
+                return Long.valueOf(ERXProperties.longForKeyWithDefault(k, defaultValue));
+            }
+        };
+    }
+
+    /**
+     * Returns a handle on a double property.
+     * 
+     * @param key the key of the property
+     * @param defaultValue the value to use if the property is not defined
+     * @return the handle
+     */
+    public static Handle<Double> doubleHandle(String key, final double defaultValue) {
+        return new Handle<Double>(key) {
+            @Override
+            protected Double lookupValue(String k) {
+                return Double.valueOf(ERXProperties.doubleForKeyWithDefault(k, defaultValue));
+            }
+        };
+    }
+
+    /**
+     * Returns a handle on a string property.
+     * 
+     * @param key the key of the property
+     * @param defaultValue the value to use if the property is not defined
+     * @return the handle
+     */
+    public static Handle<String> stringHandle(String key, final String defaultValue) {
+        return new Handle<String>(key) {
+            @Override
+            protected String lookupValue(String k) {
+                return ERXProperties.stringForKeyWithDefault(k, defaultValue);
+            }
+        };
+    }
 
     private static boolean retainDefaultsEnabled() {
         if (RetainDefaultsEnabled == null) {
@@ -262,34 +432,40 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
 
     /**
      * Converts the standard propertyName into one with a .&lt;AppName> on the end, if the property is defined with
-     * that suffix.  If not, then this caches the standard propertyName.  A cache is maintained to avoid concatenating
-     * strings frequently, but may be overkill since most usage of this system doesn't involve frequent access.
+     * that suffix.  If not, then this returns the standard propertyName.  The result is cached with the value, so
+     * strings are only concatenated once per key and generation.
      * @param propertyName
      */
     private static String getApplicationSpecificPropertyName(final String propertyName) {
-        synchronized(AppSpecificPropertyNames) {
-            // only keep 128 of these around
-            if (AppSpecificPropertyNames.size() > 128) {
-                AppSpecificPropertyNames.clear();
-            }
-            String appSpecificPropertyName = (String)AppSpecificPropertyNames.get(propertyName);
-            if (appSpecificPropertyName == null) {
-                final WOApplication application = WOApplication.application();
-                if (application != null) {
-                    final String appName = application.name();
-                    appSpecificPropertyName = propertyName + "." + appName;
-                }
-                else {
-                    appSpecificPropertyName = propertyName;
-                }
-                final String propertyValue = ERXSystem.getProperty(appSpecificPropertyName);
-                if (propertyValue == null) {
-                    appSpecificPropertyName = propertyName;
+        return cachedProperty(propertyName).propertyName;
+    }
+
+    /**
+     * Returns the cache entry for the given key, resolving it if there is none for
+     * the current generation. Lookups don't lock; two threads that miss at the
+     * same time both resolve the key and the last one wins.
+     * @param key the key
+     */
+    private static CachedProperty cachedProperty(final String key) {
+        final int generation = _generation.get();
+        CachedProperty property = _cache.get(key);
+        if (property == null || property.generation != generation) {
+            String propertyName = key;
+            final WOApplication application = WOApplication.application();
+            if (application != null) {
+                final String appSpecificPropertyName = key + "." + application.name();
+                if (ERXSystem.getProperty(appSpecificPropertyName) != null) {
+                    propertyName = appSpecificPropertyName;
                 }
-                AppSpecificPropertyNames.put(propertyName, appSpecificPropertyName);
             }
-            return appSpecificPropertyName;
+            property = new CachedProperty(generation, propertyName, ERXSystem.getProperty(propertyName));
+            // keys built at runtime shouldn't make the cache grow forever
+            if (_cache.size() >= 10000) {
+                _cache.clear();
+            }
+            _cache.put(key, property);
         }
+        return property;
     }
 
     /**
@@ -301,24 +477,20 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
      *      the system properties or default value
      */
     public static NSArray arrayForKeyWithDefault(final String s, final NSArray defaultValue) {
-        final String propertyName = getApplicationSpecificPropertyName(s);
-		NSArray value;
-		Object cachedValue = _cache.get(propertyName);
-		if (cachedValue == UndefinedMarker) {
-			value = defaultValue;
-		} else if (cachedValue instanceof NSArray) {
-			value = (NSArray) cachedValue;
-		} else {
-			value = ERXValueUtilities.arrayValueWithDefault(ERXSystem.getProperty(propertyName), null);
-			_cache.put(s, value == null ? (Object)UndefinedMarker : value);
-			if (value == null) {
-				value = defaultValue;
-			}
-	        if (retainDefaultsEnabled() && value == null && defaultValue != null) {
-	            setArrayForKey(defaultValue, propertyName);
-	        }
-		}
-		return value;
+        final CachedProperty property = cachedProperty(s);
+        final Object cachedValue = property.convertedValue;
+        if (cachedValue instanceof NSArray) {
+            return (NSArray) cachedValue;
+        }
+        final NSArray value = ERXValueUtilities.arrayValueWithDefault(property.value, null);
+        if (value == null) {
+            if (retainDefaultsEnabled() && property.value == null && defaultValue != null) {
+                setArrayForKey(defaultValue, property.propertyName);
+            }
+            return defaultValue;
+        }
+        property.convertedValue = value;
+        return value;
     }
     
     /**
@@ -345,26 +517,20 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
      *      system properties.
      */
     public static boolean booleanForKeyWithDefault(final String s, final boolean defaultValue) {
-        final String propertyName = getApplicationSpecificPropertyName(s);
-        boolean value;
-		Object cachedValue = _cache.get(propertyName);
-		if (cachedValue == UndefinedMarker) {
-			value = defaultValue;
-		} else if (cachedValue instanceof Boolean) {
-			value = ((Boolean) cachedValue).booleanValue();
-		} else {
-			Boolean objValue = ERXValueUtilities.BooleanValueWithDefault(ERXSystem.getProperty(propertyName), null);
-			_cache.put(propertyName, objValue == null ? (Object)UndefinedMarker : objValue);
-			if (objValue == null) {
-				value = defaultValue;
-			} else {
-				value = objValue.booleanValue();
-			}
-	        if (retainDefaultsEnabled() && objValue == null) {
-	            System.setProperty(propertyName, Boolean.toString(defaultValue));
-	        }
-		}
-		return value;
+        final CachedProperty property = cachedProperty(s);
+        final Object cachedValue = property.convertedValue;
+        if (cachedValue instanceof Boolean) {
+            return ((Boolean) cachedValue).booleanValue();
+        }
+        final Boolean objValue = ERXValueUtilities.BooleanValueWithDefault(property.value, null);
+        if (objValue == null) {
+            if (retainDefaultsEnabled() && property.value == null) {
+                setStringForKey(Boolean.toString(defaultValue), property.propertyName);
+            }
+            return defaultValue;
+        }
+        property.convertedValue = objValue;
+        return objValue.booleanValue();
     }
     
     /**
@@ -387,24 +553,20 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
      *      the system properties
      */
     public static NSDictionary dictionaryForKeyWithDefault(final String s, final NSDictionary defaultValue) {
-        final String propertyName = getApplicationSpecificPropertyName(s);
-		NSDictionary value;
-		Object cachedValue = _cache.get(propertyName);
-		if (cachedValue == UndefinedMarker) {
-			value = defaultValue;
-		} else if (cachedValue instanceof NSDictionary) {
-			value = (NSDictionary) cachedValue;
-		} else {
-			value = ERXValueUtilities.dictionaryValueWithDefault(ERXSystem.getProperty(propertyName), null);
-			_cache.put(s, value == null ? (Object)UndefinedMarker : value);
-			if (value == null) {
-				value = defaultValue;
-			}
-	        if (retainDefaultsEnabled() && value == null && defaultValue != null) {
-	            setDictionaryForKey(defaultValue, propertyName);
-	        }
-		}
-		return value;
+        final CachedProperty property = cachedProperty(s);
+        final Object cachedValue = property.convertedValue;
+        if (cachedValue instanceof NSDictionary) {
+            return (NSDictionary) cachedValue;
+        }
+        final NSDictionary value = ERXValueUtilities.dictionaryValueWithDefault(property.value, null);
+        if (value == null) {
+            if (retainDefaultsEnabled() && property.value == null && defaultValue != null) {
+                setDictionaryForKey(defaultValue, property.propertyName);
+            }
+            return defaultValue;
+        }
+        property.convertedValue = value;
+        return value;
     }
 
     /**
@@ -471,24 +633,20 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
      *      system properties. Scale is controlled by the string, ie "4.400" will have a scale of 3.
      */
     public static BigDecimal bigDecimalForKeyWithDefault(String s, BigDecimal defaultValue) {
-        final String propertyName = getApplicationSpecificPropertyName(s);
-
-        Object value = _cache.get(propertyName);
-        if (value == UndefinedMarker) {
-            return defaultValue;
+        final CachedProperty property = cachedProperty(s);
+        final Object cachedValue = property.convertedValue;
+        if (cachedValue instanceof BigDecimal) {
+            return (BigDecimal) cachedValue;
         }
-        if (value instanceof BigDecimal) {
-            return (BigDecimal)value;
-        }
-        
-        String propertyValue = ERXSystem.getProperty(propertyName);
-        final BigDecimal bigDecimal = ERXValueUtilities.bigDecimalValueWithDefault(propertyValue, defaultValue);
-        if (retainDefaultsEnabled() && propertyValue == null && bigDecimal != null) {
-            propertyValue = bigDecimal.toString();
-            System.setProperty(propertyName, propertyValue);
+        final BigDecimal value = ERXValueUtilities.bigDecimalValueWithDefault(property.value, null);
+        if (value == null) {
+            if (retainDefaultsEnabled() && property.value == null && defaultValue != null) {
+                setStringForKey(defaultValue.toString(), property.propertyName);
+            }
+            return defaultValue;
         }
-        _cache.put(propertyName, propertyValue == null ? (Object)UndefinedMarker : bigDecimal);
-        return bigDecimal;
+        property.convertedValue = value;
+        return value;
     }
 
     /**
@@ -499,26 +657,20 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
      * @return int value of the system property or the default value
      */    
     public static int intForKeyWithDefault(final String s, final int defaultValue) {
-        final String propertyName = getApplicationSpecificPropertyName(s);
-		int value;
-		Object cachedValue = _cache.get(propertyName);
-		if (cachedValue == UndefinedMarker) {
-			value = defaultValue;
-		} else if (cachedValue instanceof Integer) {
-			value = ((Integer) cachedValue).intValue();
-		} else {
-			Integer objValue = ERXValueUtilities.IntegerValueWithDefault(ERXSystem.getProperty(propertyName), null);
-			_cache.put(s, objValue == null ? (Object)UndefinedMarker : objValue);
-			if (objValue == null) {
-				value = defaultValue;
-			} else {
-				value = objValue.intValue();
-			}
-	        if (retainDefaultsEnabled() && objValue == null) {
-	            System.setProperty(propertyName, Integer.toString(defaultValue));
-	        }
-		}
-		return value;
+        final CachedProperty property = cachedProperty(s);
+        final Object cachedValue = property.convertedValue;
+        if (cachedValue instanceof Integer) {
+            return ((Integer) cachedValue).intValue();
+        }
+        final Integer objValue = ERXValueUtilities.IntegerValueWithDefault(property.value, null);
+        if (objValue == null) {
+            if (retainDefaultsEnabled() && property.value == null) {
+                setStringForKey(Integer.toString(defaultValue), property.propertyName);
+            }
+            return defaultValue;
+        }
+        property.convertedValue = objValue;
+        return objValue.intValue();
     }
 
     /**
@@ -529,26 +681,20 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
      * @return long value of the system property or the default value
      */    
     public static long longForKeyWithDefault(final String s, final long defaultValue) {
-        final String propertyName = getApplicationSpecificPropertyName(s);
-		long value;
-		Object cachedValue = _cache.get(propertyName);
-		if (cachedValue == UndefinedMarker) {
-			value = defaultValue;
-		} else if (cachedValue instanceof Long) {
-			value = ((Long) cachedValue).longValue();
-		} else {
-			Long objValue = ERXValueUtilities.LongValueWithDefault(ERXSystem.getProperty(propertyName), null);
-			_cache.put(s, objValue == null ? (Object)UndefinedMarker : objValue);
-			if (objValue == null) {
-				value = defaultValue;
-			} else {
-				value = objValue.longValue();
-			}
-	        if (retainDefaultsEnabled() && objValue == null) {
-	            System.setProperty(propertyName, Long.toString(defaultValue));
-	        }
-		}
-		return value;
+        final CachedProperty property = cachedProperty(s);
+        final Object cachedValue = property.convertedValue;
+        if (cachedValue instanceof Long) {
+            return ((Long) cachedValue).longValue();
+        }
+        final Long objValue = ERXValueUtilities.LongValueWithDefault(property.value, null);
+        if (objValue == null) {
+            if (retainDefaultsEnabled() && property.value == null) {
+                setStringForKey(Long.toString(defaultValue), property.propertyName);
+            }
+            return defaultValue;
+        }
+        property.convertedValue = objValue;
+        return objValue.longValue();
     }
 
     /**
@@ -559,27 +705,20 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
      * @return float value of the system property or the default value
      */    
     public static float floatForKeyWithDefault(final String s, final float defaultValue) {
-        final String propertyName = getApplicationSpecificPropertyName(s);
-
-		float value;
-		Object cachedValue = _cache.get(propertyName);
-		if (cachedValue == UndefinedMarker) {
-			value = defaultValue;
-		} else if (cachedValue instanceof Float) {
-			value = ((Float) cachedValue).floatValue();
-		} else {
-			Float objValue = ERXValueUtilities.FloatValueWithDefault(ERXSystem.getProperty(propertyName), null);
-			_cache.put(s, objValue == null ? (Object)UndefinedMarker : objValue);
-			if (objValue == null) {
-				value = defaultValue;
-			} else {
-				value = objValue.floatValue();
-			}
-	        if (retainDefaultsEnabled() && objValue == null) {
-	            System.setProperty(propertyName, Float.toString(defaultValue));
-	        }
-		}
-		return value;
+        final CachedProperty property = cachedProperty(s);
+        final Object cachedValue = property.convertedValue;
+        if (cachedValue instanceof Float) {
+            return ((Float) cachedValue).floatValue();
+        }
+        final Float objValue = ERXValueUtilities.FloatValueWithDefault(property.value, null);
+        if (objValue == null) {
+            if (retainDefaultsEnabled() && property.value == null) {
+                setStringForKey(Float.toString(defaultValue), property.propertyName);
+            }
+            return defaultValue;
+        }
+        property.convertedValue = objValue;
+        return objValue.floatValue();
     }
 
     /**
@@ -590,27 +729,20 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
      * @return double value of the system property or the default value
      */    
     public static double doubleForKeyWithDefault(final String s, final double defaultValue) {
-        final String propertyName = getApplicationSpecificPropertyName(s);
-
-		double value;
-		Object cachedValue = _cache.get(propertyName);
-		if (cachedValue == UndefinedMarker) {
-			value = defaultValue;
-		} else if (cachedValue instanceof Double) {
-			value = ((Double) cachedValue).doubleValue();
-		} else {
-			Double objValue = ERXValueUtilities.DoubleValueWithDefault(ERXSystem.getProperty(propertyName), null);
-			_cache.put(s, objValue == null ? (Object)UndefinedMarker : objValue);
-			if (objValue == null) {
-				value = defaultValue;
-			} else {
-				value = objValue.doubleValue();
-			}
-	        if (retainDefaultsEnabled() && objValue == null) {
-	            System.setProperty(propertyName, Double.toString(defaultValue));
-	        }
-		}
-		return value;
+        final CachedProperty property = cachedProperty(s);
+        final Object cachedValue = property.convertedValue;
+        if (cachedValue instanceof Double) {
+            return ((Double) cachedValue).doubleValue();
+        }
+        final Double objValue = ERXValueUtilities.DoubleValueWithDefault(property.value, null);
+        if (objValue == null) {
+            if (retainDefaultsEnabled() && property.value == null) {
+                setStringForKey(Double.toString(defaultValue), property.propertyName);
+            }
+            return defaultValue;
+        }
+        property.convertedValue = objValue;
+        return objValue.doubleValue();
     }
     
     /**
@@ -636,7 +768,7 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
         final String propertyValue = ERXSystem.getProperty(propertyName);
         final String stringValue = propertyValue == null ? defaultValue : propertyValue;
         if (retainDefaultsEnabled() && propertyValue == null) {
-            System.setProperty(propertyName, stringValue == null ? UndefinedMarker : stringValue);
+            setStringForKey(stringValue == null ? UndefinedMarker : stringValue, propertyName);
         }
         return stringValue == UndefinedMarker ? null : stringValue;
     }
@@ -760,12 +892,13 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
     // DELETEME: Really not needed anymore -- MS: Why?  We need the cache clearing.
     public static void setStringForKey(String string, String key) {
         System.setProperty(key, string);
-        _cache.remove(key);
+        // the key may be the application specific name of another key
+        _generation.incrementAndGet();
     }
     
     public static void removeKey(String key) {
     	System.getProperties().remove(key);
-    	_cache.remove(key);
+    	_generation.incrementAndGet();
     }
     
     /** 
@@ -1230,9 +1363,7 @@ public class ERXProperties extends Properties implements NSKeyValueCoding {
     }
     
     public static void systemPropertiesChanged() {
-        synchronized (AppSpecificPropertyNames) {
-            AppSpecificPropertyNames.clear();
-        }
+        _generation.incrementAndGet();
         _cache.clear();
         // MS: Leave for future WO support ...
         NSNotificationCenter.defaultCenter().postNotification("PropertiesDidChange", null, null);
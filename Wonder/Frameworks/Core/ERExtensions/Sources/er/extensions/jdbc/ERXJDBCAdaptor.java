@@ -1,26 +1,41 @@
 package er.extensions.jdbc;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.Iterator;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
 import com.webobjects.eoaccess.EOAdaptor;
 import com.webobjects.eoaccess.EOAdaptorChannel;
 import com.webobjects.eoaccess.EOAdaptorContext;
+import com.webobjects.eoaccess.EOAdaptorOperation;
 import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EODatabaseOperation;
 import com.webobjects.eoaccess.EOEntity;
 import com.webobjects.eoaccess.EOGeneralAdaptorException;
 import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eoaccess.EOSQLExpressionFactory;
 import com.webobjects.eoaccess.EOStoredProcedure;
 import com.webobjects.eocontrol.EOFetchSpecification;
 import com.webobjects.eocontrol.EOQualifier;
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
-import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSKeyValueCoding;
 import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSRange;
+import com.webobjects.foundation.NSSet;
 import com.webobjects.jdbcadaptor.ERXJDBCColumn;
 import com.webobjects.jdbcadaptor.JDBCAdaptor;
 import com.webobjects.jdbcadaptor.JDBCAdaptorException;
@@ -29,6 +44,7 @@ import com.webobjects.jdbcadaptor.JDBCContext;
 import com.webobjects.jdbcadaptor.JDBCPlugIn;
 
 import er.extensions.eof.ERXAdaptorOperationWrapper;
+import er.extensions.eof.ERXPrimaryKeyBlockAllocator;
 import er.extensions.foundation.ERXKeyValueCodingUtilities;
 import er.extensions.foundation.ERXPatcher;
 import er.extensions.foundation.ERXProperties;
@@ -100,6 +116,7 @@ public class ERXJDBCAdaptor extends JDBCAdaptor {
 	 * 
 	 */
 	public static class Channel extends JDBCChannel {
+		private int _fetchSize;
 
 		public Channel(JDBCContext jdbccontext) {
 			super(jdbccontext);
@@ -148,71 +165,407 @@ public class ERXJDBCAdaptor extends JDBCAdaptor {
 		}
 		
 		/**
-		 * Overridden to switch the connection to read-only while selecting.
+		 * Overridden to switch the connection to read-only while selecting and
+		 * to apply the fetch size.
 		 */
 		public void selectAttributes(NSArray array, EOFetchSpecification fetchspecification, boolean lock, EOEntity entity) {
 			boolean mode = setReadOnly(!lock);
-			super.selectAttributes(array, fetchspecification, lock, entity);
+			boolean appliesFetchSize = beginStatementFetchSize();
+			try {
+				super.selectAttributes(array, fetchspecification, lock, entity);
+			}
+			finally {
+				if (appliesFetchSize) {
+					((Context) adaptorContext()).endStatementFetchSize();
+				}
+			}
 			setReadOnly(mode);
 		}
 
+		/**
+		 * Makes the context set the fetch size on the statements it creates
+		 * until {@link Context#endStatementFetchSize()} is called.
+		 * 
+		 * @return whether the fetch size is applied and has to be ended
+		 */
+		private boolean beginStatementFetchSize() {
+			return _fetchSize > 0 && adaptorContext() instanceof Context && ((Context) adaptorContext()).beginStatementFetchSize(_fetchSize);
+		}
+
+		private boolean batchAdaptorOperations = ERXProperties.booleanForKeyWithDefault("er.extensions.ERXJDBCAdaptor.batchAdaptorOperations", false);
+		private int operationBatchSize = ERXProperties.intForKeyWithDefault("er.extensions.ERXJDBCAdaptor.batchSize", 100);
+
 		/**
 		 * Overridden to post a notification when the operations were performed.
+		 * <p>
+		 * If <code>er.extensions.ERXJDBCAdaptor.batchAdaptorOperations</code> is
+		 * true, runs of consecutive insert, update or delete operations on the
+		 * same entity are sent as JDBC batches of up to
+		 * <code>er.extensions.ERXJDBCAdaptor.batchSize</code> rows. The
+		 * operations keep the order EOF (and
+		 * {@link er.extensions.eof.ERXDatabaseContextDelegate#databaseContextWillPerformAdaptorOperations(com.webobjects.eoaccess.EODatabaseContext, NSArray, com.webobjects.eoaccess.EOAdaptorChannel)})
+		 * put them in, so constraints see the same sequence of statements.
 		 */
 		public void performAdaptorOperations(NSArray ops) {
-			super.performAdaptorOperations(ops);
+			if (batchAdaptorOperations && operationBatchSize > 1 && ops.count() > 1 && adaptorContext().hasOpenTransaction()) {
+				performAdaptorOperationsInBatches(ops);
+			}
+			else {
+				super.performAdaptorOperations(ops);
+			}
 			ERXAdaptorOperationWrapper.adaptorOperationsDidPerform(ops);
 		}
 
+		private static boolean isBatchable(EOAdaptorOperation op) {
+			int operator = op.adaptorOperator();
+			return operator == EODatabaseOperation.AdaptorInsertOperator || operator == EODatabaseOperation.AdaptorUpdateOperator || operator == EODatabaseOperation.AdaptorDeleteOperator;
+		}
+
+		/**
+		 * Splits the operations into runs with the same entity and operator and
+		 * executes each run as a batch. Lock and stored procedure operations
+		 * and runs of one are performed as usual.
+		 */
+		protected void performAdaptorOperationsInBatches(NSArray ops) {
+			int count = ops.count();
+			int start = 0;
+			while (start < count) {
+				EOAdaptorOperation first = (EOAdaptorOperation) ops.objectAtIndex(start);
+				int end = start + 1;
+				if (isBatchable(first)) {
+					while (end < count) {
+						EOAdaptorOperation op = (EOAdaptorOperation) ops.objectAtIndex(end);
+						if (op.entity() != first.entity() || op.adaptorOperator() != first.adaptorOperator()) {
+							break;
+						}
+						end++;
+					}
+				}
+				if (end - start == 1) {
+					performAdaptorOperation(first);
+				}
+				else {
+					performBatch(ops.subarrayWithRange(new NSRange(start, end - start)));
+				}
+				start = end;
+			}
+		}
+
+		private EOSQLExpression expressionForOperation(EOSQLExpressionFactory factory, EOAdaptorOperation op) {
+			switch (op.adaptorOperator()) {
+			case EODatabaseOperation.AdaptorInsertOperator:
+				return factory.insertStatementForRow(op.changedValues(), op.entity());
+			case EODatabaseOperation.AdaptorUpdateOperator:
+				return factory.updateStatementForRow(op.changedValues(), op.qualifier(), op.entity());
+			default:
+				return factory.deleteStatementWithQualifier(op.qualifier(), op.entity());
+			}
+		}
+
+		/**
+		 * Executes operations with the same entity and operator. Statements
+		 * with bind variables and identical SQL share one prepared statement;
+		 * statements without bind variables go into a plain statement batch.
+		 * Operations whose values need the plugin's conversions (see
+		 * {@link #bindsPlainValues(EOSQLExpression)}) are performed one by one.
+		 */
+		private void performBatch(NSArray ops) {
+			EOSQLExpressionFactory factory = adaptorContext().adaptor().expressionFactory();
+			int count = ops.count();
+			EOSQLExpression[] expressions = new EOSQLExpression[count];
+			boolean[] batchable = new boolean[count];
+			for (int i = 0; i < count; i++) {
+				expressions[i] = expressionForOperation(factory, (EOAdaptorOperation) ops.objectAtIndex(i));
+				batchable[i] = bindsPlainValues(expressions[i]);
+			}
+			int start = 0;
+			while (start < count) {
+				if (!batchable[start]) {
+					performAdaptorOperation((EOAdaptorOperation) ops.objectAtIndex(start));
+					start++;
+					continue;
+				}
+				boolean prepared = expressions[start].bindVariableDictionaries().count() > 0;
+				String sql = expressions[start].statement();
+				int end = start + 1;
+				while (end < count && end - start < operationBatchSize && batchable[end]) {
+					EOSQLExpression expression = expressions[end];
+					boolean sameKind = prepared ? sql.equals(expression.statement()) : expression.bindVariableDictionaries().count() == 0;
+					if (!sameKind) {
+						break;
+					}
+					end++;
+				}
+				if (end - start == 1) {
+					performAdaptorOperation((EOAdaptorOperation) ops.objectAtIndex(start));
+				}
+				else {
+					executeBatch(ops, expressions, start, end, prepared);
+				}
+				start = end;
+			}
+		}
+
+		private void executeBatch(NSArray ops, EOSQLExpression[] expressions, int start, int end, boolean prepared) {
+			Connection connection = ((JDBCContext) adaptorContext()).connection();
+			Statement statement = null;
+			int[] counts;
+			try {
+				if (prepared) {
+					PreparedStatement preparedStatement = connection.prepareStatement(expressions[start].statement());
+					statement = preparedStatement;
+					for (int i = start; i < end; i++) {
+						bindVariables(preparedStatement, expressions[i]);
+						preparedStatement.addBatch();
+					}
+				}
+				else {
+					statement = connection.createStatement();
+					for (int i = start; i < end; i++) {
+						statement.addBatch(expressions[i].statement());
+					}
+				}
+				if (log.isDebugEnabled()) {
+					log.debug("Executing batch of " + (end - start) + ": " + expressions[start].statement());
+				}
+				counts = statement.executeBatch();
+			}
+			catch (BatchUpdateException e) {
+				int[] partialCounts = e.getUpdateCounts();
+				int failed = start + (partialCounts != null ? partialCounts.length : 0);
+				if (partialCounts != null) {
+					for (int i = 0; i < partialCounts.length; i++) {
+						if (partialCounts[i] == Statement.EXECUTE_FAILED) {
+							failed = start + i;
+							break;
+						}
+					}
+				}
+				cleanup();
+				String statementText = expressions[Math.min(failed, end - 1)].statement();
+				throw new JDBCAdaptorException("Batch failed at " + ops.objectAtIndex(Math.min(failed, end - 1)) + " (" + statementText + ")", e);
+			}
+			catch (SQLException e) {
+				cleanup();
+				throw new JDBCAdaptorException("Batch failed: " + expressions[start].statement(), e);
+			}
+			finally {
+				if (statement != null) {
+					try {
+						statement.close();
+					}
+					catch (SQLException e) {
+						log.warn("Could not close batch statement: " + e);
+					}
+				}
+			}
+			checkBatchCounts(ops, start, end, counts);
+		}
+
+		/**
+		 * Every operation has to affect exactly one row, like
+		 * <code>EOAdaptorChannel.performAdaptorOperation</code> requires. A
+		 * count of 0 for an update or delete means the row was changed or
+		 * deleted by someone else and is reported as an optimistic locking
+		 * failure. Drivers that return <code>SUCCESS_NO_INFO</code> can't be
+		 * checked.
+		 */
+		private void checkBatchCounts(NSArray ops, int start, int end, int[] counts) {
+			if (counts == null || counts.length != end - start) {
+				throw failedOperation((EOAdaptorOperation) ops.objectAtIndex(start), "Batch returned " + (counts == null ? 0 : counts.length) + " update counts for " + (end - start) + " operations", false);
+			}
+			for (int i = 0; i < counts.length; i++) {
+				int count = counts[i];
+				if (count != 1 && count != Statement.SUCCESS_NO_INFO) {
+					EOAdaptorOperation op = (EOAdaptorOperation) ops.objectAtIndex(start + i);
+					boolean lockingFailure = count == 0 && op.adaptorOperator() != EODatabaseOperation.AdaptorInsertOperator;
+					throw failedOperation(op, "Batched operation on " + op.entity().name() + " affected " + count + " rows instead of 1", lockingFailure);
+				}
+			}
+		}
+
+		private EOGeneralAdaptorException failedOperation(EOAdaptorOperation op, String message, boolean lockingFailure) {
+			NSMutableDictionary userInfo = new NSMutableDictionary();
+			userInfo.setObjectForKey(op, EOAdaptorChannel.FailedAdaptorOperationKey);
+			if (lockingFailure) {
+				userInfo.setObjectForKey(EOAdaptorChannel.AdaptorOptimisticLockingFailure, EOAdaptorChannel.AdaptorFailureKey);
+			}
+			return new EOGeneralAdaptorException(message, userInfo);
+		}
+
+		/**
+		 * Returns whether every bind variable of the expression can be bound
+		 * with a plain JDBC setter and gets the same value as through
+		 * JDBCColumn and the plugin. That is the case for strings and the
+		 * standard number classes in columns with a generic character or
+		 * numeric external type, and for nulls in such columns. Dates are
+		 * converted to the attribute's time zone, and binary, custom and
+		 * plugin-specific types may be bound differently, so those aren't
+		 * batched.
+		 */
+		private static boolean bindsPlainValues(EOSQLExpression expression) {
+			NSArray bindings = expression.bindVariableDictionaries();
+			for (int i = 0; i < bindings.count(); i++) {
+				NSDictionary binding = (NSDictionary) bindings.objectAtIndex(i);
+				EOAttribute attribute = (EOAttribute) binding.objectForKey(EOSQLExpression.BindVariableAttributeKey);
+				if (attribute == null || attribute.externalType() == null) {
+					return false;
+				}
+				String externalType = attribute.externalType().toLowerCase();
+				if (externalType.indexOf('(') != -1) {
+					externalType = externalType.substring(0, externalType.indexOf('(')).trim();
+				}
+				Object value = binding.objectForKey(EOSQLExpression.BindVariableValueKey);
+				if (value != null && value != NSKeyValueCoding.NullValue) {
+					value = attribute.adaptorValueByConvertingAttributeValue(value);
+				}
+				boolean isNull = value == null || value == NSKeyValueCoding.NullValue;
+				switch (attribute.adaptorValueType()) {
+				case EOAttribute.AdaptorCharactersType:
+					if (!PLAIN_CHARACTER_TYPES.containsObject(externalType) || !(isNull || value instanceof String)) {
+						return false;
+					}
+					break;
+				case EOAttribute.AdaptorNumberType:
+					if (!PLAIN_NUMBER_TYPES.containsObject(externalType) || !(isNull || value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof BigDecimal || value instanceof Double || value instanceof Float)) {
+						return false;
+					}
+					break;
+				default:
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static final NSSet<String> PLAIN_CHARACTER_TYPES = new NSSet<String>(new String[] { "char", "character", "varchar", "varchar2", "character varying", "nchar", "nvarchar", "nvarchar2", "text" });
+
+		private static final NSSet<String> PLAIN_NUMBER_TYPES = new NSSet<String>(new String[] { "int", "integer", "int2", "int4", "int8", "smallint", "bigint", "tinyint", "mediumint", "numeric", "decimal", "number", "double", "double precision", "float", "float4", "float8", "real" });
+
+		private void bindVariables(PreparedStatement statement, EOSQLExpression expression) throws SQLException {
+			NSArray bindings = expression.bindVariableDictionaries();
+			for (int i = 0; i < bindings.count(); i++) {
+				NSDictionary binding = (NSDictionary) bindings.objectAtIndex(i);
+				EOAttribute attribute = (EOAttribute) binding.objectForKey(EOSQLExpression.BindVariableAttributeKey);
+				Object value = binding.objectForKey(EOSQLExpression.BindVariableValueKey);
+				if (value != null && value != NSKeyValueCoding.NullValue && attribute != null) {
+					value = attribute.adaptorValueByConvertingAttributeValue(value);
+				}
+				setParameter(statement, i + 1, attribute, value);
+			}
+		}
+
+		private static void setParameter(PreparedStatement statement, int index, EOAttribute attribute, Object value) throws SQLException {
+			if (value == null || value == NSKeyValueCoding.NullValue) {
+				statement.setNull(index, sqlTypeForAttribute(attribute));
+			}
+			else if (value instanceof String) {
+				statement.setString(index, (String) value);
+			}
+			else if (value instanceof BigDecimal) {
+				statement.setBigDecimal(index, (BigDecimal) value);
+			}
+			else {
+				// the standard number classes, see bindsPlainValues
+				statement.setObject(index, value);
+			}
+		}
+
+		private static int sqlTypeForAttribute(EOAttribute attribute) {
+			if (attribute == null) {
+				return Types.VARCHAR;
+			}
+			switch (attribute.adaptorValueType()) {
+			case EOAttribute.AdaptorNumberType:
+				String valueType = attribute.valueType() != null ? attribute.valueType() : "";
+				if ("i".equals(valueType)) {
+					return Types.INTEGER;
+				}
+				if ("l".equals(valueType)) {
+					return Types.BIGINT;
+				}
+				if ("s".equals(valueType)) {
+					return Types.SMALLINT;
+				}
+				if ("d".equals(valueType)) {
+					return Types.DOUBLE;
+				}
+				if ("f".equals(valueType)) {
+					return Types.REAL;
+				}
+				if ("B".equals(valueType)) {
+					return Types.DECIMAL;
+				}
+				return Types.NUMERIC;
+			default:
+				return Types.VARCHAR;
+			}
+		}
+
 		private JDBCPlugIn _plugIn() {
 			JDBCAdaptor jdbcadaptor = (JDBCAdaptor) adaptorContext().adaptor();
 			return jdbcadaptor.plugIn();
 		}
 
-		private static NSMutableDictionary<String, NSMutableArray> pkCache = new NSMutableDictionary<String, NSMutableArray>();
+		private static ConcurrentHashMap<String, ERXPrimaryKeyBlockAllocator<Object>> pkAllocators = new ConcurrentHashMap<String, ERXPrimaryKeyBlockAllocator<Object>>();
 		private int defaultBatchSize = ERXProperties.intForKeyWithDefault("er.extensions.ERXPrimaryKeyBatchSize", -1);
-		
+
 		/**
 		 * Batch-fetches new primary keys. Set the property
 		 * <code> er.extensions.ERXPrimaryKeyBatchSize</code> to a number
 		 * larger than 0. Also, you can fine-tune the size by adding a key
 		 * <code>ERXPrimaryKeyBatchSize</code> to your model or entity user
 		 * info.
+		 * <p>
+		 * Each primary key root entity has its own
+		 * {@link ERXPrimaryKeyBlockAllocator}, so inserts into different
+		 * entities don't wait on each other. When a quarter of a batch is left
+		 * (see <code>er.extensions.ERXPrimaryKeyBatchWatermark</code>), the next
+		 * batch is fetched with this channel while other threads keep using the
+		 * current one.
 		 */
 		public NSArray primaryKeysForNewRowsWithEntity(int cnt, EOEntity entity) {
 			if (defaultBatchSize > 0) {
-				synchronized (pkCache) {
-					String key = entity.primaryKeyRootName();
-					NSMutableArray pks = pkCache.objectForKey(key);
-					if (pks == null) {
-						pks = new NSMutableArray();
-						pkCache.setObjectForKey(pks, key);
+				final EOEntity batchEntity = entity;
+				final int size = batchSizeForEntity(entity);
+				String key = entity.primaryKeyRootName();
+				ERXPrimaryKeyBlockAllocator<Object> allocator = pkAllocators.get(key);
+				if (allocator == null) {
+					int watermark = ERXProperties.intForKeyWithDefault("er.extensions.ERXPrimaryKeyBatchWatermark", size / 4);
+					allocator = new ERXPrimaryKeyBlockAllocator<Object>(watermark, null);
+					ERXPrimaryKeyBlockAllocator<Object> existingAllocator = pkAllocators.putIfAbsent(key, allocator);
+					if (existingAllocator != null) {
+						allocator = existingAllocator;
 					}
-					if (pks.count() < cnt) {
-						Object batchSize = (entity.userInfo() != null ? entity.userInfo().objectForKey("ERXPrimaryKeyBatchSize") : null);
-						if (batchSize == null) {
-							batchSize = (entity.model().userInfo() != null ? entity.model().userInfo().objectForKey("ERXPrimaryKeyBatchSize") : null);
-						}
-						if (batchSize == null) {
-							batchSize = ERXProperties.stringForKey("er.extensions.ERXPrimaryKeyBatchSize");
-						}
-						int size = defaultBatchSize;
-						if (batchSize != null) {
-							size = ERXValueUtilities.intValue(batchSize);
+				}
+				List<Object> batch = allocator.nextKeys(cnt, new ERXPrimaryKeyBlockAllocator.BlockSource<Object>() {
+					public ERXPrimaryKeyBlockAllocator.Block<Object> fetchBlock(int minimumCount) {
+						NSArray pks = _plugIn().newPrimaryKeys(Math.max(size, minimumCount), batchEntity, Channel.this);
+						if (pks == null || pks.count() == 0) {
+							throw new EOGeneralAdaptorException("The plugin " + _plugIn().getClass().getName() + " returned no primary keys for " + batchEntity.name() + ".");
 						}
-						pks.addObjectsFromArray(_plugIn().newPrimaryKeys(size + cnt, entity, this));
-					}
-					NSMutableArray batch = new NSMutableArray();
-					for (Iterator iterator = pks.iterator(); iterator.hasNext() && --cnt >= 0;) {
-						Object pk = iterator.next();
-						batch.addObject(pk);
-						iterator.remove();
+						return new ERXPrimaryKeyBlockAllocator.ArrayBlock<Object>(pks);
 					}
-					return batch;
-				}
+				});
+				return new NSArray(batch.toArray());
 			}
 			return _plugIn().newPrimaryKeys(cnt, entity, this);
 		}
+
+		private int batchSizeForEntity(EOEntity entity) {
+			Object batchSize = (entity.userInfo() != null ? entity.userInfo().objectForKey("ERXPrimaryKeyBatchSize") : null);
+			if (batchSize == null) {
+				batchSize = (entity.model().userInfo() != null ? entity.model().userInfo().objectForKey("ERXPrimaryKeyBatchSize") : null);
+			}
+			if (batchSize == null) {
+				batchSize = ERXProperties.stringForKey("er.extensions.ERXPrimaryKeyBatchSize");
+			}
+			int size = defaultBatchSize;
+			if (batchSize != null) {
+				size = ERXValueUtilities.intValue(batchSize);
+			}
+			return size;
+		}
 		
 		private void cleanup() {
 			Boolean value = (Boolean) ERXKeyValueCodingUtilities.privateValueForKey(this, "_beganTransaction");
@@ -228,10 +581,35 @@ public class ERXJDBCAdaptor extends JDBCAdaptor {
 		}
 		
 		/**
-		 * Overridden to clean up after a transaction fails.
+		 * Sets the number of rows the driver should get from the database in
+		 * one round trip for the result sets of the following selects, 0 to
+		 * use the driver's default. The fetch size is set on the statement
+		 * before it is executed, and the connection is switched out of
+		 * autocommit for it, as PostgreSQL only uses a cursor then. MySQL also
+		 * needs <code>useCursorFetch=true</code> in the URL, otherwise it reads
+		 * the whole result when the statement is executed.
+		 * 
+		 * @param fetchSize
+		 *            the number of rows per round trip
+		 */
+		public void setFetchSize(int fetchSize) {
+			_fetchSize = fetchSize;
+		}
+
+		/**
+		 * Returns the fetch size hint, 0 for the driver's default.
+		 */
+		public int fetchSize() {
+			return _fetchSize;
+		}
+
+		/**
+		 * Overridden to clean up after a transaction fails and to apply the
+		 * fetch size.
 		 */
 		@Override
 		public void evaluateExpression(EOSQLExpression eosqlexpression) {
+			boolean appliesFetchSize = beginStatementFetchSize();
 			try {
 				super.evaluateExpression(eosqlexpression);
 			}
@@ -239,6 +617,11 @@ public class ERXJDBCAdaptor extends JDBCAdaptor {
 				cleanup();
 				throw ex;
 			}
+			finally {
+				if (appliesFetchSize) {
+					((Context) adaptorContext()).endStatementFetchSize();
+				}
+			}
 		}
 		
 		/**
@@ -295,15 +678,76 @@ public class ERXJDBCAdaptor extends JDBCAdaptor {
 			super(eoadaptor);
 		}
 
+		private Connection _connectionWithoutFetchSize;
+
 		private void freeConnection() {
 			if (useConnectionBroker()) {
 				if (_jdbcConnection != null) {
+					if (_connectionWithoutFetchSize != null) {
+						_jdbcConnection = _connectionWithoutFetchSize;
+						_connectionWithoutFetchSize = null;
+					}
 					((ERXJDBCAdaptor) adaptor()).freeConnection(_jdbcConnection);
 					_jdbcConnection = null;
 				}
 			}
 		}
 
+		/**
+		 * JDBCChannel creates and executes its statements privately, so to set
+		 * the fetch size before a select is executed, the connection is
+		 * replaced with one that sets it on every statement it creates, until
+		 * {@link #endStatementFetchSize()} is called.
+		 * 
+		 * @param fetchSize
+		 *            the fetch size
+		 * @return whether the fetch size is applied and has to be ended
+		 */
+		protected boolean beginStatementFetchSize(final int fetchSize) {
+			if (_connectionWithoutFetchSize != null) {
+				return false;
+			}
+			checkoutConnection();
+			if (_jdbcConnection == null) {
+				return false;
+			}
+			final Connection connection = _jdbcConnection;
+			_connectionWithoutFetchSize = connection;
+			_jdbcConnection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[] { Connection.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					Object result;
+					try {
+						result = method.invoke(connection, args);
+					}
+					catch (InvocationTargetException e) {
+						throw e.getTargetException();
+					}
+					if (result instanceof Statement) {
+						// PostgreSQL reads the whole result unless the statement runs in a transaction
+						if (connection.getAutoCommit()) {
+							connection.setAutoCommit(false);
+						}
+						((Statement) result).setFetchSize(fetchSize);
+					}
+					return result;
+				}
+			});
+			return true;
+		}
+
+		/**
+		 * Puts back the connection that was replaced by
+		 * {@link #beginStatementFetchSize(int)}.
+		 */
+		protected void endStatementFetchSize() {
+			if (_connectionWithoutFetchSize != null) {
+				if (_jdbcConnection != null) {
+					_jdbcConnection = _connectionWithoutFetchSize;
+				}
+				_connectionWithoutFetchSize = null;
+			}
+		}
+
 		/**
 		 * Re-implemented to fix: http://www.mail-archive.com/dspace-tech@lists.sourceforge.net/msg06063.html.
 		 * We could also use the delegate, but where would be the fun in that?
@@ -1,5 +1,6 @@
 package er.extensions.jdbc;
 
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -7,8 +8,19 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.ObjectName;
 
 import org.apache.log4j.Logger;
 
@@ -22,19 +34,22 @@ import com.webobjects.eocontrol.EOObjectStore;
 import com.webobjects.eocontrol.EOObjectStoreCoordinator;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.jdbcadaptor.JDBCAdaptor;
 import com.webobjects.jdbcadaptor.JDBCPlugIn;
 
 import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXValueUtilities;
+import er.extensions.statistics.ERXHistogram;
+import er.extensions.statistics.ERXStats;
 
 /**
  * Creates and manages a pool of JDBC connections. Useful for SQL statements without
- * using / blocking EOF. Maintains one broker per each distinct connection dictionary. 
- * Connections are created on demand but not freed.  You can change the behaviour of the 
- * broker by setting some parameters either via the system properties as 
- * <code>dbSomePropertyGLOBAL</code>, <code>ModelName.DBSomeProperty</code> or as 
- * <code>someProperty</code> in the connection dictionary. 
+ * using / blocking EOF. Maintains one broker per each distinct connection dictionary.
+ * Connections are created on demand but not freed.  You can change the behaviour of the
+ * broker by setting some parameters either via the system properties as
+ * <code>dbSomePropertyGLOBAL</code>, <code>ModelName.DBSomeProperty</code> or as
+ * <code>someProperty</code> in the connection dictionary.
  * <dl>
  * <dt>minConnections</dt>
  * <dd>Minimum number of connections, default 1</dd>
@@ -44,9 +59,19 @@ import er.extensions.foundation.ERXValueUtilities;
  * <dd>Maximum number of seconds a connection should stay checked out, default 600</dd>
  * <dt>connectionRecycle</dt>
  * <dd>Number of days a connection should stay active, default 1.0</dd>
+ * <dt>checkoutTimeout</dt>
+ * <dd>Maximum number of seconds to wait for a free connection, default 20</dd>
+ * <dt>validationIdleTime</dt>
+ * <dd>Connections that have been idle for more than this number of seconds are
+ * validated with the ping statement before they are handed out, default 0 (off)</dd>
  * </dl>
  * The {@link er.extensions.components.ERXConfigurationManager} adds these entries to each
  * EOModels connectionDictionary.<br/>
+ * Free connections are kept in a fair queue: threads get connections in the order they
+ * asked for them, and a thread that can't get one within <code>checkoutTimeout</code>
+ * gets an IllegalStateException. Wait and hold times are recorded in histograms, see
+ * {@link #statistics()}. If <code>er.extensions.ERXJDBCConnectionBroker.registerMBean</code>
+ * is true, each broker is also registered with the platform MBean server.<br/>
  * Usage: check out a connection: <br/><code>
  * <pre>
  * java.sql.Connection con = ERXJDBCConnectionBroker.connectionBrokerForModel(myModel).getConnection();
@@ -64,7 +89,7 @@ import er.extensions.foundation.ERXValueUtilities;
 
 // CHECKME ak: How should the maxCheckout stuff work? We can't really close a
 // connection while it still active??
-public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker {
+public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker, ERXJDBCConnectionBrokerMBean {
 
     public static final Logger log = Logger.getLogger(ERXJDBCConnectionBroker.class);
 
@@ -74,18 +99,43 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
 
     private Thread pinger;
 
-    private ConnectionWrapper[] wrappers;
+    /** All wrappers that were ever created, indexed by the slot they were created for. */
+    private AtomicReferenceArray<ConnectionWrapper> wrappers;
+
+    /** The free wrappers, in the order they were returned. */
+    private ArrayBlockingQueue<ConnectionWrapper> idleWrappers;
+
+    private ConcurrentHashMap<Connection, ConnectionWrapper> wrappersByConnection = new ConcurrentHashMap<Connection, ConnectionWrapper>();
+
+    /** Connections the reaper recycled while they were checked out, until their client frees them. */
+    private Map<Connection, Boolean> reapedConnections = Collections.synchronizedMap(new WeakHashMap<Connection, Boolean>());
 
     private String dbDriver, dbServer, dbLogin, dbPassword;
 
-    private int activeConnections, lastRoundRobinIndex, minimumConnections, maximumConnections, maxCheckoutMillis;
+    private AtomicInteger activeConnections = new AtomicInteger();
+
+    private int minimumConnections, maximumConnections, maxCheckoutMillis, checkoutTimeoutMillis, validationIdleMillis;
 
     long maxConnectionMillis;
 
-    private boolean active = true;
+    private volatile boolean active = true;
 
     private boolean supportsTransactions = false;
 
+    private ObjectName mbeanName;
+
+    private final AtomicInteger waitingThreads = new AtomicInteger();
+
+    private final AtomicLong checkoutCount = new AtomicLong();
+
+    private final AtomicLong checkoutTimeoutCount = new AtomicLong();
+
+    private final AtomicLong validationFailureCount = new AtomicLong();
+
+    private final ERXHistogram waitTimes = new ERXHistogram();
+
+    private final ERXHistogram holdTimes = new ERXHistogram();
+
     private static final int DEFAULTMAXCHECKOUTSECONDS = 600;
 
     public static ERXJDBCConnectionBroker connectionBrokerForModelWithName(String modelName) {
@@ -153,6 +203,8 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
         ", dbServer = " + dbServer +
         ", dbLogin = " + dbLogin +
         ", activeConnections = " + activeConnections +
+        ", idleConnections = " + (idleWrappers != null ? idleWrappers.size() : 0) +
+        ", waitingThreads = " + waitingThreads +
         ", maximumConnections = " + maximumConnections +
         ", maxCheckoutMillis = " + maxCheckoutMillis +
         ", maxConnectionMillis = " + maxConnectionMillis;
@@ -163,7 +215,7 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
         dbServer = (String) dict.objectForKey("URL");
         dbLogin = (String) dict.objectForKey("username");
         dbPassword = (String) dict.objectForKey("password");
-        
+
         if (dbDriver == null || dbDriver.length() == 0) {
         	JDBCAdaptor jdbcAdaptor = new JDBCAdaptor("JDBC");
         	jdbcAdaptor.setConnectionDictionary(dict);
@@ -175,10 +227,18 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
 		maximumConnections = ERXValueUtilities.intValueWithDefault((String) dict.objectForKey("maxConnections"), ERXProperties.intForKeyWithDefault("er.extensions.ERXJDBCConnectionBroker.maxConnections", 1));
 		maxCheckoutMillis = ERXValueUtilities.intValueWithDefault((String) dict.objectForKey("maxCheckout"), ERXProperties.intForKeyWithDefault("er.extensions.ERXJDBCConnectionBroker.maxCheckout", maxCheckoutSecond)) * 1000;
 		maxConnectionMillis = ERXValueUtilities.bigDecimalValueWithDefault((String) dict.objectForKey("connectionRecycle"), BigDecimal.valueOf(1)).longValue() * 86400000;
-        
+		checkoutTimeoutMillis = ERXValueUtilities.intValueWithDefault((String) dict.objectForKey("checkoutTimeout"), ERXProperties.intForKeyWithDefault("er.extensions.ERXJDBCConnectionBroker.checkoutTimeout", 20)) * 1000;
+		validationIdleMillis = ERXValueUtilities.intValueWithDefault((String) dict.objectForKey("validationIdleTime"), ERXProperties.intForKeyWithDefault("er.extensions.ERXJDBCConnectionBroker.validationIdleTime", 0)) * 1000;
+
         if (maxConnectionMillis < 30000) { // Recycle no less than 30 seconds.
             maxConnectionMillis = 30000;
         }
+        if (maximumConnections < minimumConnections) {
+            maximumConnections = minimumConnections;
+        }
+        if (maximumConnections < 1) {
+            maximumConnections = 1;
+        }
 
         // Initialize the pool of connections with the mininum connections:
         // Problems creating connections may be caused during reboot when
@@ -188,12 +248,18 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
         boolean success = false;
         int maxTries = 20;
 
-        wrappers = new ConnectionWrapper[maximumConnections];
+        wrappers = new AtomicReferenceArray<ConnectionWrapper>(maximumConnections);
+        // fair, so waiting threads get connections in the order they asked for them
+        idleWrappers = new ArrayBlockingQueue<ConnectionWrapper>(maximumConnections, true);
 
         for (int tries = 1; tries < 20 && !success; tries++) {
             try {
-                for (int j = 0; j < minimumConnections; j++) {
-                    createWrapper();
+                while (activeConnections.get() < minimumConnections) {
+                    ConnectionWrapper wrapper = createWrapper();
+                    if (wrapper == null) {
+                        break;
+                    }
+                    wrapper.release();
                 }
                 success = true;
             } catch (SQLException e) {
@@ -204,7 +270,7 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
                 }
             }
         }
-        if (!success) { 
+        if (!success) {
             throw new IllegalStateException("All attempts at connecting to Database exhausted: " + this);
         }
 
@@ -229,24 +295,31 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
              * prevents the buildup of open cursors. (Open cursors result when the
              * application fails to close a Statement). This method acts as fault
              * tolerance for bad connection/statement programming.
+             *
+             * Free connections are taken out of the pool while they are checked,
+             * so the reaper never blocks getConnection() for more than one
+             * connection at a time.
              */
             public void run() {
                 while (true) {
-                    synchronized (wrappers) {
-                        for (int i = 0; i < activeConnections; i++) {
-                            ConnectionWrapper connection = wrappers[i];
-                            connection.clearWarnings();
+                    for (int i = 0; i < wrappers.length(); i++) {
+                        ConnectionWrapper connection = wrappers.get(i);
+                        if (connection == null) {
+                            continue;
                         }
-                    }
-                    synchronized (wrappers) {
-                        for (int i = 0; i < activeConnections; i++) { 
-                            ConnectionWrapper connection = wrappers[i];
+                        if (idleWrappers.remove(connection)) {
                             try {
-                                connection.reap(maxCheckoutMillis, maxConnectionMillis);
+                                connection.clearWarnings();
+                                connection.reap(maxConnectionMillis);
+                                connection.release();
                             } catch (SQLException e) {
-                                log.error("Error while reaping: " + connection);
+                                log.error("Error while reaping, discarding: " + connection, e);
+                                discard(connection);
                             }
                         }
+                        else if (connection.reapIfOverdue(maxCheckoutMillis)) {
+                            connection.release();
+                        }
                     }
                     try {
                         Thread.sleep(20000);
@@ -254,14 +327,14 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
                         return;
                     }
                 }
-            }        
+            }
 
             /**
              * Less safe shutdown. Uses default timeout value. This method simply
              * calls the <code>destroy()</code> method with a <code>millis</code>
              * value of 10000 (10 seconds) and ignores <code>SQLException</code>
              * thrown by that method.
-             * 
+             *
              * @see #destroy(int)
              */
             public void destroy() {
@@ -279,10 +352,14 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
             public void run() {
                 log.debug("Starting up ConnectionPing");
                 while (b) {
-                    synchronized (wrappers) {
-                        for (int i = 0; i < wrappers.length; i++) {
-                            ConnectionWrapper connection = wrappers[i];
-                            connection.ping();
+                    for (int i = 0; i < wrappers.length(); i++) {
+                        ConnectionWrapper connection = wrappers.get(i);
+                        if (connection != null && idleWrappers.remove(connection)) {
+                            try {
+                                connection.ping();
+                            } finally {
+                                connection.release();
+                            }
                         }
                     }
                     try {
@@ -300,90 +377,98 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
         pinger.setName("ERXJDBCPinger");
         pinger.setDaemon(true);
         pinger.start();
-        
+
+        if (ERXProperties.booleanForKeyWithDefault("er.extensions.ERXJDBCConnectionBroker.registerMBean", false)) {
+            registerMBean();
+        }
+
         log.info("Started Broker : " + this);
     }
 
+    private void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("er.extensions:type=ERXJDBCConnectionBroker,name=" + ObjectName.quote(dbServer + " " + dbLogin));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+                mbeanName = name;
+            }
+        } catch (Exception e) {
+            log.warn("Could not register MBean for " + this, e);
+        }
+    }
 
     /**
-     * This method hands out the connections in round-robin order. This
+     * Hands out the connection that has been free the longest. This
      * prevents a faulty connection from locking up an application entirely.
      * A browser 'refresh' will get the next connection while the faulty
      * connection is cleaned up by the housekeeping thread.
-     * 
-     * If the min number of threads are ever exhausted, new threads are
-     * added up the the max thread count. Finally, if all threads are in
-     * use, this method waits 2 seconds and tries again, up to ten times.
-     * After that, it returns a null.
+     *
+     * If the min number of connections are ever exhausted, new connections are
+     * added up the the max connection count. Finally, if all connections are in
+     * use, this method waits up to <code>checkoutTimeout</code> seconds for one to
+     * be freed. Waiting threads are served in the order they arrived. If none is
+     * freed in time, an IllegalStateException is thrown.
      */
     public Connection getConnection() {
 
-        Connection result = null;
-
         if (!active) {
             throw new IllegalStateException("Unsuccessful getConnection() request during destroy()");
         }
-        boolean gotOne = false;
-
-        for(int tries = 0; tries <= 10; tries++) {
-
-            int loop = 0;
-            int roundRobin = lastRoundRobinIndex + 1;
-
-            do {
-                if (roundRobin >= activeConnections) {
-                    roundRobin = 0;
-                }
-                synchronized (wrappers) {
-                    ConnectionWrapper connection = wrappers[roundRobin];
-                    if (connection.isFree()) {
-                        lastRoundRobinIndex = roundRobin+1;
-                        connection.lock();
-                        result = connection.getConnection();
-                        return result;
-                    } else {
-                        loop++;
-                        roundRobin++;
-                    }
-                }
-            } while ((!gotOne) && (loop <= activeConnections));
-
-
-            if (!gotOne) {
-                synchronized (this) { 
-                    // Add a new connections to the pool
-                    if (activeConnections < maximumConnections) {
-                        try {
-                            createWrapper();
-                        } catch (SQLException e) {
-                            throw new NSForwardException(e, "Error: Unable to create new connection");
-                        }
-                    }
-                }
+        long startTime = System.currentTimeMillis();
 
-                try {
-                    Thread.sleep(2000);
-                } catch (InterruptedException e) {
-                }
-                log.warn("Connections Exhausted! Will wait and try again in loop " + tries);
+        // don't barge in front of threads that are already waiting
+        ConnectionWrapper wrapper = waitingThreads.get() == 0 ? idleWrappers.poll() : null;
+        if (wrapper == null) {
+            try {
+                wrapper = createWrapper();
+            } catch (SQLException e) {
+                throw new NSForwardException(e, "Error: Unable to create new connection");
+            }
+        }
+        if (wrapper == null) {
+            waitingThreads.incrementAndGet();
+            try {
+                wrapper = idleWrappers.poll(checkoutTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a connection: " + this, e);
+            } finally {
+                waitingThreads.decrementAndGet();
+            }
+            if (wrapper == null) {
+                checkoutTimeoutCount.incrementAndGet();
+                log.warn("Connections Exhausted! No connection was freed within " + checkoutTimeoutMillis + " ms: " + this);
+                throw new IllegalStateException("No new connections found");
             }
         }
-        throw new IllegalStateException("No new connections found");
-    }
 
-    /**
-     * Returns the local JDBC ID for a connection.
-     */
-    private ConnectionWrapper wrapperForConnection(Connection conn) {
-        synchronized (wrappers) {
-            for (int i = 0; i < activeConnections; i++) {
-                ConnectionWrapper connection = wrappers[i];
-                if (connection.getConnection() == conn) {
-                    return connection;
-                }
+        long waitMillis = System.currentTimeMillis() - startTime;
+        waitTimes.add(waitMillis);
+        checkoutCount.incrementAndGet();
+        if (ERXStats.isTrackingStatistics()) {
+            ERXStats.addDurationForKey(waitMillis, ERXStats.Group.SQL, "ERXJDBCConnectionBroker.getConnection");
+        }
+
+        if (validationIdleMillis > 0 && wrapper.idleMillis() > validationIdleMillis && !wrapper.validate()) {
+            validationFailureCount.incrementAndGet();
+            // the invalid connection is closed even if no new one can be opened, so it must not go back to the pool
+            try {
+                wrapper.recycle();
+            } catch (SQLException e) {
+                discard(wrapper);
+                throw new NSForwardException(e, "Error: Unable to recycle invalid connection");
+            } catch (RuntimeException e) {
+                discard(wrapper);
+                throw e;
             }
-            return null;
         }
+        try {
+            wrapper.lock();
+        } catch (RuntimeException e) {
+            wrapper.release();
+            throw e;
+        }
+        return wrapper.getConnection();
     }
 
     /**
@@ -391,9 +476,12 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
      * reuse.
      */
     public void freeConnection(Connection conn) {
-        ConnectionWrapper wrapper = wrapperForConnection(conn);
+        ConnectionWrapper wrapper = conn != null ? wrappersByConnection.get(conn) : null;
         if (wrapper != null) {
-            wrapper.unlock();
+            holdTimes.add(wrapper.unlock());
+            wrapper.release();
+        } else if (conn != null && reapedConnections.remove(conn) != null) {
+            log.debug("Connection was already recycled by the reaper: " + conn);
         } else {
             log.error("Could not free connection: " + conn);
         }
@@ -409,13 +497,51 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
         }
     }
 
-    private synchronized void createWrapper() throws SQLException {
-        if(wrappers[activeConnections] == null) {
-            if(activeConnections < maximumConnections) {
-                wrappers[activeConnections] = new ConnectionWrapper(this);
-                activeConnections++;
-            } else {
-                throw new IllegalStateException("Trying to get more wrappers than available: " + activeConnections + " vs " + maximumConnections);
+    /**
+     * Creates a new wrapper if the pool isn't full yet. The new wrapper is
+     * not in the pool of free wrappers, the caller owns it. Returns null if
+     * the pool is full.
+     */
+    private ConnectionWrapper createWrapper() throws SQLException {
+        int slot;
+        do {
+            slot = activeConnections.get();
+            if (slot >= maximumConnections) {
+                return null;
+            }
+        } while (!activeConnections.compareAndSet(slot, slot + 1));
+        // a slot is reserved, so the connection can be opened without holding a lock
+        try {
+            ConnectionWrapper wrapper = new ConnectionWrapper(this);
+            // discarded wrappers free their slot before the count goes down, so there is a free one
+            for (int i = 0; i < wrappers.length(); i++) {
+                if (wrappers.compareAndSet(i, null, wrapper)) {
+                    return wrapper;
+                }
+            }
+            wrapper.close();
+            throw new IllegalStateException("No free slot for a new connection: " + this);
+        } catch (SQLException e) {
+            activeConnections.decrementAndGet();
+            throw e;
+        } catch (RuntimeException e) {
+            activeConnections.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes a wrapper whose connection can't be used anymore and frees its
+     * slot, so a new connection can be opened in its place. The wrapper must
+     * not be in the pool of free wrappers.
+     */
+    private void discard(ConnectionWrapper wrapper) {
+        wrapper.close();
+        wrapper.setConnection(null);
+        for (int i = 0; i < wrappers.length(); i++) {
+            if (wrappers.compareAndSet(i, wrapper, null)) {
+                activeConnections.decrementAndGet();
+                break;
             }
         }
     }
@@ -431,7 +557,7 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
             pinger.join(millis);
         } catch (InterruptedException e) {
         }
-       
+
         // Shut down the background housekeeping thread
         reaper.interrupt();
 
@@ -452,7 +578,7 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
         // that are still used at this time.
         int openChannelCount;
         long elapsed = System.currentTimeMillis() - startTime;
-        while ((openChannelCount = getOpenChannelCount()) > 0 
+        while ((openChannelCount = getOpenChannelCount()) > 0
                 && elapsed <= millis) {
             try {
                 Thread.sleep(500);
@@ -462,8 +588,21 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
         }
 
         // Close all connections, whether safe or not
-        for (int i = 0; i < activeConnections; i++) {
-            wrappers[i].close();
+        idleWrappers.clear();
+        for (int i = 0; i < wrappers.length(); i++) {
+            ConnectionWrapper wrapper = wrappers.get(i);
+            if (wrapper != null) {
+                wrapper.close();
+            }
+        }
+
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                log.warn("Could not unregister MBean " + mbeanName, e);
+            }
+            mbeanName = null;
         }
 
         if (openChannelCount > 0) {
@@ -477,11 +616,10 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
 
     private int getOpenChannelCount() {
         int useCount = 0;
-        synchronized (wrappers) {
-            for (int i = 0; i < activeConnections; i++) {
-                if (!wrappers[i].isFree()) { 
-                    useCount++;
-                }
+        for (int i = 0; i < wrappers.length(); i++) {
+            ConnectionWrapper wrapper = wrappers.get(i);
+            if (wrapper != null && wrapper.isBusy()) {
+                useCount++;
             }
         }
         return useCount;
@@ -491,33 +629,128 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
         return supportsTransactions;
     }
 
+    /**
+     * Returns the pool sizes, checkout counts and the wait and hold time
+     * histograms of this broker.
+     */
+    public NSDictionary<String, Object> statistics() {
+        NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<String, Object>();
+        statistics.setObjectForKey(Integer.valueOf(getMaximumConnections()), "maximumConnections");
+        statistics.setObjectForKey(Integer.valueOf(getOpenConnections()), "openConnections");
+        statistics.setObjectForKey(Integer.valueOf(getBusyConnections()), "busyConnections");
+        statistics.setObjectForKey(Integer.valueOf(getIdleConnections()), "idleConnections");
+        statistics.setObjectForKey(Integer.valueOf(getWaitingThreads()), "waitingThreads");
+        statistics.setObjectForKey(Long.valueOf(getCheckoutCount()), "checkouts");
+        statistics.setObjectForKey(Long.valueOf(getCheckoutTimeoutCount()), "checkoutTimeouts");
+        statistics.setObjectForKey(Long.valueOf(getValidationFailureCount()), "validationFailures");
+        statistics.setObjectForKey(waitTimes.summary(), "waitMillis");
+        statistics.setObjectForKey(holdTimes.summary(), "holdMillis");
+        return statistics;
+    }
+
+    public String getURL() {
+        return dbServer;
+    }
+
+    public int getMaximumConnections() {
+        return maximumConnections;
+    }
+
+    public int getOpenConnections() {
+        return activeConnections.get();
+    }
+
+    public int getBusyConnections() {
+        return getOpenChannelCount();
+    }
+
+    public int getIdleConnections() {
+        return idleWrappers.size();
+    }
+
+    public int getWaitingThreads() {
+        return waitingThreads.get();
+    }
+
+    public long getCheckoutCount() {
+        return checkoutCount.get();
+    }
+
+    public long getCheckoutTimeoutCount() {
+        return checkoutTimeoutCount.get();
+    }
+
+    public long getValidationFailureCount() {
+        return validationFailureCount.get();
+    }
+
+    public double getAverageWaitMillis() {
+        return waitTimes.average();
+    }
+
+    public long getWaitMillis95thPercentile() {
+        return waitTimes.percentile(95);
+    }
+
+    public long getMaxWaitMillis() {
+        return waitTimes.max();
+    }
+
+    public double getAverageHoldMillis() {
+        return holdTimes.average();
+    }
+
+    public long getHoldMillis95thPercentile() {
+        return holdTimes.percentile(95);
+    }
+
+    public long getMaxHoldMillis() {
+        return holdTimes.max();
+    }
+
+    public void resetStatistics() {
+        checkoutCount.set(0);
+        checkoutTimeoutCount.set(0);
+        validationFailureCount.set(0);
+        waitTimes.reset();
+        holdTimes.reset();
+    }
+
+    /**
+     * Wraps one pooled connection. A wrapper is either in the broker's queue of
+     * free wrappers (FREE), checked out by a client (BUSY), or held by the
+     * broker or its housekeeping threads while it is handed out, pinged or
+     * reaped (OFFLINE). State changes are synchronized on the wrapper.
+     */
     private static class ConnectionWrapper {
         private String pingStatement = ERXProperties.stringForKeyWithDefault("er.extensions.ERXJDBCConnectionBroker.connectionPingSQL", "SELECT 1+1;");
-    
+
         private static final int FREE = 0;
-    
+
         private static final int BUSY = 1;
-    
+
         private static final int OFFLINE = 2;
-    
+
         private Connection connection;
-    
+
         private ERXJDBCConnectionBroker broker;
-    
+
         private int status;
-    
+
         private long lockTime;
-    
+
         private long creationDate;
-    
+
+        private long idleSince;
+
         private ConnectionWrapper(ERXJDBCConnectionBroker broker) throws SQLException {
             this.broker = broker;
-            this.connection = broker.createConnection();
-            this.status = FREE;
+            this.status = OFFLINE;
             this.lockTime = 0;
+            setConnection(broker.createConnection());
         }
-    
-        public String toString() {
+
+        public synchronized String toString() {
             return getClass().getName()  +
             ": connection = " + connection +
             ": status = " + status +
@@ -525,164 +758,228 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
             ": creationDate = " + creationDate;
         }
 
-        public Connection getConnection() {
+        public synchronized Connection getConnection() {
             return connection;
         }
 
-        public void setConnection(Connection connection) {
+        public synchronized void setConnection(Connection connection) {
+            if (this.connection != null) {
+                broker.wrappersByConnection.remove(this.connection);
+            }
             this.creationDate = (new Date()).getTime();
             this.connection = connection;
+            if (connection != null) {
+                broker.wrappersByConnection.put(connection, this);
+            }
         }
-    
-        public long getCreationDate() {
+
+        public synchronized long getCreationDate() {
             return creationDate;
         }
-    
-        public void setCreationDate(long creationDate) {
-            this.creationDate = creationDate;
-        }
-    
-        public long getLockTime() {
+
+        public synchronized long getLockTime() {
             return lockTime;
         }
-    
-        public void setLockTime(long lockTime) {
-            this.lockTime = lockTime;
-        }
-    
-        public int getStatus() {
-            return status;
+
+        public synchronized boolean isBusy() {
+            return status == BUSY;
         }
-    
-        public void setStatus(int status) {
-            this.status = status;
+
+        public synchronized long idleMillis() {
+            return System.currentTimeMillis() - idleSince;
         }
-    
-        public boolean isFree() {
-            if(getStatus() == FREE) {
-                return true;
+
+        /**
+         * Puts this wrapper (back) into the broker's queue of free wrappers.
+         */
+        public void release() {
+            synchronized (this) {
+                status = FREE;
+                lockTime = 0L;
+                idleSince = System.currentTimeMillis();
             }
-            return false;
+            broker.idleWrappers.offer(this);
         }
 
-        private void close() {
+        private synchronized void close() {
             try {
-                if(getConnection() != null) {
-                    getConnection().close();
+                if(connection != null) {
+                    connection.close();
                     setConnection(null);
-                    setStatus(OFFLINE);
+                    status = OFFLINE;
                 }
             } catch (SQLException ex) {
                 log.warn("Cannot close connection: " + this,  ex);
             }
         }
-    
-        public void unlock() {
-            if(getStatus() != BUSY) {
+
+        /**
+         * Takes this wrapper back from a client and returns how long it was
+         * checked out.
+         */
+        public synchronized long unlock() {
+            if(status != BUSY) {
                 throw new IllegalStateException("Attempt to unlock non-busy channel: " + this);
             }
-            setStatus(FREE);
-            setLockTime(0L);
+            long holdMillis = System.currentTimeMillis() - lockTime;
+            status = OFFLINE;
             try {
-                if (getConnection().isReadOnly()) {
-                    getConnection().setReadOnly(true);
+                if (connection.isReadOnly()) {
+                    connection.setReadOnly(true);
                 }
                 // AK: PG MUST and other probably should have set the autocommit to true on putting back in pool
-                if(!getConnection().getAutoCommit()) {
-                	getConnection().setAutoCommit(true);
+                if(!connection.getAutoCommit()) {
+                	connection.setAutoCommit(true);
                 }
 			}
 			catch (SQLException e) {
 				log.error(e, e);
 			}
+			return holdMillis;
        }
-    
-        public void lock() {
-            if(!isFree()) {
+
+        public synchronized void lock() {
+            if(status == BUSY) {
                 throw new IllegalStateException("Attempt to lock busy channel: " + this);
             }
-            setStatus(OFFLINE);
-            setLockTime(System.currentTimeMillis());
+            status = OFFLINE;
+            lockTime = System.currentTimeMillis();
             try {
-                if (getConnection().isReadOnly()) {
-                    getConnection().setReadOnly(false);
+                if (connection.isReadOnly()) {
+                    connection.setReadOnly(false);
                 }
-                if(getConnection().getAutoCommit()) {
-                	getConnection().setAutoCommit(false);
+                if(connection.getAutoCommit()) {
+                	connection.setAutoCommit(false);
                 }
             } catch (SQLException e) {
                 throw new NSForwardException(e, "Could not set read only to false for connection: "+ this);
             } finally {
-                setStatus(BUSY);
+                status = BUSY;
             }
         }
-    
-        private void clearWarnings() {
+
+        private synchronized void clearWarnings() {
             try {
-                SQLWarning warning = getConnection().getWarnings();
+                SQLWarning warning = connection.getWarnings();
                 if (warning != null) {
                     log.warn("Warnings on connection " + this + ": " + warning);
-                    getConnection().clearWarnings();
+                    connection.clearWarnings();
                 }
             } catch (SQLException e) {
                 log.warn("Cannot access Warnings: " + e);
             }
         }
-    
-        private void ping() {
-            if (isFree()) {
-                setStatus(OFFLINE);
-                Connection c = getConnection();
-                log.debug("Pinging connection " + connection);
+
+        private synchronized void ping() {
+            status = OFFLINE;
+            Connection c = connection;
+            log.debug("Pinging connection " + connection);
+            try {
+                c.isClosed();
+                c.setReadOnly(false);
+                ResultSet rs = c.createStatement().executeQuery(pingStatement);
+                if(rs == null) {
+                	// nothing
+                }
+            } catch (SQLException e) {
+                log.error("Could not ping connection " + c + ", reason: " + e.getMessage(), e);
+            } finally {
+                try {
+                    c.rollback();
+                } catch (SQLException e1) {
+                    throw new NSForwardException(e1, "could not rollback connection!");
+                }
+            }
+        }
+
+        /**
+         * Runs the ping statement on a connection that is about to be handed
+         * out after sitting idle. Returns false if it failed.
+         */
+        private synchronized boolean validate() {
+            Statement stmt = null;
+            try {
+                if (connection.isClosed()) {
+                    return false;
+                }
+                stmt = connection.createStatement();
+                stmt.executeQuery(pingStatement);
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+                return true;
+            } catch (SQLException e) {
+                log.info("Connection failed validation after " + idleMillis() + " ms idle, recycling: " + this + ", reason: " + e.getMessage());
+                return false;
+            } finally {
                 try {
-                    c.isClosed();
-                    c.setReadOnly(false);
-                    ResultSet rs = c.createStatement().executeQuery(pingStatement);
-                    if(rs == null) {
-                    	// nothing
+                    if (stmt != null) {
+                        stmt.close();
                     }
                 } catch (SQLException e) {
-                    log.error("Could not ping connection " + c + ", reason: " + e.getMessage(), e);
-                } finally {
-                    try {
-                        c.rollback();
-                    } catch (SQLException e1) {
-                        throw new NSForwardException(e1, "could not rollback connection!");
-                    }
+                    // ignore
                 }
-                setStatus(FREE);
             }
         }
 
-        private void reap(long maxCheckoutMillis, long maxConnectionAgeMillis) throws SQLException {
+        private synchronized void recycle() throws SQLException {
+            log.debug("Recycling connection: " + this);
+
+            try {
+                connection.close();
+            } catch (SQLException e0) {
+                log.error("Can't close connection, might have been closed already.  Trying to recycle anyway");
+            }
+
+            setConnection(broker.createConnection());
+        }
+
+        /**
+         * Recycles a connection that has been checked out for longer than
+         * maxCheckoutMillis. Returns true if it did, in which case the caller
+         * has to release the wrapper.
+         */
+        private synchronized boolean reapIfOverdue(long maxCheckoutMillis) {
+            if (status != BUSY || maxCheckoutMillis == 0) {
+                return false;
+            }
+            // Check the time it's been checked out and recycle
+            long checkoutMillis = System.currentTimeMillis() - lockTime;
+            log.debug("Connection is in use for " + checkoutMillis + " ms: " + this);
+            if (checkoutMillis <= maxCheckoutMillis) {
+                // In normal use and not too old, catch it next time!
+                return false;
+            }
+            log.info("Connection " + this + " failed to be returned in time, recycling");
+            // Take offline (2 indicates housekeeping lock)
+            status = OFFLINE;
+            if (connection != null) {
+                broker.reapedConnections.put(connection, Boolean.TRUE);
+            }
+            try {
+                recycle();
+            } catch (SQLException e) {
+                log.error("Error while reaping: " + this, e);
+            }
+            return true;
+        }
+
+        /**
+         * Checks a free connection that the reaper took out of the pool and
+         * recycles it if it is too old or broken.
+         */
+        private synchronized void reap(long maxConnectionAgeMillis) throws SQLException {
             boolean restart = false;
-            Connection reapingConnection = getConnection();
+            Connection reapingConnection = connection;
+            // Take offline (2 indicates housekeeping lock)
+            status = OFFLINE;
             try {
-                if(!isFree()) { 
-                    // Check the time it's been checked out and recycle
-                    long checkoutMillis = System.currentTimeMillis() - getLockTime();
-                    log.debug("Connection is in use for " + checkoutMillis + " ms: " + this);
-                    if (maxCheckoutMillis != 0) {
-                        if (checkoutMillis > maxCheckoutMillis) {
-                            restart = true;
-                            log.info("Connection " + this + " failed to be returned in time, recycling");
-                        }
-                    }
-                    if(!restart) {
-                    	// In normal use and not too old, catch it next time!
-                    	return;
-                    }
-                }
-                // Take offline (2 indicates housekeeping lock)
-                setStatus(OFFLINE); 
-                if(!restart) {
-                    long connectionAgeMillis = System.currentTimeMillis() - getCreationDate();
-                    if (connectionAgeMillis > maxConnectionAgeMillis) { 
-                        // Force a reset at the max conn time
-                        restart = true;
-                    }
+                long connectionAgeMillis = System.currentTimeMillis() - creationDate;
+                if (connectionAgeMillis > maxConnectionAgeMillis) {
+                    // Force a reset at the max conn time
+                    restart = true;
                 }
-                
+
                 if(!restart) {
                     Statement stmt = null;
                     try {
@@ -702,7 +999,7 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
 
                 if(!restart) {
                     // Some DBs return an object even if DB is shut down
-                    if (reapingConnection.isClosed()) { 
+                    if (reapingConnection.isClosed()) {
                         restart = true;
                     }
                 }
@@ -712,17 +1009,8 @@ public class ERXJDBCConnectionBroker implements ERXJDBCAdaptor.ConnectionBroker
                 restart = true;
             }
             if(restart) {
-                log.debug("Recycling connection: " + this);
-
-                try {
-                    getConnection().close();
-                } catch (SQLException e0) {
-                    log.error("Can't close connection, might have been closed already.  Trying to recycle anyway");
-                }
-
-                setConnection(broker.createConnection());
+                recycle();
             }
-            setStatus(FREE);
         }
     }
 }
@@ -0,0 +1,41 @@
+package er.extensions.jdbc;
+
+/**
+ * JMX view of an {@link ERXJDBCConnectionBroker}. Brokers register themselves
+ * when <code>er.extensions.ERXJDBCConnectionBroker.registerMBean</code> is true.
+ * Times are in milliseconds; the percentiles come from {@link er.extensions.statistics.ERXHistogram}
+ * buckets and are upper bounds.
+ */
+public interface ERXJDBCConnectionBrokerMBean {
+	public String getURL();
+
+	public int getMaximumConnections();
+
+	public int getOpenConnections();
+
+	public int getBusyConnections();
+
+	public int getIdleConnections();
+
+	public int getWaitingThreads();
+
+	public long getCheckoutCount();
+
+	public long getCheckoutTimeoutCount();
+
+	public long getValidationFailureCount();
+
+	public double getAverageWaitMillis();
+
+	public long getWaitMillis95thPercentile();
+
+	public long getMaxWaitMillis();
+
+	public double getAverageHoldMillis();
+
+	public long getHoldMillis95thPercentile();
+
+	public long getMaxHoldMillis();
+
+	public void resetStatistics();
+}
@@ -5,7 +5,18 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.log4j.Logger;
 
@@ -24,12 +35,15 @@ import er.extensions.eof.ERXDatabase;
 import er.extensions.eof.ERXObjectStoreCoordinatorSynchronizer.IChangeListener;
 import er.extensions.eof.ERXObjectStoreCoordinatorSynchronizer.RemoteChange;
 import er.extensions.foundation.ERXProperties;
+import er.extensions.statistics.ERXHistogram;
 
 /**
  * The superclass of all remote EOF synchronizers.
  * 
  * @property er.extensions.remoteSynchronizer.enabled if true, remote synchronization is enabled
  * @property er.extensions.remoteSynchronizer the class name of the remote synchronizer to use (default to ERXSimpleMulticastSynchronizer)
+ * @property er.extensions.remoteSynchronizer.coalesceWindow milliseconds to collect outgoing changes before they are sent together; repeated changes to the same GID within the window are sent once (defaults to 0, send every transaction immediately)
+ * @property er.extensions.remoteSynchronizer.compressFrames whether change frames larger than 128 bytes are deflated (defaults to true)
  * 
  * @author mschrag
  */
@@ -59,6 +73,18 @@ public abstract class ERXRemoteSynchronizer {
 	private static final int DELETE = 5;
 	private static final int TO_MANY_UPDATE = 6;
 	private static final int INVALIDATE = 7;
+	/**
+	 * Message type of a change frame, see
+	 * {@link #_writeCacheChangeFrames(NSArray, int)}.
+	 */
+	protected static final int FRAME = 8;
+
+	/** the flags byte in front of each frame body */
+	private static final int FRAME_FLAGS_SIZE = 1;
+	private static final int FRAME_COMPRESSED = 1;
+	private static final int FRAME_COMPRESSION_THRESHOLD = 128;
+	/** sent time (long) and record count (int) */
+	private static final int FRAME_HEADER_SIZE = 12;
 
 	private static final int BYTE_TYPE = 1;
 	private static final int SHORT_TYPE = 2;
@@ -70,6 +96,20 @@ public abstract class ERXRemoteSynchronizer {
 	private IChangeListener _listener;
 	private NSSet _includeEntityNames;
 	private NSSet _excludeEntityNames;
+	private boolean _compressFrames;
+
+	private long _coalesceWindow;
+	private LinkedHashMap<Object, ERXDatabase.CacheChange> _pendingCacheChanges;
+	private Timer _coalesceTimer;
+	private boolean _flushScheduled;
+	private final AtomicInteger _coalescedTransactionID = new AtomicInteger();
+
+	private final AtomicLong _framesSent = new AtomicLong();
+	private final AtomicLong _framesReceived = new AtomicLong();
+	private final AtomicLong _changesSent = new AtomicLong();
+	private final AtomicLong _changesReceived = new AtomicLong();
+	private final AtomicLong _changesCoalesced = new AtomicLong();
+	private final ConcurrentHashMap<String, ERXHistogram> _lagByInstance = new ConcurrentHashMap<String, ERXHistogram>();
 
 	public ERXRemoteSynchronizer(IChangeListener listener) {
 		_listener = listener;
@@ -83,10 +123,20 @@ public abstract class ERXRemoteSynchronizer {
 		if (excludeEntityNames != null) {
 			_excludeEntityNames = new NSSet(NSArray.componentsSeparatedByString(excludeEntityNames, ",").toArray());
 		}
+		_compressFrames = ERXProperties.booleanForKeyWithDefault("er.extensions.remoteSynchronizer.compressFrames", true);
+		_coalesceWindow = ERXProperties.longForKeyWithDefault("er.extensions.remoteSynchronizer.coalesceWindow", 0);
+		if (_coalesceWindow > 0) {
+			_pendingCacheChanges = new LinkedHashMap<Object, ERXDatabase.CacheChange>();
+			_coalesceTimer = new Timer("ERXRemoteSynchronizerCoalescer", true);
+		}
 	}
 
 	protected void _readCacheChange(RemoteChange remoteChange, DataInputStream dis) throws IOException {
 		int messageType = dis.readByte();
+		_readCacheChange(messageType, remoteChange, dis);
+	}
+
+	protected void _readCacheChange(int messageType, RemoteChange remoteChange, DataInputStream dis) throws IOException {
 		if (messageType == ERXRemoteSynchronizer.INSERT) {
 			EOGlobalID gid = readGID(dis);
 			ERXDatabase.SnapshotInserted change = new ERXDatabase.SnapshotInserted(gid, NSDictionary.EmptyDictionary);
@@ -349,14 +399,373 @@ public abstract class ERXRemoteSynchronizer {
 		return filteredCacheChanges;
 	}
 	
+	/**
+	 * Encodes the cache changes into one or more frames of at most
+	 * maxFrameSize bytes (unless a single GID is larger). Snapshot changes are
+	 * grouped by type and entity (see {@link #globalIDsGroupedByEntity(NSArray)}),
+	 * so each entity name is written once per frame instead of once per GID.
+	 * Inserts are written before updates and deletes, to-many changes last.
+	 * Each frame starts with a flags byte and is deflated when that makes it
+	 * smaller, and carries the time it was sent so receivers can measure the
+	 * lag.
+	 * 
+	 * @param cacheChanges
+	 *            the changes to encode
+	 * @param maxFrameSize
+	 *            the maximum size of a frame, including its flags byte
+	 * @return the encoded frames
+	 */
+	protected List<byte[]> _writeCacheChangeFrames(NSArray cacheChanges, int maxFrameSize) throws IOException {
+		NSMutableArray insertedGIDs = new NSMutableArray();
+		NSMutableArray updatedGIDs = new NSMutableArray();
+		NSMutableArray deletedGIDs = new NSMutableArray();
+		NSMutableArray otherChanges = new NSMutableArray();
+		for (Enumeration cacheChangesEnum = cacheChanges.objectEnumerator(); cacheChangesEnum.hasMoreElements();) {
+			ERXDatabase.CacheChange cacheChange = (ERXDatabase.CacheChange) cacheChangesEnum.nextElement();
+			if (cacheChange instanceof ERXDatabase.SnapshotInserted) {
+				insertedGIDs.addObject(cacheChange.gid());
+			}
+			else if (cacheChange instanceof ERXDatabase.SnapshotUpdated) {
+				updatedGIDs.addObject(cacheChange.gid());
+			}
+			else if (cacheChange instanceof ERXDatabase.SnapshotDeleted) {
+				deletedGIDs.addObject(cacheChange.gid());
+			}
+			else {
+				otherChanges.addObject(cacheChange);
+			}
+		}
+		CacheChangeFrameWriter writer = new CacheChangeFrameWriter(maxFrameSize);
+		writer.writeSnapshotChanges(ERXRemoteSynchronizer.INSERT, globalIDsGroupedByEntity(insertedGIDs));
+		writer.writeSnapshotChanges(ERXRemoteSynchronizer.UPDATE, globalIDsGroupedByEntity(updatedGIDs));
+		writer.writeSnapshotChanges(ERXRemoteSynchronizer.DELETE, globalIDsGroupedByEntity(deletedGIDs));
+		for (Enumeration otherChangesEnum = otherChanges.objectEnumerator(); otherChangesEnum.hasMoreElements();) {
+			writer.writeCacheChange((ERXDatabase.CacheChange) otherChangesEnum.nextElement());
+		}
+		List<byte[]> frames = writer.frames();
+		_framesSent.addAndGet(frames.size());
+		_changesSent.addAndGet(cacheChanges.count());
+		return frames;
+	}
+
+	/**
+	 * Reads a frame written by {@link #_writeCacheChangeFrames(NSArray, int)}
+	 * and adds its changes to the remote change.
+	 * 
+	 * @param remoteChange
+	 *            the change to add the cache changes to
+	 * @param dis
+	 *            the stream, positioned at the start of the frame
+	 */
+	protected void _readCacheChangeFrame(RemoteChange remoteChange, DataInputStream dis) throws IOException {
+		int flags = dis.readByte();
+		DataInputStream frameInput = dis;
+		if ((flags & ERXRemoteSynchronizer.FRAME_COMPRESSED) != 0) {
+			frameInput = new DataInputStream(new InflaterInputStream(dis));
+		}
+		long sentTime = frameInput.readLong();
+		int recordCount = frameInput.readInt();
+		int changeCount = 0;
+		for (int recordNum = 0; recordNum < recordCount; recordNum++) {
+			int messageType = frameInput.readByte();
+			if (messageType == ERXRemoteSynchronizer.INSERT || messageType == ERXRemoteSynchronizer.UPDATE || messageType == ERXRemoteSynchronizer.DELETE) {
+				String entityName = frameInput.readUTF();
+				EOEntityClassDescription classDescription = (EOEntityClassDescription) EOEntityClassDescription.classDescriptionForEntityName(entityName);
+				int gidCount = frameInput.readInt();
+				for (int gidNum = 0; gidNum < gidCount; gidNum++) {
+					EOGlobalID gid = _readGID(classDescription, entityName, frameInput);
+					ERXDatabase.CacheChange change;
+					if (messageType == ERXRemoteSynchronizer.INSERT) {
+						change = new ERXDatabase.SnapshotInserted(gid, NSDictionary.EmptyDictionary);
+					}
+					else if (messageType == ERXRemoteSynchronizer.UPDATE) {
+						change = new ERXDatabase.SnapshotUpdated(gid, NSDictionary.EmptyDictionary);
+					}
+					else {
+						change = new ERXDatabase.SnapshotDeleted(gid, NSDictionary.EmptyDictionary);
+					}
+					remoteChange.addRemoteCacheChange(change);
+				}
+				changeCount += gidCount;
+			}
+			else {
+				_readCacheChange(messageType, remoteChange, frameInput);
+				changeCount++;
+			}
+		}
+		long lag = System.currentTimeMillis() - sentTime;
+		ERXHistogram lagHistogram = _lagByInstance.get(remoteChange.identifier());
+		if (lagHistogram == null) {
+			lagHistogram = new ERXHistogram();
+			ERXHistogram existingLagHistogram = _lagByInstance.putIfAbsent(remoteChange.identifier(), lagHistogram);
+			if (existingLagHistogram != null) {
+				lagHistogram = existingLagHistogram;
+			}
+		}
+		lagHistogram.add(lag);
+		_framesReceived.incrementAndGet();
+		_changesReceived.addAndGet(changeCount);
+		if (log.isDebugEnabled()) {
+			log.debug("Remote instance (" + remoteChange.identifier() + ") sent " + changeCount + " changes in a frame, " + lag + " ms ago.");
+		}
+	}
+
+	/**
+	 * Writes change frames, starting a new frame whenever the next GID or
+	 * change would make the current one larger than the maximum size.
+	 */
+	protected class CacheChangeFrameWriter {
+		private final int _maxBodySize;
+		private final List<byte[]> _frames = new ArrayList<byte[]>();
+		private final RefByteArrayOutputStream _scratch = new RefByteArrayOutputStream();
+		private final DataOutputStream _scratchOutput = new DataOutputStream(_scratch);
+		private RefByteArrayOutputStream _frame;
+		private DataOutputStream _frameOutput;
+		private int _recordCount;
+		private int _gidCountOffset = -1;
+		private int _gidCount;
+
+		public CacheChangeFrameWriter(int maxFrameSize) throws IOException {
+			_maxBodySize = maxFrameSize - ERXRemoteSynchronizer.FRAME_FLAGS_SIZE;
+			startFrame();
+		}
+
+		private void startFrame() throws IOException {
+			_frame = new RefByteArrayOutputStream();
+			_frameOutput = new DataOutputStream(_frame);
+			_frameOutput.writeLong(System.currentTimeMillis());
+			_frameOutput.writeInt(0);
+			_recordCount = 0;
+		}
+
+		private boolean hasRoomFor(int size) {
+			return _frame.size() == ERXRemoteSynchronizer.FRAME_HEADER_SIZE || _frame.size() + size <= _maxBodySize;
+		}
+
+		private void closeRecord() {
+			if (_gidCountOffset >= 0) {
+				ERXRemoteSynchronizer.writeInt(_frame.buffer(), _gidCountOffset, _gidCount);
+				_gidCountOffset = -1;
+			}
+		}
+
+		private void finishFrame() throws IOException {
+			closeRecord();
+			if (_recordCount > 0) {
+				_frameOutput.flush();
+				ERXRemoteSynchronizer.writeInt(_frame.buffer(), 8, _recordCount);
+				int flags = 0;
+				byte[] body = _frame.buffer();
+				int bodyLength = _frame.size();
+				if (_compressFrames && bodyLength > ERXRemoteSynchronizer.FRAME_COMPRESSION_THRESHOLD) {
+					RefByteArrayOutputStream compressed = new RefByteArrayOutputStream();
+					DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+					deflater.write(body, 0, bodyLength);
+					deflater.finish();
+					if (compressed.size() < bodyLength) {
+						flags |= ERXRemoteSynchronizer.FRAME_COMPRESSED;
+						body = compressed.buffer();
+						bodyLength = compressed.size();
+					}
+				}
+				byte[] frame = new byte[ERXRemoteSynchronizer.FRAME_FLAGS_SIZE + bodyLength];
+				frame[0] = (byte) flags;
+				System.arraycopy(body, 0, frame, ERXRemoteSynchronizer.FRAME_FLAGS_SIZE, bodyLength);
+				_frames.add(frame);
+			}
+		}
+
+		/**
+		 * Writes one record per entity with all of its GIDs, split across
+		 * frames if necessary.
+		 */
+		public void writeSnapshotChanges(int messageType, NSDictionary gidsByEntityName) throws IOException {
+			for (Enumeration entityNamesEnum = gidsByEntityName.keyEnumerator(); entityNamesEnum.hasMoreElements();) {
+				String entityName = (String) entityNamesEnum.nextElement();
+				NSSet gids = (NSSet) gidsByEntityName.objectForKey(entityName);
+				// type, UTF length and worst case UTF bytes, GID count
+				int recordHeaderSize = 1 + 2 + entityName.length() * 3 + 4;
+				for (Enumeration gidsEnum = gids.objectEnumerator(); gidsEnum.hasMoreElements();) {
+					EOKeyGlobalID gid = (EOKeyGlobalID) gidsEnum.nextElement();
+					_scratch.reset();
+					writeGIDKeys(_scratchOutput, gid);
+					_scratchOutput.flush();
+					boolean recordOpen = _gidCountOffset >= 0;
+					if (!hasRoomFor(_scratch.size() + (recordOpen ? 0 : recordHeaderSize))) {
+						finishFrame();
+						startFrame();
+						recordOpen = false;
+					}
+					if (!recordOpen) {
+						_frameOutput.writeByte(messageType);
+						_frameOutput.writeUTF(entityName);
+						_gidCountOffset = _frame.size();
+						_frameOutput.writeInt(0);
+						_gidCount = 0;
+						_recordCount++;
+					}
+					_frameOutput.write(_scratch.buffer(), 0, _scratch.size());
+					_gidCount++;
+				}
+				closeRecord();
+			}
+		}
+
+		/**
+		 * Writes a change in the format of
+		 * {@link ERXRemoteSynchronizer#_writeCacheChange(DataOutputStream, ERXDatabase.CacheChange)}.
+		 */
+		public void writeCacheChange(ERXDatabase.CacheChange cacheChange) throws IOException {
+			_scratch.reset();
+			_writeCacheChange(_scratchOutput, cacheChange);
+			_scratchOutput.flush();
+			if (_scratch.size() > 0) {
+				if (!hasRoomFor(_scratch.size())) {
+					finishFrame();
+					startFrame();
+				}
+				_frameOutput.write(_scratch.buffer(), 0, _scratch.size());
+				_recordCount++;
+			}
+		}
+
+		public List<byte[]> frames() throws IOException {
+			finishFrame();
+			return _frames;
+		}
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Returns the number of frames and changes sent and received, the number
+	 * of changes that were dropped because a later change to the same GID
+	 * superseded them, and for each remote instance a summary of the lag
+	 * between sending and receiving its frames in milliseconds (which assumes
+	 * the clocks of the instances are synchronized).
+	 */
+	public NSDictionary<String, Object> statistics() {
+		NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<String, Object>();
+		statistics.setObjectForKey(Long.valueOf(_framesSent.get()), "framesSent");
+		statistics.setObjectForKey(Long.valueOf(_changesSent.get()), "changesSent");
+		statistics.setObjectForKey(Long.valueOf(_changesCoalesced.get()), "changesCoalesced");
+		statistics.setObjectForKey(Long.valueOf(_framesReceived.get()), "framesReceived");
+		statistics.setObjectForKey(Long.valueOf(_changesReceived.get()), "changesReceived");
+		NSMutableDictionary<String, Object> lag = new NSMutableDictionary<String, Object>();
+		for (Map.Entry<String, ERXHistogram> entry : _lagByInstance.entrySet()) {
+			lag.setObjectForKey(entry.getValue().summary(), entry.getKey());
+		}
+		statistics.setObjectForKey(lag, "lag");
+		return statistics;
+	}
+
 	public abstract void join() throws Throwable;
 
 	public abstract void leave() throws Throwable;
 
 	public abstract void listen() throws Throwable;
 
+	/**
+	 * Sends the changes of a transaction to the other instances. If
+	 * <code>er.extensions.remoteSynchronizer.coalesceWindow</code> is set, the
+	 * changes are collected and sent together when the window has passed.
+	 */
 	public void writeCacheChanges(int transactionID, NSArray cacheChanges) throws Throwable {
-		_writeCacheChanges(transactionID, filteredCacheChanges(cacheChanges));
+		NSArray filteredCacheChanges = filteredCacheChanges(cacheChanges);
+		if (_pendingCacheChanges == null) {
+			_writeCacheChanges(transactionID, filteredCacheChanges);
+		}
+		else {
+			coalesceCacheChanges(filteredCacheChanges);
+		}
+	}
+
+	/**
+	 * Adds changes to the pending changes. Repeated inserts, updates or
+	 * deletes of the same GID are kept once, and a delete drops the pending
+	 * update of its GID. To-many changes are always kept.
+	 */
+	protected void coalesceCacheChanges(NSArray cacheChanges) {
+		synchronized (_pendingCacheChanges) {
+			int cacheChangeCount = cacheChanges.count();
+			for (int i = 0; i < cacheChangeCount; i++) {
+				ERXDatabase.CacheChange cacheChange = (ERXDatabase.CacheChange) cacheChanges.objectAtIndex(i);
+				Object key;
+				if (cacheChange instanceof ERXDatabase.ToManySnapshotUpdated) {
+					key = cacheChange;
+				}
+				else {
+					key = new CacheChangeKey(cacheChange.getClass(), cacheChange.gid());
+					if (cacheChange instanceof ERXDatabase.SnapshotDeleted) {
+						if (_pendingCacheChanges.remove(new CacheChangeKey(ERXDatabase.SnapshotUpdated.class, cacheChange.gid())) != null) {
+							_changesCoalesced.incrementAndGet();
+						}
+					}
+				}
+				if (_pendingCacheChanges.containsKey(key)) {
+					_changesCoalesced.incrementAndGet();
+				}
+				else {
+					_pendingCacheChanges.put(key, cacheChange);
+				}
+			}
+			if (!_flushScheduled && !_pendingCacheChanges.isEmpty()) {
+				_flushScheduled = true;
+				_coalesceTimer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						flushCacheChanges();
+					}
+				}, _coalesceWindow);
+			}
+		}
+	}
+
+	private static class CacheChangeKey {
+		private final Class _type;
+		private final EOGlobalID _gid;
+
+		public CacheChangeKey(Class type, EOGlobalID gid) {
+			_type = type;
+			_gid = gid;
+		}
+
+		@Override
+		public int hashCode() {
+			return _type.hashCode() * 31 + _gid.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof CacheChangeKey && ((CacheChangeKey) obj)._type == _type && ((CacheChangeKey) obj)._gid.equals(_gid);
+		}
+	}
+
+	/**
+	 * Sends the pending changes now.
+	 */
+	public void flushCacheChanges() {
+		if (_pendingCacheChanges != null) {
+			NSArray cacheChanges;
+			synchronized (_pendingCacheChanges) {
+				cacheChanges = new NSArray(_pendingCacheChanges.values().toArray());
+				_pendingCacheChanges.clear();
+				_flushScheduled = false;
+			}
+			if (cacheChanges.count() > 0) {
+				try {
+					_writeCacheChanges(_coalescedTransactionID.incrementAndGet(), cacheChanges);
+				}
+				catch (Throwable t) {
+					log.error("Failed to send " + cacheChanges.count() + " remote changes.", t);
+				}
+			}
+		}
 	}
 	
 	protected abstract void _writeCacheChanges(int transactionID, NSArray cacheChanges) throws Throwable;
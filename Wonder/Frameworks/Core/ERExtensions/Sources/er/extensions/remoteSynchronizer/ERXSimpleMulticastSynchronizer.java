@@ -12,6 +12,7 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 
 import com.webobjects.appserver.WOApplication;
 import com.webobjects.foundation.NSArray;
@@ -42,6 +43,7 @@ import er.extensions.foundation.ERXStringUtilities;
  * @property er.extensions.multicastSynchronizer.whitelist the comma-separated list of addresses that can send to this group
  * @property er.extensions.multicastSynchronizer.maxPacketSize the maximum multicast packet size
  * @property er.extensions.multicastSynchronizer.identifier the unique identifier for this host (autogenerated by default)
+ * @property er.extensions.multicastSynchronizer.batchFrames if true, the changes of a transaction are sent in as few packets as possible, grouped by entity, instead of one packet per change (defaults to false; all instances of a group must agree)
  * @property er.extensions.remoteSynchronizer.includeEntities the list of entities to synchronize (all by default)
  * @property er.extensions.remoteSynchronizer.excludeEntities the list of entities to NOT synchronize (none by default)
  * 
@@ -49,6 +51,8 @@ import er.extensions.foundation.ERXStringUtilities;
  */
 public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 	public static final int IDENTIFIER_LENGTH = 6;
+	/** identifier, transaction ID, packet number and count, message type */
+	private static final int HEADER_LENGTH = ERXSimpleMulticastSynchronizer.IDENTIFIER_LENGTH + 4 + 2 + 2 + 1;
 	private static final int JOIN = 1;
 	private static final int LEAVE = 2;
 
@@ -63,6 +67,7 @@ public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 	private int _maxReceivePacketSize;
 	private NSArray _whitelist;
 	private NSMutableDictionary _incomingCacheChanges;
+	private boolean _batchFrames;
 
 	public ERXSimpleMulticastSynchronizer(IChangeListener listener) throws IOException {
 		super(listener);
@@ -84,6 +89,7 @@ public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 		int maxPacketSize = ERXProperties.intForKeyWithDefault("er.extensions.multicastSynchronizer.maxPacketSize", 1024);
 		_maxSendPacketSize = maxPacketSize;
 		_maxReceivePacketSize = 2 * maxPacketSize;
+		_batchFrames = ERXProperties.booleanForKeyWithDefault("er.extensions.multicastSynchronizer.batchFrames", false);
 
 		String multicastIdentifierStr = ERXProperties.stringForKey("er.extensions.multicastSynchronizer.identifier");
 		if (multicastIdentifierStr == null) {
@@ -127,6 +133,7 @@ public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 		if (ERXRemoteSynchronizer.log.isInfoEnabled()) {
 			ERXRemoteSynchronizer.log.info("Multicast instance " + ERXStringUtilities.byteArrayToHexString(_identifier) + " leaving.");
 		}
+		flushCacheChanges();
 		MulticastByteArrayOutputStream baos = new MulticastByteArrayOutputStream();
 		DataOutputStream dos = new DataOutputStream(baos);
 		dos.write(_identifier);
@@ -174,6 +181,14 @@ public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 							int transactionID = dis.readInt();
 							short transactionNum = dis.readShort();
 							short transactionSize = dis.readShort();
+							int messageType = dis.readByte();
+							if (messageType == ERXRemoteSynchronizer.FRAME) {
+								// every frame is complete in itself, so its changes are applied together right away
+								RemoteChange remoteChange = new RemoteChange(ERXStringUtilities.byteArrayToHexString(identifier), transactionID, 0);
+								_readCacheChangeFrame(remoteChange, dis);
+								addChange(remoteChange);
+								continue;
+							}
 							String transactionIdentifierStr = identifier + "-" + transactionID;
 							RemoteChange remoteChange = (RemoteChange) _incomingCacheChanges.objectForKey(transactionIdentifierStr);
 							if (remoteChange == null) {
@@ -181,7 +196,7 @@ public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 								_incomingCacheChanges.setObjectForKey(remoteChange, transactionIdentifierStr);
 							}
 
-							_readCacheChange(remoteChange, dis);
+							_readCacheChange(messageType, remoteChange, dis);
 
 							if (remoteChange.isComplete()) {
 								_incomingCacheChanges.removeObjectForKey(transactionIdentifierStr);
@@ -207,6 +222,10 @@ public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 	}
 
 	protected void _writeCacheChanges(int transactionID, NSArray cacheChanges) throws IOException {
+		if (_batchFrames) {
+			writeCacheChangeFrames(cacheChanges, transactionID);
+			return;
+		}
 		short transactionSize = (short) cacheChanges.count();
 		short transactionNum = 0;
 		for (Enumeration cacheChangesEnum = cacheChanges.objectEnumerator(); cacheChangesEnum.hasMoreElements(); transactionNum++) {
@@ -232,6 +251,29 @@ public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 		}
 	}
 
+	/**
+	 * Sends the changes as frames that each fit into one packet.
+	 */
+	protected void writeCacheChangeFrames(NSArray cacheChanges, int transactionID) throws IOException {
+		List<byte[]> frames = _writeCacheChangeFrames(cacheChanges, _maxSendPacketSize - ERXSimpleMulticastSynchronizer.HEADER_LENGTH);
+		short frameCount = (short) frames.size();
+		for (short frameNum = 0; frameNum < frameCount; frameNum++) {
+			MulticastByteArrayOutputStream baos = new MulticastByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(baos);
+			dos.write(_identifier);
+			dos.writeInt(transactionID);
+			dos.writeShort(frameNum);
+			dos.writeShort(frameCount);
+			dos.writeByte(ERXRemoteSynchronizer.FRAME);
+			dos.write(frames.get(frameNum));
+			dos.flush();
+			_multicastSocket.send(baos.createDatagramPacket());
+		}
+		if (ERXRemoteSynchronizer.log.isDebugEnabled()) {
+			ERXRemoteSynchronizer.log.debug("Multicast instance " + ERXStringUtilities.byteArrayToHexString(_identifier) + ": Wrote " + cacheChanges.count() + " changes in " + frameCount + " packets");
+		}
+	}
+
 	protected class MulticastByteArrayOutputStream extends RefByteArrayOutputStream {
 		public DatagramPacket createDatagramPacket() throws SocketException {
 			return new DatagramPacket(buf, 0, count, _multicastGroup);
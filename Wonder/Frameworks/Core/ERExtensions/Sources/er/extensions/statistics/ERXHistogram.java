@@ -0,0 +1,155 @@
+package er.extensions.statistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableDictionary;
+
+/**
+ * Lock-free histogram of durations in milliseconds. Like an HDR histogram,
+ * values are counted in log-linear buckets: every power-of-two range is split
+ * into 8 equal sub-buckets, so values below 8 are exact and percentiles are
+ * accurate to 12.5% without keeping every sample. Count and sum are
+ * {@link ERXStripedCounter}s, so adding a value never blocks and threads
+ * recording at the same time don't contend, which makes it usable on hot paths
+ * like connection checkout or always-on request timing.
+ */
+public class ERXHistogram {
+	/** log2 of the number of sub-buckets per power of two. */
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final ERXStripedCounter _count = new ERXStripedCounter();
+	private final ERXStripedCounter _sum = new ERXStripedCounter();
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * Adds a duration.
+	 *
+	 * @param millis
+	 *            the duration in milliseconds
+	 */
+	public void add(long millis) {
+		if (millis < 0) {
+			millis = 0;
+		}
+		_buckets.incrementAndGet(ERXHistogram.bucketIndex(millis));
+		_count.increment();
+		_sum.add(millis);
+		long max;
+		while ((max = _max.get()) < millis && !_max.compareAndSet(max, millis)) {
+			// retry
+		}
+	}
+
+	private static int bucketIndex(long millis) {
+		if (millis < SUB_BUCKET_COUNT) {
+			return (int) millis;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(millis);
+		int subBucket = (int) (millis >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	private static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_BUCKET_COUNT - 1;
+		long lowerBound = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+
+	/**
+	 * Returns the number of durations added.
+	 */
+	public long count() {
+		return _count.sum();
+	}
+
+	/**
+	 * Returns the sum of all durations.
+	 */
+	public long sum() {
+		return _sum.sum();
+	}
+
+	/**
+	 * Returns the largest duration added.
+	 */
+	public long max() {
+		return _max.get();
+	}
+
+	/**
+	 * Returns the average duration.
+	 */
+	public double average() {
+		long count = count();
+		return count == 0 ? 0.0 : (double) sum() / count;
+	}
+
+	/**
+	 * Returns an upper bound for the given percentile, i.e. the upper end of
+	 * the bucket the percentile falls into (capped by the largest value seen).
+	 *
+	 * @param percentile
+	 *            the percentile between 0 and 100
+	 * @return the upper bound in milliseconds
+	 */
+	public long percentile(double percentile) {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			count += _buckets.get(i);
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += _buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(ERXHistogram.bucketUpperBound(i), _max.get());
+			}
+		}
+		return _max.get();
+	}
+
+	/**
+	 * Clears all counts.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			_buckets.set(i, 0);
+		}
+		_count.reset();
+		_sum.reset();
+		_max.set(0);
+	}
+
+	/**
+	 * Returns count, sum, average, max and the 50th, 90th, 95th and 99th
+	 * percentile.
+	 */
+	public NSDictionary<String, Object> summary() {
+		NSMutableDictionary<String, Object> summary = new NSMutableDictionary<String, Object>();
+		summary.setObjectForKey(Long.valueOf(count()), "count");
+		summary.setObjectForKey(Long.valueOf(sum()), "sum");
+		summary.setObjectForKey(Double.valueOf(average()), "avg");
+		summary.setObjectForKey(Long.valueOf(max()), "max");
+		summary.setObjectForKey(Long.valueOf(percentile(50)), "p50");
+		summary.setObjectForKey(Long.valueOf(percentile(90)), "p90");
+		summary.setObjectForKey(Long.valueOf(percentile(95)), "p95");
+		summary.setObjectForKey(Long.valueOf(percentile(99)), "p99");
+		return summary;
+	}
+
+	@Override
+	public String toString() {
+		return "<" + getClass().getSimpleName() + " count=" + count() + " avg=" + Math.round(average()) + " p95=" + percentile(95) + " max=" + max() + ">";
+	}
+}
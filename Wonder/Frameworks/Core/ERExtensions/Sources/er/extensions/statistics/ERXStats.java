@@ -3,6 +3,7 @@ package er.extensions.statistics;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -29,6 +30,13 @@ import er.extensions.foundation.ERXUtilities;
  * </p>
  * 
  * <p>
+ * For production, enable {@link ERXStatsRegistry} instead. The durations of a
+ * sampled fraction of the requests then go into application-wide lock-free
+ * histograms, and no per-thread dictionaries or log entries are built unless
+ * er.extensions.erxStats.enabled is also set.
+ * </p>
+ * 
+ * <p>
  * As an example, you may want to track stats on keypaths in your components.  In your
  * base components, you could add:
  * </p>
@@ -54,6 +62,7 @@ import er.extensions.foundation.ERXUtilities;
  * @property er.extensions.erxStats.enabled if true, stats will be initialized on each for each request
  * @property er.extensions.erxStats.traceCollectingEnabled defaults to false
  * @property er.extensions.erxStats.max the maximum historical stats to collect (defaults to 1000) 
+ * @property er.extensions.erxStats.registry.enabled see {@link ERXStatsRegistry}
  */
 public class ERXStats {
 	private static final String STATS_INITIALIZED_KEY = "er.extensions.erxStats.initialized";
@@ -74,10 +83,22 @@ public class ERXStats {
 		public String ComponentTakeValuesFromRequest = "Component (takeValuesFromRequest)";
 		public String ComponentInvokeAction = "Component (invokeAction)";
 		public String Batching = "Batching";
+		public String Cache = "Cache";
 	}
 	
 	private static NSMutableArray<NSMutableDictionary<String, LogEntry>> _allStatistics = new NSMutableArray<NSMutableDictionary<String, LogEntry>>();
 
+	/** Set while the current request is sampled for the {@link ERXStatsRegistry}. */
+	private static final ThreadLocal<Boolean> _sampled = new ThreadLocal<Boolean>();
+
+	/** Start times of markStart calls of the current sampled request. */
+	private static final ThreadLocal<HashMap<String, Long>> _marks = new ThreadLocal<HashMap<String, Long>>() {
+		@Override
+		protected HashMap<String, Long> initialValue() {
+			return new HashMap<String, Long>();
+		}
+	};
+
 	/**
 	 * Initializes the logging system if the property
 	 * er.extensions.erxStats.enabled is true. ERXApplication.dispatchRequest
@@ -87,6 +108,26 @@ public class ERXStats {
 		if (areStatisticsEnabled()) {
 			ERXStats.initStatistics();
 		}
+		if (ERXStatsRegistry.shouldSample()) {
+			_sampled.set(Boolean.TRUE);
+			_marks.get().clear();
+		}
+		else {
+			_sampled.remove();
+		}
+	}
+
+	/**
+	 * Stops sampling the current thread for the {@link ERXStatsRegistry}.
+	 * ERXApplication calls this at the end of each request.
+	 */
+	public static void endStatistics() {
+		_sampled.remove();
+		_marks.remove();
+	}
+
+	private static boolean isSampled() {
+		return _sampled.get() != null;
 	}
 
 	/**
@@ -120,6 +161,10 @@ public class ERXStats {
 	 * @return true if the current thread is tracking statistics
 	 */
 	public static boolean isTrackingStatistics() {
+		return ERXStats.isSampled() || ERXStats.isTrackingThreadStatistics();
+	}
+
+	private static boolean isTrackingThreadStatistics() {
 		Boolean statsInitialized = (Boolean) ERXThreadStorage.valueForKey(ERXStats.STATS_INITIALIZED_KEY);
 		return statsInitialized != null && statsInitialized.booleanValue();
 	}
@@ -244,9 +289,16 @@ public class ERXStats {
 	 * @param key the key log to start logging 
 	 */
 	public static void markStart(String group, String key) {
-		LogEntry entry = ERXStats.logEntryForKey(makeKey(group, key));
-		if (entry != null) {
-			entry.start();
+		String statsKey = makeKey(group, key);
+		boolean sampled = ERXStats.isSampled();
+		if (sampled) {
+			_marks.get().put(statsKey, Long.valueOf(System.currentTimeMillis()));
+		}
+		if (!sampled || ERXStats.isTrackingThreadStatistics()) {
+			LogEntry entry = ERXStats.logEntryForKey(statsKey);
+			if (entry != null) {
+				entry.start();
+			}
 		}
 	}
 	
@@ -267,9 +319,19 @@ public class ERXStats {
 	 * @param key the key to log under
 	 */
 	public static void markEnd(String group, String key) {
-		LogEntry entry = ERXStats.logEntryForKey(makeKey(group, key));
-		if (entry != null) {
-			entry.end();
+		String statsKey = makeKey(group, key);
+		boolean sampled = ERXStats.isSampled();
+		if (sampled) {
+			Long start = _marks.get().remove(statsKey);
+			if (start != null) {
+				ERXStatsRegistry.addDurationForKey(statsKey, System.currentTimeMillis() - start.longValue());
+			}
+		}
+		if (!sampled || ERXStats.isTrackingThreadStatistics()) {
+			LogEntry entry = ERXStats.logEntryForKey(statsKey);
+			if (entry != null) {
+				entry.end();
+			}
 		}
 	}
 
@@ -300,9 +362,16 @@ public class ERXStats {
 	 * @param key the name to log the time under
 	 */
 	public static void addDurationForKey(long duration, String group, String key) {
-		LogEntry entry = ERXStats.logEntryForKey(makeKey(group, key));
-		if (entry != null) {
-			entry.add(duration);
+		String statsKey = makeKey(group, key);
+		boolean sampled = ERXStats.isSampled();
+		if (sampled) {
+			ERXStatsRegistry.addDurationForKey(statsKey, duration);
+		}
+		if (!sampled || ERXStats.isTrackingThreadStatistics()) {
+			LogEntry entry = ERXStats.logEntryForKey(statsKey);
+			if (entry != null) {
+				entry.add(duration);
+			}
 		}
 	}
 
@@ -311,11 +380,13 @@ public class ERXStats {
 	}
 
 	/**
-	 * Resets statistics for this thread AND the global queue.
+	 * Resets statistics for this thread AND the global queue, including the
+	 * {@link ERXStatsRegistry}.
 	 */
 	public static synchronized void reset() {
 		_allStatistics.removeAllObjects();
 		ERXThreadStorage.removeValueForKey(ERXStats.STATS_KEY);
+		ERXStatsRegistry.reset();
 	}
 
 	/**
@@ -0,0 +1,280 @@
+package er.extensions.statistics;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * <p>
+ * Application-wide, always-on counterpart to the per-thread statistics of
+ * {@link ERXStats}. Every key gets one {@link ERXHistogram} that all threads
+ * add to without locking, so timing keypaths and SQL can stay on in
+ * production. When the registry is enabled, {@link ERXStats} sends the
+ * durations of sampled requests here in addition to (or, if
+ * <code>er.extensions.erxStats.enabled</code> is false, instead of) the
+ * per-thread log entries.
+ * </p>
+ *
+ * <p>
+ * A snapshot of all histograms can be logged periodically to the
+ * <code>er.extensions.statistics.ERXStatsRegistry</code> logger, or served as
+ * JSON with the <code>ERXDirectAction/statsJSON</code> action.
+ * </p>
+ *
+ * @property er.extensions.erxStats.registry.enabled if true, durations of
+ *           sampled requests are collected application-wide (defaults to false)
+ * @property er.extensions.erxStats.registry.sampleRate the fraction of requests
+ *           that are timed, between 0 and 1 (defaults to 0.01). Sampled
+ *           requests also normalize their SQL for the statistics, so keep this
+ *           low in production
+ * @property er.extensions.erxStats.registry.maxKeys the maximum number of keys;
+ *           durations for further keys are added to "[other]" (defaults to 2000)
+ * @property er.extensions.erxStats.registry.logInterval seconds between two
+ *           snapshots written to the log, 0 to never log (defaults to 0)
+ */
+public class ERXStatsRegistry {
+	public static final Logger log = Logger.getLogger(ERXStatsRegistry.class);
+
+	public static final String ENABLED_KEY = "er.extensions.erxStats.registry.enabled";
+	public static final String SAMPLE_RATE_KEY = "er.extensions.erxStats.registry.sampleRate";
+	public static final String MAX_KEYS_KEY = "er.extensions.erxStats.registry.maxKeys";
+	public static final String LOG_INTERVAL_KEY = "er.extensions.erxStats.registry.logInterval";
+
+	/** The key that collects durations once maxKeys is reached. */
+	public static final String OTHER_KEY = "[other]";
+
+	private static final ConcurrentHashMap<String, ERXHistogram> _histograms = new ConcurrentHashMap<String, ERXHistogram>();
+	private static final AtomicBoolean _loggingStarted = new AtomicBoolean();
+	private static volatile Boolean _enabled;
+	private static volatile Double _sampleRate;
+	private static volatile Integer _maxKeys;
+	private static Timer _logTimer;
+
+	private static final ThreadLocal<Random> _random = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	/**
+	 * Returns whether the registry collects durations.
+	 */
+	public static boolean isEnabled() {
+		Boolean enabled = _enabled;
+		if (enabled == null) {
+			enabled = Boolean.valueOf(ERXProperties.booleanForKeyWithDefault(ERXStatsRegistry.ENABLED_KEY, false));
+			_enabled = enabled;
+		}
+		return enabled.booleanValue();
+	}
+
+	/**
+	 * Turns collection on or off at runtime.
+	 */
+	public static void setEnabled(boolean enabled) {
+		_enabled = Boolean.valueOf(enabled);
+	}
+
+	/**
+	 * Returns the fraction of requests that are timed.
+	 */
+	public static double sampleRate() {
+		Double sampleRate = _sampleRate;
+		if (sampleRate == null) {
+			String value = ERXProperties.stringForKeyWithDefault(ERXStatsRegistry.SAMPLE_RATE_KEY, "0.01");
+			sampleRate = Double.valueOf(value);
+			_sampleRate = sampleRate;
+		}
+		return sampleRate.doubleValue();
+	}
+
+	/**
+	 * Sets the fraction of requests that are timed, between 0 and 1.
+	 */
+	public static void setSampleRate(double sampleRate) {
+		_sampleRate = Double.valueOf(sampleRate);
+	}
+
+	/**
+	 * Decides whether the current request is timed, according to the sample
+	 * rate. Returns false if the registry is disabled.
+	 */
+	public static boolean shouldSample() {
+		if (!ERXStatsRegistry.isEnabled()) {
+			return false;
+		}
+		double sampleRate = ERXStatsRegistry.sampleRate();
+		return sampleRate >= 1.0 || (sampleRate > 0.0 && _random.get().nextDouble() < sampleRate);
+	}
+
+	private static int maxKeys() {
+		Integer maxKeys = _maxKeys;
+		if (maxKeys == null) {
+			maxKeys = Integer.valueOf(ERXProperties.intForKeyWithDefault(ERXStatsRegistry.MAX_KEYS_KEY, 2000));
+			_maxKeys = maxKeys;
+		}
+		return maxKeys.intValue();
+	}
+
+	/**
+	 * Returns the histogram for the given key, creating it if needed. Once
+	 * maxKeys histograms exist, the histogram for {@link #OTHER_KEY} is
+	 * returned for new keys.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the histogram for the key
+	 */
+	public static ERXHistogram histogramForKey(String key) {
+		ERXHistogram histogram = _histograms.get(key);
+		if (histogram == null) {
+			if (_histograms.size() >= ERXStatsRegistry.maxKeys()) {
+				key = ERXStatsRegistry.OTHER_KEY;
+				histogram = _histograms.get(key);
+			}
+			if (histogram == null) {
+				histogram = new ERXHistogram();
+				ERXHistogram existingHistogram = _histograms.putIfAbsent(key, histogram);
+				if (existingHistogram != null) {
+					histogram = existingHistogram;
+				}
+			}
+			ERXStatsRegistry.startLoggingIfNecessary();
+		}
+		return histogram;
+	}
+
+	/**
+	 * Adds a duration for the given key.
+	 *
+	 * @param key
+	 *            the key
+	 * @param millis
+	 *            the duration in milliseconds
+	 */
+	public static void addDurationForKey(String key, long millis) {
+		ERXStatsRegistry.histogramForKey(key).add(millis);
+	}
+
+	/**
+	 * Returns the summary (see {@link ERXHistogram#summary()}) of every key.
+	 */
+	public static NSDictionary<String, NSDictionary<String, Object>> snapshot() {
+		NSMutableDictionary<String, NSDictionary<String, Object>> snapshot = new NSMutableDictionary<String, NSDictionary<String, Object>>();
+		for (Map.Entry<String, ERXHistogram> entry : _histograms.entrySet()) {
+			snapshot.setObjectForKey(entry.getValue().summary(), entry.getKey());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the snapshot as a JSON object that maps each key to its summary.
+	 */
+	public static String snapshotAsJSON() {
+		TreeMap<String, ERXHistogram> sorted = new TreeMap<String, ERXHistogram>(_histograms);
+		StringBuilder json = new StringBuilder(sorted.size() * 128 + 2);
+		json.append('{');
+		for (Iterator<Map.Entry<String, ERXHistogram>> entries = sorted.entrySet().iterator(); entries.hasNext();) {
+			Map.Entry<String, ERXHistogram> entry = entries.next();
+			ERXStatsRegistry.appendJSONString(entry.getKey(), json);
+			json.append(":{");
+			NSDictionary<String, Object> summary = entry.getValue().summary();
+			boolean first = true;
+			for (String name : new TreeMap<String, Object>(summary).keySet()) {
+				if (!first) {
+					json.append(',');
+				}
+				first = false;
+				ERXStatsRegistry.appendJSONString(name, json);
+				json.append(':').append(summary.objectForKey(name));
+			}
+			json.append('}');
+			if (entries.hasNext()) {
+				json.append(',');
+			}
+		}
+		json.append('}');
+		return json.toString();
+	}
+
+	private static void appendJSONString(String str, StringBuilder json) {
+		json.append('"');
+		for (int i = 0; i < str.length(); i++) {
+			char ch = str.charAt(i);
+			if (ch == '"' || ch == '\\') {
+				json.append('\\').append(ch);
+			}
+			else if (ch < ' ') {
+				String hex = Integer.toHexString(ch);
+				json.append("\\u");
+				for (int pad = hex.length(); pad < 4; pad++) {
+					json.append('0');
+				}
+				json.append(hex);
+			}
+			else {
+				json.append(ch);
+			}
+		}
+		json.append('"');
+	}
+
+	/**
+	 * Writes the snapshot to the given log, one line per key.
+	 */
+	public static void logSnapshot(Logger statsLog) {
+		if (statsLog.isInfoEnabled() && !_histograms.isEmpty()) {
+			StringBuilder message = new StringBuilder("Statistics (count/sum : avg/p50/p95/p99/max -> key):");
+			for (Map.Entry<String, ERXHistogram> entry : new TreeMap<String, ERXHistogram>(_histograms).entrySet()) {
+				ERXHistogram histogram = entry.getValue();
+				message.append("\n\t").append(histogram.count()).append('/').append(histogram.sum());
+				message.append(" : ").append(Math.round(histogram.average())).append('/').append(histogram.percentile(50));
+				message.append('/').append(histogram.percentile(95)).append('/').append(histogram.percentile(99));
+				message.append('/').append(histogram.max()).append(" -> ").append(entry.getKey());
+			}
+			statsLog.info(message);
+		}
+	}
+
+	private static void startLoggingIfNecessary() {
+		if (!_loggingStarted.get()) {
+			int interval = ERXProperties.intForKeyWithDefault(ERXStatsRegistry.LOG_INTERVAL_KEY, 0);
+			if (interval > 0 && _loggingStarted.compareAndSet(false, true)) {
+				synchronized (ERXStatsRegistry.class) {
+					_logTimer = new Timer("ERXStatsRegistry", true);
+					_logTimer.schedule(new TimerTask() {
+						@Override
+						public void run() {
+							try {
+								ERXStatsRegistry.logSnapshot(log);
+							}
+							catch (RuntimeException e) {
+								log.error("Could not log statistics: " + e, e);
+							}
+						}
+					}, interval * 1000L, interval * 1000L);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all histograms.
+	 */
+	public static void reset() {
+		_histograms.clear();
+	}
+}
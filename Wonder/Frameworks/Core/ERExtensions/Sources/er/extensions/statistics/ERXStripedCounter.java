@@ -0,0 +1,74 @@
+package er.extensions.statistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending on one memory
+ * location. Each thread adds to one of several stripes (picked by its thread
+ * id), and the stripes are summed when the value is read. The stripes are
+ * spaced a cache line apart so threads on different cores don't invalidate
+ * each other's caches. Reads are not atomic with respect to concurrent adds,
+ * which is fine for statistics.
+ */
+public class ERXStripedCounter {
+	/** Longs per cache line; stripe i lives at index i * PADDING. */
+	private static final int PADDING = 8;
+	private static final int STRIPE_COUNT = ERXStripedCounter.stripeCount();
+
+	private final AtomicLongArray _stripes = new AtomicLongArray(STRIPE_COUNT * PADDING);
+
+	private static int stripeCount() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int count = 1;
+		while (count < processors * 2 && count < 64) {
+			count <<= 1;
+		}
+		return count;
+	}
+
+	private static int stripeIndex() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32));
+		hash ^= (hash >>> 16);
+		return (hash & (STRIPE_COUNT - 1)) * PADDING;
+	}
+
+	/**
+	 * Adds the given value.
+	 */
+	public void add(long value) {
+		_stripes.addAndGet(ERXStripedCounter.stripeIndex(), value);
+	}
+
+	/**
+	 * Adds one.
+	 */
+	public void increment() {
+		_stripes.incrementAndGet(ERXStripedCounter.stripeIndex());
+	}
+
+	/**
+	 * Returns the sum of all stripes.
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			sum += _stripes.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	/**
+	 * Sets all stripes to 0. Adds that happen at the same time may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			_stripes.set(i * PADDING, 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(sum());
+	}
+}
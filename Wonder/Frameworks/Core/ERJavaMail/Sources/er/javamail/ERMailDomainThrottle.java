@@ -0,0 +1,111 @@
+package er.javamail;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Spaces out the messages to a destination domain, for mail servers that defer or
+ * reject senders that deliver too fast. The rate for a domain is read from
+ * <code>er.javamail.domainThrottle.&lt;domain&gt;</code> in messages per second and
+ * defaults to <code>er.javamail.domainThrottle</code>; 0 means no limit.
+ * <p>
+ * The throttle doesn't wait itself: {@link #reserve(ERMessage)} books the next free
+ * slot for all domains of the message and returns how long the sender has to wait
+ * for it, so the sender can deliver other messages in the meantime.
+ */
+public class ERMailDomainThrottle {
+
+	private static final String DOMAIN_THROTTLE_KEY = "er.javamail.domainThrottle";
+
+	private final double _defaultRate;
+
+	private final Map<String, Double> _domainRates = new HashMap<String, Double>();
+
+	private final Map<String, Long> _nextSendTimes = new HashMap<String, Long>();
+
+	public ERMailDomainThrottle() {
+		_defaultRate = ERXProperties.doubleForKeyWithDefault(DOMAIN_THROTTLE_KEY, 0);
+		String prefix = DOMAIN_THROTTLE_KEY + ".";
+		for (Enumeration e = System.getProperties().propertyNames(); e.hasMoreElements();) {
+			String key = (String) e.nextElement();
+			if (key.startsWith(prefix)) {
+				_domainRates.put(key.substring(prefix.length()).toLowerCase(), Double.valueOf(ERXProperties.doubleForKeyWithDefault(key, 0)));
+			}
+		}
+	}
+
+	/** @return whether any domain is throttled */
+	public boolean isEnabled() {
+		return _defaultRate > 0 || !_domainRates.isEmpty();
+	}
+
+	/**
+	 * @param domain a lower case domain
+	 * @return the number of messages per second that may be sent to the domain, 0 for no limit
+	 */
+	public double rateForDomain(String domain) {
+		Double rate = _domainRates.get(domain);
+		return rate != null ? rate.doubleValue() : _defaultRate;
+	}
+
+	/**
+	 * Books the next free slot for the recipient domains of the message.
+	 *
+	 * @param message the message to send
+	 * @return how many milliseconds the message has to wait before it can be sent
+	 */
+	public long reserve(ERMessage message) {
+		Set<String> domains = new HashSet<String>();
+		try {
+			Address[] recipients = message.mimeMessage().getAllRecipients();
+			if (recipients != null) {
+				for (Address recipient : recipients) {
+					if (recipient instanceof InternetAddress) {
+						String address = ((InternetAddress) recipient).getAddress();
+						int index = address != null ? address.lastIndexOf('@') : -1;
+						if (index >= 0) {
+							domains.add(address.substring(index + 1).toLowerCase());
+						}
+					}
+				}
+			}
+		}
+		catch (MessagingException e) {
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		long sendTime = now;
+		synchronized (_nextSendTimes) {
+			for (String domain : domains) {
+				Long next = _nextSendTimes.get(domain);
+				if (next != null && next.longValue() > sendTime) {
+					sendTime = next.longValue();
+				}
+			}
+			for (String domain : domains) {
+				double rate = rateForDomain(domain);
+				if (rate > 0) {
+					_nextSendTimes.put(domain, Long.valueOf(sendTime + (long) (1000 / rate)));
+				}
+			}
+			if (_nextSendTimes.size() > 10000) {
+				for (Iterator<Long> i = _nextSendTimes.values().iterator(); i.hasNext();) {
+					if (i.next().longValue() < now) {
+						i.remove();
+					}
+				}
+			}
+		}
+		return sendTime - now;
+	}
+}
@@ -6,16 +6,16 @@
 
 package er.javamail;
 
-import java.net.ConnectException;
-import java.net.UnknownHostException;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.AuthenticationFailedException;
 import javax.mail.MessagingException;
 import javax.mail.SendFailedException;
-import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.MimeMessage;
 
@@ -29,12 +29,24 @@ import com.webobjects.foundation.NSNotificationCenter;
 import com.webobjects.foundation.NSTimestamp;
 
 import er.extensions.formatters.ERXUnitAwareDecimalFormat;
+import er.extensions.foundation.ERXProperties;
 
 /**
  * This class is used to send mails in a threaded way.
  *
  * This is needed in WebObjects because if sending 20 mails takes 40 seconds, then the user must wait 40 seconds before
  * attempting to use the application.
+ * <p>
+ * Deferred messages are delivered in the order they were queued by a number of sender threads. Each thread borrows a
+ * connected transport for the message's context from an {@link ERMailTransportPool}, so connections are reused across
+ * messages instead of being opened for every batch. Messages to domains that are throttled with an
+ * {@link ERMailDomainThrottle}, and messages that couldn't be sent because the SMTP server was not reachable, wait in
+ * a delay queue, so the sender threads can deliver other messages in the meantime.
+ * 
+ * @property er.javamail.senderThreads the number of threads that deliver deferred messages, defaults to 4
+ * @property er.javamail.transportIdleTimeout how long an unused SMTP connection is kept open in milliseconds, defaults to 60000
+ * @property er.javamail.maxConnectAttempts how often a message is tried again if the SMTP server can't be reached, defaults to 3
+ * @property er.javamail.domainThrottle the number of messages per second to send to a single domain, defaults to 0 (no limit)
  * 
  * @author Camille Troillard <tuscland@mac.com>
  * @author Tatsuya Kawano <tatsuyak@mac.com>
@@ -52,11 +64,54 @@ public class ERMailSender implements Runnable {
 
 	// Holds sending messages. The queue size can be set by
 	// er.javamail.senderQueue.size property
-	private ERQueue<ERMessage> _messages;
+	private BlockingQueue<PendingMessage> _messages;
+	// Holds messages that wait for a throttled domain or for the SMTP server
+	private DelayQueue<PendingMessage> _deferredMessages;
+	private int _maxDeferredMessages;
+	private ERMailTransportPool _transports;
+	private ERMailDomainThrottle _throttle;
+	private int _maxConnectAttempts;
 	// For thread management
 	private int _milliSecondsWaitRunLoop = 5000;
 	
-	private Thread _senderThread;
+	private Thread[] _senderThreads;
+
+	/**
+	 * A message that waits to be sent.
+	 */
+	private static class PendingMessage implements Delayed {
+		private final ERMessage _message;
+		private final long _queuedTime;
+		private long _sendTime;
+		private int _connectAttempts;
+		private boolean _throttled;
+
+		public PendingMessage(ERMessage message) {
+			_message = message;
+			_queuedTime = System.currentTimeMillis();
+		}
+
+		public ERMessage message() {
+			return _message;
+		}
+
+		public long queuedTime() {
+			return _queuedTime;
+		}
+
+		public void deferFor(long millis) {
+			_sendTime = System.currentTimeMillis() + millis;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(_sendTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			long difference = _sendTime - ((PendingMessage) o)._sendTime;
+			return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+		}
+	}
 
 	/**
 	 * Exception class for alerting about a stack overflow
@@ -71,7 +126,14 @@ public class ERMailSender implements Runnable {
 
 	private ERMailSender() {
 		_stats = new Stats();
-		_messages = new ERQueue<ERMessage>(ERJavaMail.sharedInstance().senderQueueSize());
+		int queueSize = ERJavaMail.sharedInstance().senderQueueSize();
+		_messages = new LinkedBlockingQueue<PendingMessage>(queueSize > 0 ? queueSize : Integer.MAX_VALUE);
+		_deferredMessages = new DelayQueue<PendingMessage>();
+		_maxDeferredMessages = queueSize > 0 ? queueSize : Integer.MAX_VALUE;
+		_transports = new ERMailTransportPool(this, ERXProperties.longForKeyWithDefault("er.javamail.transportIdleTimeout", 60000));
+		_throttle = new ERMailDomainThrottle();
+		_maxConnectAttempts = ERXProperties.intForKeyWithDefault("er.javamail.maxConnectAttempts", 3);
+		_senderThreads = new Thread[Math.max(1, ERXProperties.intForKeyWithDefault("er.javamail.senderThreads", 4))];
 
         if (WOApplication.application() == null || WOApplication.application ().isDebuggingEnabled()) {
             _milliSecondsWaitRunLoop = 2000;
@@ -95,6 +157,11 @@ public class ERMailSender implements Runnable {
 		return _stats;
 	}
 
+	/** @return the pool of connected transports */
+	public ERMailTransportPool transports() {
+		return _transports;
+	}
+
 	/**
 	 * Sends a message in a non-blocking way.
          *
@@ -113,7 +180,9 @@ public class ERMailSender implements Runnable {
 				// log.debug ("Adding a message in the queue: \n" + allRecipientsString);
 			}
 
-			_messages.push(message);
+			if (!_messages.offer(new PendingMessage(message))) {
+				throw new ERQueue.SizeOverflowException();
+			}
 			_stats.updateMemoryUsage();
 
 			if (log.isDebugEnabled())
@@ -123,15 +192,18 @@ public class ERMailSender implements Runnable {
 			throw new ERMailSender.SizeOverflowException(e);
 		}
 
-		synchronized (_messages) {
-			// If we have not started to send mails, start the thread
-			if (_senderThread == null) {
-				_senderThread = new Thread(this, "ERMailSender");
-				_senderThread.setPriority(Thread.MIN_PRIORITY);
-				_senderThread.start();
-			}
-			else {
-				_messages.notifyAll();
+		startSenderThreads();
+	}
+
+	/**
+	 * Starts the sender threads that are not running yet.
+	 */
+	private synchronized void startSenderThreads() {
+		for (int i = 0; i < _senderThreads.length; i++) {
+			if (_senderThreads[i] == null || !_senderThreads[i].isAlive()) {
+				_senderThreads[i] = new Thread(this, "ERMailSender-" + i);
+				_senderThreads[i].setPriority(Thread.MIN_PRIORITY);
+				_senderThreads[i].start();
 			}
 		}
 	}
@@ -142,10 +214,23 @@ public class ERMailSender implements Runnable {
 	 * This means that the thread could be blocked if the message takes time to be delivered.
 	 */
 	public void sendMessageNow(ERMessage message) {
+		long startTime = System.currentTimeMillis();
+		String contextString = message.contextString();
 		Transport transport = null;
+		boolean reusable = false;
 		try {
-			transport = this._connectedTransportForSession(ERJavaMail.sharedInstance().sessionForContext(message.contextString()), ERJavaMail.sharedInstance().smtpProtocolForContext(message.contextString()), false);
+			transport = _transports.borrowTransport(contextString);
 			this._sendMessageNow(message, transport);
+			reusable = true;
+			_stats.messageDelivered(startTime);
+		}
+		catch (SendFailedException e) {
+			// the recipients were refused, the connection is fine
+			reusable = true;
+			if (log.isDebugEnabled()) {
+				log.debug("Caught exception when sending mail in a non-blocking manner.", e);
+			}
+			throw NSForwardException._runtimeExceptionForThrowable(e);
 		}
 		catch (MessagingException e) {
 			if (log.isDebugEnabled()) {
@@ -154,18 +239,12 @@ public class ERMailSender implements Runnable {
 			throw NSForwardException._runtimeExceptionForThrowable(e);
 		}
 		finally {
-			// CHECKME (camille):
-			// Should we really close this default transport instance?
-			// I think there is no need to do so and that it should be closed
-			// when the ERMailSender is finalized
 			if (transport != null) {
-				try {
-					transport.close();
+				if (reusable) {
+					_transports.returnTransport(contextString, transport);
 				}
-				catch (MessagingException e) {
-					// Fatal exception ... we must at least notify the use
-					log.error("Caught exception when closing transport.", e);
-					throw NSForwardException._runtimeExceptionForThrowable(e);
+				else {
+					_transports.invalidateTransport(transport);
 				}
 			}
 		}
@@ -283,80 +362,12 @@ public class ERMailSender implements Runnable {
 	public void run() {
 		try {
 			while (true) {
-				synchronized (_messages) {
-					while (_messages.empty()) {
-						_messages.wait(_milliSecondsWaitRunLoop);
-					}
+				PendingMessage pending = nextMessage();
+				if (pending != null) {
+					sendPendingMessage(pending);
 				}
-
-				// If there are still messages pending ...
-				if (!_messages.empty()) {
-					Map<String, Transport> transports = new HashMap<String, Transport>();
-					
-					try {
-						while (!_messages.empty()) {
-							ERMessage message = _messages.pop();
-		                    String contextString = message.contextString();
-		                    String smtpProtocol = ERJavaMail.sharedInstance().smtpProtocolForContext(contextString);
-		                    if (contextString == null) {
-		                        contextString = "___DEFAULT___";
-		                    }
-		                    Transport transport = transports.get(contextString);
-		                    if (transport == null) {
-		                        Session session = ERJavaMail.sharedInstance().newSessionForMessage(message);
-		                        transport = this._connectedTransportForSession(session, smtpProtocol, true);
-		                        transports.put(contextString, transport);
-		                    }
-		                    try {
-		                        if (!transport.isConnected()) {
-		                            transport.connect();
-		                        }
-		                    } catch (MessagingException e) {
-		                        // Notify error in logs
-		                        log.error ("Unable to connect transport.", e);
-
-		                        // Exit run loop
-		                        throw new RuntimeException ("Unable to connect transport.");
-		                    }
-							try {
-								this._sendMessageNow(message, transport);
-							} catch(SendFailedException ex) {
-								log.error("Can't send message: " + message + ": " + ex, ex);
-							}
-							// if (useSenderDelay) {
-							// this.wait (senderDelayMillis);
-							// }
-							// Here we get all the exceptions that are
-							// not 'SendFailedException's.
-							// All we can do is warn the admin.
-						}
-					}
-					catch (AuthenticationFailedException e) {
-						log.error("Unable to connect to SMTP Transport. AuthenticationFailedException: " + e.getMessage() + " waiting 20 seconds", e);
-						Thread.sleep(20000);
-					}
-					catch (MessagingException e) {
-						if (e.getNextException() instanceof ConnectException) {
-							log.error("Can't connect to mail server, waiting");
-							Thread.sleep(10000);
-						} else if (e.getNextException() instanceof UnknownHostException) {
-							log.error("Can't find to mail server, exiting");
-							return;
-						} else {
-							log.error("General mail error: " + e, e);
-						}
-					}
-					finally {
-						for (Transport transport : transports.values()) {
-							try {
-								if (transport != null) {
-									transport.close();
-								}
-							} catch (MessagingException e) /* once again ... */ {
-								log.warn ("Unable to close transport.  Perhaps it has already been closed?", e);
-							}
-						}
-					}
+				else {
+					_transports.closeIdleTransports();
 				}
 			}
 		}
@@ -364,12 +375,99 @@ public class ERMailSender implements Runnable {
 			log.warn("ERMailSender thread has been interrupted.");
 			//return;
 		}
-		// assures the thread will get restarted next time around.
-		_senderThread = null;
+		// the thread will get restarted next time around.
 	}
 
+	/**
+	 * Returns the next message to send: a deferred message that is due, or the oldest
+	 * queued message. Returns null if there was nothing to send for a while.
+	 */
+	private PendingMessage nextMessage() throws InterruptedException {
+		PendingMessage pending = _deferredMessages.poll();
+		if (pending != null) {
+			return pending;
+		}
+		if (_deferredMessages.size() >= _maxDeferredMessages) {
+			// don't take more messages from the queue than can wait
+			return _deferredMessages.poll(_milliSecondsWaitRunLoop, TimeUnit.MILLISECONDS);
+		}
+		long wait = _milliSecondsWaitRunLoop;
+		PendingMessage deferred = _deferredMessages.peek();
+		if (deferred != null) {
+			wait = Math.max(1, Math.min(wait, deferred.getDelay(TimeUnit.MILLISECONDS)));
+		}
+		return _messages.poll(wait, TimeUnit.MILLISECONDS);
+	}
+
+	private void sendPendingMessage(PendingMessage pending) {
+		ERMessage message = pending.message();
+		if (!pending._throttled && _throttle.isEnabled()) {
+			pending._throttled = true;
+			long delay = _throttle.reserve(message);
+			if (delay > 0) {
+				pending.deferFor(delay);
+				_deferredMessages.add(pending);
+				return;
+			}
+		}
+
+		String contextString = message.contextString();
+		Transport transport;
+		try {
+			transport = _transports.borrowTransport(contextString);
+		}
+		catch (MessagingException e) {
+			pending._connectAttempts++;
+			if (pending._connectAttempts >= _maxConnectAttempts) {
+				log.error("Unable to connect to SMTP Transport, giving up on message: " + message, e);
+				_stats.incrementErrorCount();
+				message._deliveryFailed(e);
+			}
+			else {
+				long delay = e instanceof AuthenticationFailedException ? 20000 : 10000;
+				log.error("Unable to connect to SMTP Transport, trying again in " + delay / 1000 + " seconds: " + e.getMessage());
+				pending.deferFor(delay);
+				_deferredMessages.add(pending);
+			}
+			return;
+		}
+
+		boolean reusable = false;
+		try {
+			this._sendMessageNow(message, transport);
+			reusable = true;
+			_stats.messageDelivered(pending.queuedTime());
+		}
+		catch (SendFailedException ex) {
+			reusable = true;
+			log.error("Can't send message: " + message + ": " + ex, ex);
+		}
+		catch (MessagingException e) {
+			log.error("General mail error: " + e, e);
+		}
+		catch (RuntimeException e) {
+			// already logged and reported to the message
+		}
+		finally {
+			if (reusable) {
+				_transports.returnTransport(contextString, transport);
+			}
+			else {
+				_transports.invalidateTransport(transport);
+			}
+		}
+	}
+
+	/**
+	 * @deprecated the queue is no longer an ERQueue, this returns a copy of the queued messages
+	 */
+	@Deprecated
 	public ERQueue<ERMessage> messages() {
-		return _messages;
+		ERQueue<ERMessage> messages = new ERQueue<ERMessage>();
+		for (PendingMessage pending : _messages) {
+			messages.add(pending.message());
+		}
+		return messages;
 	}
 	
 	/**
@@ -387,6 +485,9 @@ public class ERMailSender implements Runnable {
 		private NSTimestamp lastResetTime = new NSTimestamp();
 		private int errorCount = 0;
 		private int mailCount = 0;
+		private int deliveredCount = 0;
+		private long totalLatency = 0;
+		private long maxLatency = 0;
 		private double _peakMemoryUsage = 0.0d;
 		private Runtime _runtime;
 		private ERXUnitAwareDecimalFormat _decimalFormatter;
@@ -403,6 +504,9 @@ public class ERMailSender implements Runnable {
 			String savedStatsString = this.toString();
 			errorCount = 0;
 			mailCount = 0;
+			deliveredCount = 0;
+			totalLatency = 0;
+			maxLatency = 0;
 			_peakMemoryUsage = 0.0d;
 			updateMemoryUsage();
 			lastResetTime = new NSTimestamp();
@@ -427,24 +531,64 @@ public class ERMailSender implements Runnable {
 		 * @return the current queue size. This method is useful for simplistic load balancing between apps that are
 		 *         supposed to send mails
 		 */
-		public synchronized int currentQueueSize() {
-			return _messages.size();
+		public int currentQueueSize() {
+			return _messages.size() + _deferredMessages.size();
+		}
+
+		/** @return the number of messages that wait for a throttled domain or for the SMTP server */
+		public int deferredQueueSize() {
+			return _deferredMessages.size();
+		}
+
+		/** @return the number of SMTP connections that are open */
+		public int openTransportCount() {
+			return _transports.openCount();
 		}
 
-		private void incrementErrorCount() {
+		/** @return the number of messages that were delivered without an error */
+		public synchronized int deliveredCount() {
+			return deliveredCount;
+		}
+
+		/** @return the average time in milliseconds from queuing a message until it was delivered */
+		public synchronized long averageLatency() {
+			return deliveredCount == 0 ? 0 : totalLatency / deliveredCount;
+		}
+
+		/** @return the longest time in milliseconds from queuing a message until it was delivered */
+		public synchronized long maxLatency() {
+			return maxLatency;
+		}
+
+		/** @return the number of messages delivered per second since the stats were reset */
+		public synchronized double throughput() {
+			long elapsed = System.currentTimeMillis() - lastResetTime.getTime();
+			return elapsed <= 0 ? 0 : deliveredCount * 1000.0d / elapsed;
+		}
+
+		private synchronized void incrementErrorCount() {
 			errorCount++;
 		}
 
-		private void incrementMailCount() {
+		private synchronized void incrementMailCount() {
 			mailCount++;
 		}
 
+		private synchronized void messageDelivered(long queuedTime) {
+			long latency = System.currentTimeMillis() - queuedTime;
+			deliveredCount++;
+			totalLatency += latency;
+			if (latency > maxLatency) {
+				maxLatency = latency;
+			}
+		}
+
 		/** @return the timestamp that respresents when the stats object was reset. */
 		public NSTimestamp lastResetTime() {
 			return lastResetTime;
 		}
 
-		private void updateMemoryUsage() {
+		private synchronized void updateMemoryUsage() {
 			long currentMemoryUsed = usedMemory();
 			if (currentMemoryUsed > _peakMemoryUsage)
 				_peakMemoryUsage = currentMemoryUsed;
@@ -472,7 +616,7 @@ public class ERMailSender implements Runnable {
 		/** @return a string representation of the Stats object. */
 		@Override
 		public String toString() {
-			return "<" + this.getClass().getName() + " lastResetTime: " + lastResetTime() + ", mailCount: " + mailCount() + ", errorCount: " + errorCount() + ", currentQueueSize: " + currentQueueSize() + ", peakMemoryUsage: " + formattedPeakMemoryUsage() + ">";
+			return "<" + this.getClass().getName() + " lastResetTime: " + lastResetTime() + ", mailCount: " + mailCount() + ", errorCount: " + errorCount() + ", currentQueueSize: " + currentQueueSize() + ", deliveredCount: " + deliveredCount() + ", averageLatency: " + averageLatency() + "ms, maxLatency: " + maxLatency() + "ms, throughput: " + throughput() + "/s, openTransports: " + openTransportCount() + ", peakMemoryUsage: " + formattedPeakMemoryUsage() + ">";
 		}
 	}
 }
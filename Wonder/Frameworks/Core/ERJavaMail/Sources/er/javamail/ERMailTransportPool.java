@@ -0,0 +1,180 @@
+package er.javamail;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps connected transports per SMTP context, so consecutive messages don't connect
+ * (and authenticate) to the SMTP server again. A transport is used by one thread at a
+ * time: get it with {@link #borrowTransport(String)} and give it back with
+ * {@link #returnTransport(String, Transport)}, or with {@link #invalidateTransport(Transport)}
+ * if it can't be used anymore. Transports that were idle for longer than the idle timeout
+ * are closed.
+ */
+public class ERMailTransportPool {
+
+	static Logger log = Logger.getLogger(ERMailTransportPool.class);
+
+	/** Idle transports are checked with a NOOP before they are reused after this time. */
+	private static final long VALIDATE_AFTER_IDLE_MILLIS = 5000;
+
+	private static final String DEFAULT_CONTEXT = "___DEFAULT___";
+
+	private final ERMailSender _sender;
+
+	private final long _idleTimeout;
+
+	private final Map<String, LinkedList<IdleTransport>> _idleTransports = new HashMap<String, LinkedList<IdleTransport>>();
+
+	private final AtomicInteger _openCount = new AtomicInteger();
+
+	private static class IdleTransport {
+		public final Transport transport;
+		public final long idleSince;
+
+		public IdleTransport(Transport transport) {
+			this.transport = transport;
+			this.idleSince = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @param sender the sender that connects the transports
+	 * @param idleTimeout how long a transport is kept open without being used, in milliseconds
+	 */
+	public ERMailTransportPool(ERMailSender sender, long idleTimeout) {
+		_sender = sender;
+		_idleTimeout = idleTimeout;
+	}
+
+	private static String keyForContext(String contextString) {
+		return contextString == null ? DEFAULT_CONTEXT : contextString;
+	}
+
+	/**
+	 * Returns a connected transport for the given context, opening a new one if none is
+	 * idle.
+	 *
+	 * @param contextString the message context
+	 * @return a connected transport
+	 * @throws MessagingException if a new transport can't be connected
+	 */
+	public Transport borrowTransport(String contextString) throws MessagingException {
+		String key = keyForContext(contextString);
+		while (true) {
+			IdleTransport idle = null;
+			synchronized (_idleTransports) {
+				LinkedList<IdleTransport> transports = _idleTransports.get(key);
+				if (transports != null && !transports.isEmpty()) {
+					// the most recently used one is the most likely to still be connected
+					idle = transports.removeLast();
+				}
+			}
+			if (idle == null) {
+				break;
+			}
+			long idleTime = System.currentTimeMillis() - idle.idleSince;
+			if (idleTime < _idleTimeout && (idleTime < VALIDATE_AFTER_IDLE_MILLIS || idle.transport.isConnected())) {
+				return idle.transport;
+			}
+			invalidateTransport(idle.transport);
+		}
+		Session session = ERJavaMail.sharedInstance().sessionForContext(contextString);
+		Transport transport = _sender._connectedTransportForSession(session, ERJavaMail.sharedInstance().smtpProtocolForContext(contextString), true);
+		_openCount.incrementAndGet();
+		if (log.isDebugEnabled()) {
+			log.debug("Opened a transport for context " + key + ", " + _openCount.get() + " open");
+		}
+		return transport;
+	}
+
+	/**
+	 * Gives a transport back to the pool after a message was sent with it.
+	 *
+	 * @param contextString the message context the transport was borrowed for
+	 * @param transport the transport
+	 */
+	public void returnTransport(String contextString, Transport transport) {
+		String key = keyForContext(contextString);
+		synchronized (_idleTransports) {
+			LinkedList<IdleTransport> transports = _idleTransports.get(key);
+			if (transports == null) {
+				transports = new LinkedList<IdleTransport>();
+				_idleTransports.put(key, transports);
+			}
+			transports.addLast(new IdleTransport(transport));
+		}
+	}
+
+	/**
+	 * Closes a transport that can't be used anymore instead of giving it back.
+	 *
+	 * @param transport the transport
+	 */
+	public void invalidateTransport(Transport transport) {
+		_openCount.decrementAndGet();
+		try {
+			transport.close();
+		}
+		catch (MessagingException e) {
+			log.warn("Unable to close transport.  Perhaps it has already been closed?", e);
+		}
+	}
+
+	/**
+	 * Closes the transports that were idle for longer than the idle timeout.
+	 */
+	public void closeIdleTransports() {
+		closeTransportsIdleSince(System.currentTimeMillis() - _idleTimeout);
+	}
+
+	/**
+	 * Closes all idle transports.
+	 */
+	public void closeAllTransports() {
+		closeTransportsIdleSince(Long.MAX_VALUE);
+	}
+
+	private void closeTransportsIdleSince(long time) {
+		LinkedList<Transport> expired = new LinkedList<Transport>();
+		synchronized (_idleTransports) {
+			for (LinkedList<IdleTransport> transports : _idleTransports.values()) {
+				for (Iterator<IdleTransport> i = transports.iterator(); i.hasNext();) {
+					IdleTransport idle = i.next();
+					if (idle.idleSince <= time) {
+						expired.add(idle.transport);
+						i.remove();
+					}
+				}
+			}
+		}
+		for (Transport transport : expired) {
+			invalidateTransport(transport);
+		}
+	}
+
+	/** @return the number of transports that are connected, idle or in use */
+	public int openCount() {
+		return _openCount.get();
+	}
+
+	/** @return the number of connected transports that are not in use */
+	public int idleCount() {
+		int count = 0;
+		synchronized (_idleTransports) {
+			for (LinkedList<IdleTransport> transports : _idleTransports.values()) {
+				count += transports.size();
+			}
+		}
+		return count;
+	}
+}
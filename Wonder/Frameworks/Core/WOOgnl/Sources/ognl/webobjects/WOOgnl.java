@@ -10,9 +10,13 @@ package ognl.webobjects;
 
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ognl.ClassResolver;
+import ognl.Node;
 import ognl.Ognl;
+import ognl.OgnlContext;
 import ognl.OgnlException;
 import ognl.OgnlRuntime;
 import ognl.helperfunction.WOHelperFunctionHTMLParser;
@@ -44,6 +48,10 @@ import com.webobjects.foundation._NSUtilities;
  * @property ognl.inlineBindings if true, inline bindings are supported in component templates
  * @property ognl.parseStandardTags if true, you can use inline bindings in regular html tags, but requires well-formed templates
  * @property ognl.debugSupport if true, debug metadata is included in all bindings (but binding debug is not automatically turned on) 
+ * @property ognl.cacheExpressions defaults to true, if false expressions are parsed on every evaluation and a new context is created for each
+ * @property ognl.expressionCacheSize the maximum number of parsed expressions that are cached, further expressions are parsed on every evaluation (defaults to 10000)
+ * @property ognl.compileExpressions if true, simple keypaths like "item.name" that have been evaluated compileThreshold times skip the OGNL interpreter (defaults to false)
+ * @property ognl.compileThreshold the number of evaluations after which a simple keypath is compiled (defaults to 100)
  */
 public class WOOgnl {
 	public static Logger log = Logger.getLogger(WOOgnl.class);
@@ -80,6 +88,67 @@ public class WOOgnl {
 		}
 	}
 
+	/**
+	 * A parsed expression. Simple navigation chains (like "item.name") can be
+	 * compiled to the list of their property names once they are hot, and are
+	 * then evaluated by asking the property accessors directly instead of
+	 * walking the tree.
+	 */
+	protected static class Expression {
+		protected final Object _tree;
+		protected volatile String[] _propertyNames;
+		protected volatile boolean _compilable = true;
+		protected int _evaluationCount;
+
+		public Expression(Object tree) {
+			_tree = tree;
+		}
+
+		public Object tree() {
+			return _tree;
+		}
+	}
+
+	/**
+	 * The context that is reused for the evaluations on one thread. An
+	 * expression can call back into WOOgnl (e.g. by pulling a binding of a
+	 * child component), so the nested call gets a fresh context.
+	 */
+	private static class PooledContext {
+		protected final OgnlContext _context = new OgnlContext();
+		protected boolean _inUse;
+	}
+
+	private static final ThreadLocal<PooledContext> _pooledContext = new ThreadLocal<PooledContext>() {
+		@Override
+		protected PooledContext initialValue() {
+			return new PooledContext();
+		}
+	};
+
+	private final ConcurrentHashMap<String, Expression> _expressionCache = new ConcurrentHashMap<String, Expression>();
+	private final boolean _cacheExpressions;
+	private final int _expressionCacheSize;
+	private final boolean _compileExpressions;
+	private final int _compileThreshold;
+	private final boolean _poolContexts;
+
+	public WOOgnl() {
+		_cacheExpressions = hasProperty("ognl.cacheExpressions", "true");
+		_expressionCacheSize = Integer.getInteger("ognl.expressionCacheSize", 10000).intValue();
+		_compileExpressions = hasProperty("ognl.compileExpressions", "false");
+		_compileThreshold = Integer.getInteger("ognl.compileThreshold", 100).intValue();
+		// a subclass that builds its own context keeps getting a new one for each evaluation
+		boolean overridesDefaultContext;
+		try {
+			overridesDefaultContext = getClass().getMethod("newDefaultContext").getDeclaringClass() != WOOgnl.class;
+		}
+		catch (NoSuchMethodException e) {
+			overridesDefaultContext = true;
+		}
+		_poolContexts = _cacheExpressions && !overridesDefaultContext;
+	}
+
 	protected static WOOgnl _factory;
 
 	public static WOOgnl factory() {
@@ -231,10 +300,137 @@ public class WOOgnl {
 		}
 	}
 
+	/**
+	 * Returns the parsed expression for the given expression text, from the
+	 * expression cache if possible.
+	 * 
+	 * @param expression the OGNL expression
+	 * @return the parsed expression
+	 * @throws OgnlException if the expression can't be parsed
+	 */
+	protected Expression parsedExpression(String expression) throws OgnlException {
+		Expression parsedExpression = _expressionCache.get(expression);
+		if (parsedExpression == null) {
+			parsedExpression = new Expression(Ognl.parseExpression(expression));
+			if (_expressionCache.size() < _expressionCacheSize) {
+				Expression existingExpression = _expressionCache.putIfAbsent(expression, parsedExpression);
+				if (existingExpression != null) {
+					parsedExpression = existingExpression;
+				}
+			}
+		}
+		return parsedExpression;
+	}
+
+	/**
+	 * Removes all parsed expressions from the cache.
+	 */
+	public void clearExpressionCache() {
+		_expressionCache.clear();
+	}
+
+	/**
+	 * Returns the number of parsed expressions in the cache.
+	 */
+	public int expressionCacheSize() {
+		return _expressionCache.size();
+	}
+
+	private OgnlContext checkOutContext() {
+		PooledContext pooledContext = _pooledContext.get();
+		if (pooledContext._inUse) {
+			return null;
+		}
+		pooledContext._inUse = true;
+		OgnlContext context = pooledContext._context;
+		// like newDefaultContext(), only the variable is set, classes are resolved as before
+		ClassResolver classResolver = classResolver();
+		if (classResolver != null) {
+			context.put("classResolver", classResolver);
+		}
+		return context;
+	}
+
+	private void checkInContext(OgnlContext context) {
+		if (context != null) {
+			// drop the references to the component and the values of the evaluation
+			context.clear();
+			_pooledContext.get()._inUse = false;
+		}
+	}
+
+	/**
+	 * Returns the property names of the given expression if it's hot and a
+	 * simple navigation chain, null otherwise.
+	 */
+	private String[] compiledPropertyNames(Expression expression, String expressionText, OgnlContext context) throws OgnlException {
+		String[] propertyNames = expression._propertyNames;
+		if (propertyNames == null && expression._compilable && ++expression._evaluationCount >= _compileThreshold) {
+			// indexed properties are evaluated differently by ASTChain, so leave them to the interpreter
+			if (expressionText.indexOf('[') == -1 && Ognl.isSimpleNavigationChain(expression.tree(), context)) {
+				Node tree = (Node) expression.tree();
+				if (tree.jjtGetNumChildren() == 1) {
+					// a single property ("name")
+					propertyNames = new String[] { String.valueOf(tree.jjtGetChild(0).getValue(context, null)) };
+				}
+				else {
+					// a chain of properties ("item.name")
+					propertyNames = new String[tree.jjtGetNumChildren()];
+					for (int i = 0; i < propertyNames.length; i++) {
+						propertyNames[i] = String.valueOf(tree.jjtGetChild(i).jjtGetChild(0).getValue(context, null));
+					}
+				}
+				expression._propertyNames = propertyNames;
+			}
+			else {
+				expression._compilable = false;
+			}
+		}
+		return propertyNames;
+	}
+
+	/**
+	 * Evaluates a compiled simple navigation chain the way ASTChain and
+	 * ASTProperty would, including the null handlers, but without walking the
+	 * tree. A null in the middle of the chain returns null like a keypath.
+	 */
+	private Object getCompiledValue(String[] propertyNames, OgnlContext context, Object obj) throws OgnlException {
+		context.setRoot(obj);
+		Object value = obj;
+		for (int i = 0; i < propertyNames.length; i++) {
+			if (value == null) {
+				return null;
+			}
+			Object source = value;
+			value = OgnlRuntime.getProperty(context, source, propertyNames[i]);
+			if (value == null) {
+				value = OgnlRuntime.getNullHandler(OgnlRuntime.getTargetClass(source)).nullPropertyValue(context, source, propertyNames[i]);
+			}
+		}
+		return value;
+	}
+
 	public Object getValue(String expression, Object obj) {
 		Object value = null;
+		OgnlContext context = null;
 		try {
-			value = Ognl.getValue(expression, newDefaultContext(), obj);
+			if (_cacheExpressions) {
+				Expression parsedExpression = parsedExpression(expression);
+				if (_poolContexts) {
+					context = checkOutContext();
+				}
+				Map evaluationContext = context != null ? context : newDefaultContext();
+				String[] propertyNames = _compileExpressions && context != null ? compiledPropertyNames(parsedExpression, expression, context) : null;
+				if (propertyNames != null) {
+					value = getCompiledValue(propertyNames, context, obj);
+				}
+				else {
+					value = Ognl.getValue(parsedExpression.tree(), evaluationContext, obj);
+				}
+			}
+			else {
+				value = Ognl.getValue(expression, newDefaultContext(), obj);
+			}
 		}
 		catch (OgnlException ex) {
 			String message = ex.getMessage();
@@ -250,16 +446,32 @@ public class WOOgnl {
 				throw new RuntimeException("Failed to get value '" + expression + "' on " + obj, ex);
 			}
 		}
+		finally {
+			checkInContext(context);
+		}
 		return value;
 	}
 
 	public void setValue(String expression, Object obj, Object value) {
+		OgnlContext context = null;
 		try {
-			Ognl.setValue(expression, newDefaultContext(), obj, value);
+			if (_cacheExpressions) {
+				Expression parsedExpression = parsedExpression(expression);
+				if (_poolContexts) {
+					context = checkOutContext();
+				}
+				Ognl.setValue(parsedExpression.tree(), context != null ? context : newDefaultContext(), obj, value);
+			}
+			else {
+				Ognl.setValue(expression, newDefaultContext(), obj, value);
+			}
 		}
 		catch (OgnlException ex) {
 			throw new RuntimeException("Failed to set value '" + expression + "' on " + obj, ex);
 		}
+		finally {
+			checkInContext(context);
+		}
 	}
 
 }
@@ -0,0 +1,147 @@
+package ognl.webobjects;
+
+import java.math.BigDecimal;
+
+import ognl.OgnlRuntime;
+
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+
+/**
+ * Renders the bindings of a repetition-heavy component the way WOOgnlAssociations inside a WORepetition pull them:
+ * for every item, the repetition pushes the item into the component and each binding evaluates its expression. Times
+ * WOOgnl without the expression cache (parse and new context on every evaluation), with the cache and pooled contexts,
+ * and with the cache and compiled simple keypaths.
+ *
+ * Usage: WOOgnlBenchmark [itemCount] [renders]
+ */
+public class WOOgnlBenchmark {
+	private static final String[] BINDINGS = new String[] { "item.name", "item.price", "item.category.name", "item.price.multiply(quantity)", "index % 2 == 0 ? \"even\" : \"odd\"", "item.tags.count", "item.category.parent.name", "item.name.equals(selectedItem.name)" };
+
+	public static class Category {
+		private final String _name;
+		private final Category _parent;
+
+		public Category(String name, Category parent) {
+			_name = name;
+			_parent = parent;
+		}
+
+		public String name() {
+			return _name;
+		}
+
+		public Category parent() {
+			return _parent;
+		}
+	}
+
+	public static class Item {
+		private final String _name;
+		private final BigDecimal _price;
+		private final Category _category;
+		private final NSArray<String> _tags;
+
+		public Item(String name, BigDecimal price, Category category, NSArray<String> tags) {
+			_name = name;
+			_price = price;
+			_category = category;
+			_tags = tags;
+		}
+
+		public String name() {
+			return _name;
+		}
+
+		public BigDecimal price() {
+			return _price;
+		}
+
+		public Category category() {
+			return _category;
+		}
+
+		public NSArray<String> tags() {
+			return _tags;
+		}
+	}
+
+	public static class ListPage {
+		public NSArray<Item> items;
+		public Item item;
+		public Item selectedItem;
+		public int index;
+		public BigDecimal quantity = BigDecimal.valueOf(3);
+	}
+
+	private static long render(WOOgnl ognl, ListPage page, int renders) {
+		long hash = 0;
+		for (int render = 0; render < renders; render++) {
+			for (int index = 0; index < page.items.count(); index++) {
+				page.index = index;
+				page.item = page.items.objectAtIndex(index);
+				for (String binding : BINDINGS) {
+					Object value = ognl.getValue(binding, page);
+					if (value != null) {
+						hash += value.hashCode();
+					}
+				}
+			}
+		}
+		return hash;
+	}
+
+	private static WOOgnl ognl(boolean cacheExpressions, boolean compileExpressions) {
+		System.setProperty("ognl.cacheExpressions", String.valueOf(cacheExpressions));
+		System.setProperty("ognl.compileExpressions", String.valueOf(compileExpressions));
+		System.setProperty("ognl.compileThreshold", "10");
+		return new WOOgnl();
+	}
+
+	public static void main(String[] args) {
+		int itemCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int renders = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		OgnlRuntime.setPropertyAccessor(Object.class, new NSObjectPropertyAccessor());
+		OgnlRuntime.setPropertyAccessor(NSArray.class, new NSArrayPropertyAccessor());
+
+		Category root = new Category("All", null);
+		Category[] categories = new Category[10];
+		for (int categoryNum = 0; categoryNum < categories.length; categoryNum++) {
+			categories[categoryNum] = new Category("Category " + categoryNum, root);
+		}
+		NSMutableArray<Item> items = new NSMutableArray<Item>();
+		for (int itemNum = 0; itemNum < itemCount; itemNum++) {
+			items.addObject(new Item("Item " + itemNum, BigDecimal.valueOf(itemNum, 2), categories[itemNum % categories.length], new NSArray<String>(new String[] { "new", "tag" + itemNum % 7 })));
+		}
+		ListPage page = new ListPage();
+		page.items = items;
+		page.selectedItem = items.objectAtIndex(itemCount / 2);
+
+		WOOgnl uncached = WOOgnlBenchmark.ognl(false, false);
+		WOOgnl cached = WOOgnlBenchmark.ognl(true, false);
+		WOOgnl compiled = WOOgnlBenchmark.ognl(true, true);
+		long expected = WOOgnlBenchmark.render(uncached, page, 1);
+		if (WOOgnlBenchmark.render(cached, page, 1) != expected || WOOgnlBenchmark.render(compiled, page, 1) != expected) {
+			throw new IllegalStateException("Cached and uncached evaluation disagree");
+		}
+
+		long evaluations = (long) itemCount * renders * BINDINGS.length;
+		System.out.println(itemCount + " items, " + BINDINGS.length + " bindings, " + renders + " renders");
+		for (int run = 0; run < 3; run++) {
+			long start = System.nanoTime();
+			long hash = WOOgnlBenchmark.render(uncached, page, renders);
+			long uncachedTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			hash -= WOOgnlBenchmark.render(cached, page, renders);
+			long cachedTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			hash -= WOOgnlBenchmark.render(compiled, page, renders) - expected * renders;
+			long compiledTime = System.nanoTime() - start;
+
+			System.out.println("run " + run + ": uncached " + (uncachedTime / evaluations) + "ns/binding, cached " + (cachedTime / evaluations) + "ns/binding, compiled " + (compiledTime / evaluations) + "ns/binding" + (hash != 0 ? " (MISMATCH)" : ""));
+		}
+	}
+}
@@ -81,20 +81,7 @@ public abstract class EREntityStore {
 			}
 		}
     
-//    int count = 0;
-    NSMutableArray<NSMutableDictionary<String, Object>> fetchedRows = new NSMutableArray<NSMutableDictionary<String, Object>>();
-    Iterator<NSMutableDictionary<String, Object>> i = iterator();
-    while (i.hasNext()) {
-      NSMutableDictionary<String, Object> rawRow = i.next();
-      NSMutableDictionary<String, Object> row = rowFromStoredValues(rawRow, entity);
-      if (qualifier == null || qualifier.evaluateWithObject(row)) {
-        fetchedRows.addObject(row);
-//        count++;
-      }
-//      if (fetchLimit > 0 && count == fetchLimit) {
-//        break;
-//      }
-    }
+    NSMutableArray<NSMutableDictionary<String, Object>> fetchedRows = fetchRowsMatchingQualifier(qualifier, entity);
 
     if (sortOrderings != null) {
       EOSortOrdering.sortArrayUsingKeyOrderArray(fetchedRows, sortOrderings);
@@ -106,6 +93,40 @@ public abstract class EREntityStore {
     return fetchedRows;
   }
 
+  /**
+   * Returns the rows (as returned by {@link #rowFromStoredValues(NSMutableDictionary, EOEntity)})
+   * that match the given qualifier, in the order of {@link #candidateRows(EOQualifier, EOEntity)}.
+   * 
+   * @param qualifier the qualifier to match, or null for all rows
+   * @param entity the entity to fetch
+   * @return the matching rows
+   */
+  protected NSMutableArray<NSMutableDictionary<String, Object>> fetchRowsMatchingQualifier(EOQualifier qualifier, EOEntity entity) {
+    NSMutableArray<NSMutableDictionary<String, Object>> fetchedRows = new NSMutableArray<NSMutableDictionary<String, Object>>();
+    Iterator<NSMutableDictionary<String, Object>> i = candidateRows(qualifier, entity);
+    while (i.hasNext()) {
+      NSMutableDictionary<String, Object> rawRow = i.next();
+      NSMutableDictionary<String, Object> row = rowFromStoredValues(rawRow, entity);
+      if (qualifier == null || qualifier.evaluateWithObject(row)) {
+        fetchedRows.addObject(row);
+      }
+    }
+    return fetchedRows;
+  }
+
+  /**
+   * Returns the stored rows that can match the given qualifier. The qualifier is still 
+   * evaluated against each of them, so a store with indexes can return a superset of 
+   * the matching rows. The default implementation returns all rows.
+   * 
+   * @param qualifier the qualifier to match, or null for all rows
+   * @param entity the entity to fetch
+   * @return an iterator over the candidate rows
+   */
+  protected Iterator<NSMutableDictionary<String, Object>> candidateRows(EOQualifier qualifier, EOEntity entity) {
+    return iterator();
+  }
+
   protected NSMutableDictionary<String, Object> rowFromStoredValues(NSMutableDictionary<String, Object> rawRow, EOEntity entity) {
     NSMutableDictionary<String, Object> row = new NSMutableDictionary<String, Object>(rawRow.count()); 
     for (EOAttribute attribute : (NSArray<EOAttribute>)entity.attributesToFetch()) {
@@ -154,6 +175,18 @@ public abstract class EREntityStore {
   }
 
   public abstract Iterator<NSMutableDictionary<String, Object>> iterator();
+
+  /**
+   * Sets a value of a stored row. Stores that index their rows override this to update
+   * their indexes.
+   * 
+   * @param rawRow the stored row
+   * @param value the new value
+   * @param columnName the column to set
+   */
+  protected void updateValueInRow(NSMutableDictionary<String, Object> rawRow, Object value, String columnName) {
+    rawRow.setObjectForKey(value, columnName);
+  }
   
   public int nextSequence() {
     return ++_sequence;
@@ -166,7 +199,7 @@ public abstract class EREntityStore {
   public int updateValuesInRowsDescribedByQualifier(NSDictionary<String, Object> updatedRow, EOQualifier qualifier, EOEntity entity) {
     try {
       int count = 0;
-      Iterator<NSMutableDictionary<String, Object>> i = iterator();
+      Iterator<NSMutableDictionary<String, Object>> i = candidateRows(qualifier, entity);
       while (i.hasNext()) {
         NSMutableDictionary<String, Object> rawRow = i.next();
         NSMutableDictionary<String, Object> row = rowFromStoredValues(rawRow, entity);
@@ -174,7 +207,7 @@ public abstract class EREntityStore {
         if (qualifier == null || qualifier.evaluateWithObject(row)) {
           for (Map.Entry<String, Object> entry : updatedRow.entrySet()) {
             EOAttribute attribute = entity.attributeNamed(entry.getKey());
-            rawRow.setObjectForKey(entry.getValue(), attribute.columnName());
+            updateValueInRow(rawRow, entry.getValue(), attribute.columnName());
           }
           count++;
         }
@@ -1,50 +1,102 @@
 package er.memoryadaptor;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import com.webobjects.eoaccess.EOAttribute;
 import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOGeneralAdaptorException;
+import com.webobjects.eoaccess.EOJoin;
+import com.webobjects.eoaccess.EORelationship;
+import com.webobjects.eocontrol.EOAndQualifier;
+import com.webobjects.eocontrol.EOKeyValueQualifier;
+import com.webobjects.eocontrol.EOOrQualifier;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.eocontrol.EOQualifierVariable;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSForwardException;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSProperties;
+import com.webobjects.foundation.NSSelector;
 
 /**
  * ERMemoryEntityStore is the actual datastore implementation for a single "table"
- * in ERMemoryAdaptor.  It's about as simple as you can get -- each row of the 
+ * in ERMemoryAdaptor.  It's about as simple as you can get -- each row of the
  * "database" is represented by a dictionary that maps attribute names to values.
- * 
+ *
+ * Rows are indexed by the columns of the primary key and of the foreign keys of
+ * to-one relationships, and by the attributes named in the entity's userInfo under
+ * ERMemoryAdaptorIndexes (hash indexes) and ERMemoryAdaptorSortedIndexes (sorted
+ * indexes, which also answer &lt;, &lt;=, &gt; and &gt;=). Qualifiers that compare
+ * an indexed attribute with a constant (also inside AND and OR qualifiers) only
+ * evaluate the rows found in the index. Scans over more rows than
+ * er.memoryadaptor.parallelScanThreshold (defaults to 10000, 0 to turn off) are
+ * split across the available processors.
+ *
  * @author mschrag
  * @author q
  */
 public class ERMemoryEntityStore extends EREntityStore {
+  public static final String INDEXES_KEY = "ERMemoryAdaptorIndexes";
+  public static final String SORTED_INDEXES_KEY = "ERMemoryAdaptorSortedIndexes";
+  public static final String PARALLEL_SCAN_THRESHOLD_KEY = "er.memoryadaptor.parallelScanThreshold";
+
+  private static ExecutorService _scanExecutor;
+
   protected NSMutableArray<NSMutableDictionary<String, Object>> _rows;
+  protected NSMutableDictionary<String, ERMemoryIndex> _indexes;
+  private NSMutableArray<String> _indexedEntityNames;
 
   public ERMemoryEntityStore() {
     _rows = new NSMutableArray<NSMutableDictionary<String, Object>>();
+    _indexes = new NSMutableDictionary<String, ERMemoryIndex>();
+    _indexedEntityNames = new NSMutableArray<String>();
   }
 
   @Override
   public void clear() {
     super.clear();
     _rows.removeAllObjects();
+    for (ERMemoryIndex index : _indexes.values()) {
+      index.clear();
+    }
   }
 
   @Override
   public ERMemoryEntityStore transactionStore() {
     ERMemoryEntityStore cloneStore = new ERMemoryEntityStore() {
-      public int nextSequence() { 
-        return ERMemoryEntityStore.this.nextSequence(); 
+      public int nextSequence() {
+        return ERMemoryEntityStore.this.nextSequence();
       }
     };
     for (NSMutableDictionary<String, Object> row : _rows) {
       cloneStore._rows.addObject(row.mutableClone());
     }
+    for (ERMemoryIndex index : _indexes.values()) {
+      cloneStore.addIndex(index.emptyCopy());
+    }
+    cloneStore._indexedEntityNames.addObjectsFromArray(_indexedEntityNames);
     return cloneStore;
   }
 
   @Override
   public void commitFromTransactionStore(EREntityStore store) {
-    _rows = ((ERMemoryEntityStore)store)._rows.mutableClone();
+    ERMemoryEntityStore transactionStore = (ERMemoryEntityStore) store;
+    _rows = transactionStore._rows.mutableClone();
+    // the transaction store is thrown away, so we can take over its indexes of the same rows
+    _indexes = transactionStore._indexes;
+    _indexedEntityNames = transactionStore._indexedEntityNames;
   }
-  
+
   @Override
   public Iterator<NSMutableDictionary<String, Object>> iterator() {
     return _rows.iterator();
@@ -52,6 +104,311 @@ public class ERMemoryEntityStore extends EREntityStore {
 
   @Override
   protected void _insertRow(NSMutableDictionary<String, Object> row, EOEntity entity) {
+    indexEntityIfNecessary(entity);
     _rows.addObject(row);
+    for (ERMemoryIndex index : _indexes.values()) {
+      index.addRow(row);
+    }
+  }
+
+  @Override
+  protected void updateValueInRow(NSMutableDictionary<String, Object> rawRow, Object value, String columnName) {
+    ERMemoryIndex index = _indexes.objectForKey(columnName);
+    if (index != null) {
+      index.removeRow(rawRow);
+    }
+    super.updateValueInRow(rawRow, value, columnName);
+    if (index != null) {
+      index.addRow(rawRow);
+    }
+  }
+
+  @Override
+  public int deleteRowsDescribedByQualifier(EOQualifier qualifier, EOEntity entity) {
+    try {
+      if (qualifier == null) {
+        int count = _rows.count();
+        clearRows();
+        return count;
+      }
+      IdentityHashMap<NSMutableDictionary<String, Object>, Boolean> deletedRows = new IdentityHashMap<NSMutableDictionary<String, Object>, Boolean>();
+      Iterator<NSMutableDictionary<String, Object>> i = candidateRows(qualifier, entity);
+      while (i.hasNext()) {
+        NSMutableDictionary<String, Object> rawRow = i.next();
+        if (qualifier.evaluateWithObject(rowFromStoredValues(rawRow, entity))) {
+          deletedRows.put(rawRow, Boolean.TRUE);
+        }
+      }
+      if (deletedRows.size() > 0) {
+        NSMutableArray<NSMutableDictionary<String, Object>> rows = new NSMutableArray<NSMutableDictionary<String, Object>>(_rows.count() - deletedRows.size());
+        for (NSMutableDictionary<String, Object> rawRow : _rows) {
+          if (deletedRows.containsKey(rawRow)) {
+            for (ERMemoryIndex index : _indexes.values()) {
+              index.removeRow(rawRow);
+            }
+          }
+          else {
+            rows.addObject(rawRow);
+          }
+        }
+        _rows = rows;
+      }
+      return deletedRows.size();
+    }
+    catch (EOGeneralAdaptorException e) {
+      throw e;
+    }
+    catch (Throwable e) {
+      e.printStackTrace();
+      throw new EOGeneralAdaptorException("Failed to delete '" + entity.name() + "' with qualifier " + qualifier + ": " + e.getMessage());
+    }
+  }
+
+  private void clearRows() {
+    _rows.removeAllObjects();
+    for (ERMemoryIndex index : _indexes.values()) {
+      index.clear();
+    }
+  }
+
+  /**
+   * Adds the given index and fills it with the existing rows. Replaces any index on
+   * the same column.
+   *
+   * @param index the index to add
+   */
+  public void addIndex(ERMemoryIndex index) {
+    index.clear();
+    for (NSMutableDictionary<String, Object> row : _rows) {
+      index.addRow(row);
+    }
+    _indexes.setObjectForKey(index, index.columnName());
+  }
+
+  /**
+   * Returns the index for the given column, or null if it isn't indexed.
+   *
+   * @param columnName the column
+   * @return the index or null
+   */
+  public ERMemoryIndex indexForColumnName(String columnName) {
+    return _indexes.objectForKey(columnName);
+  }
+
+  /**
+   * Creates the indexes declared by the given entity the first time it is used
+   * with this store (several entities can share a table).
+   *
+   * @param entity the entity
+   */
+  protected void indexEntityIfNecessary(EOEntity entity) {
+    if (!_indexedEntityNames.containsObject(entity.name())) {
+      _indexedEntityNames.addObject(entity.name());
+      for (EOAttribute attribute : (NSArray<EOAttribute>) entity.primaryKeyAttributes()) {
+        addIndexForAttribute(attribute, false);
+      }
+      for (EORelationship relationship : (NSArray<EORelationship>) entity.relationships()) {
+        if (!relationship.isToMany() && !relationship.isFlattened()) {
+          for (EOJoin join : (NSArray<EOJoin>) relationship.joins()) {
+            addIndexForAttribute(join.sourceAttribute(), false);
+          }
+        }
+      }
+      for (String attributeName : ERMemoryEntityStore.attributeNamesInUserInfo(entity, ERMemoryEntityStore.INDEXES_KEY)) {
+        addIndexForAttribute(entity.attributeNamed(attributeName), false);
+      }
+      for (String attributeName : ERMemoryEntityStore.attributeNamesInUserInfo(entity, ERMemoryEntityStore.SORTED_INDEXES_KEY)) {
+        addIndexForAttribute(entity.attributeNamed(attributeName), true);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static NSArray<String> attributeNamesInUserInfo(EOEntity entity, String key) {
+    Object value = entity.userInfo() != null ? entity.userInfo().objectForKey(key) : null;
+    if (value instanceof NSArray) {
+      return (NSArray<String>) value;
+    }
+    if (value instanceof String) {
+      return NSArray.componentsSeparatedByString(((String) value).replaceAll("\\s", ""), ",");
+    }
+    return NSArray.EmptyArray;
+  }
+
+  private void addIndexForAttribute(EOAttribute attribute, boolean sorted) {
+    if (attribute != null && !attribute.isDerived()) {
+      ERMemoryIndex index = _indexes.objectForKey(attribute.columnName());
+      if (index == null || (sorted && !index.isSorted())) {
+        addIndex(new ERMemoryIndex(attribute.columnName(), sorted));
+      }
+    }
+  }
+
+  @Override
+  protected Iterator<NSMutableDictionary<String, Object>> candidateRows(EOQualifier qualifier, EOEntity entity) {
+    indexEntityIfNecessary(entity);
+    List<NSMutableDictionary<String, Object>> rows = indexedRows(qualifier, entity);
+    if (rows == null) {
+      return iterator();
+    }
+    return rows.iterator();
+  }
+
+  /**
+   * Returns the rows that can match the given qualifier according to the indexes, or
+   * null if the indexes can't answer it.
+   *
+   * @param qualifier the qualifier
+   * @param entity the entity
+   * @return a new list of rows or null
+   */
+  protected List<NSMutableDictionary<String, Object>> indexedRows(EOQualifier qualifier, EOEntity entity) {
+    List<NSMutableDictionary<String, Object>> rows = null;
+    if (qualifier instanceof EOKeyValueQualifier) {
+      EOKeyValueQualifier keyValueQualifier = (EOKeyValueQualifier) qualifier;
+      EOAttribute attribute = entity.attributeNamed(keyValueQualifier.key());
+      Object value = keyValueQualifier.value();
+      ERMemoryIndex index = attribute != null && !attribute.isDerived() ? _indexes.objectForKey(attribute.columnName()) : null;
+      if (index != null && !(value instanceof EOQualifierVariable)) {
+        NSSelector selector = keyValueQualifier.selector();
+        if (EOQualifier.QualifierOperatorEqual.equals(selector)) {
+          rows = index.rowsEqualTo(value);
+        }
+        else if (value != null) {
+          if (EOQualifier.QualifierOperatorLessThan.equals(selector)) {
+            rows = index.rowsInRange(null, false, value, false);
+          }
+          else if (EOQualifier.QualifierOperatorLessThanOrEqualTo.equals(selector)) {
+            rows = index.rowsInRange(null, false, value, true);
+          }
+          else if (EOQualifier.QualifierOperatorGreaterThan.equals(selector)) {
+            rows = index.rowsInRange(value, false, null, false);
+          }
+          else if (EOQualifier.QualifierOperatorGreaterThanOrEqualTo.equals(selector)) {
+            rows = index.rowsInRange(value, true, null, false);
+          }
+        }
+      }
+    }
+    else if (qualifier instanceof EOAndQualifier) {
+      for (EOQualifier subqualifier : (NSArray<EOQualifier>) ((EOAndQualifier) qualifier).qualifiers()) {
+        List<NSMutableDictionary<String, Object>> subrows = indexedRows(subqualifier, entity);
+        if (subrows != null && (rows == null || subrows.size() < rows.size())) {
+          rows = subrows;
+        }
+      }
+    }
+    else if (qualifier instanceof EOOrQualifier) {
+      IdentityHashMap<NSMutableDictionary<String, Object>, Boolean> unionRows = new IdentityHashMap<NSMutableDictionary<String, Object>, Boolean>();
+      rows = new ArrayList<NSMutableDictionary<String, Object>>();
+      for (EOQualifier subqualifier : (NSArray<EOQualifier>) ((EOOrQualifier) qualifier).qualifiers()) {
+        List<NSMutableDictionary<String, Object>> subrows = indexedRows(subqualifier, entity);
+        if (subrows == null) {
+          return null;
+        }
+        for (NSMutableDictionary<String, Object> row : subrows) {
+          if (unionRows.put(row, Boolean.TRUE) == null) {
+            rows.add(row);
+          }
+        }
+      }
+    }
+    return rows;
+  }
+
+  @Override
+  protected NSMutableArray<NSMutableDictionary<String, Object>> fetchRowsMatchingQualifier(EOQualifier qualifier, EOEntity entity) {
+    indexEntityIfNecessary(entity);
+    List<NSMutableDictionary<String, Object>> rows = qualifier != null ? indexedRows(qualifier, entity) : null;
+    if (rows == null) {
+      rows = _rows;
+    }
+    int threshold = ERMemoryEntityStore.parallelScanThreshold();
+    if (threshold > 0 && rows.size() > threshold && Runtime.getRuntime().availableProcessors() > 1) {
+      return parallelFetchRowsMatchingQualifier(rows, qualifier, entity);
+    }
+    return fetchRowsMatchingQualifier(rows, 0, rows.size(), qualifier, entity);
+  }
+
+  private NSMutableArray<NSMutableDictionary<String, Object>> fetchRowsMatchingQualifier(List<NSMutableDictionary<String, Object>> rows, int start, int end, EOQualifier qualifier, EOEntity entity) {
+    NSMutableArray<NSMutableDictionary<String, Object>> fetchedRows = new NSMutableArray<NSMutableDictionary<String, Object>>();
+    for (int i = start; i < end; i++) {
+      NSMutableDictionary<String, Object> row = rowFromStoredValues(rows.get(i), entity);
+      if (qualifier == null || qualifier.evaluateWithObject(row)) {
+        fetchedRows.addObject(row);
+      }
+    }
+    return fetchedRows;
+  }
+
+  /**
+   * Evaluates the qualifier on one segment of the rows per processor and
+   * concatenates the results in order.
+   */
+  private NSMutableArray<NSMutableDictionary<String, Object>> parallelFetchRowsMatchingQualifier(final List<NSMutableDictionary<String, Object>> rows, final EOQualifier qualifier, final EOEntity entity) {
+    int segmentCount = Runtime.getRuntime().availableProcessors();
+    int segmentSize = (rows.size() + segmentCount - 1) / segmentCount;
+    List<Future<NSMutableArray<NSMutableDictionary<String, Object>>>> segments = new ArrayList<Future<NSMutableArray<NSMutableDictionary<String, Object>>>>(segmentCount);
+    ExecutorService executor = ERMemoryEntityStore.scanExecutor();
+    for (int start = 0; start < rows.size(); start += segmentSize) {
+      final int segmentStart = start;
+      final int segmentEnd = Math.min(start + segmentSize, rows.size());
+      segments.add(executor.submit(new Callable<NSMutableArray<NSMutableDictionary<String, Object>>>() {
+        public NSMutableArray<NSMutableDictionary<String, Object>> call() {
+          return fetchRowsMatchingQualifier(rows, segmentStart, segmentEnd, qualifier, entity);
+        }
+      }));
+    }
+    NSMutableArray<NSMutableDictionary<String, Object>> fetchedRows = new NSMutableArray<NSMutableDictionary<String, Object>>();
+    try {
+      for (Future<NSMutableArray<NSMutableDictionary<String, Object>>> segment : segments) {
+        fetchedRows.addObjectsFromArray(segment.get());
+      }
+    }
+    catch (InterruptedException e) {
+      for (Future<NSMutableArray<NSMutableDictionary<String, Object>>> segment : segments) {
+        segment.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw NSForwardException._runtimeExceptionForThrowable(e);
+    }
+    catch (ExecutionException e) {
+      throw NSForwardException._runtimeExceptionForThrowable(e.getCause());
+    }
+    return fetchedRows;
+  }
+
+  /**
+   * Returns the number of rows above which unindexed fetches are parallelized.
+   */
+  public static int parallelScanThreshold() {
+    String threshold = NSProperties.getProperty(ERMemoryEntityStore.PARALLEL_SCAN_THRESHOLD_KEY);
+    return threshold != null ? Integer.parseInt(threshold.trim()) : 10000;
+  }
+
+  private static synchronized ExecutorService scanExecutor() {
+    if (_scanExecutor == null) {
+      _scanExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private int _count;
+
+        public synchronized Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "ERMemoryEntityStore-scan-" + (++_count));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return _scanExecutor;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<").append(getClass().getSimpleName()).append(" rows=").append(_rows.count()).append(" indexes=");
+    for (ERMemoryIndex index : _indexes.values()) {
+      sb.append(index).append(' ');
+    }
+    sb.append(">");
+    return sb.toString();
   }
 }
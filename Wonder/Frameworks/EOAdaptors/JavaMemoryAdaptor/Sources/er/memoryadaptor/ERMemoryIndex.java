@@ -0,0 +1,285 @@
+package er.memoryadaptor;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.webobjects.foundation.NSKeyValueCoding;
+import com.webobjects.foundation.NSMutableDictionary;
+
+/**
+ * ERMemoryIndex maps the values of one column of an ERMemoryEntityStore to the rows
+ * that have them. A hash index answers equality lookups, a sorted index additionally
+ * answers range lookups. Numbers are normalized, so an Integer and a Long with the
+ * same value find the same rows.
+ *
+ * If a value can't be added to a sorted index (because it isn't comparable with the
+ * other values), the index becomes invalid and lookups return null, which makes the
+ * store fall back to a scan.
+ */
+public class ERMemoryIndex {
+  private static final Comparator<Object> VALUE_COMPARATOR = new Comparator<Object>() {
+    @SuppressWarnings("unchecked")
+    public int compare(Object o1, Object o2) {
+      if (o1 instanceof Long && o2 instanceof Long) {
+        return ((Long) o1).compareTo((Long) o2);
+      }
+      if (o1 instanceof Number && o2 instanceof Number) {
+        BigDecimal d1 = ERMemoryIndex.bigDecimalValue((Number) o1);
+        BigDecimal d2 = ERMemoryIndex.bigDecimalValue((Number) o2);
+        if (d1 == null || d2 == null) {
+          throw new ClassCastException("Can't compare " + o1 + " and " + o2);
+        }
+        return d1.compareTo(d2);
+      }
+      return ((Comparable<Object>) o1).compareTo(o2);
+    }
+  };
+
+  private final String _columnName;
+  private final boolean _sorted;
+  private final Map<Object, List<NSMutableDictionary<String, Object>>> _rowsByValue;
+  private final List<NSMutableDictionary<String, Object>> _nullRows;
+  private boolean _valid;
+
+  /**
+   * @param columnName the indexed column
+   * @param sorted if true, the index also answers range lookups
+   */
+  public ERMemoryIndex(String columnName, boolean sorted) {
+    _columnName = columnName;
+    _sorted = sorted;
+    if (sorted) {
+      _rowsByValue = new TreeMap<Object, List<NSMutableDictionary<String, Object>>>(ERMemoryIndex.VALUE_COMPARATOR);
+    }
+    else {
+      _rowsByValue = new HashMap<Object, List<NSMutableDictionary<String, Object>>>();
+    }
+    _nullRows = new ArrayList<NSMutableDictionary<String, Object>>();
+    _valid = true;
+  }
+
+  /**
+   * Returns a new, empty index on the same column.
+   */
+  public ERMemoryIndex emptyCopy() {
+    return new ERMemoryIndex(_columnName, _sorted);
+  }
+
+  public String columnName() {
+    return _columnName;
+  }
+
+  public boolean isSorted() {
+    return _sorted;
+  }
+
+  /**
+   * Returns false if a value could not be indexed.
+   */
+  public boolean isValid() {
+    return _valid;
+  }
+
+  /**
+   * Returns the value the index uses for the given column value: null and NullValue
+   * become NullValue, integral numbers become Longs and other numbers BigDecimals
+   * without trailing zeros.
+   *
+   * @param value a column or qualifier value
+   * @return the normalized value
+   */
+  public static Object indexValue(Object value) {
+    if (value == null || value == NSKeyValueCoding.NullValue) {
+      return NSKeyValueCoding.NullValue;
+    }
+    if (value instanceof Long) {
+      return value;
+    }
+    if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return Long.valueOf(((Number) value).longValue());
+    }
+    if (value instanceof Number) {
+      BigDecimal decimal = ERMemoryIndex.bigDecimalValue((Number) value);
+      if (decimal != null) {
+        if (decimal.signum() == 0) {
+          return Long.valueOf(0);
+        }
+        decimal = decimal.stripTrailingZeros();
+        if (decimal.scale() <= 0 && decimal.precision() - decimal.scale() < 19) {
+          return Long.valueOf(decimal.longValue());
+        }
+        return decimal;
+      }
+    }
+    return value;
+  }
+
+  protected static BigDecimal bigDecimalValue(Number value) {
+    if (value instanceof BigDecimal) {
+      return (BigDecimal) value;
+    }
+    if (value instanceof BigInteger) {
+      return new BigDecimal((BigInteger) value);
+    }
+    if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return BigDecimal.valueOf(value.longValue());
+    }
+    double doubleValue = value.doubleValue();
+    if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+      return null;
+    }
+    return BigDecimal.valueOf(doubleValue);
+  }
+
+  public void addRow(NSMutableDictionary<String, Object> row) {
+    Object value = ERMemoryIndex.indexValue(row.objectForKey(_columnName));
+    if (value == NSKeyValueCoding.NullValue) {
+      _nullRows.add(row);
+    }
+    else if (_valid) {
+      if (_sorted && !(value instanceof Comparable)) {
+        _valid = false;
+        _rowsByValue.clear();
+        return;
+      }
+      try {
+        List<NSMutableDictionary<String, Object>> rows = _rowsByValue.get(value);
+        if (rows == null) {
+          rows = new ArrayList<NSMutableDictionary<String, Object>>(1);
+          _rowsByValue.put(value, rows);
+        }
+        rows.add(row);
+      }
+      catch (ClassCastException e) {
+        _valid = false;
+        _rowsByValue.clear();
+      }
+    }
+  }
+
+  public void removeRow(NSMutableDictionary<String, Object> row) {
+    Object value = ERMemoryIndex.indexValue(row.objectForKey(_columnName));
+    if (value == NSKeyValueCoding.NullValue) {
+      ERMemoryIndex.removeIdenticalRow(_nullRows, row);
+    }
+    else if (_valid) {
+      List<NSMutableDictionary<String, Object>> rows = _rowsByValue.get(value);
+      if (rows != null && ERMemoryIndex.removeIdenticalRow(rows, row) && rows.isEmpty()) {
+        _rowsByValue.remove(value);
+      }
+    }
+  }
+
+  private static boolean removeIdenticalRow(List<NSMutableDictionary<String, Object>> rows, NSMutableDictionary<String, Object> row) {
+    for (int i = rows.size() - 1; i >= 0; i--) {
+      if (rows.get(i) == row) {
+        rows.remove(i);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void clear() {
+    _rowsByValue.clear();
+    _nullRows.clear();
+    _valid = true;
+  }
+
+  /**
+   * Returns the rows whose value equals the given one.
+   *
+   * @param value the value to look up
+   * @return a new list of rows, or null if the index can't answer
+   */
+  public List<NSMutableDictionary<String, Object>> rowsEqualTo(Object value) {
+    Object indexValue = ERMemoryIndex.indexValue(value);
+    if (indexValue == NSKeyValueCoding.NullValue) {
+      return new ArrayList<NSMutableDictionary<String, Object>>(_nullRows);
+    }
+    if (!_valid) {
+      return null;
+    }
+    try {
+      List<NSMutableDictionary<String, Object>> rows = _rowsByValue.get(indexValue);
+      return rows != null ? new ArrayList<NSMutableDictionary<String, Object>>(rows) : new ArrayList<NSMutableDictionary<String, Object>>();
+    }
+    catch (ClassCastException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the rows whose value is in the given range. Rows with null values are
+   * never returned.
+   *
+   * @param lowerBound the lower bound, or null for none
+   * @param lowerInclusive whether the lower bound is included
+   * @param upperBound the upper bound, or null for none
+   * @param upperInclusive whether the upper bound is included
+   * @return a new list of rows, or null if the index can't answer
+   */
+  public List<NSMutableDictionary<String, Object>> rowsInRange(Object lowerBound, boolean lowerInclusive, Object upperBound, boolean upperInclusive) {
+    if (!_sorted || !_valid) {
+      return null;
+    }
+    Object lower = lowerBound != null ? ERMemoryIndex.indexValue(lowerBound) : null;
+    Object upper = upperBound != null ? ERMemoryIndex.indexValue(upperBound) : null;
+    if (lower == NSKeyValueCoding.NullValue || upper == NSKeyValueCoding.NullValue || (lower != null && !(lower instanceof Comparable)) || (upper != null && !(upper instanceof Comparable))) {
+      return null;
+    }
+    try {
+      SortedMap<Object, List<NSMutableDictionary<String, Object>>> range = (SortedMap<Object, List<NSMutableDictionary<String, Object>>>) _rowsByValue;
+      if (lower != null) {
+        range = range.tailMap(lower);
+      }
+      if (upper != null) {
+        range = range.headMap(upper);
+      }
+      List<NSMutableDictionary<String, Object>> result = new ArrayList<NSMutableDictionary<String, Object>>();
+      for (Map.Entry<Object, List<NSMutableDictionary<String, Object>>> entry : range.entrySet()) {
+        if (lower == null || lowerInclusive || ERMemoryIndex.VALUE_COMPARATOR.compare(entry.getKey(), lower) != 0) {
+          result.addAll(entry.getValue());
+        }
+      }
+      if (upper != null && upperInclusive) {
+        List<NSMutableDictionary<String, Object>> upperRows = _rowsByValue.get(upper);
+        boolean upperAboveLower = lower == null || ERMemoryIndex.VALUE_COMPARATOR.compare(upper, lower) > 0 || (lowerInclusive && ERMemoryIndex.VALUE_COMPARATOR.compare(upper, lower) == 0);
+        if (upperRows != null && upperAboveLower) {
+          result.addAll(upperRows);
+        }
+      }
+      return result;
+    }
+    catch (ClassCastException e) {
+      return null;
+    }
+    catch (IllegalArgumentException e) {
+      // lower bound above upper bound
+      return new ArrayList<NSMutableDictionary<String, Object>>();
+    }
+  }
+
+  /**
+   * Returns the number of rows in the index.
+   */
+  public int count() {
+    int count = _nullRows.size();
+    for (List<NSMutableDictionary<String, Object>> rows : _rowsByValue.values()) {
+      count += rows.size();
+    }
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return "<" + getClass().getSimpleName() + " " + _columnName + (_sorted ? " sorted" : "") + (_valid ? "" : " invalid") + " values=" + _rowsByValue.size() + ">";
+  }
+}
@@ -0,0 +1,136 @@
+package er.memoryadaptor;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOModel;
+import com.webobjects.eocontrol.EOAndQualifier;
+import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.eocontrol.EOKeyValueQualifier;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+
+/**
+ * Compares fetches from an indexed ERMemoryEntityStore with the plain scan the store
+ * used to do (every row is turned into a row dictionary and the qualifier evaluated):
+ * primary key lookups, lookups on a foreign key, a range on a sorted index and a
+ * qualifier on an unindexed attribute, sequentially and split across processors.
+ *
+ * Usage: ERMemoryEntityStoreBenchmark [rowCount] [fetches]
+ */
+public class ERMemoryEntityStoreBenchmark {
+  /**
+   * The store as it was before indexes: a list of rows that is scanned for every fetch.
+   */
+  public static class ScanningEntityStore extends EREntityStore {
+    private final NSMutableArray<NSMutableDictionary<String, Object>> _rows = new NSMutableArray<NSMutableDictionary<String, Object>>();
+
+    @Override
+    public Iterator<NSMutableDictionary<String, Object>> iterator() {
+      return _rows.iterator();
+    }
+
+    @Override
+    protected void _insertRow(NSMutableDictionary<String, Object> row, EOEntity entity) {
+      _rows.addObject(row);
+    }
+  }
+
+  private static EOAttribute attribute(EOEntity entity, String name, String columnName, String className, String valueType) {
+    EOAttribute attribute = new EOAttribute();
+    attribute.setName(name);
+    attribute.setColumnName(columnName);
+    attribute.setClassName(className);
+    attribute.setValueType(valueType);
+    attribute.setAllowsNull(true);
+    entity.addAttribute(attribute);
+    return attribute;
+  }
+
+  private static EOEntity personEntity() {
+    EOModel model = new EOModel();
+    model.setName("Benchmark");
+    EOEntity entity = new EOEntity();
+    entity.setName("Person");
+    entity.setExternalName("PERSON");
+    model.addEntity(entity);
+    EOAttribute id = ERMemoryEntityStoreBenchmark.attribute(entity, "id", "ID", "java.lang.Number", "i");
+    ERMemoryEntityStoreBenchmark.attribute(entity, "companyID", "COMPANY_ID", "java.lang.Number", "i");
+    ERMemoryEntityStoreBenchmark.attribute(entity, "name", "NAME", "java.lang.String", null);
+    ERMemoryEntityStoreBenchmark.attribute(entity, "age", "AGE", "java.lang.Number", "i");
+    ERMemoryEntityStoreBenchmark.attribute(entity, "score", "SCORE", "java.lang.Number", "i");
+    entity.setPrimaryKeyAttributes(new NSArray<EOAttribute>(id));
+    entity.setClassProperties(entity.attributes());
+    NSMutableDictionary<String, Object> userInfo = new NSMutableDictionary<String, Object>();
+    userInfo.setObjectForKey(new NSArray<String>("companyID"), ERMemoryEntityStore.INDEXES_KEY);
+    userInfo.setObjectForKey(new NSArray<String>("age"), ERMemoryEntityStore.SORTED_INDEXES_KEY);
+    entity.setUserInfo(userInfo);
+    return entity;
+  }
+
+  private static void fill(EREntityStore store, EOEntity entity, int rowCount) {
+    Random random = new Random(0);
+    for (int rowNum = 0; rowNum < rowCount; rowNum++) {
+      NSMutableDictionary<String, Object> row = new NSMutableDictionary<String, Object>();
+      row.setObjectForKey(Integer.valueOf(rowNum), "id");
+      row.setObjectForKey(Integer.valueOf(random.nextInt(rowCount / 100 + 1)), "companyID");
+      row.setObjectForKey("Person " + rowNum, "name");
+      row.setObjectForKey(Integer.valueOf(random.nextInt(90)), "age");
+      row.setObjectForKey(Integer.valueOf(random.nextInt(1000)), "score");
+      store.insertRow(row, entity);
+    }
+  }
+
+  private static long fetch(EREntityStore store, EOEntity entity, EOQualifier qualifier, int fetches) {
+    long count = 0;
+    for (int fetchNum = 0; fetchNum < fetches; fetchNum++) {
+      count += store.fetch(entity.attributesToFetch(), new EOFetchSpecification(entity.name(), qualifier, null), false, entity).count();
+    }
+    return count;
+  }
+
+  public static void main(String[] args) {
+    int rowCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int fetches = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    EOEntity entity = ERMemoryEntityStoreBenchmark.personEntity();
+    ScanningEntityStore scanningStore = new ScanningEntityStore();
+    ERMemoryEntityStore indexedStore = new ERMemoryEntityStore();
+    ERMemoryEntityStoreBenchmark.fill(scanningStore, entity, rowCount);
+    ERMemoryEntityStoreBenchmark.fill(indexedStore, entity, rowCount);
+
+    NSDictionary<String, EOQualifier> qualifiers = new NSDictionary<String, EOQualifier>(new EOQualifier[] {
+        new EOKeyValueQualifier("id", EOQualifier.QualifierOperatorEqual, Integer.valueOf(rowCount / 2)),
+        new EOKeyValueQualifier("companyID", EOQualifier.QualifierOperatorEqual, Integer.valueOf(7)),
+        new EOAndQualifier(new NSArray<EOQualifier>(new EOQualifier[] { new EOKeyValueQualifier("age", EOQualifier.QualifierOperatorGreaterThanOrEqualTo, Integer.valueOf(30)), new EOKeyValueQualifier("age", EOQualifier.QualifierOperatorLessThan, Integer.valueOf(32)) })),
+        new EOKeyValueQualifier("score", EOQualifier.QualifierOperatorLessThan, Integer.valueOf(10))
+    }, new String[] { "primary key", "foreign key", "sorted range", "unindexed" });
+
+    System.out.println(rowCount + " rows, " + fetches + " fetches per qualifier, " + Runtime.getRuntime().availableProcessors() + " processors");
+    for (int run = 0; run < 3; run++) {
+      for (String name : new String[] { "primary key", "foreign key", "sorted range", "unindexed" }) {
+        EOQualifier qualifier = qualifiers.objectForKey(name);
+        long start = System.nanoTime();
+        long expected = ERMemoryEntityStoreBenchmark.fetch(scanningStore, entity, qualifier, fetches);
+        long scanTime = System.nanoTime() - start;
+
+        System.setProperty(ERMemoryEntityStore.PARALLEL_SCAN_THRESHOLD_KEY, "0");
+        start = System.nanoTime();
+        long count = ERMemoryEntityStoreBenchmark.fetch(indexedStore, entity, qualifier, fetches);
+        long indexedTime = System.nanoTime() - start;
+
+        System.setProperty(ERMemoryEntityStore.PARALLEL_SCAN_THRESHOLD_KEY, "10000");
+        start = System.nanoTime();
+        long parallelCount = ERMemoryEntityStoreBenchmark.fetch(indexedStore, entity, qualifier, fetches);
+        long parallelTime = System.nanoTime() - start;
+
+        System.out.println("run " + run + " " + name + ": scan " + (scanTime / fetches / 1000) + "us/fetch, indexed " + (indexedTime / fetches / 1000) + "us/fetch, indexed+parallel " + (parallelTime / fetches / 1000) + "us/fetch" + (count != expected || parallelCount != expected ? " (MISMATCH)" : ""));
+      }
+    }
+  }
+}
@@ -0,0 +1,347 @@
+package er.caching;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.log4j.Logger;
+
+import com.meetup.memcached.MemcachedClient;
+import com.webobjects.foundation.NSForwardException;
+
+/**
+ * Keeps serialized objects in memcached under an ID, with a local near cache of
+ * the live objects. Used by {@link ERCSessionStore} for sessions, but it works with
+ * any serializable object, which is how it is tested against the embedded server.
+ * <p>
+ * Every write gets a new version that is stored under its own small key next to the
+ * data. When an object is restored and the near cache holds the version that is in
+ * memcached, the local object is returned without fetching and deserializing the data;
+ * otherwise (another instance wrote it, or it isn't in the near cache) the data is
+ * fetched and deserialized. An object is only written when its serialized form
+ * changed since the last write, or when half of its timeout has passed so memcached
+ * doesn't expire it.
+ * <p>
+ * The data is written with class names instead of full class descriptors and deflated
+ * above the compress threshold. As class descriptors aren't written, data that was
+ * written by a different version of the application may not be readable; it is then
+ * treated as missing.
+ */
+public class ERCSessionCache {
+
+	private static Logger log = Logger.getLogger(ERCSessionCache.class);
+
+	private static final byte PLAIN = 1;
+
+	private static final byte DEFLATED = 2;
+
+	private final MemcachedClient _client;
+
+	private final String _keyPrefix;
+
+	private final int _compressThreshold;
+
+	private final Map<String, Entry> _nearCache;
+
+	private final Random _random = new Random();
+
+	private final AtomicLong _nearCacheHits = new AtomicLong();
+
+	private final AtomicLong _remoteRestores = new AtomicLong();
+
+	private final AtomicLong _writes = new AtomicLong();
+
+	private final AtomicLong _skippedWrites = new AtomicLong();
+
+	private static class Entry {
+		public final Object value;
+		public final String version;
+		public final byte[] digest;
+		public final long writtenAt;
+
+		public Entry(Object value, String version, byte[] digest, long writtenAt) {
+			this.value = value;
+			this.version = version;
+			this.digest = digest;
+			this.writtenAt = writtenAt;
+		}
+	}
+
+	/**
+	 * @param client the client to use, it should not compress as the data is compressed already
+	 * @param keyPrefix prefix for the memcached keys, so several applications can share the servers
+	 * @param nearCacheSize the number of live objects to keep locally, 0 to always restore from memcached
+	 * @param compressThreshold the size in bytes above which the data is deflated
+	 */
+	@SuppressWarnings("serial")
+	public ERCSessionCache(MemcachedClient client, String keyPrefix, final int nearCacheSize, int compressThreshold) {
+		_client = client;
+		_keyPrefix = keyPrefix;
+		_compressThreshold = compressThreshold;
+		_nearCache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > nearCacheSize;
+			}
+		};
+	}
+
+	protected String dataKey(String id) {
+		return _keyPrefix + id;
+	}
+
+	protected String versionKey(String id) {
+		return _keyPrefix + id + ".version";
+	}
+
+	private Entry nearCacheEntry(String id) {
+		synchronized (_nearCache) {
+			return _nearCache.get(id);
+		}
+	}
+
+	private void setNearCacheEntry(String id, Entry entry) {
+		synchronized (_nearCache) {
+			if (entry == null) {
+				_nearCache.remove(id);
+			}
+			else {
+				_nearCache.put(id, entry);
+			}
+		}
+	}
+
+	/**
+	 * Returns the object with the given ID, from the near cache if memcached still holds
+	 * the version that was last written or read here.
+	 *
+	 * @param id the ID
+	 * @return the object or null if there is none or it can't be read
+	 */
+	public Object restore(String id) {
+		Entry local = nearCacheEntry(id);
+		if (local != null) {
+			if (local.version.equals(_client.get(versionKey(id)))) {
+				_nearCacheHits.incrementAndGet();
+				return local.value;
+			}
+			setNearCacheEntry(id, null);
+		}
+		Object data = _client.get(dataKey(id));
+		if (!(data instanceof byte[])) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream((byte[]) data));
+			byte format = in.readByte();
+			String version = in.readUTF();
+			long writtenAt = in.readLong();
+			byte[] bytes = readFully(format == DEFLATED ? new InflaterInputStream(in) : in);
+			Object value = deserialize(bytes);
+			_remoteRestores.incrementAndGet();
+			setNearCacheEntry(id, new Entry(value, version, digest(bytes), writtenAt));
+			return value;
+		}
+		catch (Exception e) {
+			log.warn("Unable to read " + id + ", treating it as missing: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the object if it changed since it was last written or read, or if half of
+	 * the timeout passed since it was written.
+	 *
+	 * @param id the ID
+	 * @param value the object
+	 * @param timeOut the time in seconds after which memcached drops the object, 0 for never
+	 * @return whether the object was written
+	 */
+	public boolean save(String id, Object value, long timeOut) {
+		byte[] bytes = serialize(value);
+		byte[] digest = digest(bytes);
+		long now = System.currentTimeMillis();
+		Entry local = nearCacheEntry(id);
+		if (local != null && local.value == value && Arrays.equals(local.digest, digest) && (timeOut <= 0 || now - local.writtenAt < timeOut * 1000 / 2)) {
+			_skippedWrites.incrementAndGet();
+			return false;
+		}
+
+		String version;
+		synchronized (_random) {
+			version = Long.toString(_random.nextLong(), 36);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+		try {
+			DataOutputStream header = new DataOutputStream(out);
+			boolean deflate = bytes.length > _compressThreshold;
+			header.writeByte(deflate ? DEFLATED : PLAIN);
+			header.writeUTF(version);
+			header.writeLong(now);
+			header.flush();
+			if (deflate) {
+				DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+				deflater.write(bytes);
+				deflater.finish();
+			}
+			else {
+				out.write(bytes);
+			}
+		}
+		catch (IOException e) {
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		}
+
+		Date expiry = ERCaching.expiryForTimeToLive(timeOut);
+		// the data goes first, so whoever sees the new version also finds the new data
+		if (_client.set(dataKey(id), out.toByteArray(), expiry) && _client.set(versionKey(id), version, expiry)) {
+			_writes.incrementAndGet();
+			setNearCacheEntry(id, new Entry(value, version, digest, now));
+			return true;
+		}
+		log.warn("Unable to write " + id + " (" + out.size() + " bytes) to memcached.");
+		setNearCacheEntry(id, null);
+		return false;
+	}
+
+	/**
+	 * Removes the object from memcached and the near cache.
+	 *
+	 * @param id the ID
+	 * @return the object from the near cache or null
+	 */
+	public Object remove(String id) {
+		Entry local = nearCacheEntry(id);
+		setNearCacheEntry(id, null);
+		_client.delete(versionKey(id));
+		_client.delete(dataKey(id));
+		return local != null ? local.value : null;
+	}
+
+	/** @return how often an object was returned from the near cache */
+	public long nearCacheHits() {
+		return _nearCacheHits.get();
+	}
+
+	/** @return how often an object was read from memcached */
+	public long remoteRestores() {
+		return _remoteRestores.get();
+	}
+
+	/** @return how often an object was written */
+	public long writes() {
+		return _writes.get();
+	}
+
+	/** @return how often an unchanged object wasn't written */
+	public long skippedWrites() {
+		return _skippedWrites.get();
+	}
+
+	protected byte[] serialize(Object value) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+			ObjectOutputStream stream = new CompactObjectOutputStream(out);
+			stream.writeObject(value);
+			stream.close();
+			return out.toByteArray();
+		}
+		catch (IOException e) {
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		}
+	}
+
+	protected Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream stream = new CompactObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return stream.readObject();
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	private static byte[] digest(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(bytes);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+		byte[] buffer = new byte[4096];
+		for (int count; (count = in.read(buffer)) != -1;) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes only the class name for each class descriptor.
+	 */
+	private static class CompactObjectOutputStream extends ObjectOutputStream {
+		public CompactObjectOutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+			writeUTF(desc.getName());
+		}
+	}
+
+	/**
+	 * Reads the class names written by {@link CompactObjectOutputStream} and looks up
+	 * the local class descriptors, with the context class loader so application classes
+	 * are found.
+	 */
+	private static class CompactObjectInputStream extends ObjectInputStream {
+		public CompactObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		private static Class<?> classNamed(String name) throws ClassNotFoundException {
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			if (loader == null) {
+				loader = ERCSessionCache.class.getClassLoader();
+			}
+			return Class.forName(name, false, loader);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			String name = readUTF();
+			ObjectStreamClass desc = ObjectStreamClass.lookup(classNamed(name));
+			if (desc == null) {
+				throw new InvalidClassException(name, "not serializable");
+			}
+			return desc;
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			return classNamed(desc.getName());
+		}
+	}
+}
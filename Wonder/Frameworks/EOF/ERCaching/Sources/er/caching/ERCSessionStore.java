@@ -0,0 +1,81 @@
+package er.caching;
+
+import com.meetup.memcached.MemcachedClient;
+import com.webobjects.appserver.WOApplication;
+import com.webobjects.appserver.WOContext;
+import com.webobjects.appserver.WORequest;
+import com.webobjects.appserver.WOSession;
+import com.webobjects.appserver.WOSessionStore;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Session store that keeps the sessions in memcached, so they survive instance
+ * restarts and requests can be routed to any instance. Set
+ * <code>WOSessionStoreClassName=er.caching.ERCSessionStore</code> and configure the
+ * servers with <code>er.caching.servers</code>.
+ * <p>
+ * Sessions are serialized, so everything they reference must be serializable;
+ * {@link er.extensions.appserver.ERXSession} keeps its language, and the pages in its
+ * Ajax page replacement cache without their contexts. Instances keep the sessions they
+ * served in a near cache and only read a session from memcached when another instance
+ * changed it, and a session is only written when it changed (see {@link ERCSessionCache}).
+ * Sessions expire in memcached after their timeout, without being terminated.
+ * <p>
+ * If two instances serve requests for the same session at the same time, the last one
+ * to save wins.
+ *
+ * @property er.caching.session.keyPrefix prefix for the memcached keys, defaults to the application name
+ * @property er.caching.session.nearCacheSize number of sessions to keep in the near cache, defaults to 1000
+ * @property er.caching.session.compressThreshold size in bytes above which sessions are deflated, defaults to 2048
+ */
+public class ERCSessionStore extends WOSessionStore {
+
+	private final ERCSessionCache _cache;
+
+	public ERCSessionStore() {
+		this(new ERCSessionCache(client(), ERXProperties.stringForKeyWithDefault("er.caching.session.keyPrefix", WOApplication.application().name() + ".session."),
+				ERXProperties.intForKeyWithDefault("er.caching.session.nearCacheSize", 1000),
+				ERXProperties.intForKeyWithDefault("er.caching.session.compressThreshold", 2048)));
+	}
+
+	public ERCSessionStore(ERCSessionCache cache) {
+		_cache = cache;
+	}
+
+	private static MemcachedClient client() {
+		MemcachedClient client = new MemcachedClient();
+		client.setCompressEnable(false);
+		client.setCompressThreshold(0);
+		return client;
+	}
+
+	/** @return the cache that holds the sessions */
+	public ERCSessionCache cache() {
+		return _cache;
+	}
+
+	@Override
+	public WOSession restoreSessionWithID(String sessionID, WORequest request) {
+		return (WOSession) _cache.restore(sessionID);
+	}
+
+	@Override
+	public void saveSessionForContext(WOContext context) {
+		WOSession session = context._session();
+		if (session == null) {
+			return;
+		}
+		if (session.isTerminating()) {
+			_cache.remove(session.sessionID());
+		}
+		else {
+			_cache.save(session.sessionID(), session, (long) session.timeOut());
+		}
+	}
+
+	@Override
+	public WOSession removeSessionWithID(String sessionID) {
+		return (WOSession) _cache.remove(sessionID);
+	}
+}
@@ -0,0 +1,48 @@
+package er.caching;
+
+import com.meetup.memcached.MemcachedClient;
+
+import er.extensions.eof.ERXSnapshotCache;
+
+/**
+ * Snapshot cache that keeps the snapshots in memcached, so instances can initialize
+ * faults from rows another instance has fetched. It is installed by ERCaching when
+ * <code>er.caching.snapshotCache</code> is set; list the entities to cache with
+ * <code>er.extensions.ERXSnapshotCache.entities</code>.
+ */
+public class ERCSnapshotCache extends ERXSnapshotCache {
+
+	private final MemcachedClient _client;
+
+	public ERCSnapshotCache() {
+		this(new MemcachedClient());
+		_client.setCompressEnable(false);
+	}
+
+	/**
+	 * @param client the client to use
+	 */
+	public ERCSnapshotCache(MemcachedClient client) {
+		_client = client;
+	}
+
+	@Override
+	protected Object objectForKey(String key) {
+		return _client.get(key);
+	}
+
+	@Override
+	protected void setObjectForKey(Object object, String key, long ttl) {
+		_client.set(key, object, ERCaching.expiryForTimeToLive(ttl));
+	}
+
+	@Override
+	protected void addObjectForKey(Object object, String key, long ttl) {
+		_client.add(key, object, ERCaching.expiryForTimeToLive(ttl));
+	}
+
+	@Override
+	protected void removeObjectForKey(String key) {
+		_client.delete(key);
+	}
+}
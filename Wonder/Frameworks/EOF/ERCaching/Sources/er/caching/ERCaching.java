@@ -2,6 +2,7 @@ package er.caching;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.Date;
 
 import org.apache.log4j.Logger;
 
@@ -19,6 +20,9 @@ import er.extensions.foundation.ERXProperties;
 public class ERCaching extends ERXFrameworkPrincipal {
 
 	private static Logger log = Logger.getLogger(ERCaching.class);
+
+	/** memcached treats expiry times up to 30 days as relative */
+	private static final long MAX_RELATIVE_EXPIRY = 30L * 24 * 60 * 60;
 	
     static {
         setUpFrameworkPrincipalClass(ERCaching.class);
@@ -27,6 +31,9 @@ public class ERCaching extends ERXFrameworkPrincipal {
     public void finishInitialization() {
     	startServer();
         startClient();
+        if (ERXProperties.booleanForKeyWithDefault("er.caching.snapshotCache", false)) {
+        	new ERCSnapshotCache().install();
+        }
     }
 
 	public static void startClient() {
@@ -56,22 +63,50 @@ public class ERCaching extends ERXFrameworkPrincipal {
     		if(port > 0) {
         		int maxItems = ERXProperties.intForKeyWithDefault("er.caching.server.maxItems", 0);
         		int maxMemory = ERXProperties.intForKeyWithDefault("er.caching.server.maxMemory", 128);
-    			MemCacheDaemon daemon = new MemCacheDaemon();
-    			LRUCacheStorageDelegate cacheStorage = new LRUCacheStorageDelegate(maxItems, maxMemory * 1024*1024, 0);
-    			daemon.setCache(new Cache(cacheStorage));
-    			
     			String host = ERXProperties.stringForKeyWithDefault("er.caching.server.host", WOApplication.application().host());
-				daemon.setAddr(new InetSocketAddress(host, port));
-    			daemon.setIdleTime(50);
-    			daemon.setVerbose(true);
-    			daemon.start();
-    			log.info("Server started: " + host + ":" + port + " maxItems=" + maxItems + " maxMemory=" + maxMemory);
+    			startServer(host, port, maxItems, maxMemory);
     		}
         } catch (IOException e) {
             throw NSForwardException._runtimeExceptionForThrowable(e);
         }
 	}
 
+	/**
+	 * Starts an embedded memcached server.
+	 * 
+	 * @param host the host to listen on
+	 * @param port the port to listen on
+	 * @param maxItems the maximum number of items, 0 for no limit
+	 * @param maxMemory the maximum memory in MB
+	 * @return the started server
+	 */
+	public static MemCacheDaemon startServer(String host, int port, int maxItems, int maxMemory) throws IOException {
+		MemCacheDaemon daemon = new MemCacheDaemon();
+		LRUCacheStorageDelegate cacheStorage = new LRUCacheStorageDelegate(maxItems, maxMemory * 1024*1024, 0);
+		daemon.setCache(new Cache(cacheStorage));
+		daemon.setAddr(new InetSocketAddress(host, port));
+		daemon.setIdleTime(50);
+		daemon.setVerbose(true);
+		daemon.start();
+		log.info("Server started: " + host + ":" + port + " maxItems=" + maxItems + " maxMemory=" + maxMemory);
+		return daemon;
+	}
+
+	/**
+	 * Returns the expiry to pass to the memcached client for a time to live.
+	 * Times to live longer than 30 days are turned into an absolute time, as
+	 * memcached would take them for one.
+	 * 
+	 * @param ttl the time to live in seconds, 0 for never
+	 * @return the expiry
+	 */
+	public static Date expiryForTimeToLive(long ttl) {
+		if (ttl <= 0) {
+			return new Date(0);
+		}
+		return new Date(ttl > MAX_RELATIVE_EXPIRY ? System.currentTimeMillis() + ttl * 1000 : ttl * 1000);
+	}
+
     public static void runTests() {
         //MemcachedBench.main(new String[]{"1000", "0"});
         /*MemcachedTest.main(new String[]{"4", "5", "5"});
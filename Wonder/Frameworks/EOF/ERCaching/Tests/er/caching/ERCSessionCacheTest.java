@@ -0,0 +1,117 @@
+package er.caching;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.meetup.memcached.MemcachedClient;
+import com.meetup.memcached.SockIOPool;
+import com.thimbleware.jmemcached.MemCacheDaemon;
+
+public class ERCSessionCacheTest extends TestCase {
+	private static final int PORT = 21211;
+
+	private static final String POOL_NAME = "ERCSessionCacheTest";
+
+	private MemCacheDaemon _daemon;
+
+	private SockIOPool _pool;
+
+	private String _keyPrefix;
+
+	public static class TestSession implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		public String name;
+		public List<String> pages = new ArrayList<String>();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_daemon = ERCaching.startServer("localhost", PORT, 0, 16);
+		_pool = SockIOPool.getInstance(POOL_NAME);
+		_pool.setServers(new String[] { "localhost:" + PORT });
+		_pool.initialize();
+		_keyPrefix = "test" + System.currentTimeMillis() + ".";
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		_pool.shutDown();
+		_daemon.stop();
+		super.tearDown();
+	}
+
+	protected ERCSessionCache newCache(int nearCacheSize) {
+		MemcachedClient client = new MemcachedClient(POOL_NAME);
+		client.setCompressEnable(false);
+		return new ERCSessionCache(client, _keyPrefix, nearCacheSize, 512);
+	}
+
+	public void testRestoreFromNearCache() {
+		ERCSessionCache cache = newCache(10);
+		TestSession session = new TestSession();
+		session.name = "first";
+		assertTrue(cache.save("s1", session, 60));
+		assertSame(session, cache.restore("s1"));
+		assertEquals(1, cache.nearCacheHits());
+		assertEquals(0, cache.remoteRestores());
+	}
+
+	public void testUnchangedSessionIsNotWritten() {
+		ERCSessionCache cache = newCache(10);
+		TestSession session = new TestSession();
+		session.name = "first";
+		assertTrue(cache.save("s1", session, 60));
+		assertFalse(cache.save("s1", session, 60));
+		session.pages.add("page1");
+		assertTrue(cache.save("s1", session, 60));
+		assertEquals(2, cache.writes());
+		assertEquals(1, cache.skippedWrites());
+	}
+
+	public void testRestoreChangesFromOtherInstance() {
+		ERCSessionCache instance1 = newCache(10);
+		ERCSessionCache instance2 = newCache(10);
+		TestSession session = new TestSession();
+		session.name = "first";
+		instance1.save("s1", session, 60);
+
+		TestSession restored = (TestSession) instance2.restore("s1");
+		assertNotSame(session, restored);
+		assertEquals("first", restored.name);
+		assertEquals(1, instance2.remoteRestores());
+
+		restored.name = "second";
+		assertTrue(instance2.save("s1", restored, 60));
+		TestSession restoredAgain = (TestSession) instance1.restore("s1");
+		assertEquals("second", restoredAgain.name);
+		assertEquals(0, instance1.nearCacheHits());
+		assertEquals(1, instance1.remoteRestores());
+	}
+
+	public void testLargeSessionIsCompressed() {
+		ERCSessionCache instance1 = newCache(0);
+		ERCSessionCache instance2 = newCache(0);
+		TestSession session = new TestSession();
+		for (int i = 0; i < 1000; i++) {
+			session.pages.add("page" + i);
+		}
+		instance1.save("s1", session, 60);
+		TestSession restored = (TestSession) instance2.restore("s1");
+		assertEquals(session.pages, restored.pages);
+	}
+
+	public void testRemove() {
+		ERCSessionCache instance1 = newCache(10);
+		ERCSessionCache instance2 = newCache(10);
+		TestSession session = new TestSession();
+		instance1.save("s1", session, 60);
+		assertSame(session, instance1.remove("s1"));
+		assertNull(instance1.restore("s1"));
+		assertNull(instance2.restore("s1"));
+	}
+}
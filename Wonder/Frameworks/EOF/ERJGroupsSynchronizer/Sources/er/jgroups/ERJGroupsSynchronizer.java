@@ -6,6 +6,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Enumeration;
+import java.util.List;
 
 import org.jgroups.Channel;
 import org.jgroups.ChannelClosedException;
@@ -44,12 +45,16 @@ import er.extensions.remoteSynchronizer.ERXRemoteSynchronizer;
  * @property er.extensions.jgroupsSynchronizer.autoReconnect whether to auto reconnect when shunned (defaults to false)
  * @property er.extensions.jgroupsSynchronizer.applicationWillTerminateNotificationName the name of the NSNotification that is sent when the application is terminating. Leave blank to disable this feature.
  * @property er.extensions.jgroupsSynchronizer.useShutdownHook whether to register a JVM shutdown hook to clean up the JChannel (defaults to true)
+ * @property er.extensions.jgroupsSynchronizer.batchFrames if true, changes are sent as one (compressed) frame grouped by entity (defaults to false; all members of a group must agree)
  * 
  * @author mschrag
  */
 public class ERJGroupsSynchronizer extends ERXRemoteSynchronizer {
+  private static final int FRAME_MARKER = -1;
+
   private String _groupName;
   private JChannel _channel;
+  private boolean _batchFrames;
 
   public ERJGroupsSynchronizer(IChangeListener listener) throws ChannelException {
     super(listener);
@@ -70,6 +75,7 @@ public class ERJGroupsSynchronizer extends ERXRemoteSynchronizer {
     }
 
     URL propertiesUrl = WOApplication.application().resourceManager().pathURLForResourceNamed(jgroupsPropertiesFile, jgroupsPropertiesFramework, null);
+    _batchFrames = ERXProperties.booleanForKeyWithDefault("er.extensions.jgroupsSynchronizer.batchFrames", false);
     _channel = new JChannel(propertiesUrl);
     _channel.setOpt(Channel.LOCAL, Boolean.FALSE);
     if (ERXProperties.booleanForKeyWithDefault("er.extensions.jgroupsSynchronizer.autoReconnect", true)) {
@@ -86,6 +92,7 @@ public class ERJGroupsSynchronizer extends ERXRemoteSynchronizer {
 
   //@Override
   public void leave() {
+    flushCacheChanges();
     _channel.disconnect();
   }
 
@@ -99,9 +106,17 @@ public class ERJGroupsSynchronizer extends ERXRemoteSynchronizer {
           ByteArrayInputStream bais = new ByteArrayInputStream(buffer);
           DataInputStream dis = new DataInputStream(bais);
           int transactionCount = dis.readInt();
-          RemoteChange remoteChange = new RemoteChange("AnotherInstance", -1, transactionCount);
-          for (int transactionNum = 0; transactionNum < transactionCount; transactionNum++) {
-            _readCacheChange(remoteChange, dis);
+          RemoteChange remoteChange;
+          if (transactionCount == ERJGroupsSynchronizer.FRAME_MARKER) {
+            remoteChange = new RemoteChange(String.valueOf(message.getSrc()), -1, 0);
+            _readCacheChangeFrame(remoteChange, dis);
+            transactionCount = remoteChange.remoteCacheChanges().count();
+          }
+          else {
+            remoteChange = new RemoteChange("AnotherInstance", -1, transactionCount);
+            for (int transactionNum = 0; transactionNum < transactionCount; transactionNum++) {
+              _readCacheChange(remoteChange, dis);
+            }
           }
           addChange(remoteChange);
           if (ERXRemoteSynchronizer.log.isInfoEnabled()) {
@@ -142,10 +157,21 @@ public class ERJGroupsSynchronizer extends ERXRemoteSynchronizer {
     }
     RefByteArrayOutputStream baos = new RefByteArrayOutputStream();
     DataOutputStream dos = new DataOutputStream(baos);
-    dos.writeInt(cacheChanges.count());
-    for (Enumeration cacheChangesEnum = cacheChanges.objectEnumerator(); cacheChangesEnum.hasMoreElements();) {
-      ERXDatabase.CacheChange cacheChange = (ERXDatabase.CacheChange) cacheChangesEnum.nextElement();
-      _writeCacheChange(dos, cacheChange);
+    if (_batchFrames) {
+      // JGroups fragments large messages itself, so everything goes into one frame
+      List<byte[]> frames = _writeCacheChangeFrames(cacheChanges, Integer.MAX_VALUE);
+      if (frames.isEmpty()) {
+        return;
+      }
+      dos.writeInt(ERJGroupsSynchronizer.FRAME_MARKER);
+      dos.write(frames.get(0));
+    }
+    else {
+      dos.writeInt(cacheChanges.count());
+      for (Enumeration cacheChangesEnum = cacheChanges.objectEnumerator(); cacheChangesEnum.hasMoreElements();) {
+        ERXDatabase.CacheChange cacheChange = (ERXDatabase.CacheChange) cacheChangesEnum.nextElement();
+        _writeCacheChange(dos, cacheChange);
+      }
     }
     dos.flush();
     dos.close();
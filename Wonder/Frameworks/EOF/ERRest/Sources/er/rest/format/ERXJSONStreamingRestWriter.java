@@ -0,0 +1,280 @@
+package er.rest.format;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import com.webobjects.eocontrol.EOClassDescription;
+import com.webobjects.foundation.NSArray;
+
+import er.extensions.eof.ERXKeyFilter;
+import er.extensions.foundation.ERXProperties;
+import er.rest.ERXRestRequestNode;
+import er.rest.ERXRestUtils;
+import er.rest.IERXRestDelegate;
+
+/**
+ * <p>
+ * ERXJSONStreamingRestWriter produces the same JSON as ERXJSONRestWriter, but writes it while walking the
+ * ERXRestRequestNode tree instead of converting the tree into Java collections and then into json-lib JSONObjects
+ * first. Output is buffered and appended to the response in chunks of <code>ERXRest.streamingJSON.chunkSize</code>
+ * characters (default 8192).
+ * </p>
+ *
+ * <p>
+ * For large lists, {@link #appendObjectsToResponse(EOClassDescription, Iterator, ERXKeyFilter, IERXRestDelegate, IERXRestResponse, ERXRestFormat.Delegate)}
+ * builds the request node for one object at a time and writes it before moving on to the next, so only one row's
+ * nodes are held in memory. Set <code>ERXRest.streamingJSON=true</code> to use this writer for the "json" and "js"
+ * formats.
+ * </p>
+ */
+public class ERXJSONStreamingRestWriter implements IERXRestWriter {
+	private int _chunkSize;
+
+	public ERXJSONStreamingRestWriter() {
+		this(ERXProperties.intForKeyWithDefault("ERXRest.streamingJSON.chunkSize", 8192));
+	}
+
+	public ERXJSONStreamingRestWriter(int chunkSize) {
+		_chunkSize = chunkSize;
+	}
+
+	protected ERXRestRequestNode processNode(ERXRestRequestNode node) {
+		return node;
+	}
+
+	public void appendHeadersToResponse(ERXRestRequestNode node, IERXRestResponse response) {
+		response.setHeader("application/json", "Content-Type");
+	}
+
+	public void appendToResponse(ERXRestRequestNode node, IERXRestResponse response, ERXRestFormat.Delegate delegate) {
+		node = processNode(node);
+		appendHeadersToResponse(node, response);
+		ChunkedOutput out = new ChunkedOutput(response, _chunkSize);
+		prepareNode(node, delegate);
+		if (isUndefined(node)) {
+			out.append("undefined");
+		}
+		else if (!node.isArray() && node.value() != null) {
+			out.append(String.valueOf(node.value()));
+		}
+		else {
+			writeNode(node, delegate, out);
+		}
+		out.append('\n');
+		out.flush();
+	}
+
+	/**
+	 * Writes a JSON array of the given objects, building and writing the request node for one object at a time.
+	 *
+	 * @param classDescription
+	 *            the entity type of the objects
+	 * @param objects
+	 *            the objects to write
+	 * @param keyFilter
+	 *            the filter to apply to each object
+	 * @param restDelegate
+	 *            the rest delegate to use
+	 * @param response
+	 *            the response to write into
+	 * @param delegate
+	 *            the format delegate
+	 */
+	public void appendObjectsToResponse(EOClassDescription classDescription, Iterator<?> objects, ERXKeyFilter keyFilter, IERXRestDelegate restDelegate, IERXRestResponse response, ERXRestFormat.Delegate delegate) {
+		appendHeadersToResponse(null, response);
+		ChunkedOutput out = new ChunkedOutput(response, _chunkSize);
+		out.append('[');
+		boolean first = true;
+		while (objects.hasNext()) {
+			Object obj = objects.next();
+			ERXRestRequestNode node;
+			if (ERXRestUtils.isPrimitive(obj)) {
+				node = new ERXRestRequestNode(null, obj, false);
+			}
+			else {
+				node = ERXRestRequestNode.requestNodeWithObjectAndFilter(obj, keyFilter, restDelegate);
+			}
+			if (!first) {
+				out.append(',');
+			}
+			first = false;
+			prepareNode(node, delegate);
+			writeNode(node, delegate, out);
+		}
+		out.append(']');
+		out.append('\n');
+		out.flush();
+	}
+
+	/**
+	 * Drops dictionary types (like ERXJSONRestWriter does) and lets the format delegate decorate the node. Must be
+	 * called once per node before it is written.
+	 */
+	protected void prepareNode(ERXRestRequestNode node, ERXRestFormat.Delegate delegate) {
+		String type = node.type();
+		if ("NSDictionary".equals(type) || "NSMutableDictionary".equals(type)) {
+			node.setType(null);
+		}
+		delegate.nodeWillWrite(node);
+	}
+
+	protected boolean isUndefined(ERXRestRequestNode node) {
+		return !node.isArray() && (node.isNull() || (node.value() == null && node.attributes().isEmpty() && node.children().isEmpty()));
+	}
+
+	protected void writeNode(ERXRestRequestNode node, ERXRestFormat.Delegate delegate, ChunkedOutput out) {
+		if (node.isArray()) {
+			out.append('[');
+			NSArray<ERXRestRequestNode> children = node.children();
+			int count = children.count();
+			for (int i = 0; i < count; i++) {
+				if (i > 0) {
+					out.append(',');
+				}
+				ERXRestRequestNode child = children.objectAtIndex(i);
+				prepareNode(child, delegate);
+				writeNode(child, delegate, out);
+			}
+			out.append(']');
+		}
+		else if (isUndefined(node)) {
+			out.append("null");
+		}
+		else if (node.value() != null) {
+			writeValue(node.value(), out);
+		}
+		else {
+			out.append('{');
+			boolean first = true;
+			for (Map.Entry<String, Object> attribute : node.attributes().entrySet()) {
+				if (!first) {
+					out.append(',');
+				}
+				first = false;
+				writeString(attribute.getKey(), out);
+				out.append(':');
+				writeValue(attribute.getValue(), out);
+			}
+			for (ERXRestRequestNode child : node.children()) {
+				if (!first) {
+					out.append(',');
+				}
+				first = false;
+				// the delegate may rename the child, so it has to see it before the name is written
+				prepareNode(child, delegate);
+				writeString(child.name(), out);
+				out.append(':');
+				writeNode(child, delegate, out);
+			}
+			out.append('}');
+		}
+	}
+
+	protected void writeValue(Object value, ChunkedOutput out) {
+		if (value == null) {
+			out.append("null");
+		}
+		else if (value instanceof Boolean) {
+			out.append(value.toString());
+		}
+		else if (value instanceof Number) {
+			String str = value.toString();
+			if ((value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) || (value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite()))) {
+				writeString(str, out);
+			}
+			else {
+				out.append(str);
+			}
+		}
+		else if (value instanceof String) {
+			writeString((String) value, out);
+		}
+		else {
+			writeString(ERXRestUtils.coerceValueToString(value), out);
+		}
+	}
+
+	protected void writeString(String str, ChunkedOutput out) {
+		if (str == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		int length = str.length();
+		for (int i = 0; i < length; i++) {
+			char ch = str.charAt(i);
+			switch (ch) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\b':
+				out.append("\\b");
+				break;
+			case '\f':
+				out.append("\\f");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				if (ch < ' ' || ch > '~') {
+					String hex = Integer.toHexString(ch);
+					out.append("\\u");
+					for (int pad = hex.length(); pad < 4; pad++) {
+						out.append('0');
+					}
+					out.append(hex);
+				}
+				else {
+					out.append(ch);
+				}
+			}
+		}
+		out.append('"');
+	}
+
+	/**
+	 * Buffers output and hands it to the response in fixed-size chunks.
+	 */
+	protected static class ChunkedOutput {
+		private final IERXRestResponse _response;
+		private final int _chunkSize;
+		private final StringBuilder _buffer;
+
+		public ChunkedOutput(IERXRestResponse response, int chunkSize) {
+			_response = response;
+			_chunkSize = Math.max(chunkSize, 256);
+			_buffer = new StringBuilder(_chunkSize + 64);
+		}
+
+		public void append(char ch) {
+			_buffer.append(ch);
+			if (_buffer.length() >= _chunkSize) {
+				flush();
+			}
+		}
+
+		public void append(String str) {
+			_buffer.append(str);
+			if (_buffer.length() >= _chunkSize) {
+				flush();
+			}
+		}
+
+		public void flush() {
+			if (_buffer.length() > 0) {
+				_response.appendContentString(_buffer.toString());
+				_buffer.setLength(0);
+			}
+		}
+	}
+}
@@ -8,6 +8,7 @@ import com.webobjects.eocontrol.EOClassDescription;
 
 import er.extensions.eof.ERXEC;
 import er.extensions.eof.ERXKeyFilter;
+import er.extensions.foundation.ERXProperties;
 import er.rest.ERXRestRequestNode;
 import er.rest.IERXRestDelegate;
 import er.rest.gianduia.ERXGianduiaRestParser;
@@ -17,8 +18,8 @@ public class ERXRestFormat {
 	private static Map<String, ERXRestFormat> _formats = new ConcurrentHashMap<String, ERXRestFormat>();
 
 	// MS: The whole naming thing is stupid, I know ... we need to separate mime type from extensions from the name 
-	public static ERXRestFormat JSON = ERXRestFormat.registerFormatNamed(new ERXJSONRestParser(), new ERXJSONRestWriter(), new ERXRestFormatDelegate(), "json", "application/json");
-	public static ERXRestFormat JS = ERXRestFormat.registerFormatNamed(new ERXJSONRestParser(), new ERXJSONRestWriter(), new ERXRestFormatDelegate(), "js", "text/js");
+	public static ERXRestFormat JSON = ERXRestFormat.registerFormatNamed(new ERXJSONRestParser(), ERXRestFormat.jsonWriter(), new ERXRestFormatDelegate(), "json", "application/json");
+	public static ERXRestFormat JS = ERXRestFormat.registerFormatNamed(new ERXJSONRestParser(), ERXRestFormat.jsonWriter(), new ERXRestFormatDelegate(), "js", "text/js");
 	public static ERXRestFormat PLIST = ERXRestFormat.registerFormatNamed(new ERXPListRestParser(), new ERXPListRestWriter(), new ERXRestFormatDelegate(), "plist", "text/plist");
 	public static ERXRestFormat RAILS = ERXRestFormat.registerFormatNamed(new ERXXmlRestParser(), new ERXXmlRestWriter(), new ERXRestFormatDelegate("id", "type", "nil", true, true, true, true), "rails", "application/xml", "text/xml");
 	public static ERXRestFormat XML = ERXRestFormat.registerFormatNamed(new ERXXmlRestParser(), new ERXXmlRestWriter(), new ERXRestFormatDelegate(), "xml", "application/xml", "text/xml");
@@ -27,6 +28,16 @@ public class ERXRestFormat {
 	public static ERXRestFormat GIANDUIA_PERSISTENT_STORE = ERXRestFormat.registerFormatNamed(new ERXGianduiaRestParser(), new ERXGianduiaRestWriter(true), new ERXRestFormatDelegate(), "gndp", "application/gndp");
 	public static ERXRestFormat SPROUTCORE = ERXRestFormat.registerFormatNamed(new ERXJSONRestParser(), new ERXSproutCoreRestWriter(), new ERXRestFormatDelegate("guid", "type", "nil", true, true, true, false), "sc", "application/sc");
 
+	/**
+	 * Returns the writer for the JSON formats: an ERXJSONStreamingRestWriter if <code>ERXRest.streamingJSON</code> is
+	 * true, otherwise an ERXJSONRestWriter.
+	 * 
+	 * @return the writer for the JSON formats
+	 */
+	protected static IERXRestWriter jsonWriter() {
+		return ERXProperties.booleanForKeyWithDefault("ERXRest.streamingJSON", false) ? new ERXJSONStreamingRestWriter() : new ERXJSONRestWriter();
+	}
+
 	private String _name;
 	private IERXRestParser _parser;
 	private IERXRestWriter _writer;
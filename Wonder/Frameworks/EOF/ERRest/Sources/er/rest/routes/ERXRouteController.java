@@ -31,6 +31,7 @@ import com.webobjects.foundation.NSKeyValueCoding;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSMutableSet;
+import com.webobjects.foundation.NSRange;
 import com.webobjects.foundation.NSSet;
 import com.webobjects.foundation._NSUtilities;
 
@@ -48,6 +49,7 @@ import er.rest.ERXRestClassDescriptionFactory;
 import er.rest.ERXRestFetchSpecification;
 import er.rest.ERXRestRequestNode;
 import er.rest.IERXRestDelegate;
+import er.rest.format.ERXJSONStreamingRestWriter;
 import er.rest.format.ERXRestFormat;
 import er.rest.format.ERXWORestRequest;
 import er.rest.format.ERXWORestResponse;
@@ -790,7 +792,7 @@ public class ERXRouteController extends WODirectAction {
 	 * @return whether or not headers can be added to the given action results
 	 */
 	protected boolean _canSetHeaderForActionResults(WOActionResults results) {
-		return results instanceof WOResponse || results instanceof ERXRouteResults;
+		return results instanceof WOResponse || results instanceof ERXRouteResults || results instanceof ERXStreamingRouteResults;
 	}
 	
 	/**
@@ -807,6 +809,9 @@ public class ERXRouteController extends WODirectAction {
 		else if (results instanceof ERXRouteResults) {
 			((ERXRouteResults)results).setHeaderForKey(value, key);
 		}
+		else if (results instanceof ERXStreamingRouteResults) {
+			((ERXStreamingRouteResults)results).setHeaderForKey(value, key);
+		}
 		else {
 			ERXRouteController.log.info("Unable to set a header on an action results of type '" + results.getClass().getName() + "'.");
 		}
@@ -937,8 +942,16 @@ public class ERXRouteController extends WODirectAction {
 	 * @return a WOResponse in the given format
 	 */
 	public WOActionResults response(ERXRestFormat format, EOClassDescription entity, NSArray<?> values, ERXKeyFilter filter) {
+		boolean streaming = format.writer() instanceof ERXJSONStreamingRestWriter;
 		ERXRestRequestNode responseNode;
 		try {
+			if (streaming) {
+				// fail here for errors that apply to every object, the other objects are checked while rendering
+				if (values.count() > 0) {
+					ERXRestRequestNode.requestNodeWithObjectAndFilter(entity, values.subarrayWithRange(new NSRange(0, 1)), filter, delegate());
+				}
+				return new ERXStreamingRouteResults(this, format, entity, values, filter, delegate());
+			}
 			responseNode = ERXRestRequestNode.requestNodeWithObjectAndFilter(entity, values, filter, delegate());
 		}
 		catch (ObjectNotAvailableException e) {
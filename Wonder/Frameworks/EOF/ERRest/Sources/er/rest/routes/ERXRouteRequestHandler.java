@@ -275,6 +275,7 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 
 	private NameFormat _entityNameFormat;
 	private NSMutableArray<ERXRoute> _routes;
+	private volatile ERXRouteTable _routeTable;
 
 	/**
 	 * Constructs a new ERXRouteRequestHandler with the default entity name format.
@@ -302,6 +303,7 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 	 */
 	public void insertRoute(ERXRoute route) {
 		_routes.insertObjectAtIndex(route, 0);
+		_routeTable = null;
 	}
 
 	/**
@@ -315,6 +317,7 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 			log.debug("adding route " + route);
 		}
 		_routes.addObject(route);
+		_routeTable = null;
 	}
 
 	/**
@@ -325,6 +328,7 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 	 */
 	public void removeRoute(ERXRoute route) {
 		_routes.removeObject(route);
+		_routeTable = null;
 	}
 
 	/**
@@ -336,6 +340,25 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 		}
 	}
 	
+	/**
+	 * Returns the compiled route table for the current routes, building it if the routes changed since the last lookup.
+	 * 
+	 * @return the route table
+	 */
+	public ERXRouteTable routeTable() {
+		ERXRouteTable routeTable = _routeTable;
+		if (routeTable == null) {
+			synchronized (this) {
+				routeTable = _routeTable;
+				if (routeTable == null) {
+					routeTable = new ERXRouteTable(_routes);
+					_routeTable = routeTable;
+				}
+			}
+		}
+		return routeTable;
+	}
+
 	/**
 	 * Returns the routes for this request handler.
 	 * 
@@ -675,12 +698,10 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 		ERXRoute.Method routeMethod = ERXRoute.Method.valueOf(ERXStringUtilities.capitalize(method.toLowerCase()));
 		ERXRoute matchingRoute = null;
 		NSDictionary<ERXRoute.Key, String> keys = null;
-		for (ERXRoute route : _routes) {
-			keys = route.keys(path, routeMethod);
-			if (keys != null) {
-				matchingRoute = route;
-				break;
-			}
+		ERXRouteTable.Match match = routeTable().match(path, routeMethod);
+		if (match != null) {
+			matchingRoute = match.route();
+			keys = match.keys();
 		}
 
 		if (matchingRoute != null) {
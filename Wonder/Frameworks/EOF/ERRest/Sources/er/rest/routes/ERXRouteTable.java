@@ -0,0 +1,260 @@
+package er.rest.routes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+
+/**
+ * <p>
+ * ERXRouteTable is a compiled index over an ordered list of routes that narrows down which routes need their regular
+ * expression evaluated for a given path. Routes are stored in a trie keyed by the literal path segments at the start of
+ * their URL pattern (i.e. "/people/{person:Person}" is stored under "people"). Looking up a path walks the trie along
+ * the path's segments and collects the routes found on the way, plus the routes whose pattern can't be indexed (custom
+ * regular expressions, patterns starting with a variable), then tries only those in their original order.
+ * </p>
+ *
+ * <p>
+ * The first route that matches is the same one a linear scan of the route list would return, so registration order
+ * still decides between overlapping routes. The table is immutable; ERXRouteRequestHandler rebuilds it when its routes
+ * change.
+ * </p>
+ */
+public class ERXRouteTable {
+	private final NSArray<ERXRoute> _routes;
+	private final Node _root;
+	private final int[] _unindexed;
+
+	/**
+	 * Builds a route table for the given routes.
+	 *
+	 * @param routes
+	 *            the routes in matching order
+	 */
+	public ERXRouteTable(NSArray<ERXRoute> routes) {
+		_routes = routes.immutableClone();
+		_root = new Node();
+		List<Integer> unindexed = new ArrayList<Integer>();
+		int routeCount = _routes.count();
+		for (int routeNum = 0; routeNum < routeCount; routeNum++) {
+			List<String> segments = ERXRouteTable.literalSegments(_routes.objectAtIndex(routeNum).routePattern().pattern());
+			if (segments == null || segments.isEmpty()) {
+				unindexed.add(Integer.valueOf(routeNum));
+			}
+			else {
+				Node node = _root;
+				for (String segment : segments) {
+					Node child = node._children.get(segment);
+					if (child == null) {
+						child = new Node();
+						node._children.put(segment, child);
+					}
+					node = child;
+				}
+				node.add(routeNum);
+			}
+		}
+		_unindexed = ERXRouteTable.toArray(unindexed);
+	}
+
+	/**
+	 * Returns the routes in this table.
+	 *
+	 * @return the routes in this table
+	 */
+	public NSArray<ERXRoute> routes() {
+		return _routes;
+	}
+
+	/**
+	 * Returns the first route that matches the given method and path, together with its parsed keys.
+	 *
+	 * @param path
+	 *            the request path, with the leading slash and without the type extension
+	 * @param method
+	 *            the request method
+	 * @return the match (or null if no route matches)
+	 */
+	public ERXRouteTable.Match match(String path, ERXRoute.Method method) {
+		int[][] candidateLists = new int[8][];
+		int listCount = 0;
+		candidateLists[listCount++] = _unindexed;
+		Node node = _root;
+		int length = path.length();
+		int start = 1;
+		while (node != null && start < length) {
+			int end = path.indexOf('/', start);
+			if (end == -1) {
+				end = length;
+			}
+			node = node._children.get(path.substring(start, end));
+			if (node != null && node._routes.length > 0) {
+				if (listCount == candidateLists.length) {
+					int[][] lists = new int[listCount * 2][];
+					System.arraycopy(candidateLists, 0, lists, 0, listCount);
+					candidateLists = lists;
+				}
+				candidateLists[listCount++] = node._routes;
+			}
+			start = end + 1;
+		}
+
+		// merge the sorted candidate lists so routes are tried in registration order
+		int[] positions = new int[listCount];
+		for (;;) {
+			int next = Integer.MAX_VALUE;
+			int nextList = -1;
+			for (int listNum = 0; listNum < listCount; listNum++) {
+				int[] list = candidateLists[listNum];
+				int position = positions[listNum];
+				if (position < list.length && list[position] < next) {
+					next = list[position];
+					nextList = listNum;
+				}
+			}
+			if (nextList == -1) {
+				return null;
+			}
+			positions[nextList]++;
+			// keys(..) checks the method before it runs the regex
+			ERXRoute route = _routes.objectAtIndex(next);
+			NSDictionary<ERXRoute.Key, String> keys = route.keys(path, method);
+			if (keys != null) {
+				return new ERXRouteTable.Match(route, keys);
+			}
+		}
+	}
+
+	/**
+	 * Returns the first route that matches the given method and path by evaluating every route in order. This is what
+	 * ERXRouteRequestHandler did before it had a route table, and is kept for comparison.
+	 *
+	 * @param path
+	 *            the request path, with the leading slash and without the type extension
+	 * @param method
+	 *            the request method
+	 * @return the match (or null if no route matches)
+	 */
+	public ERXRouteTable.Match matchLinear(String path, ERXRoute.Method method) {
+		for (ERXRoute route : _routes) {
+			NSDictionary<ERXRoute.Key, String> keys = route.keys(path, method);
+			if (keys != null) {
+				return new ERXRouteTable.Match(route, keys);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the leading path segments of a route regex that are plain literals, or null if the regex doesn't start
+	 * with "^/" or contains an alternation, whose branches may not share those segments.
+	 */
+	protected static List<String> literalSegments(String regex) {
+		if (!regex.startsWith("^/") || ERXRouteTable.containsAlternation(regex)) {
+			return null;
+		}
+		List<String> segments = new ArrayList<String>();
+		int length = regex.length();
+		int start = 2;
+		while (start < length) {
+			int end = start;
+			boolean literal = true;
+			while (end < length && regex.charAt(end) != '/') {
+				if ("\\.[]{}()*+?^$|".indexOf(regex.charAt(end)) != -1) {
+					literal = false;
+					break;
+				}
+				end++;
+			}
+			// only segments terminated by a slash are complete; the last literal one is followed by the "/?(\..*)?$"
+			// suffix that ERXRoute appends
+			if (!literal || end == start || end == length) {
+				break;
+			}
+			segments.add(regex.substring(start, end));
+			start = end + 1;
+		}
+		return segments;
+	}
+
+	/**
+	 * Returns whether the regex contains a "|" that isn't escaped or in a character class.
+	 */
+	private static boolean containsAlternation(String regex) {
+		boolean inCharacterClass = false;
+		int length = regex.length();
+		for (int i = 0; i < length; i++) {
+			char ch = regex.charAt(i);
+			if (ch == '\\') {
+				i++;
+			}
+			else if (ch == '[') {
+				inCharacterClass = true;
+			}
+			else if (ch == ']') {
+				inCharacterClass = false;
+			}
+			else if (ch == '|' && !inCharacterClass) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i).intValue();
+		}
+		return array;
+	}
+
+	/**
+	 * A node of the route trie.
+	 */
+	private static class Node {
+		private final Map<String, Node> _children = new HashMap<String, Node>();
+		private int[] _routes = new int[0];
+
+		public void add(int routeNum) {
+			int[] routes = new int[_routes.length + 1];
+			System.arraycopy(_routes, 0, routes, 0, _routes.length);
+			routes[_routes.length] = routeNum;
+			_routes = routes;
+		}
+	}
+
+	/**
+	 * The result of a route lookup.
+	 */
+	public static class Match {
+		private final ERXRoute _route;
+		private final NSDictionary<ERXRoute.Key, String> _keys;
+
+		public Match(ERXRoute route, NSDictionary<ERXRoute.Key, String> keys) {
+			_route = route;
+			_keys = keys;
+		}
+
+		/**
+		 * Returns the matching route.
+		 *
+		 * @return the matching route
+		 */
+		public ERXRoute route() {
+			return _route;
+		}
+
+		/**
+		 * Returns the keys parsed from the path.
+		 *
+		 * @return the keys parsed from the path
+		 */
+		public NSDictionary<ERXRoute.Key, String> keys() {
+			return _keys;
+		}
+	}
+}
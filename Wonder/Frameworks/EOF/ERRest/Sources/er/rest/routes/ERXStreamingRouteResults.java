@@ -0,0 +1,78 @@
+package er.rest.routes;
+
+import java.util.List;
+
+import com.webobjects.appserver.WOActionResults;
+import com.webobjects.appserver.WOApplication;
+import com.webobjects.appserver.WOMessage;
+import com.webobjects.appserver.WOResponse;
+import com.webobjects.eocontrol.EOClassDescription;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.extensions.eof.ERXDatabaseContextDelegate.ObjectNotAvailableException;
+import er.extensions.eof.ERXKeyFilter;
+import er.extensions.foundation.ERXExceptionUtilities;
+import er.rest.IERXRestDelegate;
+import er.rest.format.ERXJSONStreamingRestWriter;
+import er.rest.format.ERXRestFormat;
+import er.rest.format.ERXWORestResponse;
+
+/**
+ * ERXStreamingRouteResults renders a list of objects with an ERXJSONStreamingRestWriter when the response is
+ * generated, building the request nodes for one object at a time instead of for the whole list up front. The
+ * response is complete before it is returned, so failures while rendering are turned into the same error
+ * responses the controller returns for failed actions.
+ */
+public class ERXStreamingRouteResults implements WOActionResults {
+	private ERXRouteController _controller;
+	private ERXRestFormat _format;
+	private EOClassDescription _classDescription;
+	private List<?> _objects;
+	private ERXKeyFilter _filter;
+	private IERXRestDelegate _delegate;
+	private NSMutableDictionary<String, String> _headers;
+
+	public ERXStreamingRouteResults(ERXRouteController controller, ERXRestFormat format, EOClassDescription classDescription, List<?> objects, ERXKeyFilter filter, IERXRestDelegate delegate) {
+		_controller = controller;
+		_format = format;
+		_classDescription = classDescription;
+		_objects = objects;
+		_filter = filter;
+		_delegate = delegate;
+		_headers = new NSMutableDictionary<String, String>();
+	}
+
+	public void setHeaderForKey(String header, String key) {
+		_headers.setObjectForKey(header, key);
+	}
+
+	public ERXRestFormat format() {
+		return _format;
+	}
+
+	public WOResponse generateResponse() {
+		WOResponse response;
+		try {
+			response = WOApplication.application().createResponseInContext(_controller.context());
+			ERXJSONStreamingRestWriter writer = (ERXJSONStreamingRestWriter) _format.writer();
+			writer.appendObjectsToResponse(_classDescription, _objects.iterator(), _filter, _delegate, new ERXWORestResponse(response), _format.delegate());
+		}
+		catch (Throwable t) {
+			Throwable meaningfulThrowable = ERXExceptionUtilities.getMeaningfulThrowable(t);
+			int status = WOMessage.HTTP_STATUS_INTERNAL_ERROR;
+			if (meaningfulThrowable instanceof ObjectNotAvailableException) {
+				status = WOMessage.HTTP_STATUS_NOT_FOUND;
+			}
+			else if (meaningfulThrowable instanceof SecurityException) {
+				status = WOMessage.HTTP_STATUS_FORBIDDEN;
+			}
+			response = _controller.errorResponse(meaningfulThrowable, status).generateResponse();
+			// the range refers to the objects that weren't rendered
+			_headers.removeObjectForKey("Content-Range");
+		}
+		for (String key : _headers.keySet()) {
+			response.setHeader(_headers.objectForKey(key), key);
+		}
+		return response;
+	}
+}
@@ -0,0 +1,91 @@
+package er.rest.routes;
+
+import java.util.Random;
+
+import com.webobjects.foundation.NSMutableArray;
+
+/**
+ * Compares route lookup through ERXRouteTable with the linear scan ERXRouteRequestHandler used to do. The routes are
+ * the ones addDefaultRoutes registers for each entity (plural and singular names, numeric primary keys).
+ *
+ * Usage: ERXRouteTableBenchmark [entityCount] [lookups]
+ */
+public class ERXRouteTableBenchmark {
+	public static void main(String[] args) {
+		int entityCount = args.length > 0 ? Integer.parseInt(args[0]) : 150;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+		NSMutableArray<ERXRoute> routes = new NSMutableArray<ERXRoute>();
+		for (int entityNum = 0; entityNum < entityCount; entityNum++) {
+			String entityName = "Entity" + entityNum;
+			String variableName = "entity" + entityNum;
+			String[] externalNames = new String[] { "entity" + entityNum + "s", "entity" + entityNum };
+			for (String externalName : externalNames) {
+				routes.addObject(new ERXRoute(entityName, "/" + externalName, ERXRoute.Method.Options));
+				routes.addObject(new ERXRoute(entityName, "/" + externalName, ERXRoute.Method.Head));
+				routes.addObject(new ERXRoute(entityName, "/" + externalName, ERXRoute.Method.Post));
+				routes.addObject(new ERXRoute(entityName, "/" + externalName, ERXRoute.Method.All));
+				routes.addObject(new ERXRoute(entityName, "/" + externalName + "/{action:identifier}", ERXRoute.Method.Get));
+				routes.addObject(new ERXRoute(entityName, "/" + externalName + "/{" + variableName + ":" + entityName + "}", ERXRoute.Method.Get));
+				routes.addObject(new ERXRoute(entityName, "/" + externalName + "/{" + variableName + ":" + entityName + "}", ERXRoute.Method.Put));
+				routes.addObject(new ERXRoute(entityName, "/" + externalName + "/{" + variableName + ":" + entityName + "}", ERXRoute.Method.Delete));
+				routes.addObject(new ERXRoute(entityName, "/" + externalName + "/{" + variableName + ":" + entityName + "}/{action:identifier}", ERXRoute.Method.All));
+			}
+		}
+		ERXRouteTable table = new ERXRouteTable(routes);
+
+		Random random = new Random(42);
+		String[] paths = new String[1024];
+		ERXRoute.Method[] methods = new ERXRoute.Method[paths.length];
+		ERXRoute.Method[] allMethods = new ERXRoute.Method[] { ERXRoute.Method.Get, ERXRoute.Method.Put, ERXRoute.Method.Post, ERXRoute.Method.Delete };
+		for (int pathNum = 0; pathNum < paths.length; pathNum++) {
+			int entityNum = random.nextInt(entityCount);
+			switch (random.nextInt(4)) {
+			case 0:
+				paths[pathNum] = "/entity" + entityNum + "s";
+				break;
+			case 1:
+				paths[pathNum] = "/entity" + entityNum + "s/" + random.nextInt(100000);
+				break;
+			case 2:
+				paths[pathNum] = "/entity" + entityNum + "/" + random.nextInt(100000) + "/edit";
+				break;
+			default:
+				paths[pathNum] = "/unknown/" + entityNum;
+			}
+			methods[pathNum] = allMethods[random.nextInt(allMethods.length)];
+		}
+
+		for (int pathNum = 0; pathNum < paths.length; pathNum++) {
+			ERXRouteTable.Match indexed = table.match(paths[pathNum], methods[pathNum]);
+			ERXRouteTable.Match linear = table.matchLinear(paths[pathNum], methods[pathNum]);
+			if ((indexed == null) != (linear == null) || (indexed != null && indexed.route() != linear.route())) {
+				throw new IllegalStateException("Route table and linear scan disagree on " + methods[pathNum] + " " + paths[pathNum]);
+			}
+		}
+
+		System.out.println(routes.count() + " routes, " + lookups + " lookups");
+		for (int run = 0; run < 3; run++) {
+			long start = System.nanoTime();
+			int matched = 0;
+			for (int lookup = 0; lookup < lookups; lookup++) {
+				int pathNum = lookup & (paths.length - 1);
+				if (table.matchLinear(paths[pathNum], methods[pathNum]) != null) {
+					matched++;
+				}
+			}
+			long linearTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int lookup = 0; lookup < lookups; lookup++) {
+				int pathNum = lookup & (paths.length - 1);
+				if (table.match(paths[pathNum], methods[pathNum]) != null) {
+					matched--;
+				}
+			}
+			long indexedTime = System.nanoTime() - start;
+
+			System.out.println("run " + run + ": linear " + (linearTime / lookups) + "ns/lookup, route table " + (indexedTime / lookups) + "ns/lookup" + (matched != 0 ? " (MISMATCH)" : ""));
+		}
+	}
+}
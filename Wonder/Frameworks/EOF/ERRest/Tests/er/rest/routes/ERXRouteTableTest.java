@@ -0,0 +1,33 @@
+package er.rest.routes;
+
+import junit.framework.TestCase;
+
+import com.webobjects.foundation.NSMutableArray;
+
+/**
+ * Tests that {@link ERXRouteTable} finds the same routes as a linear scan.
+ */
+public class ERXRouteTableTest extends TestCase {
+
+	public void testLiteralSegments() {
+		assertEquals("[people]", ERXRouteTable.literalSegments(new ERXRoute("Person", "/people/{person:Person}").routePattern().pattern()).toString());
+		assertNull(ERXRouteTable.literalSegments(new ERXRoute("Person", "/people|/persons").routePattern().pattern()));
+		assertEquals("[people]", ERXRouteTable.literalSegments(new ERXRoute("Person", "/people/[a|b]").routePattern().pattern()).toString());
+	}
+
+	public void testAlternationRouteMatchesEveryBranch() {
+		NSMutableArray<ERXRoute> routes = new NSMutableArray<ERXRoute>();
+		routes.addObject(new ERXRoute("Person", "/people/{person:Person}", ERXRoute.Method.Get));
+		ERXRoute alternationRoute = new ERXRoute("Person", "/people/all|/persons/all", ERXRoute.Method.Get);
+		routes.addObject(alternationRoute);
+		ERXRouteTable table = new ERXRouteTable(routes);
+
+		ERXRouteTable.Match match = table.match("/persons/all", ERXRoute.Method.Get);
+		assertNotNull(match);
+		assertSame(alternationRoute, match.route());
+
+		match = table.match("/people/all", ERXRoute.Method.Get);
+		assertNotNull(match);
+		assertSame(routes.objectAtIndex(0), match.route());
+	}
+}
@@ -11,9 +11,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.log4j.Logger;
 import org.apache.poi.hssf.usermodel.HSSFCell;
@@ -27,10 +29,9 @@ import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Font;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSData;
@@ -43,7 +44,7 @@ import com.webobjects.foundation.NSNumberFormatter;
 import er.extensions.formatters.ERXNumberFormatter;
 import er.extensions.foundation.ERXDictionaryUtilities;
 import er.extensions.foundation.ERXKeyValueCodingUtilities;
-
+import er.extensions.foundation.ERXProperties;
 
 /**
  * Parses an input stream for tables and converts them into excel 
@@ -72,6 +73,12 @@ import er.extensions.foundation.ERXKeyValueCodingUtilities;
  * EGSimpleTableParser parser = new EGSimpleTableParser(new ByteArrayInputStream(someContentString));
  * NSData result = parser.data();
  * </code></pre>
+ * The content is read with a SAX parser, so no DOM of the tables is built. The .xls workbook is
+ * still created in memory, for large tables use {@link #writeXLSXToStream(OutputStream)}, which
+ * writes the rows to the stream as they are parsed and only keeps a window of rows in memory.
+ * {@link #rowsWritten()} and {@link #peakMemoryUsage()} report on the last run.
+ *
+ * @property er.excel.EGSimpleTableParser.rowWindowSize the number of rows kept in memory when writing .xlsx (defaults to 100)
  * @author ak
  */
 public class EGSimpleTableParser {
@@ -79,13 +86,26 @@ public class EGSimpleTableParser {
 	/** logging support */
 	protected final Logger log = Logger.getLogger(EGSimpleTableParser.class);
 	
+	/** the memory usage is sampled every that many rows */
+	private static final int MEMORY_SAMPLE_INTERVAL = 1000;
+
 	private InputStream _contentStream;
 	private HSSFWorkbook _workbook;
+	private EGXLSXWriter _xlsxWriter;
+	// HSSFCellStyle or EGXLSXWriter.CellStyle by style dictionary
 	private NSMutableDictionary _styles = new NSMutableDictionary();
+	// HSSFFont or EGXLSXWriter.Font by ID
 	private NSMutableDictionary _fonts = new NSMutableDictionary();
 	private NSMutableDictionary _styleDicts;
 	private NSMutableDictionary _fontDicts;
 
+	private int _sheetCount;
+	private HSSFSheet _sheet;
+	private HSSFRow _row;
+	private int _rowNum;
+	private int _rowsWritten;
+	private long _peakMemoryUsage;
+
 	public EGSimpleTableParser(InputStream contentStream) {
 		this(contentStream, null, null);
  	}
@@ -106,6 +126,59 @@ public class EGSimpleTableParser {
 		workbook().write(out);
 		out.close();
 	}
+
+	/**
+	 * Writes the tables as an .xlsx workbook to the stream, keeping the number of rows
+	 * given by the er.excel.EGSimpleTableParser.rowWindowSize property in memory.
+	 * The stream is closed afterwards.
+	 */
+	public void writeXLSXToStream(OutputStream out) throws IOException {
+		writeXLSXToStream(out, ERXProperties.intForKeyWithDefault("er.excel.EGSimpleTableParser.rowWindowSize", 100));
+	}
+
+	/**
+	 * Writes the tables as an .xlsx workbook to the stream while they are parsed. The
+	 * stream is closed afterwards.
+	 *
+	 * @param out the stream to write to
+	 * @param rowWindowSize the number of rows kept in memory before they are written
+	 */
+	public void writeXLSXToStream(OutputStream out, int rowWindowSize) throws IOException {
+		_xlsxWriter = new EGXLSXWriter(out, rowWindowSize);
+		try {
+			parse();
+			_xlsxWriter.close();
+		}
+		finally {
+			_xlsxWriter = null;
+			_styles.removeAllObjects();
+			_fonts.removeAllObjects();
+		}
+	}
+
+	/**
+	 * Returns the number of rows that were created by the last parse.
+	 */
+	public int rowsWritten() {
+		return _rowsWritten;
+	}
+
+	/**
+	 * Returns the highest heap usage in bytes seen during the last parse. The heap is
+	 * sampled every 1000 rows and at the end, so this includes everything else the
+	 * application holds at the time.
+	 */
+	public long peakMemoryUsage() {
+		return _peakMemoryUsage;
+	}
+
+	private void sampleMemoryUsage() {
+		Runtime runtime = Runtime.getRuntime();
+		long usage = runtime.totalMemory() - runtime.freeMemory();
+		if (usage > _peakMemoryUsage) {
+			_peakMemoryUsage = usage;
+		}
+	}
 	
 	public NSData data() {
 		try {
@@ -127,12 +200,12 @@ public class EGSimpleTableParser {
     	return _workbook;
     }
     
-    private String nodeValueForKey(Node node, String key, String defaultValue) {
-    	NamedNodeMap attributes = node.getAttributes();
+    private String nodeValueForKey(Attributes attributes, String key, String defaultValue) {
     	String result = defaultValue;
         
-        if(attributes.getNamedItem(key) != null) {
-            result = attributes.getNamedItem(key).getNodeValue();
+        int index = attributes.getIndex(key);
+        if(index >= 0) {
+            result = attributes.getValue(index);
             if (result == null || result.length() == 0) {
                 result = defaultValue;
             }
@@ -177,15 +250,17 @@ public class EGSimpleTableParser {
     }
     
     /**
-     * @param fontDictionary
-     * @param tableNode
+     * @param dictionary
+     * @param attributes
      */
-    private void addEntriesFromNode(NSMutableDictionary dictionary, Node node) {
-        NamedNodeMap attributes = node.getAttributes();
+    private void addEntriesFromNode(NSMutableDictionary dictionary, Attributes attributes) {
         for(int i = 0; i < attributes.getLength(); i ++) {
-            Node n = attributes.item(i);
-            String key = attributeStringToKeyPath(n.getNodeName());
-            String value = n.getNodeValue();
+            String name = attributes.getQName(i);
+            if(name == null || name.length() == 0) {
+                name = attributes.getLocalName(i);
+            }
+            String key = attributeStringToKeyPath(name);
+            String value = attributes.getValue(i);
             if("".equals(value)) {
                 dictionary.removeObjectForKey(key);
             } else {
@@ -237,58 +312,142 @@ public class EGSimpleTableParser {
 
     private void parse() {
     	try {
-    		Document document = null;
-    		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    		dbf.setNamespaceAware(true);
-    		dbf.setIgnoringElementContentWhitespace(true);
-    		DocumentBuilder builder = dbf.newDocumentBuilder();
-    		InputStream stream = _contentStream;
-    		document = builder.parse(stream);
+    		SAXParserFactory spf = SAXParserFactory.newInstance();
+    		spf.setNamespaceAware(true);
+    		SAXParser parser = spf.newSAXParser();
     		
-    		_workbook = new HSSFWorkbook();
-    		
-    		if (log.isDebugEnabled())
-    		    log.debug(document.getDocumentElement());
+    		if(_xlsxWriter == null) {
+    			_workbook = new HSSFWorkbook();
+    		}
+    		_sheetCount = 0;
+    		_rowsWritten = 0;
+    		_peakMemoryUsage = 0;
     		
-    		NodeList nodes = document.getDocumentElement().getChildNodes();
-    		for (int i = 0; i < nodes.getLength(); i++) {
-    		    Node node = nodes.item(i);
-    		    if(node.getNodeType() == Node.ELEMENT_NODE) {
-    		        parseNode(node);
-    		    }
+    		parser.parse(_contentStream, new TableHandler());
+    		sampleMemoryUsage();
+    		if(log.isInfoEnabled()) {
+    			log.info("Created " + _rowsWritten + " rows in " + _sheetCount + " sheets" + (_xlsxWriter != null ? " (xlsx)" : "") + ", peak heap usage " + (_peakMemoryUsage / (1024 * 1024)) + " MB");
     		}
     	} catch(Exception ex) {
     	    throw new NSForwardException(ex);
     	}
     }
     
-    private void parseNode(Node node) {
-    	String tagName = node.getLocalName().toLowerCase();
-    	if("font".equals(tagName)) {
-    		parseFont(node);
-    	} else if("style".equals(tagName)) {
-    		parseStyle(node);
-    	} else if("table".equals(tagName)) {
-    		parseTable(node);
-    	} else {
-    		// descend
-    		NodeList nodes = node.getChildNodes();
-    		for (int i = 0; i < nodes.getLength(); i++) {
-    			Node child = nodes.item(i);
-    			if(child.getNodeType() == Node.ELEMENT_NODE) {
-    				parseNode(child);
+    /**
+     * Handles the SAX events of the content: &lt;font&gt; and &lt;style&gt; tags anywhere
+     * below the root element, and &lt;table&gt; tags with their direct &lt;tr&gt; children
+     * and their &lt;td&gt; and &lt;th&gt; children. The value of a cell is the text before
+     * its first child element.
+     */
+    private class TableHandler extends DefaultHandler {
+    	private int _depth;
+    	// depth of the element whose content is skipped, 0 if none
+    	private int _skipDepth;
+    	private int _tableDepth;
+    	private boolean _inRow;
+    	private NSMutableDictionary _sheetDict;
+    	private NSMutableDictionary _rowDict;
+    	private NSMutableDictionary _cellDict;
+    	private String _cellWidth;
+    	private String _cellHeight;
+    	private StringBuilder _cellValue;
+    	private boolean _cellValueComplete;
+    	private List<String> _cellStack = new ArrayList<String>();
+
+    	@Override
+    	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+    		_depth++;
+    		String tagName = (localName != null && localName.length() > 0 ? localName : qName).toLowerCase();
+    		if(_skipDepth > 0 || _depth == 1) {
+    			return;
+    		}
+    		if(_cellDict != null) {
+    			// content of a cell, the value ends here
+    			_cellValueComplete = true;
+    			_cellStack.add(tagName);
+    		} else if(_tableDepth > 0) {
+    			if(!_inRow && _depth == _tableDepth + 1 && "tr".equals(tagName)) {
+    				_inRow = true;
+    				_rowDict = new NSMutableDictionary(_sheetDict);
+    				addEntriesFromNode(_rowDict, attributes);
+    				startRow();
+    			} else if(_inRow && _depth == _tableDepth + 2 && ("td".equals(tagName) || "th".equals(tagName))) {
+    				_cellDict = new NSMutableDictionary(_rowDict);
+    				addEntriesFromNode(_cellDict, attributes);
+    				_cellWidth = nodeValueForKey(attributes, "width", null);
+    				_cellHeight = nodeValueForKey(attributes, "height", null);
+    				_cellValue = null;
+    				_cellValueComplete = false;
+    			} else {
+    				_skipDepth = _depth;
+    			}
+    		} else if("font".equals(tagName)) {
+    			parseFont(attributes);
+    			_skipDepth = _depth;
+    		} else if("style".equals(tagName)) {
+    			parseStyle(attributes);
+    			_skipDepth = _depth;
+    		} else if("table".equals(tagName)) {
+    			_tableDepth = _depth;
+    			_sheetDict = new NSMutableDictionary();
+    			addEntriesFromNode(_sheetDict, attributes);
+    			startTable(nodeValueForKey(attributes, "name", "Unnamed Sheet " + (_sheetCount + 1)), _sheetDict);
+    		}
+    	}
+
+    	@Override
+    	public void characters(char[] ch, int start, int length) {
+    		if(_cellDict != null && !_cellValueComplete && _skipDepth == 0) {
+    			if(_cellValue == null) {
+    				_cellValue = new StringBuilder(length);
+    			}
+    			_cellValue.append(ch, start, length);
+    		}
+    	}
+
+    	@Override
+    	public void endElement(String uri, String localName, String qName) throws SAXException {
+    		int depth = _depth--;
+    		if(_skipDepth > 0) {
+    			if(depth == _skipDepth) {
+    				_skipDepth = 0;
+    			}
+    			return;
+    		}
+    		if(_cellDict != null) {
+    			if(!_cellStack.isEmpty()) {
+    				_cellStack.remove(_cellStack.size() - 1);
+    				return;
+    			}
+    			try {
+    				addCell(_cellValue != null ? _cellValue.toString() : null, _cellDict, _cellWidth, _cellHeight);
+    			} catch(IOException e) {
+    				throw new SAXException(e);
+    			}
+    			_cellDict = null;
+    			_cellValue = null;
+    		} else if(_inRow && depth == _tableDepth + 1) {
+    			_inRow = false;
+    			_rowDict = null;
+    		} else if(_tableDepth > 0 && depth == _tableDepth) {
+    			_tableDepth = 0;
+    			_sheetDict = null;
+    			try {
+    				endTable();
+    			} catch(IOException e) {
+    				throw new SAXException(e);
     			}
     		}
     	}
     }
     
-    private void parseStyle(Node node) {
-		String id =  nodeValueForKey(node, "id", null);
+    private void parseStyle(Attributes attributes) {
+		String id =  nodeValueForKey(attributes, "id", null);
 		if(id != null) {
 			// we're only handling styles with IDs
 			NSMutableDictionary dict = new NSMutableDictionary();
 			
-			String extendsID = nodeValueForKey(node, "extends", null);
+			String extendsID = nodeValueForKey(attributes, "extends", null);
 			if(extendsID != null) {
 				NSDictionary otherDict = (NSDictionary)_styleDicts.objectForKey(extendsID);
 				if(otherDict == null) {
@@ -296,19 +455,19 @@ public class EGSimpleTableParser {
 				}
 				dict.addEntriesFromDictionary(otherDict);
 			}
-			addEntriesFromNode(dict, node);
+			addEntriesFromNode(dict, attributes);
 			
 			_styleDicts.setObjectForKey(dict, id);
 		}
     }
     
-    private void parseFont(Node node) {
-     	String id =  nodeValueForKey(node, "id", null);
+    private void parseFont(Attributes attributes) {
+     	String id =  nodeValueForKey(attributes, "id", null);
     	if(id != null) {
     		// we're only handling fonts with IDs
     		NSMutableDictionary dict = new NSMutableDictionary();
     		
-    		String extendsID = nodeValueForKey(node, "extends", null);
+    		String extendsID = nodeValueForKey(attributes, "extends", null);
     		if(extendsID != null) {
     			NSDictionary otherDict = (NSDictionary)_fonts.objectForKey(extendsID);
     			if(otherDict == null) {
@@ -316,16 +475,13 @@ public class EGSimpleTableParser {
     			}
     			dict.addEntriesFromDictionary(otherDict);
     		}
-    		addEntriesFromNode(dict, node);
+    		addEntriesFromNode(dict, attributes);
     		
     		_fontDicts.setObjectForKey(dict, id);
     	}
     }
     
-    private void parseTable(Node tableNode) {
-    	String sheetName = nodeValueForKey(tableNode, "name", "Unnamed Sheet " + (_workbook.getNumberOfSheets() + 1));
-    	NSMutableDictionary sheetDict = new NSMutableDictionary();
-    	addEntriesFromNode(sheetDict, tableNode);
+    private void startTable(String sheetName, NSMutableDictionary sheetDict) throws SAXException {
         if(sheetName.matches("[\\/\\\\\\*\\?\\[\\]]")) {
             sheetName = sheetName.replaceAll("[\\/\\\\\\*\\?\\[\\]]", "-");
             log.warn("Illegal characters in sheet name (/\\*?[]): " + sheetName);
@@ -334,148 +490,198 @@ public class EGSimpleTableParser {
             sheetName = sheetName.substring(0,31);
             log.warn("Sheet name too long (max 31 Characters): " + sheetName);
         }
-        HSSFSheet sheet = _workbook.createSheet(sheetName);
- 
-        NodeList rowNodes = tableNode.getChildNodes();
+        _sheetCount++;
+        _rowNum = 0;
+        Object sheet;
+        if(_xlsxWriter != null) {
+        	try {
+        		_xlsxWriter.startSheet(sheetName);
+        	} catch(IOException e) {
+        		throw new SAXException(e);
+        	}
+        	sheet = _xlsxWriter;
+        } else {
+        	_sheet = _workbook.createSheet(sheetName);
+        	sheet = _sheet;
+        }
     	
     	//takeNumberValueForKey(tableNode, "defaultColumnWidthInPoints", workbook, null);
     	takeNumberValueForKey(sheetDict, "defaultColumnWidth", sheet, null);
     	takeNumberValueForKey(sheetDict, "defaultRowHeight", sheet, null);
     	takeNumberValueForKey(sheetDict, "defaultRowHeightInPoints", sheet, null);
     	
-    	if (log.isDebugEnabled()) log.debug("Sheet: " + _workbook.getNumberOfSheets());
+    	if (log.isDebugEnabled()) log.debug("Sheet: " + _sheetCount);
+    }
+    
+    private void endTable() throws IOException {
+    	if(_xlsxWriter != null) {
+    		_xlsxWriter.endSheet();
+    	}
+    	_sheet = null;
+    	_row = null;
+    }
+    
+    private void startRow() throws SAXException {
+    	if(log.isDebugEnabled()) {
+    		log.debug("Row: " + _rowNum);
+    	}
+    	if(_xlsxWriter != null) {
+    		try {
+    			_xlsxWriter.startRow();
+    		} catch(IOException e) {
+    			throw new SAXException(e);
+    		}
+    	} else {
+    		_row = _sheet.createRow(_rowNum);
+    	}
+    	_rowNum = _rowNum + 1;
+    	_rowsWritten++;
+    	if(_rowsWritten % MEMORY_SAMPLE_INTERVAL == 0) {
+    		sampleMemoryUsage();
+    	}
+    }
+    
+    private void addCell(Object value, NSMutableDictionary cellDict, String cellWidthString, String cellHeightString) throws IOException {
+    	int currentColumnNumber;
+    	HSSFCell cell = null;
+    	if(_xlsxWriter != null) {
+    		currentColumnNumber = _xlsxWriter.currentColumnNumber();
+    	} else {
+    		currentColumnNumber = _row.getPhysicalNumberOfCells();
+    		cell = _row.createCell(currentColumnNumber);
+    	}
     	
-    	int rowNum = 0;
-    	for (int j = 0; j < rowNodes.getLength(); j++) {
-    		Node rowNode = rowNodes.item(j);
-    		if(rowNode.getNodeType() == Node.ELEMENT_NODE
-    				&& "tr".equals(rowNode.getLocalName().toLowerCase())) {
-    			NSMutableDictionary rowDict = new NSMutableDictionary(sheetDict);
-    			addEntriesFromNode(rowDict, rowNode);
-
-                        if(log.isDebugEnabled()) {
-                            log.debug("Row: " + rowNum);
-                        }
-    			HSSFRow row = sheet.createRow(rowNum);
-    			
-    			rowNum = rowNum + 1;
-    			NodeList cellNodes = rowNode.getChildNodes();
-    			for (int k = 0; k < cellNodes.getLength(); k++) {
-    				Node cellNode = cellNodes.item(k);
-    				if(cellNode.getNodeType() == Node.ELEMENT_NODE
-    						&& ("td".equals(cellNode.getLocalName().toLowerCase())
-    								|| "th".equals(cellNode.getLocalName().toLowerCase()))) {
-    					int currentColumnNumber = row.getPhysicalNumberOfCells();
-						HSSFCell cell = row.createCell(currentColumnNumber); 
-    					Object value = null;
-    					if(cellNode.getFirstChild() != null) {
-    	   					value = cellNode.getFirstChild().getNodeValue();
-     					}
-    					
-    					NSMutableDictionary cellDict = new NSMutableDictionary(rowDict);
-    					addEntriesFromNode(cellDict, cellNode);
-    					
-    					String cellTypeName = dictValueForKey(cellDict, "cellType", "CELL_TYPE_NUMERIC");
-    					String cellFormatName = dictValueForKey(cellDict, "cellFormat", "0.00;-;-0.00");
-    					
+    	String cellTypeName = dictValueForKey(cellDict, "cellType", "CELL_TYPE_NUMERIC");
+    	String cellFormatName = dictValueForKey(cellDict, "cellFormat", "0.00;-;-0.00");
+    	
+    	if(log.isDebugEnabled()) {
+    		log.debug(value + ": " + cellFormatName + "-" + cellTypeName);
+    	}
+    	Integer cellType = (Integer)ERXKeyValueCodingUtilities.classValueForKey(Cell.class, cellTypeName);
+    	Object style = styleWithDictionary(cellDict);
+    	EGXLSXWriter.CellStyle xlsxStyle = _xlsxWriter != null ? (EGXLSXWriter.CellStyle)style : null;
+    	
+    	switch(cellType.intValue()) {
+    		case HSSFCell.CELL_TYPE_FORMULA:
+    			if(_xlsxWriter != null) {
+    				_xlsxWriter.addFormulaCell(value != null ? value.toString() : null, xlsxStyle);
+    				break;
+    			}
+    			cell.setCellType(HSSFCell.CELL_TYPE_FORMULA);
+    		cell.setCellFormula(value != null ? value.toString() : null);
+    		break;
+    		case HSSFCell.CELL_TYPE_NUMERIC:
+    			try {
+    				Number numberValue = null;
+    				if(value != null) {
+    					NSNumberFormatter f = ERXNumberFormatter.numberFormatterForPattern(cellFormatName);
+    					numberValue = (Number)f.parseObject(value.toString());
     					if(log.isDebugEnabled()) {
-    						log.debug(value + ": " + cellFormatName + "-" + cellTypeName);
-    					}
-    					Integer cellType = (Integer)ERXKeyValueCodingUtilities.classValueForKey(Cell.class, cellTypeName);
-    					
-    					switch(cellType.intValue()) {
-    						case HSSFCell.CELL_TYPE_FORMULA:
-    							cell.setCellType(HSSFCell.CELL_TYPE_FORMULA);
-    						cell.setCellFormula(value != null ? value.toString() : null);
-    						break;
-    						case HSSFCell.CELL_TYPE_NUMERIC:
-    							try {
-    								if(value != null) {
-    									NSNumberFormatter f = ERXNumberFormatter.numberFormatterForPattern(cellFormatName);
-    									Number numberValue = (Number)f.parseObject(value.toString());
-    									if(log.isDebugEnabled()) {
-    										log.debug(f.pattern() + ": " + numberValue);
-    									}
-    									if(numberValue != null) {
-    										cell.setCellValue(numberValue.doubleValue());
-    									}
-    								}
-     								break;
-    							} catch (ParseException e1) {
-    								log.info(e1);
-    							}
-    							
-    						case HSSFCell.CELL_TYPE_STRING:
-							default:
-								cell.setCellType(cellType.intValue());
-								cell.setCellValue(new HSSFRichTextString(value != null ? value.toString() : null));
-								break;
+    						log.debug(f.pattern() + ": " + numberValue);
     					}
-    					
-    					String cellWidthString = nodeValueForKey(cellNode, "width", null);
-    					if(cellWidthString != null && cellWidthString.indexOf("%") < 0) {
-    						if ("auto".equalsIgnoreCase(cellWidthString)) {
-	      						try {
-	      							sheet.autoSizeColumn((short) currentColumnNumber);
-	      						} catch (Exception ex) {
-	      							log.warn(ex);
-	      						}
-    						} else {
-        						try {
-        							short width = Integer.valueOf(cellWidthString).shortValue();
-        							sheet.setColumnWidth(currentColumnNumber, width * 256);
-        						} catch (Exception ex) {
-        							log.warn(ex);
-        						}
-    						}
+    					if(numberValue != null && cell != null) {
+    						cell.setCellValue(numberValue.doubleValue());
     					}
-    					
-    					String cellHeightString = nodeValueForKey(cellNode, "height", null);
-    					if(cellHeightString != null && cellHeightString.indexOf("%") < 0) {
-    						try {
-    							short height = Integer.valueOf(cellHeightString).shortValue();
-    							row.setHeightInPoints(height);
-    						} catch (Exception ex) {
-    							log.warn(ex);
-    						}
-    					}
-    					
-    					HSSFCellStyle style = styleWithDictionary(cellDict);
-    					
-    					if(style != null) {
-    						cell.setCellStyle(style);
-    					}
-    					
-    					String colspanString = dictValueForKey(cellDict, "colspan", "1");
-    					short colspan = Integer.valueOf(colspanString).shortValue();
-    					for(int col = 1; col < colspan; col++) {
-    						int nextColumnNumber = row.getPhysicalNumberOfCells();
-							cell = row.createCell(nextColumnNumber);
-    						if(style != null) {
-    							cell.setCellStyle(style);
-    						}
-    					}
-    					
-    					if(log.isDebugEnabled()) {
-    					    log.debug("Cell: " + value);
+    				}
+    				if(_xlsxWriter != null) {
+    					if(numberValue != null) {
+    						_xlsxWriter.addNumericCell(numberValue.doubleValue(), xlsxStyle);
+    					} else {
+    						_xlsxWriter.addBlankCell(xlsxStyle);
     					}
     				}
+    				break;
+    			} catch (ParseException e1) {
+    				log.info(e1);
+    			}
+    			
+    		case HSSFCell.CELL_TYPE_STRING:
+    		default:
+    			if(_xlsxWriter != null) {
+    				_xlsxWriter.addStringCell(value != null ? value.toString() : null, xlsxStyle);
+    				break;
+    			}
+    			cell.setCellType(cellType.intValue());
+    			cell.setCellValue(new HSSFRichTextString(value != null ? value.toString() : null));
+    			break;
+    	}
+    	
+    	if(cellWidthString != null && cellWidthString.indexOf("%") < 0) {
+    		if ("auto".equalsIgnoreCase(cellWidthString)) {
+    			try {
+    				if(_xlsxWriter != null) {
+    					_xlsxWriter.autoSizeColumn(currentColumnNumber);
+    				} else {
+    					_sheet.autoSizeColumn((short) currentColumnNumber);
+    				}
+    			} catch (Exception ex) {
+    				log.warn(ex);
+    			}
+    		} else {
+    			try {
+    				short width = Integer.valueOf(cellWidthString).shortValue();
+    				if(_xlsxWriter != null) {
+    					_xlsxWriter.setColumnWidth(currentColumnNumber, width * 256);
+    				} else {
+    					_sheet.setColumnWidth(currentColumnNumber, width * 256);
+    				}
+    			} catch (Exception ex) {
+    				log.warn(ex);
+    			}
+    		}
+    	}
+    	
+    	if(cellHeightString != null && cellHeightString.indexOf("%") < 0) {
+    		try {
+    			short height = Integer.valueOf(cellHeightString).shortValue();
+    			if(_xlsxWriter != null) {
+    				_xlsxWriter.setRowHeightInPoints(height);
+    			} else {
+    				_row.setHeightInPoints(height);
+    			}
+    		} catch (Exception ex) {
+    			log.warn(ex);
+    		}
+    	}
+    	
+    	if(style != null && cell != null) {
+    		cell.setCellStyle((HSSFCellStyle)style);
+    	}
+    	
+    	String colspanString = dictValueForKey(cellDict, "colspan", "1");
+    	short colspan = Integer.valueOf(colspanString).shortValue();
+    	for(int col = 1; col < colspan; col++) {
+    		if(_xlsxWriter != null) {
+    			_xlsxWriter.addBlankCell(xlsxStyle);
+    		} else {
+    			int nextColumnNumber = _row.getPhysicalNumberOfCells();
+    			cell = _row.createCell(nextColumnNumber);
+    			if(style != null) {
+    				cell.setCellStyle((HSSFCellStyle)style);
     			}
     		}
     	}
+    	
+    	if(log.isDebugEnabled()) {
+    	    log.debug("Cell: " + value);
+    	}
     }
     
-    private HSSFFont fontWithID(String id) {
-    	HSSFFont font = (HSSFFont)_fonts.objectForKey(id);
+    private Object fontWithID(String id) {
+    	Object font = _fonts.objectForKey(id);
     	if(font == null) {
-    		font = _workbook.createFont();
+    		font = _xlsxWriter != null ? _xlsxWriter.createFont() : _workbook.createFont();
     		
     		NSDictionary dict = (NSDictionary)_fontDicts.objectForKey(id);
     		String value;
     		
     		value = dictValueForKey(dict, "name", null);
     		if(value != null) {
-    			font.setFontName(value);
+    			if(font instanceof HSSFFont) {
+    				((HSSFFont)font).setFontName(value);
+    			} else {
+    				((EGXLSXWriter.Font)font).setFontName(value);
+    			}
     		}
     		
     		takeNumberValueForKey(dict, "fontHeight", font, null);
@@ -504,7 +710,10 @@ public class EGSimpleTableParser {
 			"alignment","verticalAlignment","format"
 	});
     
-    private HSSFCellStyle styleWithDictionary(NSDictionary dict) {
+    /**
+     * Returns the HSSFCellStyle (or EGXLSXWriter.CellStyle when writing .xlsx) for the dictionary.
+     */
+    private Object styleWithDictionary(NSDictionary dict) {
     	String cellClass = dictValueForKey(dict, "class", null);
     	
     	if(log.isDebugEnabled()) {
@@ -532,17 +741,21 @@ public class EGSimpleTableParser {
         	log.debug("after - " + cellClass + ": " + dict);
     	}
     	
-    	HSSFCellStyle cellStyle = (HSSFCellStyle)_styles.objectForKey(dict);
+    	Object cellStyle = _styles.objectForKey(dict);
     	if(cellStyle == null) {
-    		cellStyle = _workbook.createCellStyle();
+    		cellStyle = _xlsxWriter != null ? _xlsxWriter.createCellStyle() : _workbook.createCellStyle();
     		
     		String fontID = dictValueForKey(dict, "font", null);
     		if(fontID != null) {
-    			HSSFFont font = fontWithID(fontID);
+    			Object font = fontWithID(fontID);
     			if(font == null) {
     				throw new IllegalArgumentException("Font ID not found!");
     			}
-    			cellStyle.setFont(font);
+    			if(cellStyle instanceof HSSFCellStyle) {
+    				((HSSFCellStyle)cellStyle).setFont((HSSFFont)font);
+    			} else {
+    				((EGXLSXWriter.CellStyle)cellStyle).setFont((EGXLSXWriter.Font)font);
+    			}
     		}
     		takeBooleanValueForKey(dict, "hidden", cellStyle, null);
     		takeBooleanValueForKey(dict, "locked", cellStyle, null);
@@ -569,9 +782,16 @@ public class EGSimpleTableParser {
     		
     		String formatString = dictValueForKey(dict, "format", null);
     		if(formatString != null) {
-    			HSSFDataFormat format = _workbook.createDataFormat();
-    			short formatId = format.getFormat(formatString);
-    			cellStyle.setDataFormat(formatId);
+    			if(cellStyle instanceof HSSFCellStyle) {
+    				HSSFDataFormat format = _workbook.createDataFormat();
+    				short formatId = format.getFormat(formatString);
+    				((HSSFCellStyle)cellStyle).setDataFormat(formatId);
+    			} else {
+    				((EGXLSXWriter.CellStyle)cellStyle).setDataFormat(_xlsxWriter.dataFormat(formatString));
+    			}
+    		}
+    		if(cellStyle instanceof EGXLSXWriter.CellStyle) {
+    			_xlsxWriter.addCellStyle((EGXLSXWriter.CellStyle)cellStyle);
     		}
     		
     		_styles.setObjectForKey(cellStyle, dict);
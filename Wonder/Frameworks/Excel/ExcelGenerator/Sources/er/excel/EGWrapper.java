@@ -14,7 +14,13 @@ import er.extensions.components.ERXNonSynchronizingComponent;
 /**
  * Class for Excel Component EGWrapper.
  *
- * @binding sample sample binding explanation
+ * @binding enabled when true, the content is converted to an excel workbook
+ * @binding format "xls" (the default) or "xlsx"; an .xlsx workbook is streamed while the tables are parsed, which needs much less memory for large tables
+ * @binding data when bound, the workbook is pushed into it as NSData and the HTML content is returned
+ * @binding stream when bound, the workbook is pushed into it as an InputStream and the HTML content is returned
+ * @binding fileName the file name in the content-disposition header, defaults to results.xls or results.xlsx
+ * @binding styles dictionary of style dictionaries by ID
+ * @binding fonts dictionary of font dictionaries by ID
  *
  * @author ak on Thu Mar 04 2004
  * @project ExcelGenerator
@@ -24,6 +30,9 @@ public class EGWrapper extends ERXNonSynchronizingComponent {
 
     /** logging support */
     private static final Logger log = Logger.getLogger(EGWrapper.class);
+    
+    public static final String XLSX_FORMAT = "xlsx";
+    
 	private String _fileName;
 	private NSDictionary _styles;
     private NSDictionary _fonts;
@@ -40,6 +49,10 @@ public class EGWrapper extends ERXNonSynchronizingComponent {
     	return ERXComponentUtilities.booleanValueForBinding(this, "enabled",false);
     }
     
+    public boolean isXLSX() {
+    	return XLSX_FORMAT.equalsIgnoreCase(stringValueForBinding("format", "xls"));
+    }
+    
     public String fileName() {
     	if(_fileName == null) {
     		_fileName = (String)valueForBinding("fileName");
@@ -92,10 +105,10 @@ public class EGWrapper extends ERXNonSynchronizingComponent {
             InputStream stream = new ByteArrayInputStream(bytes);
 
             EGSimpleTableParser parser = new EGSimpleTableParser(stream, fonts(), styles());
-            NSData data = parser.data();
             if((hasBinding("data") && canSetValueForBinding("data")) ||
                (hasBinding("stream") && canSetValueForBinding("stream"))
                ) {
+                NSData data = isXLSX() ? xlsxData(parser) : parser.data();
                 if(hasBinding("data")) {
                     setValueForBinding(data, "data");
                 }
@@ -104,16 +117,70 @@ public class EGWrapper extends ERXNonSynchronizingComponent {
                 }
                 response.appendContentString(contentString);
             } else {
-                response.appendContentData(data);
                 String fileName = fileName();
-                if(fileName == null) {
-                    fileName = "results.xls";
+                if(isXLSX()) {
+                    appendXLSXToResponse(parser, response);
+                    if(fileName == null) {
+                        fileName = "results.xlsx";
+                    }
+                    response.setHeader("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "content-type");
+                } else {
+                    response.appendContentData(parser.data());
+                    if(fileName == null) {
+                        fileName = "results.xls";
+                    }
+                    response.setHeader("application/vnd.ms-excel", "content-type");
                 }
                 response.setHeader("inline; filename=\"" + fileName + "\"", "content-disposition");
-                response.setHeader("application/vnd.ms-excel", "content-type");
             }
         } else {
             super.appendToResponse(response, context);
         }
     }
+    
+    private NSData xlsxData(EGSimpleTableParser parser) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            parser.writeXLSXToStream(out);
+            return new NSData(out.toByteArray());
+        } catch (IOException e) {
+            throw new NSForwardException(e, "Can't create xlsx data");
+        }
+    }
+    
+    /**
+     * Writes the workbook to a temporary file while the tables are parsed and hands the file
+     * to the response as its content stream. The file is deleted when the stream is closed.
+     */
+    private void appendXLSXToResponse(EGSimpleTableParser parser, WOResponse response) {
+        try {
+            final File file = File.createTempFile("EGWrapper", ".xlsx");
+            try {
+                parser.writeXLSXToStream(new BufferedOutputStream(new FileOutputStream(file)));
+                InputStream is = new FileInputStream(file) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        if(!file.delete()) {
+                            file.deleteOnExit();
+                        }
+                    }
+                };
+                long length = file.length();
+                if (length > Integer.MAX_VALUE) {
+                    is.close();
+                    throw new IOException("The xlsx file is too large to send: " + length + " bytes");
+                }
+                response.setContentStream(is, 32*1024, (int) length);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            } catch (RuntimeException e) {
+                file.delete();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new NSForwardException(e, "Can't create xlsx file");
+        }
+    }
 }
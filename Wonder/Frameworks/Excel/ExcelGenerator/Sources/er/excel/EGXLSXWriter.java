@@ -0,0 +1,669 @@
+package er.excel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.log4j.Logger;
+import org.apache.poi.hssf.usermodel.HSSFDataFormat;
+
+/**
+ * Writes an Office Open XML workbook (.xlsx) to a stream while the rows are added,
+ * so only a window of the most recent rows is kept in memory, regardless of the number
+ * of rows. Strings are written inline, so there is no shared string table to keep.<br />
+ * Fonts and cell styles are created with {@link #createFont()} and {@link #createCellStyle()}
+ * and have the same properties as {@link org.apache.poi.hssf.usermodel.HSSFFont HSSFFont}
+ * and {@link org.apache.poi.hssf.usermodel.HSSFCellStyle HSSFCellStyle}, so
+ * {@link EGSimpleTableParser} can configure them the same way. Colors are palette indexes.<br />
+ * Column widths (and auto sized columns) are written before the first row, so they must
+ * be set while that row is still in the window.
+ * <pre><code>
+ * EGXLSXWriter writer = new EGXLSXWriter(out, 100);
+ * writer.startSheet("Sheet 1");
+ * writer.startRow();
+ * writer.addStringCell("Total", null);
+ * writer.addNumericCell(12.5, null);
+ * writer.endSheet();
+ * writer.close();
+ * </code></pre>
+ */
+public class EGXLSXWriter {
+
+	/** logging support */
+	protected static final Logger log = Logger.getLogger(EGXLSXWriter.class);
+
+	private static final String MAIN_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+	private static final String REL_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+	private static final String[] HORIZONTAL_ALIGNMENTS = { "general", "left", "center", "right", "fill", "justify", "centerContinuous" };
+	private static final String[] VERTICAL_ALIGNMENTS = { "top", "center", "bottom", "justify" };
+	private static final String[] BORDER_STYLES = { "none", "thin", "medium", "dashed", "hair", "thick", "double", "dotted", "mediumDashed", "dashDot", "mediumDashDot", "dashDotDot", "mediumDashDotDot", "slantDashDot" };
+	private static final String[] FILL_PATTERNS = { "none", "solid", "mediumGray", "darkGray", "lightGray", "darkHorizontal", "darkVertical", "darkDown", "darkUp", "darkGrid", "darkTrellis", "lightHorizontal", "lightVertical", "lightDown", "lightUp", "lightGrid", "lightTrellis", "gray125", "gray0625" };
+
+	/**
+	 * A font, with the properties of {@link org.apache.poi.hssf.usermodel.HSSFFont HSSFFont}.
+	 */
+	public static class Font {
+		private String _fontName = "Arial";
+		private double _fontHeightInPoints = 10;
+		private short _color = -1;
+		private boolean _italic;
+		private boolean _strikeout;
+		private byte _underline;
+		private short _typeOffset;
+		private short _boldweight = org.apache.poi.ss.usermodel.Font.BOLDWEIGHT_NORMAL;
+
+		public void setFontName(String value) { _fontName = value; }
+		public void setFontHeight(short value) { _fontHeightInPoints = value / 20.0; }
+		public void setFontHeightInPoints(short value) { _fontHeightInPoints = value; }
+		public void setColor(short value) { _color = value; }
+		public void setItalic(boolean value) { _italic = value; }
+		public void setStrikeout(boolean value) { _strikeout = value; }
+		public void setUnderline(byte value) { _underline = value; }
+		public void setTypeOffset(short value) { _typeOffset = value; }
+		public void setBoldweight(short value) { _boldweight = value; }
+
+		protected String xml() {
+			StringBuilder xml = new StringBuilder("<font>");
+			if (_boldweight >= org.apache.poi.ss.usermodel.Font.BOLDWEIGHT_BOLD) {
+				xml.append("<b/>");
+			}
+			if (_italic) {
+				xml.append("<i/>");
+			}
+			if (_strikeout) {
+				xml.append("<strike/>");
+			}
+			switch (_underline) {
+				case org.apache.poi.ss.usermodel.Font.U_SINGLE: xml.append("<u/>"); break;
+				case org.apache.poi.ss.usermodel.Font.U_DOUBLE: xml.append("<u val=\"double\"/>"); break;
+				case org.apache.poi.ss.usermodel.Font.U_SINGLE_ACCOUNTING: xml.append("<u val=\"singleAccounting\"/>"); break;
+				case org.apache.poi.ss.usermodel.Font.U_DOUBLE_ACCOUNTING: xml.append("<u val=\"doubleAccounting\"/>"); break;
+				default: break;
+			}
+			if (_typeOffset == org.apache.poi.ss.usermodel.Font.SS_SUPER) {
+				xml.append("<vertAlign val=\"superscript\"/>");
+			}
+			else if (_typeOffset == org.apache.poi.ss.usermodel.Font.SS_SUB) {
+				xml.append("<vertAlign val=\"subscript\"/>");
+			}
+			xml.append("<sz val=\"").append(_fontHeightInPoints).append("\"/>");
+			if (_color >= 0 && _color != org.apache.poi.ss.usermodel.Font.COLOR_NORMAL) {
+				xml.append("<color indexed=\"").append(_color).append("\"/>");
+			}
+			xml.append("<name val=\"").append(EGXLSXWriter.escape(_fontName)).append("\"/>");
+			xml.append("</font>");
+			return xml.toString();
+		}
+	}
+
+	/**
+	 * A cell style, with the properties of {@link org.apache.poi.hssf.usermodel.HSSFCellStyle HSSFCellStyle}.
+	 * The style is registered with the writer by {@link EGXLSXWriter#addCellStyle(CellStyle)}.
+	 */
+	public static class CellStyle {
+		private Font _font;
+		private boolean _hidden;
+		private boolean _locked = true;
+		private boolean _wrapText;
+		private short _leftBorderColor = -1;
+		private short _rightBorderColor = -1;
+		private short _topBorderColor = -1;
+		private short _bottomBorderColor = -1;
+		private short _borderLeft;
+		private short _borderRight;
+		private short _borderTop;
+		private short _borderBottom;
+		private short _fillForegroundColor = -1;
+		private short _fillBackgroundColor = -1;
+		private short _fillPattern;
+		private short _indention;
+		private short _rotation;
+		private short _alignment;
+		private short _verticalAlignment = org.apache.poi.ss.usermodel.CellStyle.VERTICAL_BOTTOM;
+		private short _dataFormat;
+		private int _index = -1;
+
+		public void setFont(Font value) { _font = value; }
+		public void setHidden(boolean value) { _hidden = value; }
+		public void setLocked(boolean value) { _locked = value; }
+		public void setWrapText(boolean value) { _wrapText = value; }
+		public void setLeftBorderColor(short value) { _leftBorderColor = value; }
+		public void setRightBorderColor(short value) { _rightBorderColor = value; }
+		public void setTopBorderColor(short value) { _topBorderColor = value; }
+		public void setBottomBorderColor(short value) { _bottomBorderColor = value; }
+		public void setBorderLeft(short value) { _borderLeft = value; }
+		public void setBorderRight(short value) { _borderRight = value; }
+		public void setBorderTop(short value) { _borderTop = value; }
+		public void setBorderBottom(short value) { _borderBottom = value; }
+		public void setFillForegroundColor(short value) { _fillForegroundColor = value; }
+		public void setFillBackgroundColor(short value) { _fillBackgroundColor = value; }
+		public void setFillPattern(short value) { _fillPattern = value; }
+		public void setIndention(short value) { _indention = value; }
+		public void setRotation(short value) { _rotation = value; }
+		public void setAlignment(short value) { _alignment = value; }
+		public void setVerticalAlignment(short value) { _verticalAlignment = value; }
+		public void setDataFormat(short value) { _dataFormat = value; }
+
+		/**
+		 * Returns the index of the style in the workbook, -1 until it is added.
+		 */
+		public int index() {
+			return _index;
+		}
+
+		protected String fillXml() {
+			StringBuilder xml = new StringBuilder("<fill><patternFill patternType=\"");
+			xml.append(_fillPattern >= 0 && _fillPattern < FILL_PATTERNS.length ? FILL_PATTERNS[_fillPattern] : "none").append('"');
+			if (_fillForegroundColor < 0 && _fillBackgroundColor < 0) {
+				return xml.append("/></fill>").toString();
+			}
+			xml.append('>');
+			if (_fillForegroundColor >= 0) {
+				xml.append("<fgColor indexed=\"").append(_fillForegroundColor).append("\"/>");
+			}
+			if (_fillBackgroundColor >= 0) {
+				xml.append("<bgColor indexed=\"").append(_fillBackgroundColor).append("\"/>");
+			}
+			return xml.append("</patternFill></fill>").toString();
+		}
+
+		private static void appendBorder(StringBuilder xml, String side, short border, short color) {
+			if (border <= 0 || border >= BORDER_STYLES.length) {
+				xml.append('<').append(side).append("/>");
+			}
+			else {
+				xml.append('<').append(side).append(" style=\"").append(BORDER_STYLES[border]).append('"');
+				if (color >= 0) {
+					xml.append("><color indexed=\"").append(color).append("\"/></").append(side).append('>');
+				}
+				else {
+					xml.append("/>");
+				}
+			}
+		}
+
+		protected String borderXml() {
+			StringBuilder xml = new StringBuilder("<border>");
+			CellStyle.appendBorder(xml, "left", _borderLeft, _leftBorderColor);
+			CellStyle.appendBorder(xml, "right", _borderRight, _rightBorderColor);
+			CellStyle.appendBorder(xml, "top", _borderTop, _topBorderColor);
+			CellStyle.appendBorder(xml, "bottom", _borderBottom, _bottomBorderColor);
+			return xml.append("<diagonal/></border>").toString();
+		}
+
+		protected String xfXml(int fontId, int fillId, int borderId) {
+			StringBuilder xml = new StringBuilder("<xf numFmtId=\"").append(_dataFormat).append("\" fontId=\"").append(fontId);
+			xml.append("\" fillId=\"").append(fillId).append("\" borderId=\"").append(borderId).append("\" xfId=\"0\"");
+			xml.append(" applyNumberFormat=\"1\" applyFont=\"1\" applyFill=\"1\" applyBorder=\"1\" applyAlignment=\"1\" applyProtection=\"1\">");
+			xml.append("<alignment");
+			if (_alignment > 0 && _alignment < HORIZONTAL_ALIGNMENTS.length) {
+				xml.append(" horizontal=\"").append(HORIZONTAL_ALIGNMENTS[_alignment]).append('"');
+			}
+			if (_verticalAlignment >= 0 && _verticalAlignment < VERTICAL_ALIGNMENTS.length) {
+				xml.append(" vertical=\"").append(VERTICAL_ALIGNMENTS[_verticalAlignment]).append('"');
+			}
+			if (_rotation != 0) {
+				// HSSF uses -90 to 90, OOXML 0 to 90 and 91 to 180 for downward text; 0xff is vertical in both
+				int rotation = _rotation == 0xff ? 0xff : (_rotation < 0 ? 90 - _rotation : _rotation);
+				xml.append(" textRotation=\"").append(rotation).append('"');
+			}
+			if (_wrapText) {
+				xml.append(" wrapText=\"1\"");
+			}
+			if (_indention > 0) {
+				xml.append(" indent=\"").append(_indention).append('"');
+			}
+			xml.append("/><protection locked=\"").append(_locked ? 1 : 0).append("\" hidden=\"").append(_hidden ? 1 : 0).append("\"/></xf>");
+			return xml.toString();
+		}
+	}
+
+	private static class Row {
+		private final int _number;
+		private final StringBuilder _cells = new StringBuilder();
+		private float _heightInPoints = -1;
+
+		private Row(int number) {
+			_number = number;
+		}
+	}
+
+	private final ZipOutputStream _zip;
+	private final Writer _writer;
+	private final int _rowWindowSize;
+
+	private final List<String> _sheetNames = new ArrayList<String>();
+	private final List<String> _fonts = new ArrayList<String>();
+	private final Map<String, Integer> _fontIds = new HashMap<String, Integer>();
+	private final List<String> _fills = new ArrayList<String>();
+	private final Map<String, Integer> _fillIds = new HashMap<String, Integer>();
+	private final List<String> _borders = new ArrayList<String>();
+	private final Map<String, Integer> _borderIds = new HashMap<String, Integer>();
+	private final List<String> _cellXfs = new ArrayList<String>();
+	private final Map<String, Integer> _cellXfIds = new HashMap<String, Integer>();
+	private final Map<String, Short> _numberFormats = new HashMap<String, Short>();
+	private final StringBuilder _numberFormatsXml = new StringBuilder();
+
+	private final List<Row> _window = new ArrayList<Row>();
+	private final Map<Integer, Double> _columnWidths = new HashMap<Integer, Double>();
+	private final Set<Integer> _autoSizeColumns = new HashSet<Integer>();
+	// longest value per column, tracked until the first row is written
+	private final Map<Integer, Integer> _columnLengths = new HashMap<Integer, Integer>();
+	private boolean _inSheet;
+	private boolean _sheetHeaderWritten;
+	private int _defaultColumnWidth = -1;
+	private float _defaultRowHeightInPoints = 15;
+	private Row _row;
+	private int _rowCount;
+	private int _columnCount;
+	private int _rowsWritten;
+	private boolean _closed;
+
+	/**
+	 * @param out the stream to write the workbook to, closed by {@link #close()}
+	 * @param rowWindowSize the number of rows kept in memory before they are written (at least 1)
+	 */
+	public EGXLSXWriter(OutputStream out, int rowWindowSize) {
+		_zip = new ZipOutputStream(out);
+		try {
+			_writer = new OutputStreamWriter(_zip, "UTF-8");
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("UTF-8 is not supported", e);
+		}
+		_rowWindowSize = Math.max(1, rowWindowSize);
+		_fonts.add(new Font().xml());
+		_fontIds.put(_fonts.get(0), Integer.valueOf(0));
+		_fills.add("<fill><patternFill patternType=\"none\"/></fill>");
+		_fills.add("<fill><patternFill patternType=\"gray125\"/></fill>");
+		_borders.add("<border><left/><right/><top/><bottom/><diagonal/></border>");
+		_borderIds.put(_borders.get(0), Integer.valueOf(0));
+		_cellXfs.add("<xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>");
+	}
+
+	public Font createFont() {
+		return new Font();
+	}
+
+	public CellStyle createCellStyle() {
+		return new CellStyle();
+	}
+
+	/**
+	 * Returns the id of the given number format, adding it if it is not a built in one.
+	 */
+	public short dataFormat(String format) {
+		short builtin = HSSFDataFormat.getBuiltinFormat(format);
+		if (builtin >= 0) {
+			return builtin;
+		}
+		Short id = _numberFormats.get(format);
+		if (id == null) {
+			id = Short.valueOf((short) (164 + _numberFormats.size()));
+			_numberFormats.put(format, id);
+			_numberFormatsXml.append("<numFmt numFmtId=\"").append(id).append("\" formatCode=\"").append(EGXLSXWriter.escape(format)).append("\"/>");
+		}
+		return id.shortValue();
+	}
+
+	private static int idForXml(String xml, List<String> list, Map<String, Integer> ids) {
+		Integer id = ids.get(xml);
+		if (id == null) {
+			id = Integer.valueOf(list.size());
+			list.add(xml);
+			ids.put(xml, id);
+		}
+		return id.intValue();
+	}
+
+	/**
+	 * Adds the style to the workbook, after its properties are set. Styles with the same
+	 * properties share an index.
+	 *
+	 * @return the index of the style
+	 */
+	public int addCellStyle(CellStyle style) {
+		int fontId = style._font != null ? EGXLSXWriter.idForXml(style._font.xml(), _fonts, _fontIds) : 0;
+		String fillXml = style.fillXml();
+		int fillId = style._fillPattern == 0 && style._fillForegroundColor < 0 && style._fillBackgroundColor < 0 ? 0 : EGXLSXWriter.idForXml(fillXml, _fills, _fillIds);
+		int borderId = EGXLSXWriter.idForXml(style.borderXml(), _borders, _borderIds);
+		style._index = EGXLSXWriter.idForXml(style.xfXml(fontId, fillId, borderId), _cellXfs, _cellXfIds);
+		return style._index;
+	}
+
+	/**
+	 * Starts a new sheet, ending the current one.
+	 */
+	public void startSheet(String name) throws IOException {
+		if (_inSheet) {
+			endSheet();
+		}
+		for (String sheetName : _sheetNames) {
+			if (sheetName.equalsIgnoreCase(name)) {
+				throw new IllegalArgumentException("The workbook already contains a sheet named '" + name + "'");
+			}
+		}
+		_sheetNames.add(name);
+		_zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + _sheetNames.size() + ".xml"));
+		_inSheet = true;
+		_sheetHeaderWritten = false;
+		_defaultColumnWidth = -1;
+		_defaultRowHeightInPoints = 15;
+		_columnWidths.clear();
+		_autoSizeColumns.clear();
+		_columnLengths.clear();
+		_rowCount = 0;
+		_row = null;
+	}
+
+	public void setDefaultColumnWidth(int width) {
+		_defaultColumnWidth = width;
+	}
+
+	public void setDefaultRowHeight(short height) {
+		_defaultRowHeightInPoints = height / 20f;
+	}
+
+	public void setDefaultRowHeightInPoints(float height) {
+		_defaultRowHeightInPoints = height;
+	}
+
+	/**
+	 * Sets the width of a column in 1/256 of a character, like
+	 * {@link org.apache.poi.hssf.usermodel.HSSFSheet#setColumnWidth(int, int)}.
+	 */
+	public void setColumnWidth(int column, int width) {
+		if (_sheetHeaderWritten) {
+			log.warn("Column width of column " + column + " set after the first row was written, ignoring it.");
+		}
+		else {
+			_columnWidths.put(Integer.valueOf(column), Double.valueOf(width / 256.0));
+		}
+	}
+
+	/**
+	 * Sizes the column to the longest value in it among the rows that are in the window
+	 * when the first row is written.
+	 */
+	public void autoSizeColumn(int column) {
+		if (_sheetHeaderWritten) {
+			log.warn("Column " + column + " auto sized after the first row was written, ignoring it.");
+		}
+		else {
+			_autoSizeColumns.add(Integer.valueOf(column));
+		}
+	}
+
+	/**
+	 * Starts a new row in the current sheet.
+	 */
+	public void startRow() throws IOException {
+		if (!_inSheet) {
+			throw new IllegalStateException("Can't add a row outside of a sheet.");
+		}
+		_row = new Row(++_rowCount);
+		_columnCount = 0;
+		_window.add(_row);
+		if (_window.size() > _rowWindowSize) {
+			flushRows(_window.size() - _rowWindowSize);
+		}
+	}
+
+	public void setRowHeightInPoints(float height) {
+		_row._heightInPoints = height;
+	}
+
+	/**
+	 * Returns the number of cells in the current row, which is the column of the next cell.
+	 */
+	public int currentColumnNumber() {
+		return _columnCount;
+	}
+
+	private void startCell(CellStyle style, String type) {
+		if (_row == null) {
+			throw new IllegalStateException("Can't add a cell outside of a row.");
+		}
+		StringBuilder cells = _row._cells;
+		cells.append("<c r=\"");
+		EGXLSXWriter.appendColumnName(cells, _columnCount);
+		cells.append(_row._number).append('"');
+		if (style != null && style._index > 0) {
+			cells.append(" s=\"").append(style._index).append('"');
+		}
+		if (type != null) {
+			cells.append(" t=\"").append(type).append('"');
+		}
+		_columnCount++;
+	}
+
+	private void trackWidth(int column, int length) {
+		if (!_sheetHeaderWritten) {
+			Integer key = Integer.valueOf(column);
+			Integer maxLength = _columnLengths.get(key);
+			if (maxLength == null || maxLength.intValue() < length) {
+				_columnLengths.put(key, Integer.valueOf(length));
+			}
+		}
+	}
+
+	public void addNumericCell(double value, CellStyle style) {
+		startCell(style, null);
+		String string = value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+		_row._cells.append("><v>").append(string).append("</v></c>");
+		trackWidth(_columnCount - 1, string.length());
+	}
+
+	public void addStringCell(String value, CellStyle style) {
+		if (value == null) {
+			addBlankCell(style);
+			return;
+		}
+		startCell(style, "inlineStr");
+		_row._cells.append("><is><t xml:space=\"preserve\">").append(EGXLSXWriter.escape(value)).append("</t></is></c>");
+		trackWidth(_columnCount - 1, value.length());
+	}
+
+	public void addFormulaCell(String formula, CellStyle style) {
+		if (formula == null) {
+			addBlankCell(style);
+			return;
+		}
+		startCell(style, null);
+		_row._cells.append("><f>").append(EGXLSXWriter.escape(formula)).append("</f></c>");
+	}
+
+	public void addBlankCell(CellStyle style) {
+		startCell(style, null);
+		_row._cells.append("/>");
+	}
+
+	private void writeSheetHeader() throws IOException {
+		_writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+		_writer.write("<worksheet xmlns=\"" + MAIN_NS + "\" xmlns:r=\"" + REL_NS + "\">");
+		_writer.write("<sheetFormatPr defaultRowHeight=\"" + _defaultRowHeightInPoints + "\"" + (_defaultColumnWidth >= 0 ? " baseColWidth=\"" + _defaultColumnWidth + "\"" : "") + "/>");
+		Map<Integer, Double> widths = new TreeMap<Integer, Double>(_columnWidths);
+		for (Integer column : _autoSizeColumns) {
+			Integer maxLength = _columnLengths.get(column);
+			if (maxLength != null) {
+				widths.put(column, Double.valueOf(maxLength.intValue() + 2));
+			}
+		}
+		if (!widths.isEmpty()) {
+			_writer.write("<cols>");
+			for (Map.Entry<Integer, Double> width : widths.entrySet()) {
+				int column = width.getKey().intValue() + 1;
+				_writer.write("<col min=\"" + column + "\" max=\"" + column + "\" width=\"" + width.getValue() + "\" customWidth=\"1\"/>");
+			}
+			_writer.write("</cols>");
+		}
+		_writer.write("<sheetData>");
+		_sheetHeaderWritten = true;
+	}
+
+	private void flushRows(int count) throws IOException {
+		if (!_sheetHeaderWritten) {
+			writeSheetHeader();
+		}
+		for (int i = 0; i < count; i++) {
+			Row row = _window.remove(0);
+			_writer.write("<row r=\"" + row._number + "\"");
+			if (row._heightInPoints >= 0) {
+				_writer.write(" ht=\"" + row._heightInPoints + "\" customHeight=\"1\"");
+			}
+			_writer.write('>');
+			_writer.append(row._cells);
+			_writer.write("</row>");
+			_rowsWritten++;
+		}
+	}
+
+	/**
+	 * Writes the remaining rows of the current sheet and ends it.
+	 */
+	public void endSheet() throws IOException {
+		if (_inSheet) {
+			flushRows(_window.size());
+			_writer.write("</sheetData></worksheet>");
+			_writer.flush();
+			_zip.closeEntry();
+			_inSheet = false;
+			_row = null;
+		}
+	}
+
+	/**
+	 * Returns the number of rows written to the stream so far.
+	 */
+	public int rowsWritten() {
+		return _rowsWritten;
+	}
+
+	private void writeEntry(String name, String content) throws IOException {
+		_zip.putNextEntry(new ZipEntry(name));
+		_writer.write(content);
+		_writer.flush();
+		_zip.closeEntry();
+	}
+
+	private static void appendList(StringBuilder xml, String tag, List<String> elements) {
+		xml.append('<').append(tag).append(" count=\"").append(elements.size()).append("\">");
+		for (String element : elements) {
+			xml.append(element);
+		}
+		xml.append("</").append(tag).append('>');
+	}
+
+	/**
+	 * Ends the current sheet, writes the workbook, styles and package parts and closes the stream.
+	 */
+	public void close() throws IOException {
+		if (_closed) {
+			return;
+		}
+		endSheet();
+		if (_sheetNames.isEmpty()) {
+			startSheet("Sheet1");
+			endSheet();
+		}
+		String header = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+		StringBuilder contentTypes = new StringBuilder(header);
+		contentTypes.append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">");
+		contentTypes.append("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>");
+		contentTypes.append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>");
+		contentTypes.append("<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>");
+		contentTypes.append("<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>");
+		for (int i = 1; i <= _sheetNames.size(); i++) {
+			contentTypes.append("<Override PartName=\"/xl/worksheets/sheet").append(i).append(".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+		}
+		contentTypes.append("</Types>");
+		writeEntry("[Content_Types].xml", contentTypes.toString());
+
+		writeEntry("_rels/.rels", header + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+				+ "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"xl/workbook.xml\"/>"
+				+ "</Relationships>");
+
+		StringBuilder workbook = new StringBuilder(header);
+		StringBuilder workbookRels = new StringBuilder(header);
+		workbook.append("<workbook xmlns=\"" + MAIN_NS + "\" xmlns:r=\"" + REL_NS + "\"><sheets>");
+		workbookRels.append("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+		for (int i = 1; i <= _sheetNames.size(); i++) {
+			workbook.append("<sheet name=\"").append(EGXLSXWriter.escape(_sheetNames.get(i - 1))).append("\" sheetId=\"").append(i).append("\" r:id=\"rId").append(i).append("\"/>");
+			workbookRels.append("<Relationship Id=\"rId").append(i).append("\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet").append(i).append(".xml\"/>");
+		}
+		workbook.append("</sheets></workbook>");
+		workbookRels.append("<Relationship Id=\"rId").append(_sheetNames.size() + 1).append("\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/styles\" Target=\"styles.xml\"/>");
+		workbookRels.append("</Relationships>");
+		writeEntry("xl/workbook.xml", workbook.toString());
+		writeEntry("xl/_rels/workbook.xml.rels", workbookRels.toString());
+
+		StringBuilder styles = new StringBuilder(header);
+		styles.append("<styleSheet xmlns=\"" + MAIN_NS + "\">");
+		if (!_numberFormats.isEmpty()) {
+			styles.append("<numFmts count=\"").append(_numberFormats.size()).append("\">").append(_numberFormatsXml).append("</numFmts>");
+		}
+		EGXLSXWriter.appendList(styles, "fonts", _fonts);
+		EGXLSXWriter.appendList(styles, "fills", _fills);
+		EGXLSXWriter.appendList(styles, "borders", _borders);
+		styles.append("<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>");
+		EGXLSXWriter.appendList(styles, "cellXfs", _cellXfs);
+		styles.append("<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>");
+		styles.append("</styleSheet>");
+		writeEntry("xl/styles.xml", styles.toString());
+
+		_zip.close();
+		_closed = true;
+	}
+
+	private static void appendColumnName(StringBuilder sb, int column) {
+		if (column >= 26) {
+			EGXLSXWriter.appendColumnName(sb, column / 26 - 1);
+		}
+		sb.append((char) ('A' + column % 26));
+	}
+
+	/**
+	 * Escapes the string for XML text and attributes, dropping characters XML doesn't allow.
+	 */
+	protected static String escape(String value) {
+		StringBuilder sb = null;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			String replacement = null;
+			switch (c) {
+				case '<': replacement = "&lt;"; break;
+				case '>': replacement = "&gt;"; break;
+				case '&': replacement = "&amp;"; break;
+				case '"': replacement = "&quot;"; break;
+				default:
+					if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+						replacement = "";
+					}
+					break;
+			}
+			if (replacement != null) {
+				if (sb == null) {
+					sb = new StringBuilder(length + 16);
+					sb.append(value, 0, i);
+				}
+				sb.append(replacement);
+			}
+			else if (sb != null) {
+				sb.append(c);
+			}
+		}
+		return sb != null ? sb.toString() : value;
+	}
+}
@@ -15,6 +15,15 @@ package com.webobjects.monitor._private;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -29,7 +38,6 @@ import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSLog;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
-import com.webobjects.foundation._NSThreadsafeMutableArray;
 
 import er.extensions.foundation.ERXProperties;
 
@@ -39,6 +47,15 @@ public class MHost extends MObject {
     
     private final int _receiveTimeout = ERXProperties.intForKeyWithDefault("JavaMonitor.receiveTimeout", 10000);
 
+    /**
+     * How long sendRequestToWotaskdArray waits for the wotaskds in milliseconds. Hosts that
+     * don't answer in time get an error response, so one dead host doesn't block every page
+     * for the full receive timeout.
+     */
+    private static final int _requestDeadline = ERXProperties.intForKeyWithDefault("JavaMonitor.wotaskdDeadline", 5000);
+
+    private static ExecutorService _requestExecutor;
+
     /*
      * NSString name; NSString type; // WINDOWS | UNIX | MACOSX
      */
@@ -112,11 +129,6 @@ public class MHost extends MObject {
                 }
             }
         }
-        // This is just for caching purposes
-        errorResponse = (new _JavaMonitorCoder()).encodeRootObjectForKey(new NSDictionary<String, NSArray>(new NSArray(
-                "Failed to contact " + name() + "-" + WOApplication.application().lifebeatDestinationPort()),
-                "errorResponse"), "instanceResponse");
-
     }
 
     /** ******* */
@@ -264,7 +276,48 @@ public class MHost extends MObject {
     /** ******* */
 
     /** ******** Communications Goop ********* */
+    private static synchronized ExecutorService requestExecutor() {
+        if (_requestExecutor == null) {
+            _requestExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger _threadNumber = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MHost-wotaskd-" + _threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _requestExecutor;
+    }
+
+    /**
+     * Returns a response with an errorResponse for this host, which is decoded like the
+     * responses of wotaskd.
+     */
+    public WOResponse errorResponse(String message) {
+        NSDictionary monitorResponse = new NSDictionary(new NSArray(message), "errorResponse");
+        WOResponse aResponse = new WOResponse();
+        aResponse.setContent(new _JavaMonitorCoder().encodeRootObjectForKey(monitorResponse, "monitorResponse"));
+        return aResponse;
+    }
+
     public static WOResponse[] sendRequestToWotaskdArray(NSData content, NSArray wotaskdArray, boolean willChange) {
+        return sendRequestToWotaskdArray(content, wotaskdArray, willChange, _requestDeadline);
+    }
+
+    /**
+     * Sends the request to all the hosts in parallel and waits at most deadline milliseconds
+     * for the answers. Hosts that didn't answer in time get an error response and, if the
+     * request changes the configuration, are synced with the next request.
+     * 
+     * @param content the request content
+     * @param wotaskdArray the hosts
+     * @param willChange true if the request changes the configuration
+     * @param deadline the time to wait for all hosts in milliseconds
+     * @return the responses in the order of the hosts
+     */
+    public static WOResponse[] sendRequestToWotaskdArray(NSData content, NSArray wotaskdArray, boolean willChange, long deadline) {
         MSiteConfig aConfig;
         MHost aHost = (MHost) wotaskdArray.objectAtIndex(0);
         if (aHost != null) {
@@ -272,61 +325,81 @@ public class MHost extends MObject {
         } else {
             return null;
         }
+        long deadlineMillis = System.currentTimeMillis() + deadline;
 
         // we had errors reaching a host last time - do it again!
         if (aConfig.hostErrorArray.count() > 0) {
             _syncRequest = null;
             final WORequest aSyncRequest = syncRequest(aConfig);
-            final _NSThreadsafeMutableArray syncHosts = aConfig.hostErrorArray;
+            NSArray syncHosts = new NSArray(aConfig.hostErrorArray.array());
             if (NSLog.debugLoggingAllowedForLevelAndGroups(NSLog.DebugLevelDetailed, NSLog.DebugGroupDeployment))
-                NSLog.debug.appendln("Sending sync requests to: " + syncHosts.array());
-            // final MSiteConfig finalConfig = aConfig;
-            Thread[] workers = new Thread[syncHosts.count()];
-            for (int i = 0; i < workers.length; i++) {
-                final int j = i;
-                Runnable work = new Runnable() {
-                    public void run() {
-                        MHost aHost = (MHost) syncHosts.objectAtIndex(j);
-                        aHost.sendRequestToWotaskd(aSyncRequest, true, true);
+                NSLog.debug.appendln("Sending sync requests to: " + syncHosts);
+            Future[] syncs = new Future[syncHosts.count()];
+            for (int i = 0; i < syncs.length; i++) {
+                final MHost syncHost = (MHost) syncHosts.objectAtIndex(i);
+                syncs[i] = requestExecutor().submit(new Callable<WOResponse>() {
+                    public WOResponse call() {
+                        return syncHost.sendRequestToWotaskd(aSyncRequest, true, true);
                     }
-                };
-                workers[j] = new Thread(work);
-                workers[j].start();
+                });
             }
-
-            try {
-                for (int i = 0; i < workers.length; i++) {
-                    workers[i].join();
+            for (int i = 0; i < syncs.length; i++) {
+                try {
+                    syncs[i].get(Math.max(0, deadlineMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // still in the error array, synced again next time
+                    log.warn("Sync request to " + ((MHost) syncHosts.objectAtIndex(i)).name() + " did not finish within " + deadline + " ms");
+                } catch (ExecutionException e) {
+                    log.error("Sync request to " + ((MHost) syncHosts.objectAtIndex(i)).name() + " failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
-            } catch (InterruptedException ie) {
             }
         }
 
         final WORequest aRequest = new WORequest(MObject._POST, MObject.directActionString, MObject._HTTP1, aConfig
                 .passwordDictionary(), content, null);
-        final NSArray finalWotaskdArray = wotaskdArray;
         final boolean wc = willChange;
 
-        Thread[] workers = new Thread[wotaskdArray.count()];
-        final WOResponse[] responses = new WOResponse[workers.length];
+        Future[] futures = new Future[wotaskdArray.count()];
+        WOResponse[] responses = new WOResponse[futures.length];
 
-        for (int i = 0; i < workers.length; i++) {
-            final int j = i;
-            Runnable work = new Runnable() {
-                public void run() {
-                    responses[j] = ((MHost) finalWotaskdArray.objectAtIndex(j)).sendRequestToWotaskd(aRequest, wc, false);
+        for (int i = 0; i < futures.length; i++) {
+            final MHost requestHost = (MHost) wotaskdArray.objectAtIndex(i);
+            futures[i] = requestExecutor().submit(new Callable<WOResponse>() {
+                public WOResponse call() {
+                    return requestHost.sendRequestToWotaskd(aRequest, wc, false);
                 }
-            };
-            workers[j] = new Thread(work);
-            workers[j].start();
+            });
         }
 
-        try {
-            for (int i = 0; i < workers.length; i++) {
-                workers[i].join();
+        boolean interrupted = false;
+        for (int i = 0; i < futures.length; i++) {
+            MHost requestHost = (MHost) wotaskdArray.objectAtIndex(i);
+            try {
+                if (interrupted) {
+                    responses[i] = (WOResponse) futures[i].get(0, TimeUnit.MILLISECONDS);
+                } else {
+                    responses[i] = (WOResponse) futures[i].get(Math.max(0, deadlineMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+            } catch (TimeoutException e) {
+                futures[i].cancel(true);
+                requestHost.isAvailable = false;
+                if (willChange) {
+                    aConfig.hostErrorArray.addObjectIfAbsent(requestHost);
+                }
+                responses[i] = requestHost.errorResponse("Host " + requestHost.name() + " did not respond within " + deadline + " ms");
+            } catch (ExecutionException e) {
+                log.error("Request to " + requestHost.name() + " failed", e.getCause());
+                responses[i] = requestHost.errorResponse("Request to host " + requestHost.name() + " failed: " + e.getCause());
+            } catch (InterruptedException e) {
+                interrupted = true;
+                i--;
             }
-        } catch (InterruptedException ie) {
-            // might be bad?
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
 
         return responses;
@@ -350,8 +423,6 @@ public class MHost extends MObject {
         return _syncRequest;
     }
 
-    private String errorResponse = null;
-
     public WOResponse sendRequestToWotaskd(WORequest aRequest, boolean willChange, boolean isSync) {
         if (NSLog.debugLoggingAllowedForLevelAndGroups(NSLog.DebugLevelDetailed, NSLog.DebugGroupDeployment))
             NSLog.debug.appendln("!@#$!@#$ sendRequestToWotaskd creates a WOHTTPConnection");
@@ -385,8 +456,7 @@ public class MHost extends MObject {
             if (willChange) {
                 _siteConfig.hostErrorArray.addObjectIfAbsent(this);
             }
-            aResponse = new WOResponse();
-            aResponse.setContent(errorResponse);
+            aResponse = errorResponse("Failed to contact wotaskd on host " + name());
         } else {
             // if we successfully synced, clear the error dictionary
             if (isSync && isAvailable) {
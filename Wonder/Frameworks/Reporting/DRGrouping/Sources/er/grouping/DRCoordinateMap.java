@@ -0,0 +1,115 @@
+package er.grouping;
+
+import java.util.Arrays;
+
+/**
+ * Maps encoded coordinates (see {@link DRReportModel#coordinateIndex(com.webobjects.foundation.NSDictionary)})
+ * to their {@link DRRecordGroup}. An open addressing hash table on primitive longs,
+ * so neither lookups nor stores box the key.
+ */
+public class DRCoordinateMap {
+    private static final long EMPTY = -1L;
+
+    private long[] _keys;
+    private DRRecordGroup[] _values;
+    private int _count;
+
+    public DRCoordinateMap() {
+        this(64);
+    }
+
+    public DRCoordinateMap(int capacity) {
+        int size = 16;
+        while (size < capacity * 2) {
+            size <<= 1;
+        }
+        _keys = new long[size];
+        Arrays.fill(_keys, EMPTY);
+        _values = new DRRecordGroup[size];
+    }
+
+    private static int slot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int)(hash ^ (hash >>> 32)) & mask;
+    }
+
+    public DRRecordGroup get(long key) {
+        int mask = _keys.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            long k = _keys[i];
+            if (k == key) {
+                return _values[i];
+            }
+            if (k == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Stores the record group for the key, replacing an existing one.
+     *
+     * @param key the encoded coordinates, must not be negative
+     * @param recordGroup the record group
+     */
+    public void put(long key, DRRecordGroup recordGroup) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Invalid coordinate index: " + key);
+        }
+        if ((_count + 1) * 2 > _keys.length) {
+            grow();
+        }
+        int mask = _keys.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            long k = _keys[i];
+            if (k == key) {
+                _values[i] = recordGroup;
+                return;
+            }
+            if (k == EMPTY) {
+                _keys[i] = key;
+                _values[i] = recordGroup;
+                _count++;
+                return;
+            }
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = _keys;
+        DRRecordGroup[] oldValues = _values;
+        _keys = new long[oldKeys.length * 2];
+        Arrays.fill(_keys, EMPTY);
+        _values = new DRRecordGroup[oldValues.length * 2];
+        _count = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    public int count() {
+        return _count;
+    }
+
+    /**
+     * Returns the record groups in no particular order.
+     */
+    public DRRecordGroup[] values() {
+        DRRecordGroup[] values = new DRRecordGroup[_count];
+        int j = 0;
+        for (int i = 0; i < _keys.length; i++) {
+            if (_keys[i] != EMPTY) {
+                values[j++] = _values[i];
+            }
+        }
+        return values;
+    }
+
+    public void clear() {
+        Arrays.fill(_keys, EMPTY);
+        Arrays.fill(_values, null);
+        _count = 0;
+    }
+}
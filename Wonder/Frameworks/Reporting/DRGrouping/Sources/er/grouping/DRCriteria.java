@@ -42,6 +42,7 @@ public class DRCriteria extends Object  {
     }
     public void setIsTotal(boolean v) {
         _isTotal = v;
+        _coordinateOrdinal = -1;
     }
 
     public boolean isOther() {
@@ -120,11 +121,29 @@ public class DRCriteria extends Object  {
 
     public void setValueDict(NSDictionary val) {
         _valueDict = val;
+        _coordinateOrdinal = -1;
     }
     public NSDictionary valueDict() {
         return _valueDict;
     }
 
+    private int _coordinateOrdinal = -1;
+    /**
+     * Returns the position of this criteria on its master criteria's axis, as used
+     * by {@link DRReportModel#coordinateIndex(NSDictionary)}. Totals are 0, criteria
+     * with the same lookup key share a number.
+     */
+    public int coordinateOrdinal() {
+        if (_coordinateOrdinal < 0) {
+            if (_isTotal) {
+                _coordinateOrdinal = 0;
+            } else {
+                _coordinateOrdinal = _masterCriteria.coordinateOrdinalForLookupKey((String)_valueDict.objectForKey("lookupKey"));
+            }
+        }
+        return _coordinateOrdinal;
+    }
+
     public String toString() {
         return  "<DRCriteria valueDict: " + _valueDict + "; >";
     }
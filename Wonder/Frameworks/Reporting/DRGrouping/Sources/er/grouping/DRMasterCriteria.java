@@ -21,6 +21,7 @@ public class DRMasterCriteria extends Object  {
     protected boolean _isPreset;
     protected boolean _useStringMatchForLookup;
     protected NSMutableDictionary _criteriaLookupDict;
+    protected NSMutableDictionary _coordinateOrdinals;
 
     // For string lookup
     protected String _label;
@@ -87,6 +88,7 @@ public class DRMasterCriteria extends Object  {
         _label = null;
         _userInfo = new NSMutableDictionary();
         _criteriaLookupDict = new NSMutableDictionary();
+        _coordinateOrdinals = new NSMutableDictionary();
     }
 
     public NSMutableDictionary userInfo() {
@@ -177,6 +179,35 @@ public class DRMasterCriteria extends Object  {
         return _criteriaLookupDict;
     }
 
+    /**
+     * Returns the number of the given lookup key on this criteria's axis, starting at
+     * 1 (0 stands for the total). Numbers are handed out in the order keys are first seen.
+     */
+    public int coordinateOrdinalForLookupKey(String lookupKey) {
+        Integer ordinal = (Integer)_coordinateOrdinals.objectForKey(lookupKey);
+        if (ordinal == null) {
+            ordinal = Integer.valueOf(_coordinateOrdinals.count() + 1);
+            _coordinateOrdinals.setObjectForKey(ordinal, lookupKey);
+        }
+        return ordinal.intValue();
+    }
+
+    /**
+     * Returns true if {@link #valueDictRecord(DRRecord)} can be called from several
+     * threads at once. Periodic criteria add possible values while grouping and time
+     * formats share a formatter, so those can't.
+     */
+    public boolean canComputeValueDictsConcurrently() {
+        Enumeration anEnum = _subCriteriaList.objectEnumerator();
+        while (anEnum.hasMoreElements()) {
+            DRSubMasterCriteria scSub = (DRSubMasterCriteria)anEnum.nextElement();
+            if (scSub.isPeriodic() || scSub.useTimeFormat()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void walkPresetsPossibleValues(NSArray presets, NSDictionary vlDict) {
         DRSubMasterCriteria scSub = (DRSubMasterCriteria)presets.objectAtIndex(0);
         NSMutableArray newPresets = new NSMutableArray(presets);
@@ -244,7 +275,7 @@ public class DRMasterCriteria extends Object  {
     public DRRecordGroup findRecordGroupForRecordGroupsDictGroupParent(DRRecord rec, NSMutableDictionary recGrpDict, DRGroup grp, DRRecordGroup parent) {
         //OWDebug.println(1, "entered");
         DRRecordGroup recGrp = null;
-        NSDictionary valueDict = this.valueDictRecord(rec);
+        NSDictionary valueDict = rec.valueDictForMasterCriteria(this);
 
         //OWDebug.println(1, "valueDict:"+valueDict);
         //OWDebug.println(1, "this.isPreset():"+this.isPreset());
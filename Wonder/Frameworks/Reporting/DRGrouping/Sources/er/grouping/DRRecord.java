@@ -11,6 +11,11 @@ public class DRRecord extends Object  {
     protected NSMutableArray _valueList;
     protected NSMutableArray _flatValueList;
 
+    // value dicts by index of the master criteria in the model's criteriaList,
+    // reset by the model when its criteriaList is set
+    private Object[] _valueDicts;
+    private static final Object NO_VALUE_DICT = new Object();
+
     static public DRRecord withRawRecordModel(NSKeyValueCodingAdditions rawr, DRReportModel aMod) {
         DRRecord drr = new DRRecord();
         drr.initWithRawRecord(rawr, aMod);
@@ -59,6 +64,36 @@ public class DRRecord extends Object  {
         return this;
     }
 
+    /**
+     * Returns {@link DRMasterCriteria#valueDictRecord(DRRecord)} for this record, which
+     * is computed once for every master criteria of the model instead of at every level
+     * of grouping.
+     */
+    public NSDictionary valueDictForMasterCriteria(DRMasterCriteria mc) {
+        NSArray criteriaList = _model != null ? _model.criteriaList() : null;
+        int index = criteriaList != null ? criteriaList.indexOfIdenticalObject(mc) : NSArray.NotFound;
+        if (index == NSArray.NotFound) {
+            return mc.valueDictRecord(this);
+        }
+        if (_valueDicts == null || _valueDicts.length != criteriaList.count()) {
+            _valueDicts = new Object[criteriaList.count()];
+        }
+        Object valueDict = _valueDicts[index];
+        if (valueDict == null) {
+            valueDict = mc.valueDictRecord(this);
+            _valueDicts[index] = valueDict != null ? valueDict : NO_VALUE_DICT;
+        }
+        return valueDict == NO_VALUE_DICT ? null : (NSDictionary)valueDict;
+    }
+
+    /**
+     * Forgets the value dicts computed by {@link #valueDictForMasterCriteria(DRMasterCriteria)},
+     * called when the criteria list of the model changes.
+     */
+    public void resetValueDicts() {
+        _valueDicts = null;
+    }
+
     public NSKeyValueCodingAdditions rawRecord() {
         return _rawRecord;
     }
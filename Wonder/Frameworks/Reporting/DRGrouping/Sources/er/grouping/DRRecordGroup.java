@@ -114,20 +114,35 @@ public class DRRecordGroup extends Object  {
         //AK: there are two types of totals, the one is the simple sum we had earlier,
         // it gets stored in the _totals under (index number of the current record*index number of 
         if (_staleTotal) {
-            for(Enumeration en = this.recordList().objectEnumerator(); en.hasMoreElements(); ) {
-                int i = 0;
-                DRRecord rec = (DRRecord)en.nextElement();
+            // one pass over the records, summing into arrays indexed like the flat value list
+            DRValue[] totalValues = new DRValue[0];
+            double[] sums = new double[0];
+            boolean[] summed = new boolean[0];
+            NSArray recordList = this.recordList();
+            for(int r = 0, recordCount = recordList.count(); r < recordCount; r++) {
+                DRRecord rec = (DRRecord)recordList.objectAtIndex(r);
                 NSArray flatlist = rec.flatValueList();
-                for(Enumeration en2 = flatlist.objectEnumerator(); en2.hasMoreElements(); ) {
-                    DRValue val = (DRValue)en2.nextElement();
+                int count = flatlist.count();
+                if (count > totalValues.length) {
+                    DRValue[] newTotalValues = new DRValue[count];
+                    double[] newSums = new double[count];
+                    boolean[] newSummed = new boolean[count];
+                    System.arraycopy(totalValues, 0, newTotalValues, 0, totalValues.length);
+                    System.arraycopy(sums, 0, newSums, 0, sums.length);
+                    System.arraycopy(summed, 0, newSummed, 0, summed.length);
+                    totalValues = newTotalValues;
+                    sums = newSums;
+                    summed = newSummed;
+                }
+                for(int i = 0; i < count; i++) {
+                    DRValue val = (DRValue)flatlist.objectAtIndex(i);
                     boolean isComputed = val.attribute().isComputed();
-                    double subTot, lastTot, newTot;
-                    Number indexNum = new Integer(i);
-                    DRValue totalValue = (DRValue)_totals.objectForKey(indexNum);
+                    DRValue totalValue = totalValues[i];
                     if (totalValue == null) {
                         if (val.shouldTotal()) {
                             if(!isComputed) {
                                 totalValue = DRValue.withTotalAttribute(0, val.attribute());
+                                summed[i] = true;
                             } else {
                                 final NSArray rawRecords = rawRecordList();
                                 totalValue = new DRValue(0, val.attribute()) {
@@ -144,31 +159,34 @@ public class DRRecordGroup extends Object  {
                         } else {
                             totalValue = DRValue.nullTotal();
                         }
-                        _totals.setObjectForKey(totalValue, indexNum);
+                        totalValues[i] = totalValue;
                     }
                     if(!isComputed) {
-                        lastTot = totalValue.total();
-                        subTot = val.total();
-                        newTot = lastTot+subTot;
-                        totalValue.setTotal(newTot);
+                        sums[i] += val.total();
                     }
-                    i++;
                 }
             }
-             _staleTotal = false;
-         }
+            for(int i = 0; i < totalValues.length; i++) {
+                if (summed[i]) {
+                    totalValues[i].setTotal(sums[i]);
+                }
+                _totals.setObjectForKey(totalValues[i], Integer.valueOf(i));
+            }
+            _staleTotal = false;
+        }
 
         return _totals;
     }
 
     public NSArray totalList() {
         if (_totalList == null) {
-            int cnt = this.totals().allKeys().count();
+            NSDictionary totals = this.totals();
+            int cnt = totals.count();
             int i;
-            NSMutableArray totList = new NSMutableArray();
+            NSMutableArray totList = new NSMutableArray(cnt);
 
             for (i = 0; i < cnt; i++) {
-                totList.addObject(this.totals().objectForKey(new Integer(i)));
+                totList.addObject(totals.objectForKey(Integer.valueOf(i)));
             }
             _totalList = new NSArray(totList);
         }
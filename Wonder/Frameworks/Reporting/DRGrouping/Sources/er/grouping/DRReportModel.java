@@ -2,6 +2,11 @@ package er.grouping;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.log4j.Logger;
 import org.xml.sax.*;
@@ -14,12 +19,28 @@ import com.webobjects.foundation.*;
 
 import er.extensions.*;
 import er.extensions.eof.ERXConstant;
+import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXStringUtilities;
 import er.extensions.foundation.ERXValueUtilities;
 
+/**
+ * The report cube: groups the records by every master criteria and keeps the
+ * record group of each combination of criteria, which is looked up with
+ * {@link #recordGroupForCoordinates(NSDictionary)}.
+ *
+ * @property er.grouping.DRReportModel.parallelBuildThreshold if the raw records are more
+ *           than this, they are turned into records and their grouping values and totals
+ *           are computed in partitions on all processors before grouping. The raw records
+ *           must then be safe to read from several threads (e.g. raw rows or dictionaries,
+ *           not enterprise objects in a locked editing context). Defaults to 0 (off).
+ */
 public class DRReportModel extends Object  {
     private static Logger log = Logger.getLogger(DRReportModel.class);
 
+    public static final String PARALLEL_BUILD_THRESHOLD_KEY = "er.grouping.DRReportModel.parallelBuildThreshold";
+
+    private static ExecutorService _buildExecutor;
+
     public static final String DRReportModelUpdateNotification = "DRReportModelUpdate";
     public static final String DRReportModelRebuildNotification = "DRReportModelRebuild";
 
@@ -37,7 +58,10 @@ public class DRReportModel extends Object  {
     protected NSArray _criteriaList;
 
     //a list of all DRMasterCriterias
+    // record groups whose coordinates can't be encoded as a long, by coordinateKey()
     protected NSMutableDictionary _registeredRecordGroups;
+    // record groups by coordinateIndex()
+    protected DRCoordinateMap _registeredRecordGroupsByIndex;
 
     protected NSMutableDictionary _flatAttributeDepthDict;
     protected NSMutableArray _flatAttributeList;
@@ -359,6 +383,7 @@ public class DRReportModel extends Object  {
         _attributeList = aAttribList;
         _criteriaList = aCritArray;
         _registeredRecordGroups = new NSMutableDictionary();
+        _registeredRecordGroupsByIndex = new DRCoordinateMap();
         _records = this.recordsForRawRecords(_rawRecords);
         _vList = new NSMutableArray();
         _hList = new NSMutableArray();
@@ -413,6 +438,10 @@ public class DRReportModel extends Object  {
     }
 
     public NSArray recordsForRawRecords(NSArray rawr) {
+        int threshold = ERXProperties.intForKeyWithDefault(PARALLEL_BUILD_THRESHOLD_KEY, 0);
+        if (threshold > 0 && rawr.count() > threshold && Runtime.getRuntime().availableProcessors() > 1) {
+            return this.parallelRecordsForRawRecords(rawr);
+        }
         NSMutableArray recs = new NSMutableArray();
         Enumeration anEnum = rawr.objectEnumerator();
 
@@ -424,6 +453,80 @@ public class DRReportModel extends Object  {
         return new NSArray(recs);
     }
 
+    /**
+     * Creates the records for one partition of the raw records per processor. Besides
+     * creating the records, each partition looks up the values that are totalled and
+     * the values of the master criteria that allow it, so grouping afterwards doesn't
+     * touch the raw records for those.
+     */
+    protected NSArray parallelRecordsForRawRecords(final NSArray rawr) {
+        final int count = rawr.count();
+        final DRRecord[] recs = new DRRecord[count];
+        final NSMutableArray concurrentCriteria = new NSMutableArray();
+        if (_criteriaList != null) {
+            for (Enumeration anEnum = _criteriaList.objectEnumerator(); anEnum.hasMoreElements(); ) {
+                DRMasterCriteria mc = (DRMasterCriteria)anEnum.nextElement();
+                if (mc.canComputeValueDictsConcurrently()) {
+                    concurrentCriteria.addObject(mc);
+                }
+            }
+        }
+        int partitionCount = Runtime.getRuntime().availableProcessors();
+        int partitionSize = (count + partitionCount - 1) / partitionCount;
+        ExecutorService executor = DRReportModel.buildExecutor();
+        List<Future<?>> partitions = new ArrayList<Future<?>>(partitionCount);
+        for (int start = 0; start < count; start += partitionSize) {
+            final int partitionStart = start;
+            final int partitionEnd = Math.min(start + partitionSize, count);
+            partitions.add(executor.submit(new Runnable() {
+                public void run() {
+                    for (int i = partitionStart; i < partitionEnd; i++) {
+                        DRRecord rec = DRRecord.withRawRecordModel((NSKeyValueCodingAdditions)rawr.objectAtIndex(i), DRReportModel.this);
+                        for (int j = 0, mcCount = concurrentCriteria.count(); j < mcCount; j++) {
+                            rec.valueDictForMasterCriteria((DRMasterCriteria)concurrentCriteria.objectAtIndex(j));
+                        }
+                        NSArray flatValues = rec.flatValueList();
+                        for (int j = 0, valueCount = flatValues.count(); j < valueCount; j++) {
+                            ((DRValue)flatValues.objectAtIndex(j)).total();
+                        }
+                        recs[i] = rec;
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> partition : partitions) {
+                partition.get();
+            }
+        }
+        catch (InterruptedException e) {
+            for (Future<?> partition : partitions) {
+                partition.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw NSForwardException._runtimeExceptionForThrowable(e);
+        }
+        catch (ExecutionException e) {
+            throw NSForwardException._runtimeExceptionForThrowable(e.getCause());
+        }
+        return new NSArray(recs);
+    }
+
+    private static synchronized ExecutorService buildExecutor() {
+        if (_buildExecutor == null) {
+            _buildExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int _count;
+
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DRReportModel-build-" + (++_count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _buildExecutor;
+    }
+
     //
     // Used to recache derived values in Record objects
     //
@@ -764,6 +867,12 @@ public class DRReportModel extends Object  {
     }
     public void setCriteriaList(NSArray arr) {
         _criteriaList = arr;
+        // the records cache their value dicts by index in the criteria list
+        if (_records != null) {
+            for (Enumeration anEnum = _records.objectEnumerator(); anEnum.hasMoreElements(); ) {
+                ((DRRecord)anEnum.nextElement()).resetValueDicts();
+            }
+        }
     }
 
     public NSArray attributeList() {
@@ -784,9 +893,9 @@ public class DRReportModel extends Object  {
     }
 
     public String coordinateKey(NSDictionary coordDict) {
-        String lookupCoordKey = "/";
-        for (Enumeration criterias = _criteriaList.objectEnumerator(); criterias.hasMoreElements(); ) {
-            DRMasterCriteria mc = (DRMasterCriteria)criterias.nextElement();
+        StringBuilder lookupCoordKey = new StringBuilder("/");
+        for (int i = 0, count = _criteriaList.count(); i < count; i++) {
+            DRMasterCriteria mc = (DRMasterCriteria)_criteriaList.objectAtIndex(i);
             String lookupkey;
             DRCriteria c = (DRCriteria)coordDict.objectForKey(mc.keyDesc());
 
@@ -795,17 +904,59 @@ public class DRReportModel extends Object  {
             } else {
                 lookupkey = (String)c.valueDict().objectForKey("lookupKey");
             }
-            lookupCoordKey = lookupCoordKey + lookupkey + "/";
+            lookupCoordKey.append(lookupkey).append('/');
+        }
+        return lookupCoordKey.toString();
+    }
+
+    /**
+     * Encodes the coordinates as a long: for every master criteria, the
+     * {@link DRCriteria#coordinateOrdinal()} of its criteria in the dictionary (0 if
+     * there is none or it is the total) takes an equal share of the bits. Used instead
+     * of {@link #coordinateKey(NSDictionary)} to register and find record groups, as
+     * it doesn't build a string for every lookup.
+     *
+     * @param coordDict criteria by the keyDesc() of their master criteria
+     * @return the encoded coordinates, or -1 if an ordinal doesn't fit into its bits
+     */
+    public long coordinateIndex(NSDictionary coordDict) {
+        int count = _criteriaList.count();
+        if (count == 0) {
+            return 0;
+        }
+        int bits = 62 / count;
+        if (bits == 0) {
+            return -1;
+        }
+        long maxOrdinal = (1L << bits) - 1;
+        long index = 0;
+        for (int i = 0; i < count; i++) {
+            DRMasterCriteria mc = (DRMasterCriteria)_criteriaList.objectAtIndex(i);
+            DRCriteria c = (DRCriteria)coordDict.objectForKey(mc.keyDesc());
+            long ordinal = c == null ? 0 : c.coordinateOrdinal();
+            if (ordinal > maxOrdinal) {
+                return -1;
+            }
+            index = (index << bits) | ordinal;
         }
-        return lookupCoordKey;
+        return index;
     }
 
     public void registerRecordGroupWithCoordinates(DRRecordGroup recGrp, NSDictionary coordDict) {
-        String coordKey = this.coordinateKey(coordDict);
-        _registeredRecordGroups.setObjectForKey(recGrp, coordKey);
+        long coordIndex = this.coordinateIndex(coordDict);
+        if (coordIndex >= 0) {
+            _registeredRecordGroupsByIndex.put(coordIndex, recGrp);
+        } else {
+            String coordKey = this.coordinateKey(coordDict);
+            _registeredRecordGroups.setObjectForKey(recGrp, coordKey);
+        }
     }
 
     public void makeRecordGroupsStaleTotal() {
+        DRRecordGroup[] indexedRecordGroups = _registeredRecordGroupsByIndex.values();
+        for (int i = 0; i < indexedRecordGroups.length; i++) {
+            indexedRecordGroups[i].makeStale();
+        }
         for(Enumeration recordGroups = _registeredRecordGroups.allValues().objectEnumerator(); recordGroups.hasMoreElements(); ) {
             DRRecordGroup recordGroup = (DRRecordGroup)recordGroups.nextElement();
             recordGroup.makeStale();
@@ -813,6 +964,10 @@ public class DRReportModel extends Object  {
     }
 
     public DRRecordGroup recordGroupForCoordinates(NSDictionary coordDict) {
+        long coordIndex = this.coordinateIndex(coordDict);
+        if (coordIndex >= 0) {
+            return _registeredRecordGroupsByIndex.get(coordIndex);
+        }
         String coordKey = this.coordinateKey(coordDict);
         DRRecordGroup recordGroup = (DRRecordGroup)_registeredRecordGroups.objectForKey(coordKey);
         return recordGroup;
@@ -14,6 +14,9 @@ public class DRValue extends Object  {
     protected Number _totalValue;
     protected double _rawTotal;
     protected String _key;
+    // the record's value is looked up once, as the record is totalled in every group it is in
+    private double _recordTotal;
+    private boolean _hasRecordTotal;
 
     static public DRValue nullTotal() {
         DRValue aVal = new DRValue();
@@ -131,13 +134,13 @@ public class DRValue extends Object  {
             return 0.0;
         }
 
-        Object val = this.val();
-
-        if (val != null) {
-            return DRValueConverter.converter().doubleForValue(val);
+        if (!_hasRecordTotal) {
+            Object val = this.val();
+            _recordTotal = val != null ? DRValueConverter.converter().doubleForValue(val) : 0.0;
+            _hasRecordTotal = true;
         }
 
-        return 0.0;
+        return _recordTotal;
     }
 
     public void setTotal(double tot) {
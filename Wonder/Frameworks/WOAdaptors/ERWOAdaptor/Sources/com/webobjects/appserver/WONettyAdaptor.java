@@ -29,9 +29,11 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.FileRegion;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
 import org.jboss.netty.handler.codec.http.Cookie;
 import org.jboss.netty.handler.codec.http.CookieDecoder;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
@@ -41,6 +43,8 @@ import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 import org.jboss.netty.logging.CommonsLoggerFactory;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.util.CharsetUtil;
@@ -178,12 +182,39 @@ public class WONettyAdaptor extends WOAdaptor {
 			pipeline.addLast("aggregator", new HttpChunkAggregator(maxFileSize));
 			pipeline.addLast("encoder", new HttpResponseEncoder());
 			// Remove the following line if you don't want automatic content compression.
-			pipeline.addLast("deflater", new HttpContentCompressor());
+			pipeline.addLast("deflater", new ResponseCompressor());
+			// writes streamed response content as the connection can take it
+			pipeline.addLast("streamer", new ChunkedWriteHandler());
 			pipeline.addLast("handler", new RequestHandler());
 			return pipeline;
 		}
 	}
 	
+	/**
+	 * Compresses responses like HttpContentCompressor, except for responses that
+	 * send a file or a stream (they are sent as they are, after the headers) and partial
+	 * responses (their Content-Range refers to the uncompressed content).
+	 */
+	protected static class ResponseCompressor extends HttpContentCompressor {
+		private boolean _compressCurrentResponse = true;
+
+		@Override
+		public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+			Object message = e.getMessage();
+			if (message instanceof HttpResponse) {
+				HttpResponse response = (HttpResponse) message;
+				boolean sendsContentAfterHeaders = response instanceof WOResponseWrapper && (((WOResponseWrapper) response).fileRegion() != null || ((WOResponseWrapper) response).streamedContent() != null);
+				_compressCurrentResponse = !sendsContentAfterHeaders && !response.containsHeader("Content-Range");
+			}
+			super.writeRequested(ctx, e);
+		}
+
+		@Override
+		protected EncoderEmbedder<ChannelBuffer> newContentEncoder(String acceptEncoding) throws Exception {
+			return _compressCurrentResponse ? super.newContentEncoder(acceptEncoding) : null;
+		}
+	}
+
 	// error responses
 	private static HttpResponse _badRequestResponse;
     private static HttpResponse _internalServerErrorResponse;
@@ -263,7 +294,7 @@ public class WONettyAdaptor extends WOAdaptor {
 	 * @param woresponse	A WOResponse
 	 * @return	HttpResponse
 	 */
-	private static HttpResponse asHttpResponse(WOResponse woresponse) {
+	private static WOResponseWrapper asHttpResponse(WOResponse woresponse) {
 		return new WOResponseWrapper(woresponse);
 	}
 
@@ -300,7 +331,25 @@ public class WONettyAdaptor extends WOAdaptor {
 			boolean keepAlive = isKeepAlive(_request);
 
 			// Write the response.
-			ChannelFuture future = e.getChannel().write(asHttpResponse(woresponse));
+			WOResponseWrapper response = asHttpResponse(woresponse);
+			ChannelFuture future = e.getChannel().write(response);
+
+			// Write the file of the response, if any, with FileChannel.transferTo.
+			final FileRegion fileRegion = response.fileRegion();
+			if (fileRegion != null) {
+				future = e.getChannel().write(fileRegion);
+				future.addListener(new ChannelFutureListener() {
+					public void operationComplete(ChannelFuture writeFuture) {
+						fileRegion.releaseExternalResources();
+					}
+				});
+			}
+
+			// Write the content stream of the response, if any, without reading it into memory.
+			ChunkedInput streamedContent = response.streamedContent();
+			if (streamedContent != null) {
+				future = e.getChannel().write(streamedContent);
+			}
 
 			// Close the non-keep-alive connection after the write operation is done.
 			if (!keepAlive) {
@@ -1,10 +1,14 @@
 package com.webobjects.appserver;
 
-import static org.jboss.netty.buffer.ChannelBuffers.buffer;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.COOKIE;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.TRANSFER_ENCODING;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Values.CHUNKED;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.LinkedList;
 import java.util.List;
@@ -15,12 +19,18 @@ import java.util.AbstractMap.SimpleEntry;
 import org.apache.log4j.Logger;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.channel.FileRegion;
 import org.jboss.netty.handler.codec.http.Cookie;
 import org.jboss.netty.handler.codec.http.CookieEncoder;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.jboss.netty.handler.stream.ChunkedStream;
 
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSSet;
@@ -35,6 +45,9 @@ public class WOResponseWrapper implements HttpResponse {
 
 	private WOResponse wrapping;
 	private ChannelBuffer _content = ChannelBuffers.EMPTY_BUFFER;
+	private FileRegion _fileRegion;
+	private ChunkedInput _streamedContent;
+	private boolean _chunked;
 	
 	/**
 	 * Converts a WOCookie to a Netty cookie
@@ -62,17 +75,108 @@ public class WOResponseWrapper implements HttpResponse {
 				_content = ChannelBuffers.copiedBuffer(wrapping._contentData._bytesNoCopy());
 				wrapping._contentData = null;
 			}
-		} else if (wrapping.contentInputStream() != null) {
+		} else if (wrapping.contentInputStream() instanceof FileInputStream) {
+			// send the file with FileChannel.transferTo after the headers, starting where the stream is positioned
 			try {
-				_content = buffer(wrapping.contentInputStreamBufferSize());
-				wrapping.contentInputStream().read(_content.array());
+				FileChannel fileChannel = ((FileInputStream) wrapping.contentInputStream()).getChannel();
+				long length = wrapping.contentInputStreamLength();
+				_fileRegion = new DefaultFileRegion(fileChannel, fileChannel.position(), length);
+				this.setHeader(CONTENT_LENGTH, length);
 				wrapping.setContentStream(null, 0, 0);
 			} catch (IOException exception) {
-				log.error(exception.getCause().getMessage());
+				log.error("Failed to read the position of the response file.", exception);
+			}
+		} else if (wrapping.contentInputStream() != null && wrapping.contentInputStreamLength() > 0) {
+			// send the stream after the headers, one buffer at a time
+			int bufferSize = Math.max(wrapping.contentInputStreamBufferSize(), 4096);
+			_streamedContent = new ChunkedStream(wrapping.contentInputStream(), bufferSize);
+			this.setHeader(CONTENT_LENGTH, wrapping.contentInputStreamLength());
+			wrapping.setContentStream(null, 0, 0);
+		} else if (wrapping.contentInputStream() != null && !HttpVersion.HTTP_1_0.getText().equals(wrapping.httpVersion())) {
+			// the length is unknown, send the stream in HTTP chunks
+			int bufferSize = Math.max(wrapping.contentInputStreamBufferSize(), 4096);
+			_streamedContent = new HttpChunkedStream(new ChunkedStream(wrapping.contentInputStream(), bufferSize));
+			_chunked = true;
+			this.removeHeader(CONTENT_LENGTH);
+			this.setHeader(TRANSFER_ENCODING, CHUNKED);
+			wrapping.setContentStream(null, 0, 0);
+		} else if (wrapping.contentInputStream() != null) {
+			// HTTP/1.0 has no chunks, read the whole stream to send its length
+			InputStream stream = wrapping.contentInputStream();
+			try {
+				int bufferSize = Math.max(wrapping.contentInputStreamBufferSize(), 4096);
+				_content = ChannelBuffers.dynamicBuffer(Math.min(Math.max(wrapping.contentInputStreamLength(), bufferSize), 1024 * 1024));
+				byte[] buffer = new byte[bufferSize];
+				int count;
+				while ((count = stream.read(buffer)) != -1) {
+					_content.writeBytes(buffer, 0, count);
+				}
+				this.setHeader(CONTENT_LENGTH, _content.readableBytes());
+			} catch (IOException exception) {
+				log.error("Failed to read the response content stream.", exception);
+			} finally {
+				try {
+					stream.close();
+				} catch (IOException exception) {
+					log.warn("Failed to close the response content stream.", exception);
+				}
+				wrapping.setContentStream(null, 0, 0);
 			}
 		}
 	}
 
+	/**
+	 * @return the file to send after this response's headers, or null if the content is in the response
+	 */
+	public FileRegion fileRegion() {
+		return _fileRegion;
+	}
+
+	/**
+	 * @return the stream to send after this response's headers with a ChunkedWriteHandler, or null if the content is in the response
+	 */
+	public ChunkedInput streamedContent() {
+		return _streamedContent;
+	}
+
+	/**
+	 * Turns the buffers of a stream into HTTP chunks and ends them with the last chunk.
+	 */
+	private static class HttpChunkedStream implements ChunkedInput {
+		private final ChunkedStream _stream;
+		private boolean _lastChunkSent;
+
+		public HttpChunkedStream(ChunkedStream stream) {
+			_stream = stream;
+		}
+
+		public boolean hasNextChunk() throws Exception {
+			return !_lastChunkSent;
+		}
+
+		public Object nextChunk() throws Exception {
+			if (_lastChunkSent) {
+				return null;
+			}
+			if (_stream.hasNextChunk()) {
+				ChannelBuffer buffer = (ChannelBuffer) _stream.nextChunk();
+				if (buffer != null) {
+					return new DefaultHttpChunk(buffer);
+				}
+			}
+			_lastChunkSent = true;
+			return HttpChunk.LAST_CHUNK;
+		}
+
+		public boolean isEndOfInput() throws Exception {
+			return _lastChunkSent;
+		}
+
+		public void close() throws Exception {
+			_stream.close();
+		}
+	}
+
 	@Override
 	public HttpResponseStatus getStatus() {
 		return HttpResponseStatus.valueOf(wrapping.status());
@@ -165,7 +269,7 @@ public class WOResponseWrapper implements HttpResponse {
 
 	@Override
 	public boolean isChunked() {
-		return false;
+		return _chunked;
 	}
 
 	@Override
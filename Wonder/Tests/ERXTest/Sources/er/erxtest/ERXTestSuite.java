@@ -30,6 +30,7 @@ public class ERXTestSuite {
     suite.addTestSuite(er.extensions.eof.ERXEOControlUtilitiesTest.class);    
     suite.addTestSuite(er.extensions.eof.ERXKeyGlobalIDTest.class);
     suite.addTestSuite(er.extensions.eof.ERXKeyTest.class);
+    suite.addTestSuite(er.extensions.eof.ERXSnapshotCacheTest.class);
 
     suite.addTestSuite(er.extensions.eof.qualifiers.ERXToManyQualifierTest.class);
 
@@ -45,9 +46,12 @@ public class ERXTestSuite {
     
     suite.addTestSuite(er.extensions.jdbc.MicrosoftSQLHelperTest.class);
 
+    suite.addTestSuite(er.extensions.remoteSynchronizer.ERXRemoteSynchronizerTest.class);
+
     suite.addTestSuite(er.memoryadaptor.ERMemoryAdaptorTest.class);
 
     suite.addTestSuite(er.extensions.appserver.ERXApplicationTest.class);
+    suite.addTestSuite(er.extensions.appserver.ERXResponseRewriterTest.class);
     
     suite.addTestSuite(er.directtoweb.ERD2WModelTest.class);
 
@@ -59,6 +59,34 @@ public class ERXExpiringCacheTestCase extends ERXTestCase {
     assertEquals(null, cache.objectForKeyWithVersion("Chuck", Integer.valueOf(1)));
   }
 
+  public void testMaxSizeEvictsLeastRecentlyUsed() throws InterruptedException {
+    ERXExpiringCache<Integer, String> cache = new ERXExpiringCache<Integer, String>(ERXExpiringCache.NO_TIMEOUT);
+    cache.setMaxSize(100);
+    for (int i = 0; i < 100; i++) {
+      cache.setObjectForKey("Value" + i, Integer.valueOf(i));
+    }
+    Thread.sleep(10);
+    for (int i = 0; i < 10; i++) {
+      assertEquals("Value" + i, cache.objectForKey(Integer.valueOf(i)));
+    }
+    cache.setObjectForKey("Value100", Integer.valueOf(100));
+    assertTrue(cache.count() <= 100);
+    assertTrue(cache.evictionCount() > 0);
+    for (int i = 0; i < 10; i++) {
+      assertEquals("Value" + i, cache.objectForKey(Integer.valueOf(i)));
+    }
+    assertEquals("Value100", cache.objectForKey(Integer.valueOf(100)));
+  }
+
+  public void testStatistics() {
+    ERXExpiringCache<String, String> cache = new ERXExpiringCache<String, String>(100);
+    cache.setObjectForKey("Krank", "Anjo");
+    cache.objectForKey("Anjo");
+    cache.objectForKey("Chuck");
+    assertEquals(1, cache.hitCount());
+    assertEquals(1, cache.missCount());
+  }
+
   public void testTimeExpiration() {
     // MS we have to have a long time here because ERXExpiringCache has a 10 second slop 
     // built in, so the test will fail if our timeout is small
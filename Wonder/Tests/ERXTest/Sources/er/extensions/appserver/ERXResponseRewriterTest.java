@@ -0,0 +1,46 @@
+package er.extensions.appserver;
+
+import junit.framework.TestCase;
+
+public class ERXResponseRewriterTest extends TestCase {
+
+    public ERXResponseRewriterTest(String name) {
+        super(name);
+    }
+
+    public void testHeadContributionsAreInsertedOnceInOrder() {
+        ERXResponse response = new ERXResponse();
+        response.appendContentString("<html><head><title>Test</title>");
+        // the close head tag isn't there yet, so this one is rendered inline
+        ERXResponseRewriter.insertInResponseBeforeHead(response, null, "<script src=\"inline.js\"></script>", ERXResponseRewriter.TagMissingBehavior.Inline);
+        response.appendContentString("</head><body>");
+        for (int i = 0; i < 15; i++) {
+            response.appendContentString("<div>" + i + "</div>");
+            assertTrue(ERXResponseRewriter.insertInResponseBeforeHead(response, null, "<script src=\"" + i + ".js\"></script>", ERXResponseRewriter.TagMissingBehavior.Inline));
+        }
+        response.appendContentString("</body></html>");
+
+        StringBuilder expected = new StringBuilder("<html><head><title>Test</title><script src=\"inline.js\"></script>");
+        for (int i = 0; i < 15; i++) {
+            expected.append("<script src=\"" + i + ".js\"></script>");
+        }
+        expected.append("</head><body>");
+        for (int i = 0; i < 15; i++) {
+            expected.append("<div>" + i + "</div>");
+        }
+        expected.append("</body></html>");
+        assertEquals(expected.toString(), response.contentString());
+    }
+
+    public void testHeadContributionsAtMark() {
+        ERXResponse response = new ERXResponse();
+        response.appendContentString("<html><head>");
+        ERXResponseRewriter.markHeadContributions(response);
+        response.appendContentString("<title>Test</title>");
+        ERXResponseRewriter.insertInResponseBeforeHead(response, null, "<script src=\"a.js\"></script>", ERXResponseRewriter.TagMissingBehavior.Inline);
+        response.appendContentString("</head><body>");
+        ERXResponseRewriter.insertInResponseBeforeHead(response, null, "<script src=\"b.js\"></script>", ERXResponseRewriter.TagMissingBehavior.Inline);
+        response.appendContentString("</body></html>");
+        assertEquals("<html><head><script src=\"a.js\"></script><script src=\"b.js\"></script><title>Test</title></head><body></body></html>", response.contentString());
+    }
+}
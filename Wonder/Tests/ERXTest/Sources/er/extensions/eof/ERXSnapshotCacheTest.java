@@ -0,0 +1,143 @@
+package er.extensions.eof;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOKeyGlobalID;
+import com.webobjects.eocontrol.EOObjectStoreCoordinator;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.erxtest.ERXTestCase;
+import er.erxtest.model.Company;
+
+/**
+ * Tests of the {@link er.extensions.eof.ERXSnapshotCache} class with a cache that keeps the
+ * snapshots in memory.
+ */
+public class ERXSnapshotCacheTest extends ERXTestCase {
+
+	private MemorySnapshotCache cache;
+
+	public static class MemorySnapshotCache extends ERXSnapshotCache {
+		public final Map<String, Object> objects = new HashMap<String, Object>();
+
+		@Override
+		protected Object objectForKey(String key) {
+			return objects.get(key);
+		}
+
+		@Override
+		protected void setObjectForKey(Object object, String key, long ttl) {
+			objects.put(key, object);
+		}
+
+		@Override
+		protected void addObjectForKey(Object object, String key, long ttl) {
+			if (!objects.containsKey(key)) {
+				objects.put(key, object);
+			}
+		}
+
+		@Override
+		protected void removeObjectForKey(String key) {
+			objects.remove(key);
+		}
+	}
+
+	public void setUp() throws Exception {
+		super.setUp();
+		cache = new MemorySnapshotCache();
+		cache.setTimeToLiveForEntityNamed(60, Company.ENTITY_NAME);
+		ERXObjectStoreCoordinatorSynchronizer.synchronizer().addChangeListener(cache);
+	}
+
+	public void tearDown() throws Exception {
+		ERXObjectStoreCoordinatorSynchronizer.synchronizer().removeChangeListener(cache);
+		super.tearDown();
+	}
+
+	public void testOnlyListedEntitiesAreCached() {
+		EOKeyGlobalID gid = EOKeyGlobalID.globalIDWithEntityName(Company.ENTITY_NAME, new Object[] { Integer.valueOf(1) });
+		EOKeyGlobalID otherGID = EOKeyGlobalID.globalIDWithEntityName("Employee", new Object[] { Integer.valueOf(1) });
+		NSDictionary snapshot = new NSDictionary(Company.ENTITY_NAME, Company.NAME_KEY);
+
+		cache.setSnapshotForGlobalID(snapshot, gid);
+		cache.setSnapshotForGlobalID(snapshot, otherGID);
+		assertEquals(1, cache.objects.size());
+		assertEquals(snapshot, cache.snapshotForGlobalID(gid));
+		assertNull(cache.snapshotForGlobalID(otherGID));
+		assertEquals(1, cache.hits());
+		assertEquals(0, cache.misses());
+
+		cache.removeSnapshotForGlobalID(gid);
+		assertNull(cache.snapshotForGlobalID(gid));
+		assertEquals(1, cache.misses());
+	}
+
+	public void testSavedChangesUpdateTheCache() {
+		EOEditingContext ec = ERXEC.newEditingContext();
+		Company co = Company.createCompany(ec, "Foobar.com");
+		ec.saveChanges();
+		EOKeyGlobalID gid = (EOKeyGlobalID) ec.globalIDForObject(co);
+
+		co.setName("Barfoo.com");
+		ec.saveChanges();
+		NSDictionary snapshot = cache.snapshotForGlobalID(gid);
+		assertNotNull(snapshot);
+		assertEquals("Barfoo.com", snapshot.objectForKey(Company.NAME_KEY));
+
+		ec.deleteObject(co);
+		ec.saveChanges();
+		assertNull(cache.snapshotForGlobalID(gid));
+	}
+
+	public void testAddDoesNotReplaceCachedSnapshots() {
+		EOKeyGlobalID gid = EOKeyGlobalID.globalIDWithEntityName(Company.ENTITY_NAME, new Object[] { Integer.valueOf(1) });
+		NSDictionary snapshot = new NSDictionary("Saved.com", Company.NAME_KEY);
+
+		cache.setSnapshotForGlobalID(snapshot, gid);
+		cache.addSnapshotForGlobalID(new NSDictionary("Fetched.com", Company.NAME_KEY), gid);
+		assertEquals(snapshot, cache.snapshotForGlobalID(gid));
+
+		cache.removeSnapshotForGlobalID(gid);
+		cache.addSnapshotForGlobalID(snapshot, gid);
+		assertEquals(snapshot, cache.snapshotForGlobalID(gid));
+	}
+
+	public void testFaultIsInitializedFromTheCache() {
+		EOEditingContext ec = ERXEC.newEditingContext();
+		Company co = Company.createCompany(ec, "Foobar.com");
+		ec.saveChanges();
+		EOKeyGlobalID gid = (EOKeyGlobalID) ec.globalIDForObject(co);
+
+		// a cached name that differs from the stored row shows that the row wasn't fetched
+		NSMutableDictionary snapshot = cache.snapshotForGlobalID(gid).mutableClone();
+		snapshot.setObjectForKey("Cached.com", Company.NAME_KEY);
+		cache.setSnapshotForGlobalID(snapshot, gid);
+		EODatabaseContext dbc = ERXEOAccessUtilities.databaseContextForEntityNamed((EOObjectStoreCoordinator) ec.rootObjectStore(), Company.ENTITY_NAME);
+		dbc.lock();
+		try {
+			dbc.database().forgetSnapshotForGlobalID(gid);
+		}
+		finally {
+			dbc.unlock();
+		}
+
+		ERXSnapshotCache previousCache = ERXDatabaseContextDelegate.defaultDelegate().snapshotCache();
+		ERXDatabaseContextDelegate.defaultDelegate().setSnapshotCache(cache);
+		try {
+			long hits = cache.hits();
+			EOEditingContext otherEC = ERXEC.newEditingContext();
+			Company fault = (Company) otherEC.faultForGlobalID(gid, otherEC);
+			assertEquals("Cached.com", fault.name());
+			assertEquals(hits + 1, cache.hits());
+			assertNotNull(dbc.database().snapshotForGlobalID(gid));
+		}
+		finally {
+			ERXDatabaseContextDelegate.defaultDelegate().setSnapshotCache(previousCache);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package er.extensions.remoteSynchronizer;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.webobjects.eocontrol.EOKeyGlobalID;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+
+import er.extensions.eof.ERXDatabase;
+
+/**
+ * Tests that the frames written by {@link ERXRemoteSynchronizer} never exceed
+ * the maximum frame size.
+ */
+public class ERXRemoteSynchronizerTest extends TestCase {
+
+	// flags byte, sent time and record count
+	private static final int FRAME_OVERHEAD = 1 + 8 + 4;
+	// type, UTF encoded "Company" and GID count
+	private static final int RECORD_HEADER_SIZE = 1 + 2 + 7 + 4;
+	// key count, key type and int key
+	private static final int GID_SIZE = 1 + 1 + 4;
+
+	private ERXRemoteSynchronizer synchronizer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		System.setProperty("er.extensions.remoteSynchronizer.compressFrames", "false");
+		synchronizer = new ERXRemoteSynchronizer(null) {
+			public void join() {
+			}
+
+			public void leave() {
+			}
+
+			public void listen() {
+			}
+
+			protected void _writeCacheChanges(int transactionID, NSArray cacheChanges) {
+			}
+		};
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		System.clearProperty("er.extensions.remoteSynchronizer.compressFrames");
+		super.tearDown();
+	}
+
+	private NSArray<ERXDatabase.CacheChange> insertedCompanies(int count) {
+		NSMutableArray<ERXDatabase.CacheChange> cacheChanges = new NSMutableArray<ERXDatabase.CacheChange>();
+		for (int i = 0; i < count; i++) {
+			EOKeyGlobalID gid = EOKeyGlobalID.globalIDWithEntityName("Company", new Object[] { Integer.valueOf(i) });
+			cacheChanges.addObject(new ERXDatabase.SnapshotInserted(gid, NSDictionary.EmptyDictionary));
+		}
+		return cacheChanges;
+	}
+
+	public void testFrameFilledExactlyToLimit() throws Exception {
+		int maxFrameSize = FRAME_OVERHEAD + RECORD_HEADER_SIZE + 10 * GID_SIZE;
+		List<byte[]> frames = synchronizer._writeCacheChangeFrames(insertedCompanies(25), maxFrameSize);
+		assertEquals(3, frames.size());
+		assertEquals(maxFrameSize, frames.get(0).length);
+		assertEquals(maxFrameSize, frames.get(1).length);
+		assertEquals(FRAME_OVERHEAD + RECORD_HEADER_SIZE + 5 * GID_SIZE, frames.get(2).length);
+	}
+
+	public void testFrameOneByteShortOfGID() throws Exception {
+		int maxFrameSize = FRAME_OVERHEAD + RECORD_HEADER_SIZE + 10 * GID_SIZE - 1;
+		List<byte[]> frames = synchronizer._writeCacheChangeFrames(insertedCompanies(25), maxFrameSize);
+		for (byte[] frame : frames) {
+			assertTrue(frame.length <= maxFrameSize);
+		}
+		assertEquals(FRAME_OVERHEAD + RECORD_HEADER_SIZE + 9 * GID_SIZE, frames.get(0).length);
+	}
+}